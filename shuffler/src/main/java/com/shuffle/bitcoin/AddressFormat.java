@@ -0,0 +1,12 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.protocol.FormatException;
+
+/**
+ * Turns addresses into bytes and back again, so that they can be encrypted.
+ */
+public interface AddressFormat {
+    byte[] serialize(Address address) throws CryptographyError;
+
+    Address deserialize(byte[] bytes) throws FormatException;
+}
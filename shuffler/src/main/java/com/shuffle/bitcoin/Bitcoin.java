@@ -1,53 +1,304 @@
 package com.shuffle.bitcoin;
 
+import com.shuffle.bitcoin.ecies.EciesDecryptionKey;
+import com.shuffle.bitcoin.keys.Hash160Address;
+import com.shuffle.bitcoin.keys.PrivateKey;
+import com.shuffle.bitcoin.keys.PublicKey;
 import com.shuffle.protocol.InvalidImplementationError;
 import com.shuffle.protocol.Message;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bitcoinj.core.Block;
 import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionBroadcaster;
 
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Created by Daniel Krawisz on 12/21/15.
  */
 public class Bitcoin implements Coin, Crypto {
+    private static Logger log = LogManager.getLogger(Bitcoin.class);
+
     BlockChain blockchain;
+    final AddressFormat format; // Used to encrypt addresses.
+    final SecureRandom random = new SecureRandom();
+    final RandomNumbers numbers = new RandomNumbers(random);
+
+    final NetworkParameters params;
+    final UnspentOutputs utxos; // (may be null, but then no transaction can be made)
+    final TransactionBroadcaster broadcaster; // (may be null, but then no transaction can be sent)
+    final BlockFilterIndex filters; // (may be null, but then no conflicting transaction can be found)
+    final BlockSource blocks; // (may be null if filters is)
+    final ExecutorService executor; // Signs inputs and searches blocks in parallel. (may be null)
+    final long fee; // The fee paid by each player, which comes out of his change.
+
+    public Bitcoin(
+            NetworkParameters params,
+            AddressFormat format,
+            UnspentOutputs utxos,
+            TransactionBroadcaster broadcaster,
+            BlockFilterIndex filters,
+            BlockSource blocks,
+            ExecutorService executor,
+            long fee) {
+
+        if (format == null) {
+            throw new NullPointerException();
+        }
+        if (fee < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.params = params;
+        this.format = format;
+        this.utxos = utxos;
+        this.broadcaster = broadcaster;
+        this.filters = filters;
+        this.blocks = blocks;
+        this.executor = executor;
+        this.fee = fee;
+    }
 
+    public Bitcoin(
+            NetworkParameters params,
+            AddressFormat format,
+            UnspentOutputs utxos,
+            TransactionBroadcaster broadcaster,
+            ExecutorService executor,
+            long fee) {
+
+        this(params, format, utxos, broadcaster, null, null, executor, fee);
+    }
+
+    public Bitcoin(AddressFormat format) {
+        this(null, format, null, null, null, 0);
+    }
+
+    // The inputs are spent in the order of the players, and each player's inputs in the order
+    // given. Every output held by an input key is spent. The shuffled outputs come first, in the
+    // order given, followed by the change outputs. A player who has anything left over after the
+    // fee must have a change address.
     @Override
-    public Transaction shuffleTransaction(long amount, List<VerificationKey> inputs, Queue<Address> shuffledOutputs, Map<VerificationKey, Address> changeOutputs) {
-        return null;
+    public Transaction shuffleTransaction(
+            long amount,
+            Map<VerificationKey, List<VerificationKey>> from,
+            Queue<Address> to,
+            Map<VerificationKey, Address> changeAddresses) throws CoinNetworkError {
+
+        if (utxos == null) {
+            throw new CoinNetworkError();
+        }
+
+        List<ShuffleTransaction.Input> inputs = new ArrayList<>();
+        List<ShuffleTransaction.Output> change = new ArrayList<>();
+        for (Map.Entry<VerificationKey, List<VerificationKey>> player : from.entrySet()) {
+            long total = 0;
+            for (VerificationKey vk : player.getValue()) {
+                if (!(vk instanceof PublicKey)) {
+                    throw new InvalidImplementationError();
+                }
+
+                long held = 0;
+                for (UnspentOutput utxo : utxos.unspent(vk.address())) {
+                    inputs.add(new ShuffleTransaction.Input((PublicKey) vk, utxo));
+                    held += utxo.value;
+                }
+                if (held < amount) {
+                    throw new CoinNetworkError();
+                }
+                total += held;
+            }
+
+            long left = total - amount * player.getValue().size() - fee;
+            if (left < 0) {
+                throw new CoinNetworkError();
+            }
+
+            // Every output is swept, so without a change address the rest would go to the miners.
+            Address address = changeAddresses == null ? null : changeAddresses.get(player.getKey());
+            if (left > 0) {
+                if (address == null) {
+                    throw new CoinNetworkError();
+                }
+                change.add(new ShuffleTransaction.Output(hash160(address), left));
+            }
+        }
+
+        List<ShuffleTransaction.Output> outputs = new ArrayList<>();
+        for (Address address : to) {
+            outputs.add(new ShuffleTransaction.Output(hash160(address), amount));
+        }
+        outputs.addAll(change);
+
+        return new ShuffleTransaction(params, broadcaster, executor, inputs, outputs);
+    }
+
+    private static Hash160Address hash160(Address address) {
+        if (!(address instanceof Hash160Address)) {
+            throw new InvalidImplementationError();
+        }
+        return (Hash160Address) address;
+    }
+
+    @Override
+    public Transaction signedTransaction(Transaction t, Map<VerificationKey, Signature> signatures)
+            throws InvalidImplementationError {
+        if (!(t instanceof ShuffleTransaction)) {
+            throw new InvalidImplementationError();
+        }
+        return ((ShuffleTransaction) t).withSignatures(signatures);
     }
 
     @Override
     public long valueHeld(Address addr) throws CoinNetworkError {
-        return 0;
+        if (utxos == null) {
+            throw new CoinNetworkError();
+        }
+
+        long value = 0;
+        for (UnspentOutput utxo : utxos.unspent(addr)) {
+            value += utxo.value;
+        }
+        return value;
     }
 
+    // Look for the most recent transaction that spends from the address. Only the blocks whose
+    // filters match the address are read, and if there is an executor they are read in parallel.
     @Override
     public Transaction getConflictingTransaction(Address addr, long amount) {
-        return null;
+        if (filters == null || blocks == null || !(addr instanceof Hash160Address)) {
+            return null;
+        }
+
+        final byte[] hash160 = ((Hash160Address) addr).toBytes();
+
+        List<Integer> candidates;
+        try {
+            candidates = filters.match(BlockFilter.p2pkh(hash160), executor);
+        } catch (IOException e) {
+            log.error("Could not search block filters.", e);
+            return null;
+        }
+        Collections.reverse(candidates);
+
+        try {
+            if (executor == null) {
+                for (int height : candidates) {
+                    ChainTransaction t = spendFrom(height, hash160);
+                    if (t != null) {
+                        return t;
+                    }
+                }
+                return null;
+            }
+
+            List<Future<ChainTransaction>> futures = new ArrayList<>();
+            for (final int height : candidates) {
+                futures.add(executor.submit(new Callable<ChainTransaction>() {
+                    @Override
+                    public ChainTransaction call() throws IOException {
+                        return spendFrom(height, hash160);
+                    }
+                }));
+            }
+
+            try {
+                for (Future<ChainTransaction> future : futures) {
+                    ChainTransaction t = future.get();
+                    if (t != null) {
+                        return t;
+                    }
+                }
+                return null;
+            } finally {
+                for (Future<ChainTransaction> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        } catch (IOException | ExecutionException e) {
+            log.error("Could not read blocks.", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // A transaction in the block at the given height that spends from the given address.
+    private ChainTransaction spendFrom(int height, byte[] hash160) throws IOException {
+        Block block = blocks.block(filters.hash(height));
+        if (block == null) {
+            return null;
+        }
+
+        for (org.bitcoinj.core.Transaction tx : block.getTransactions()) {
+            if (ChainTransaction.spendsFrom(tx, hash160)) {
+                return new ChainTransaction(tx, height);
+            }
+        }
+        return null; // A false positive.
     }
 
     @Override
     public boolean spendsFrom(Address addr, long amount, Transaction t) {
+        if (!(addr instanceof Hash160Address)) {
+            return false;
+        }
+
+        if (t instanceof ChainTransaction) {
+            return ((ChainTransaction) t).spendsFrom((Hash160Address) addr);
+        }
+
+        if (t instanceof ShuffleTransaction) {
+            for (ShuffleTransaction.Input input : ((ShuffleTransaction) t).inputs) {
+                if (input.key.address().equals(addr)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean seen(Transaction t) throws CoinNetworkError {
+        if (t instanceof ChainTransaction) {
+            return true;
+        }
+
+        if (t instanceof ShuffleTransaction) {
+            return ((ShuffleTransaction) t).seen();
+        }
+
         return false;
     }
 
     @Override
     public DecryptionKey makeDecryptionKey() throws CryptographyError {
-        return null;
+        return new EciesDecryptionKey(format, random);
     }
 
     @Override
     public SigningKey makeSigningKey() throws CryptographyError {
-        return null;
+        return new PrivateKey(random);
     }
 
     @Override
     public int getRandom(int n) throws CryptographyError, InvalidImplementationError {
-        return 0;
+        return numbers.getRandom(n);
     }
 
     @Override
@@ -0,0 +1,331 @@
+package com.shuffle.bitcoin;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compact filter of the scripts in a block, as in BIP 158. It is a Golomb-coded set: every
+ * script is hashed to a number less than N * M, where N is the number of scripts, and the sorted
+ * numbers are written as the Golomb-Rice codes of the differences between them. A script that
+ * is not in the block is found in the filter with probability about 1 / M.
+ * https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki
+ *
+ * BIP 158 includes the scripts of the outputs spent by a block, which can't be known from the
+ * block alone. Instead we include the pay-to-pubkey-hash script of every public key that
+ * appears in an input, which is what we need to find the transactions that spend from an address.
+ */
+public final class BlockFilter {
+    static final int P = 19;
+    static final long M = 784931;
+
+    final long k0;
+    final long k1;
+    final long n; // The number of items in the set.
+    final byte[] bits; // The Golomb-Rice codes.
+
+    BlockFilter(byte[] key, long n, byte[] bits) {
+        this.k0 = readLong(key, 0);
+        this.k1 = readLong(key, 8);
+        this.n = n;
+        this.bits = bits;
+    }
+
+    // The key is the first 16 bytes of the block hash, in the order in which it is hashed.
+    public static BlockFilter build(byte[] key, Collection<byte[]> items) {
+        if (key == null || items == null) {
+            throw new NullPointerException();
+        }
+        if (key.length < 16) {
+            throw new IllegalArgumentException();
+        }
+
+        Set<ByteArray> unique = new HashSet<>();
+        for (byte[] item : items) {
+            if (item.length > 0) {
+                unique.add(new ByteArray(item));
+            }
+        }
+
+        long k0 = readLong(key, 0);
+        long k1 = readLong(key, 8);
+        long n = unique.size();
+        long[] values = new long[(int) n];
+        int i = 0;
+        for (ByteArray item : unique) {
+            values[i++] = hashToRange(k0, k1, n * M, item.bytes);
+        }
+        Arrays.sort(values); // The values are all less than 2^63, so this is the unsigned order.
+
+        BitWriter writer = new BitWriter();
+        long previous = 0;
+        for (long value : values) {
+            long delta = value - previous;
+            for (long q = delta >>> P; q > 0; q--) {
+                writer.write(1, 1);
+            }
+            writer.write(0, 1);
+            writer.write(delta, P);
+            previous = value;
+        }
+
+        return new BlockFilter(key, n, writer.toByteArray());
+    }
+
+    public static BlockFilter build(Block block) {
+        List<byte[]> items = new ArrayList<>();
+        for (org.bitcoinj.core.Transaction t : block.getTransactions()) {
+            for (TransactionOutput output : t.getOutputs()) {
+                items.add(output.getScriptPubKey().getProgram());
+            }
+
+            if (t.isCoinBase()) {
+                continue;
+            }
+            for (TransactionInput input : t.getInputs()) {
+                try {
+                    items.add(p2pkh(Utils.sha256hash160(input.getScriptSig().getPubKey())));
+                } catch (ScriptException e) {
+                    // Not an input which reveals a single public key.
+                }
+            }
+        }
+
+        return build(key(block.getHash().getBytes()), items);
+    }
+
+    // The hash is little-endian internally, but bitcoinj gives it to us in the other order.
+    static byte[] key(byte[] hash) {
+        byte[] key = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            key[i] = hash[hash.length - 1 - i];
+        }
+        return key;
+    }
+
+    static byte[] p2pkh(byte[] hash160) {
+        byte[] script = new byte[25];
+        script[0] = 0x76;
+        script[1] = (byte) 0xa9;
+        script[2] = 20;
+        System.arraycopy(hash160, 0, script, 3, 20);
+        script[23] = (byte) 0x88;
+        script[24] = (byte) 0xac;
+        return script;
+    }
+
+    // Whether the item may be in the set.
+    public boolean match(byte[] item) {
+        if (n == 0) {
+            return false;
+        }
+
+        long target = hashToRange(k0, k1, n * M, item);
+
+        BitReader reader = new BitReader(bits);
+        long value = 0;
+        for (long i = 0; i < n; i++) {
+            long q = 0;
+            while (reader.read(1) == 1) {
+                q++;
+            }
+            value += (q << P) | reader.read(P);
+
+            if (value == target) {
+                return true;
+            }
+            if (value > target) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    // The serialized form, which is the number of items followed by the codes.
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (n < 0xfd) {
+            out.write((int) n);
+        } else {
+            out.write(0xfe);
+            for (int i = 0; i < 4; i++) {
+                out.write((int) (n >>> (8 * i)));
+            }
+        }
+        out.write(bits, 0, bits.length);
+        return out.toByteArray();
+    }
+
+    public static BlockFilter fromBytes(byte[] key, byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException();
+        }
+
+        int first = bytes[0] & 0xff;
+        if (first < 0xfd) {
+            return new BlockFilter(key, first, Arrays.copyOfRange(bytes, 1, bytes.length));
+        }
+        if (first != 0xfe || bytes.length < 5) {
+            throw new IllegalArgumentException();
+        }
+
+        long n = 0;
+        for (int i = 0; i < 4; i++) {
+            n |= (bytes[1 + i] & 0xffL) << (8 * i);
+        }
+        return new BlockFilter(key, n, Arrays.copyOfRange(bytes, 5, bytes.length));
+    }
+
+    static long hashToRange(long k0, long k1, long f, byte[] item) {
+        return multiplyHigh(sipHash(k0, k1, item), f);
+    }
+
+    // The upper 64 bits of the 128-bit product of two unsigned numbers.
+    static long multiplyHigh(long x, long y) {
+        long x0 = x & 0xffffffffL;
+        long x1 = x >>> 32;
+        long y0 = y & 0xffffffffL;
+        long y1 = y >>> 32;
+
+        long p00 = x0 * y0;
+        long p01 = x0 * y1;
+        long p10 = x1 * y0;
+        long p11 = x1 * y1;
+
+        long middle = (p00 >>> 32) + (p01 & 0xffffffffL) + (p10 & 0xffffffffL);
+        return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    // SipHash-2-4.
+    static long sipHash(long k0, long k1, byte[] m) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+
+        int blocks = m.length / 8;
+        for (int i = 0; i < blocks; i++) {
+            long x = readLong(m, 8 * i);
+            v3 ^= x;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= x;
+        }
+
+        long last = ((long) m.length & 0xff) << 56;
+        for (int i = 8 * blocks; i < m.length; i++) {
+            last |= (m[i] & 0xffL) << (8 * (i - 8 * blocks));
+        }
+
+        v3 ^= last;
+        for (int r = 0; r < 2; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= last;
+
+        v2 ^= 0xff;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    // Little-endian.
+    private static long readLong(byte[] b, int offset) {
+        long x = 0;
+        for (int i = 7; i >= 0; i--) {
+            x = (x << 8) | (b[offset + i] & 0xffL);
+        }
+        return x;
+    }
+
+    private static final class ByteArray {
+        final byte[] bytes;
+
+        ByteArray(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteArray && Arrays.equals(bytes, ((ByteArray) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+
+    // Bits are written most significant first.
+    private static final class BitWriter {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int current = 0;
+        int used = 0;
+
+        void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++used == 8) {
+                    out.write(current);
+                    current = 0;
+                    used = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (used > 0) {
+                out.write(current << (8 - used));
+                current = 0;
+                used = 0;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static final class BitReader {
+        final byte[] bytes;
+        long position = 0;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                int index = (int) (position >>> 3);
+                if (index >= bytes.length) {
+                    throw new IllegalArgumentException();
+                }
+                int bit = (bytes[index] >>> (7 - (int) (position & 7))) & 1;
+                value = (value << 1) | bit;
+                position++;
+            }
+            return value;
+        }
+    }
+}
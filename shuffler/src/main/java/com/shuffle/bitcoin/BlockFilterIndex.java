@@ -0,0 +1,181 @@
+package com.shuffle.bitcoin;
+
+import org.bitcoinj.core.Block;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A file of block filters, one for each block in the chain, in order. The filters are read
+ * from the file when they are searched. Only the hash of each block and the place of its filter
+ * are kept in memory.
+ */
+public final class BlockFilterIndex implements Closeable {
+    static final int HASH = 32;
+
+    // The number of blocks searched by each task when searching in parallel.
+    static final int CHUNK = 1024;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    // Guarded by this.
+    private final List<byte[]> hashes = new ArrayList<>();
+    private long[] offsets = new long[1024];
+    private long end = 0;
+
+    public BlockFilterIndex(File file) throws IOException {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        // Records are a block hash, the length of the filter and the filter.
+        ByteBuffer header = ByteBuffer.allocate(HASH + 4);
+        long size = channel.size();
+        while (end + header.capacity() <= size) {
+            header.clear();
+            channel.read(header, end);
+            header.flip();
+            byte[] hash = new byte[HASH];
+            header.get(hash);
+            int length = header.getInt();
+            if (length < 0 || end + header.capacity() + length > size) {
+                break; // A torn write at the end.
+            }
+
+            remember(hash, end);
+            end += header.capacity() + length;
+        }
+        channel.truncate(end);
+    }
+
+    private void remember(byte[] hash, long offset) {
+        if (hashes.size() == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        offsets[hashes.size()] = offset;
+        hashes.add(hash);
+    }
+
+    // Add the filter of the next block in the chain.
+    public synchronized void add(Block block) throws IOException {
+        add(block.getHash().getBytes(), BlockFilter.build(block));
+    }
+
+    synchronized void add(byte[] hash, BlockFilter filter) throws IOException {
+        if (hash.length != HASH) {
+            throw new IllegalArgumentException();
+        }
+
+        byte[] bytes = filter.toBytes();
+        ByteBuffer record = ByteBuffer.allocate(HASH + 4 + bytes.length);
+        record.put(hash).putInt(bytes.length).put(bytes).flip();
+        while (record.hasRemaining()) {
+            channel.write(record, end + record.position());
+        }
+
+        remember(hash, end);
+        end += record.capacity();
+    }
+
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    // The hash of the block at the given height.
+    public synchronized byte[] hash(int height) {
+        return hashes.get(height).clone();
+    }
+
+    private BlockFilter filter(int height, byte[] hash, long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        channel.read(length, offset + HASH);
+        length.flip();
+
+        ByteBuffer bytes = ByteBuffer.allocate(length.getInt());
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, offset + HASH + 4 + bytes.position()) < 0) {
+                throw new IOException("Block filter " + height + " is truncated.");
+            }
+        }
+        return BlockFilter.fromBytes(BlockFilter.key(hash), bytes.array());
+    }
+
+    // The heights of the blocks between from and to whose filters match the given script.
+    private List<Integer> match(byte[] script, int from, int to, List<byte[]> hashes, long[] offsets) throws IOException {
+        List<Integer> matches = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (filter(i, hashes.get(i), offsets[i]).match(script)) {
+                matches.add(i);
+            }
+        }
+        return matches;
+    }
+
+    // The heights of the blocks which might contain the given script, in order. If an executor
+    // is given, the filters are searched in parallel.
+    public List<Integer> match(final byte[] script, ExecutorService executor) throws IOException {
+        if (script == null) {
+            throw new NullPointerException();
+        }
+
+        final List<byte[]> hashes;
+        final long[] offsets;
+        synchronized (this) {
+            hashes = new ArrayList<>(this.hashes);
+            offsets = this.offsets.clone();
+        }
+
+        if (executor == null || hashes.size() <= CHUNK) {
+            return match(script, 0, hashes.size(), hashes, offsets);
+        }
+
+        List<Future<List<Integer>>> futures = new ArrayList<>();
+        for (int from = 0; from < hashes.size(); from += CHUNK) {
+            final int start = from;
+            final int stop = Math.min(from + CHUNK, hashes.size());
+            futures.add(executor.submit(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() throws IOException {
+                    return match(script, start, stop, hashes, offsets);
+                }
+            }));
+        }
+
+        List<Integer> matches = new ArrayList<>();
+        try {
+            for (Future<List<Integer>> future : futures) {
+                matches.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<List<Integer>> future : futures) {
+                future.cancel(false); // Interrupting a read would close the channel.
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
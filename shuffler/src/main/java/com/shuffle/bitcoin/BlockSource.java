@@ -0,0 +1,13 @@
+package com.shuffle.bitcoin;
+
+import org.bitcoinj.core.Block;
+
+import java.io.IOException;
+
+/**
+ * Reads whole blocks from wherever they are kept.
+ */
+public interface BlockSource {
+    // The block with the given hash, or null if it isn't available.
+    Block block(byte[] hash) throws IOException;
+}
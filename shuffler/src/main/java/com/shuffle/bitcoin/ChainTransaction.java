@@ -0,0 +1,74 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.bitcoin.keys.Hash160Address;
+import com.shuffle.protocol.InvalidImplementationError;
+
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Utils;
+
+import java.util.Arrays;
+
+/**
+ * A transaction that was found in the block chain.
+ */
+public final class ChainTransaction implements Transaction {
+    public final org.bitcoinj.core.Transaction tx;
+    public final int height; // The height of the block in which it was found.
+
+    ChainTransaction(org.bitcoinj.core.Transaction tx, int height) {
+        if (tx == null) {
+            throw new NullPointerException();
+        }
+        this.tx = tx;
+        this.height = height;
+    }
+
+    // Whether the transaction has an input that is signed by the key for the given address.
+    boolean spendsFrom(Hash160Address address) {
+        return spendsFrom(tx, address.toBytes());
+    }
+
+    static boolean spendsFrom(org.bitcoinj.core.Transaction tx, byte[] hash160) {
+        if (tx.isCoinBase()) {
+            return false;
+        }
+
+        for (TransactionInput input : tx.getInputs()) {
+            try {
+                if (Arrays.equals(hash160, Utils.sha256hash160(input.getScriptSig().getPubKey()))) {
+                    return true;
+                }
+            } catch (ScriptException e) {
+                // Not an input which reveals a single public key.
+            }
+        }
+        return false;
+    }
+
+    // It's already in the chain.
+    @Override
+    public void send() throws CoinNetworkError {
+    }
+
+    // We never sign it.
+    @Override
+    public byte[] sighash(VerificationKey key) throws InvalidImplementationError {
+        throw new InvalidImplementationError();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ChainTransaction && tx.equals(((ChainTransaction) o).tx);
+    }
+
+    @Override
+    public int hashCode() {
+        return tx.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "transaction[" + tx.getHash() + " at " + height + "]";
+    }
+}
@@ -1,5 +1,7 @@
 package com.shuffle.bitcoin;
 
+import com.shuffle.protocol.InvalidImplementationError;
+
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -14,9 +16,17 @@ import java.util.Queue;
  *
  */
 public interface Coin {
-    Transaction shuffleTransaction(long amount, List<VerificationKey> from, Queue<Address> to, Map<VerificationKey, Address> changeAddresses)
+    // Make the shuffle transaction. The inputs are given by player, in the order of the players.
+    // Each input contributes the given amount to the shuffled outputs, and anything left over
+    // from all of a player's inputs goes to his change address, if he has one.
+    Transaction shuffleTransaction(long amount, Map<VerificationKey, List<VerificationKey>> from, Queue<Address> to, Map<VerificationKey, Address> changeAddresses)
             throws CoinNetworkError;
 
+    // The given shuffle transaction with the signatures of the players who own its inputs, ready
+    // to be sent. The signatures must already have been verified.
+    Transaction signedTransaction(Transaction t, Map<VerificationKey, Signature> signatures)
+            throws InvalidImplementationError;
+
     long valueHeld(Address addr) throws CoinNetworkError;
 
     // Returns either a transaction that sent from the given address that caused it to have .
@@ -26,4 +36,8 @@ public interface Coin {
 
     // Whether the given transaction spends the funds in the given address.
     boolean spendsFrom(Address addr, long amount, Transaction t);
+
+    // Whether the network has the transaction, either in the mempool or in a block. Used to
+    // decide whether a transaction that has been sent needs to be sent again.
+    boolean seen(Transaction t) throws CoinNetworkError;
 }
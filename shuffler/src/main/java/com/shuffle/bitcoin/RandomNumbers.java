@@ -0,0 +1,145 @@
+package com.shuffle.bitcoin;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cryptographically secure random numbers for Crypto.getRandom, which is called once for every
+ * address shuffled. Asking a SecureRandom for every number means waiting on its lock whenever
+ * several sessions are shuffling at once, so instead each thread has its own generator which
+ * is seeded from the SecureRandom and only goes back to it once in a while.
+ *
+ * Each generator produces a block of bytes at a time by encrypting zeros with AES-256 in counter
+ * mode. The first 32 bytes of each block become the key for the next one, so that the numbers
+ * already given out can't be recovered from the state of the generator.
+ */
+public final class RandomNumbers {
+    private static final int KEY = 32;
+    private static final int BLOCK = 4096;
+
+    // How many bytes a generator gives out before it is seeded again.
+    private static final long RESEED = 1 << 24;
+
+    private final SecureRandom seeds;
+
+    private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+        @Override
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+
+    private final class Generator {
+        final byte[] key = new byte[KEY];
+        final byte[] block = new byte[BLOCK];
+        final Cipher aes;
+        int position = BLOCK;
+        long generated = 0;
+
+        Generator() {
+            try {
+                aes = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new CryptographyError();
+            }
+            seeds.nextBytes(key);
+        }
+
+        void refill() {
+            if (generated >= RESEED) {
+                byte[] seed = new byte[KEY];
+                seeds.nextBytes(seed);
+                for (int i = 0; i < KEY; i++) {
+                    key[i] ^= seed[i];
+                }
+                generated = 0;
+            }
+
+            try {
+                // The key is never used twice, so the counter can always start at zero.
+                aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
+                aes.doFinal(new byte[BLOCK], 0, BLOCK, block, 0);
+            } catch (GeneralSecurityException e) {
+                throw new CryptographyError();
+            }
+
+            System.arraycopy(block, 0, key, 0, KEY);
+            position = KEY;
+        }
+
+        void nextBytes(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (position == BLOCK) {
+                    refill();
+                }
+
+                int n = Math.min(length, BLOCK - position);
+                System.arraycopy(block, position, bytes, offset, n);
+                position += n;
+                offset += n;
+                length -= n;
+                generated += n;
+            }
+        }
+
+        // A random number between 0 and 2^32 - 1.
+        long nextUnsignedInt() {
+            if (BLOCK - position < 4) {
+                refill();
+            }
+
+            long x = ((block[position] & 0xffL) << 24) | ((block[position + 1] & 0xffL) << 16)
+                    | ((block[position + 2] & 0xffL) << 8) | (block[position + 3] & 0xffL);
+            position += 4;
+            generated += 4;
+            return x;
+        }
+    }
+
+    public RandomNumbers(SecureRandom seeds) {
+        if (seeds == null) {
+            throw new NullPointerException();
+        }
+
+        this.seeds = seeds;
+    }
+
+    public RandomNumbers() {
+        this(new SecureRandom());
+    }
+
+    // A random number between 0 and n inclusive.
+    public int getRandom(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        // Numbers at or above the largest multiple of n + 1 would make the low ones more likely
+        // than the high ones, so they are thrown away.
+        long range = (long) n + 1;
+        long limit = (1L << 32) - (1L << 32) % range;
+
+        Generator g = generators.get();
+        long x;
+        do {
+            x = g.nextUnsignedInt();
+        } while (x >= limit);
+
+        return (int) (x % range);
+    }
+
+    public void nextBytes(byte[] bytes) {
+        if (bytes == null) {
+            throw new NullPointerException();
+        }
+
+        generators.get().nextBytes(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,483 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.bitcoin.keys.EcdsaSignature;
+import com.shuffle.bitcoin.keys.Hash160Address;
+import com.shuffle.bitcoin.keys.PrivateKey;
+import com.shuffle.bitcoin.keys.PublicKey;
+import com.shuffle.protocol.InvalidImplementationError;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionBroadcaster;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The shuffle transaction, which spends pay-to-pubkey-hash outputs to pay-to-pubkey-hash
+ * outputs, signed with SIGHASH_ALL.
+ *
+ * Every input of a transaction has a different signature hash, and each one covers the whole
+ * transaction, so computing them all takes time quadratic in the size of the transaction. That is
+ * still true here, but it is done only once, however many times the inputs are signed and
+ * verified. The parts that are the same for every input are serialized once, and the hash state
+ * after the inputs before each one is carried over from one input to the next, so only the rest
+ * of the transaction is hashed again for each input. This saves about half the work; removing
+ * the quadratic cost altogether is what BIP 143 does, but it requires a different kind of
+ * transaction.
+ *
+ * Checking a signature doesn't change the transaction. Once every signature has been collected
+ * and checked, withSignatures makes a copy with the signatures in place, which is what is sent.
+ */
+public final class ShuffleTransaction implements Transaction {
+    static final int VERSION = 1;
+    static final int LOCK_TIME = 0;
+    static final int SEQUENCE = 0xffffffff;
+    static final int SIGHASH_ALL = 1;
+
+    public static final class Input {
+        public final PublicKey key;
+        public final UnspentOutput utxo;
+
+        public Input(PublicKey key, UnspentOutput utxo) {
+            if (key == null || utxo == null) {
+                throw new NullPointerException();
+            }
+            this.key = key;
+            this.utxo = utxo;
+        }
+    }
+
+    public static final class Output {
+        public final Hash160Address address;
+        public final long value;
+
+        public Output(Hash160Address address, long value) {
+            if (address == null) {
+                throw new NullPointerException();
+            }
+            if (value < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.address = address;
+            this.value = value;
+        }
+    }
+
+    // The signatures of all the inputs which belong to one key, in order.
+    public static final class Signatures implements Signature {
+        final EcdsaSignature[] sigs;
+
+        Signatures(EcdsaSignature[] sigs) {
+            this.sigs = sigs;
+        }
+
+        @Override
+        public Signature copy() {
+            return this; // Immutable.
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Signatures && Arrays.equals(sigs, ((Signatures) o).sigs);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(sigs);
+        }
+
+        @Override
+        public String toString() {
+            return "signatures" + Arrays.toString(sigs);
+        }
+    }
+
+    final NetworkParameters params;
+    final TransactionBroadcaster broadcaster;
+    final ExecutorService signers; // Signs inputs in parallel. (may be null)
+    final List<Input> inputs;
+    final List<Output> outputs;
+
+    private volatile byte[][] sighashes = null;
+    private final EcdsaSignature[] signatures; // The signature of each input. (null until signed)
+
+    // The most recent broadcast. (null until the transaction has been sent)
+    private volatile Future<org.bitcoinj.core.Transaction> broadcast = null;
+
+    ShuffleTransaction(
+            NetworkParameters params,
+            TransactionBroadcaster broadcaster,
+            ExecutorService signers,
+            List<Input> inputs,
+            List<Output> outputs) {
+
+        if (inputs == null || outputs == null) {
+            throw new NullPointerException();
+        }
+        if (inputs.size() == 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.params = params;
+        this.broadcaster = broadcaster;
+        this.signers = signers;
+        this.inputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+        this.outputs = Collections.unmodifiableList(new ArrayList<>(outputs));
+        this.signatures = new EcdsaSignature[inputs.size()];
+    }
+
+    // The same transaction with the given signatures. The signature hashes are carried over.
+    private ShuffleTransaction(ShuffleTransaction t, EcdsaSignature[] signatures) {
+        this.params = t.params;
+        this.broadcaster = t.broadcaster;
+        this.signers = t.signers;
+        this.inputs = t.inputs;
+        this.outputs = t.outputs;
+        this.sighashes = t.sighashes;
+        this.signatures = signatures;
+    }
+
+    // The signature hash of the given input.
+    byte[] sighash(int i) {
+        return sighashes()[i].clone();
+    }
+
+    // The signature hashes of all the inputs which belong to the given key, one after another.
+    @Override
+    public byte[] sighash(VerificationKey key) throws InvalidImplementationError {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        if (!(key instanceof PublicKey)) {
+            throw new InvalidImplementationError();
+        }
+
+        byte[][] h = sighashes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i : inputsOf((PublicKey) key)) {
+            out.write(h[i], 0, h[i].length);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[][] sighashes() {
+        byte[][] h = sighashes;
+        if (h == null) {
+            synchronized (this) {
+                h = sighashes;
+                if (h == null) {
+                    h = computeSighashes();
+                    sighashes = h;
+                }
+            }
+        }
+        return h;
+    }
+
+    private byte[][] computeSighashes() {
+        int n = inputs.size();
+
+        // Each input as it appears when some other input is being signed.
+        byte[][] blank = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            blank[i] = input(inputs.get(i).utxo, new byte[]{});
+        }
+
+        // Everything after the inputs.
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        writeVarInt(tail, outputs.size());
+        for (Output output : outputs) {
+            writeInt64(tail, output.value);
+            byte[] script = scriptPubKey(output.address);
+            writeVarInt(tail, script.length);
+            tail.write(script, 0, script.length);
+        }
+        writeInt32(tail, LOCK_TIME);
+        writeInt32(tail, SIGHASH_ALL);
+        byte[] end = tail.toByteArray();
+
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        writeInt32(head, VERSION);
+        writeVarInt(head, n);
+
+        MessageDigest prefix = sha256();
+        prefix.update(head.toByteArray());
+
+        byte[][] h = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            Input in = inputs.get(i);
+            MessageDigest sha;
+            try {
+                sha = (MessageDigest) prefix.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new CryptographyError();
+            }
+
+            // The input being signed contains the script of the output it spends.
+            sha.update(input(in.utxo, scriptPubKey((Hash160Address) in.key.address())));
+            for (int j = i + 1; j < n; j++) {
+                sha.update(blank[j]);
+            }
+            sha.update(end);
+
+            h[i] = sha256().digest(sha.digest());
+
+            prefix.update(blank[i]);
+        }
+
+        return h;
+    }
+
+    // The inputs which belong to the given key.
+    private List<Integer> inputsOf(PublicKey key) {
+        List<Integer> mine = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            if (inputs.get(i).key.equals(key)) {
+                mine.add(i);
+            }
+        }
+        return mine;
+    }
+
+    // Sign all the inputs which belong to the given key. If there are several, they are signed
+    // in parallel.
+    public Signature sign(final PrivateKey sk) throws CryptographyError {
+        if (sk == null) {
+            throw new NullPointerException();
+        }
+
+        final byte[][] h = sighashes();
+        List<Integer> mine = inputsOf((PublicKey) sk.VerificationKey());
+        if (mine.size() == 0) {
+            throw new InvalidImplementationError();
+        }
+
+        EcdsaSignature[] sigs = new EcdsaSignature[mine.size()];
+        if (signers == null || mine.size() == 1) {
+            for (int k = 0; k < sigs.length; k++) {
+                sigs[k] = sk.sign(h[mine.get(k)]);
+            }
+            return new Signatures(sigs);
+        }
+
+        List<Future<EcdsaSignature>> futures = new ArrayList<>();
+        for (final int i : mine) {
+            futures.add(signers.submit(new Callable<EcdsaSignature>() {
+                @Override
+                public EcdsaSignature call() {
+                    return sk.sign(h[i]);
+                }
+            }));
+        }
+
+        try {
+            for (int k = 0; k < sigs.length; k++) {
+                sigs[k] = futures.get(k).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptographyError();
+        } catch (ExecutionException e) {
+            throw new CryptographyError();
+        }
+
+        return new Signatures(sigs);
+    }
+
+    // Check the signatures of all the inputs which belong to the given key.
+    public boolean verify(PublicKey key, Signature sig) throws InvalidImplementationError {
+        if (key == null || sig == null) {
+            throw new NullPointerException();
+        }
+        if (!(sig instanceof Signatures)) {
+            throw new InvalidImplementationError();
+        }
+
+        EcdsaSignature[] sigs = ((Signatures) sig).sigs;
+        List<Integer> mine = inputsOf(key);
+        if (mine.size() == 0 || mine.size() != sigs.length) {
+            return false;
+        }
+
+        byte[][] h = sighashes();
+        for (int k = 0; k < sigs.length; k++) {
+            if (!key.verify(h[mine.get(k)], sigs[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A copy of the transaction with the given signatures, one for each key which owns an input.
+    // They must already have been checked.
+    ShuffleTransaction withSignatures(Map<VerificationKey, Signature> sigs) throws InvalidImplementationError {
+        if (sigs == null) {
+            throw new NullPointerException();
+        }
+
+        EcdsaSignature[] signed = signatures.clone();
+        for (Map.Entry<VerificationKey, Signature> sig : sigs.entrySet()) {
+            if (!(sig.getKey() instanceof PublicKey) || !(sig.getValue() instanceof Signatures)) {
+                throw new InvalidImplementationError();
+            }
+
+            EcdsaSignature[] mine = ((Signatures) sig.getValue()).sigs;
+            List<Integer> in = inputsOf((PublicKey) sig.getKey());
+            if (in.size() != mine.length) {
+                throw new InvalidImplementationError();
+            }
+
+            for (int k = 0; k < mine.length; k++) {
+                signed[in.get(k)] = mine[k];
+            }
+        }
+
+        return new ShuffleTransaction(this, signed);
+    }
+
+    // Whether every input has a valid signature.
+    public boolean complete() {
+        for (EcdsaSignature signature : signatures) {
+            if (signature == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The transaction as bitcoinj sees it, with every input signed.
+    org.bitcoinj.core.Transaction toBitcoinj() throws InvalidImplementationError {
+        if (!complete()) {
+            throw new InvalidImplementationError();
+        }
+
+        org.bitcoinj.core.Transaction tx = new org.bitcoinj.core.Transaction(params);
+        for (int i = 0; i < inputs.size(); i++) {
+            Input in = inputs.get(i);
+            tx.addInput(new TransactionInput(params, tx, scriptSig(signatures[i], in.key),
+                    new TransactionOutPoint(params, in.utxo.index, Sha256Hash.wrap(in.utxo.txid))));
+        }
+        for (Output out : outputs) {
+            tx.addOutput(Coin.valueOf(out.value), new org.bitcoinj.core.Address(params, out.address.toBytes()));
+        }
+        return tx;
+    }
+
+    // Hands the transaction to the broadcaster without waiting for the peers to take it, so
+    // calling it again rebroadcasts. Whether it got through is given by seen().
+    @Override
+    public void send() throws CoinNetworkError {
+        if (broadcaster == null) {
+            throw new CoinNetworkError();
+        }
+
+        broadcast = broadcaster.broadcastTransaction(toBitcoinj()).future();
+    }
+
+    // Whether the peers have taken the transaction from the most recent broadcast.
+    boolean seen() {
+        Future<org.bitcoinj.core.Transaction> broadcast = this.broadcast;
+        if (broadcast == null || !broadcast.isDone() || broadcast.isCancelled()) {
+            return false;
+        }
+
+        try {
+            broadcast.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "shuffle transaction[" + inputs.size() + " inputs, " + outputs.size() + " outputs]";
+    }
+
+    // Serialization in the bitcoin format.
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CryptographyError();
+        }
+    }
+
+    private static byte[] input(UnspentOutput utxo, byte[] script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // The hash of the previous transaction is written in the reverse of the usual order.
+        for (int i = UnspentOutput.HASH - 1; i >= 0; i--) {
+            out.write(utxo.txid[i]);
+        }
+        writeInt32(out, utxo.index);
+        writeVarInt(out, script.length);
+        out.write(script, 0, script.length);
+        writeInt32(out, SEQUENCE);
+        return out.toByteArray();
+    }
+
+    // OP_DUP OP_HASH160 <hash> OP_EQUALVERIFY OP_CHECKSIG
+    static byte[] scriptPubKey(Hash160Address address) {
+        return BlockFilter.p2pkh(address.toBytes());
+    }
+
+    // <signature> <public key>
+    static byte[] scriptSig(EcdsaSignature sig, PublicKey key) {
+        byte[] der = sig.toDER();
+        byte[] pub = key.toBytes();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(der.length + 1);
+        out.write(der, 0, der.length);
+        out.write(SIGHASH_ALL);
+        out.write(pub.length);
+        out.write(pub, 0, pub.length);
+        return out.toByteArray();
+    }
+
+    private static void writeInt32(ByteArrayOutputStream out, int x) {
+        for (int i = 0; i < 4; i++) {
+            out.write(x >>> (8 * i));
+        }
+    }
+
+    private static void writeInt64(ByteArrayOutputStream out, long x) {
+        for (int i = 0; i < 8; i++) {
+            out.write((int) (x >>> (8 * i)));
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, long x) {
+        if (x < 0xfd) {
+            out.write((int) x);
+        } else if (x <= 0xffff) {
+            out.write(0xfd);
+            out.write((int) x);
+            out.write((int) (x >>> 8));
+        } else if (x <= 0xffffffffL) {
+            out.write(0xfe);
+            writeInt32(out, (int) x);
+        } else {
+            out.write(0xff);
+            writeInt64(out, x);
+        }
+    }
+}
@@ -7,4 +7,8 @@ package com.shuffle.bitcoin;
  */
 public interface Signature {
     Signature copy();
+
+    // Signatures are compared by value. (Verified signatures are cached by SignatureCache.)
+    boolean equals(Object o);
+    int hashCode();
 }
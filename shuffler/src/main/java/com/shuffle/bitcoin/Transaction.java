@@ -1,5 +1,7 @@
 package com.shuffle.bitcoin;
 
+import com.shuffle.protocol.InvalidImplementationError;
+
 /**
  * A representation of a Bitcoin or other cryptocurrency transaction.
  *
@@ -8,4 +10,9 @@ package com.shuffle.bitcoin;
 public interface Transaction {
     // Send the transaction into the network.
     void send() throws CoinNetworkError;
+
+    // What a signature by the given key commits to. A signature that is valid for one
+    // transaction is valid for any other which gives the same bytes, so checked signatures
+    // can be remembered by these rather than by the transaction.
+    byte[] sighash(VerificationKey key) throws InvalidImplementationError;
 }
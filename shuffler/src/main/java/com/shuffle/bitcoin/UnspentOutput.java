@@ -0,0 +1,52 @@
+package com.shuffle.bitcoin;
+
+import java.util.Arrays;
+
+/**
+ * An output of a bitcoin transaction which has not been spent yet.
+ */
+public final class UnspentOutput {
+    public static final int HASH = 32;
+
+    final byte[] txid; // In the order in which it is usually displayed, which is reversed.
+    public final int index;
+    public final long value;
+
+    public UnspentOutput(byte[] txid, int index, long value) {
+        if (txid == null) {
+            throw new NullPointerException();
+        }
+        if (txid.length != HASH || index < 0 || value < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.txid = txid.clone();
+        this.index = index;
+        this.value = value;
+    }
+
+    public byte[] txid() {
+        return txid.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof UnspentOutput)) {
+            return false;
+        }
+
+        UnspentOutput u = (UnspentOutput) o;
+
+        return index == u.index && value == u.value && Arrays.equals(txid, u.txid);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(txid) * 31 + index;
+    }
+
+    @Override
+    public String toString() {
+        return "utxo[" + index + ", " + value + "]";
+    }
+}
@@ -0,0 +1,11 @@
+package com.shuffle.bitcoin;
+
+import java.util.List;
+
+/**
+ * Finds the outputs that can be spent by an address.
+ */
+public interface UnspentOutputs {
+    // The unspent outputs sent to the given address, which may be empty.
+    List<UnspentOutput> unspent(Address address) throws CoinNetworkError;
+}
@@ -0,0 +1,709 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.bitcoin.keys.Hash160Address;
+import com.shuffle.protocol.InvalidImplementationError;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The unspent pay-to-pubkey-hash outputs of the block chain, kept in a local file so that
+ * Coin.valueHeld can be answered without asking anyone else.
+ *
+ * The file is a header page followed by fixed-size records sorted by the hash160 of the address,
+ * and then by outpoint. It is mapped into memory rather than read, and only the first address on
+ * each page is kept on the heap. A lookup is a binary search of those followed by a scan of
+ * the one or two pages on which the address can be, so it costs very little memory no matter
+ * how large the file is.
+ *
+ * New blocks are applied to a small overlay of outputs created and spent since the file was
+ * written. When the overlay grows too large it is merged with the file into a new one, which
+ * replaces the old one. That is only meant for keeping a snapshot up to date. A snapshot of the
+ * whole chain is built with load, which sorts outputs into runs on disk and merges them once.
+ * Reorganizations are not handled. A snapshot which has followed a fork has to be rebuilt.
+ *
+ * An output is recognized as spent from the public key in the input that spends it, so an
+ * output spent by an input which does not reveal exactly one public key is never removed.
+ */
+public final class UtxoSnapshot implements UnspentOutputs, Closeable {
+    static final int MAGIC = 0x5554584f; // "UTXO"
+    static final int VERSION = 1;
+
+    static final int PAGE = 4096;
+    static final int KEY = Hash160Address.SIZE;
+    static final int OUTPOINT = UnspentOutput.HASH + 4;
+    static final int RECORD = 64; // hash160, txid, index, value
+    static final int PER_PAGE = PAGE / RECORD;
+
+    // A MappedByteBuffer can't be larger than 2GB, so the file is mapped in pieces.
+    static final int SEGMENT = 1 << 30;
+
+    // The overlay is merged into the file when it has this many entries. It only has to hold
+    // what changes between compactions, which at this size is a few hours of blocks.
+    public static final int DEFAULT_OVERLAY = 1 << 18;
+
+    // How many outputs load keeps in memory before writing them out as a sorted run.
+    static final int RUN = 1 << 18;
+
+    // The value of a record in a run which cancels an output in an earlier run.
+    static final long SPENT = -1;
+
+    // Records are ordered by everything but the value.
+    static final Comparator<byte[]> order = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return UtxoSnapshot.compare(a, 0, b, 0, RECORD - 8);
+        }
+    };
+
+    private final File file;
+    private final int maxOverlay;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private RandomAccessFile raf = null;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[]{};
+    private long count = 0; // The number of records in the file.
+    private byte[] tip = new byte[UnspentOutput.HASH]; // The last block applied to the file.
+    private byte[] firsts = new byte[]{}; // The first address on each page.
+
+    // Outputs created since the file was written, in the order of the file.
+    private final NavigableSet<byte[]> added = new TreeSet<>(order);
+    private final Map<ByteBuffer, byte[]> addedByOutpoint = new HashMap<>();
+
+    // Outpoints in the file which have been spent since it was written.
+    private final Set<ByteBuffer> spent = new HashSet<>();
+
+    // Where the outputs created and spent in a block go.
+    interface Sink {
+        void add(byte[] hash160, UnspentOutput utxo) throws IOException;
+
+        void spend(byte[] hash160, byte[] txid, int index) throws IOException;
+    }
+
+    private byte[] last = null; // The last block applied.
+
+    public UtxoSnapshot(File file, int maxOverlay) throws IOException {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        if (maxOverlay <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.file = file;
+        this.maxOverlay = maxOverlay;
+
+        if (!file.exists()) {
+            write(file, new ArrayList<byte[]>().iterator(), tip);
+        }
+        map();
+    }
+
+    public UtxoSnapshot(File file) throws IOException {
+        this(file, DEFAULT_OVERLAY);
+    }
+
+    // Build a snapshot from blocks read in order from the genesis block, such as with bitcoinj's
+    // BlockFileLoader. Anything already in the file is replaced.
+    public static UtxoSnapshot load(File file, Iterable<Block> blocks) throws IOException {
+        Builder builder = new Builder(file, RUN);
+        try {
+            byte[] tip = new byte[UnspentOutput.HASH];
+            for (Block block : blocks) {
+                walk(block, builder);
+                tip = block.getHash().getBytes();
+            }
+            builder.finish(tip);
+        } finally {
+            builder.close();
+        }
+        return new UtxoSnapshot(file);
+    }
+
+    // Go through the outputs created and spent in a block, in order.
+    static void walk(Block block, Sink sink) throws IOException {
+        for (org.bitcoinj.core.Transaction t : block.getTransactions()) {
+            if (!t.isCoinBase()) {
+                for (TransactionInput input : t.getInputs()) {
+                    byte[] hash160;
+                    try {
+                        hash160 = Utils.sha256hash160(input.getScriptSig().getPubKey());
+                    } catch (ScriptException e) {
+                        // Not a pay-to-pubkey-hash output, so we never had it.
+                        continue;
+                    }
+
+                    TransactionOutPoint outpoint = input.getOutpoint();
+                    sink.spend(hash160, outpoint.getHash().getBytes(), (int) outpoint.getIndex());
+                }
+            }
+
+            byte[] txid = t.getHash().getBytes();
+            List<TransactionOutput> outputs = t.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                Script script = outputs.get(i).getScriptPubKey();
+                if (script.isSentToAddress()) {
+                    sink.add(script.getPubKeyHash(), new UnspentOutput(txid, i, outputs.get(i).getValue().value));
+                }
+            }
+        }
+    }
+
+    private static byte[] record(byte[] hash160, byte[] txid, int index, long value) {
+        return ByteBuffer.allocate(RECORD).put(hash160).put(txid).putInt(index).putLong(value).array();
+    }
+
+    private void map() throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(16 + UnspentOutput.HASH);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < header.capacity() || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            raf.close();
+            throw new IOException("Not a utxo snapshot: " + file);
+        }
+        count = header.getLong();
+        header.get(tip);
+
+        long length = PAGE + count * RECORD;
+        if (channel.size() < length) {
+            raf.close();
+            throw new IOException("Truncated utxo snapshot: " + file);
+        }
+
+        int n = (int) ((length + SEGMENT - 1) / SEGMENT);
+        segments = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = (long) i * SEGMENT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, length - start));
+        }
+
+        // Read the first address on each page.
+        long pages = (count + PER_PAGE - 1) / PER_PAGE;
+        firsts = new byte[(int) (pages * KEY)];
+        for (long p = 0; p < pages; p++) {
+            long at = offset(p * PER_PAGE);
+            ByteBuffer segment = segments[(int) (at / SEGMENT)];
+            int position = (int) (at % SEGMENT);
+            for (int i = 0; i < KEY; i++) {
+                firsts[(int) (p * KEY) + i] = segment.get(position + i);
+            }
+        }
+    }
+
+    private static long offset(long record) {
+        return PAGE + record * RECORD;
+    }
+
+    // Copy a record out of the file.
+    private byte[] record(long i) {
+        long at = offset(i);
+        ByteBuffer segment = segments[(int) (at / SEGMENT)];
+        int position = (int) (at % SEGMENT);
+        byte[] record = new byte[RECORD];
+        for (int j = 0; j < RECORD; j++) {
+            record[j] = segment.get(position + j);
+        }
+        return record;
+    }
+
+    @Override
+    public List<UnspentOutput> unspent(Address address) throws CoinNetworkError {
+        if (!(address instanceof Hash160Address)) {
+            throw new InvalidImplementationError();
+        }
+
+        byte[] key = ((Hash160Address) address).toBytes();
+        List<UnspentOutput> unspent = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            // The last page which begins before the address. The address can't be on any page before it.
+            int lo = 0;
+            int hi = firsts.length / KEY;
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(firsts, mid * KEY, key, 0, KEY) < 0) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            for (long i = (long) lo * PER_PAGE; i < count; i++) {
+                byte[] record = record(i);
+                int c = compare(record, 0, key, 0, KEY);
+                if (c > 0) {
+                    break;
+                }
+                if (c == 0 && !spent.contains(outpoint(record))) {
+                    unspent.add(unspentOutput(record));
+                }
+            }
+
+            byte[] from = Arrays.copyOf(key, RECORD);
+            byte[] to = Arrays.copyOf(key, RECORD);
+            Arrays.fill(to, KEY, RECORD, (byte) 0xff);
+            for (byte[] record : added.subSet(from, true, to, true)) {
+                unspent.add(unspentOutput(record));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return unspent;
+    }
+
+    // Apply the next block in the chain.
+    public void apply(Block block) throws IOException {
+        lock.writeLock().lock();
+        try {
+            walk(block, new Sink() {
+                @Override
+                public void add(byte[] hash160, UnspentOutput utxo) {
+                    UtxoSnapshot.this.add(hash160, utxo);
+                }
+
+                @Override
+                public void spend(byte[] hash160, byte[] txid, int index) {
+                    UtxoSnapshot.this.spend(hash160, txid, index);
+                }
+            });
+
+            last = block.getHash().getBytes();
+
+            if (overlay() >= maxOverlay) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The number of changes which have not been merged into the file.
+    int overlay() {
+        lock.readLock().lock();
+        try {
+            return added.size() + spent.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void add(byte[] hash160, UnspentOutput utxo) {
+        lock.writeLock().lock();
+        try {
+            byte[] record = record(hash160, utxo.txid, utxo.index, utxo.value);
+            added.add(record);
+            addedByOutpoint.put(outpoint(record), record);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void spend(byte[] hash160, byte[] txid, int index) {
+        lock.writeLock().lock();
+        try {
+            byte[] key = record(hash160, txid, index, 0);
+            byte[] record = addedByOutpoint.remove(outpoint(key));
+            if (record != null) {
+                added.remove(record);
+            } else if (contains(key)) {
+                spent.add(outpoint(key));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Whether the file has a record with the same address and outpoint.
+    private boolean contains(byte[] key) {
+        long lo = 0;
+        long hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            int c = order.compare(record(mid), key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Merge the overlay into the file.
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            File temp = new File(file.getPath() + ".new");
+            Iterator<byte[]> merged = new Iterator<byte[]>() {
+                long i = 0;
+                final Iterator<byte[]> overlay = added.iterator();
+                byte[] nextFile = advance();
+                byte[] nextOverlay = overlay.hasNext() ? overlay.next() : null;
+
+                byte[] advance() {
+                    while (i < count) {
+                        byte[] record = record(i++);
+                        if (!spent.contains(outpoint(record))) {
+                            return record;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return nextFile != null || nextOverlay != null;
+                }
+
+                @Override
+                public byte[] next() {
+                    byte[] r;
+                    if (nextOverlay == null || nextFile != null && order.compare(nextFile, nextOverlay) <= 0) {
+                        r = nextFile;
+                        nextFile = advance();
+                    } else {
+                        r = nextOverlay;
+                        nextOverlay = overlay.hasNext() ? overlay.next() : null;
+                    }
+                    return r;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+
+            long written = write(temp, merged, last == null ? tip : last);
+            close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            added.clear();
+            addedByOutpoint.clear();
+            spent.clear();
+            map();
+
+            if (count != written) {
+                throw new IOException("Utxo snapshot was not written correctly: " + file);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Write a new file with the given records, which must be in order, and return how many
+    // were written. The number of records isn't known until the end, so it is filled in last.
+    private static long write(File file, Iterator<byte[]> records, byte[] tip) throws IOException {
+        long n = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0);
+            out.write(tip);
+            out.write(new byte[PAGE - 16 - tip.length]);
+
+            while (records.hasNext()) {
+                out.write(records.next());
+                n++;
+            }
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(8);
+            raf.writeLong(n);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+
+        return n;
+    }
+
+    // The last block applied to the file.
+    public byte[] tip() {
+        lock.readLock().lock();
+        try {
+            return tip.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            segments = new MappedByteBuffer[]{};
+            firsts = new byte[]{};
+            count = 0;
+            if (raf != null) {
+                raf.close();
+                raf = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static ByteBuffer outpoint(byte[] record) {
+        return ByteBuffer.wrap(Arrays.copyOfRange(record, KEY, KEY + OUTPOINT));
+    }
+
+    private static UnspentOutput unspentOutput(byte[] record) {
+        ByteBuffer b = ByteBuffer.wrap(record, KEY, RECORD - KEY);
+        byte[] txid = new byte[UnspentOutput.HASH];
+        b.get(txid);
+        int index = b.getInt();
+        return new UnspentOutput(txid, index, b.getLong());
+    }
+
+    // Builds a new file from scratch. Outputs are kept in memory until there are too many, and
+    // then they are sorted and written out as a run. An output which is spent while it is still
+    // in memory never reaches the disk, and the spend of an output in an earlier run is written
+    // as a record which cancels it out. At the end the runs are merged into the file in one pass.
+    static final class Builder implements Sink, Closeable {
+        private final File file;
+        private final int runSize;
+        private final List<File> runs = new ArrayList<>();
+
+        // Outputs created since the last run was written, by outpoint.
+        private final Map<ByteBuffer, byte[]> created = new HashMap<>();
+
+        // Spends of outputs in earlier runs.
+        private final List<byte[]> cancelled = new ArrayList<>();
+
+        Builder(File file, int runSize) {
+            if (file == null) {
+                throw new NullPointerException();
+            }
+            if (runSize <= 0) {
+                throw new IllegalArgumentException();
+            }
+
+            this.file = file;
+            this.runSize = runSize;
+        }
+
+        @Override
+        public void add(byte[] hash160, UnspentOutput utxo) throws IOException {
+            byte[] record = record(hash160, utxo.txid, utxo.index, utxo.value);
+            created.put(outpoint(record), record);
+            if (created.size() + cancelled.size() >= runSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public void spend(byte[] hash160, byte[] txid, int index) throws IOException {
+            byte[] record = record(hash160, txid, index, SPENT);
+            if (created.remove(outpoint(record)) == null) {
+                cancelled.add(record);
+                if (created.size() + cancelled.size() >= runSize) {
+                    flush();
+                }
+            }
+        }
+
+        // Sort what is in memory and write it out as a run.
+        private void flush() throws IOException {
+            if (created.isEmpty() && cancelled.isEmpty()) {
+                return;
+            }
+
+            List<byte[]> records = new ArrayList<>(created.values());
+            records.addAll(cancelled);
+            Collections.sort(records, order);
+            created.clear();
+            cancelled.clear();
+
+            File run = new File(file.getPath() + ".run" + runs.size());
+            runs.add(run);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+            try {
+                for (byte[] record : records) {
+                    out.write(record);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        // Merge the runs into the file, which is replaced.
+        void finish(byte[] tip) throws IOException {
+            flush();
+
+            // The runs are mapped rather than read, so that the merge doesn't have to deal
+            // with IOExceptions in the middle of an iterator.
+            final PriorityQueue<Run> heads = new PriorityQueue<>(Math.max(runs.size(), 1), new Comparator<Run>() {
+                @Override
+                public int compare(Run a, Run b) {
+                    return order.compare(a.head, b.head);
+                }
+            });
+            for (File path : runs) {
+                RandomAccessFile raf = new RandomAccessFile(path, "r");
+                try {
+                    Run run = new Run(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+                    if (run.head != null) {
+                        heads.add(run);
+                    }
+                } finally {
+                    raf.close();
+                }
+            }
+
+            Iterator<byte[]> merged = new Iterator<byte[]>() {
+                byte[] next = advance();
+
+                // Take the smallest record from the runs and move that run on.
+                byte[] take() {
+                    Run run = heads.poll();
+                    byte[] head = run.head;
+                    if (run.advance()) {
+                        heads.add(run);
+                    }
+                    return head;
+                }
+
+                // An output survives unless some run cancels it.
+                byte[] advance() {
+                    while (!heads.isEmpty()) {
+                        byte[] head = take();
+                        boolean spent = spent(head);
+                        while (!heads.isEmpty() && order.compare(heads.peek().head, head) == 0) {
+                            spent |= spent(take());
+                        }
+
+                        if (!spent) {
+                            return head;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public byte[] next() {
+                    byte[] r = next;
+                    next = advance();
+                    return r;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+
+            File temp = new File(file.getPath() + ".new");
+            write(temp, merged, tip);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static boolean spent(byte[] record) {
+            return ByteBuffer.wrap(record).getLong(RECORD - 8) == SPENT;
+        }
+
+        // A run being merged, and the next record in it.
+        private static final class Run {
+            final ByteBuffer records;
+            byte[] head = null; // (null if there are no more)
+
+            Run(ByteBuffer records) {
+                this.records = records;
+                advance();
+            }
+
+            // Read the next record and return whether there was one.
+            boolean advance() {
+                if (records.remaining() < RECORD) {
+                    head = null;
+                    return false;
+                }
+                head = new byte[RECORD];
+                records.get(head);
+                return true;
+            }
+        }
+
+        // Delete the runs.
+        @Override
+        public void close() {
+            for (File run : runs) {
+                if (!run.delete()) {
+                    run.deleteOnExit();
+                }
+            }
+            runs.clear();
+        }
+    }
+
+    // Compare bytes as unsigned numbers.
+    static int compare(byte[] a, int i, byte[] b, int j, int length) {
+        for (int k = 0; k < length; k++) {
+            int x = a[i + k] & 0xff;
+            int y = b[j + k] & 0xff;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -3,6 +3,7 @@ package com.shuffle.bitcoin;
 
 import com.shuffle.protocol.InvalidImplementationError;
 import com.shuffle.protocol.Packet;
+import com.shuffle.protocol.PacketDigest;
 
 /**
  *
@@ -17,4 +18,7 @@ public interface VerificationKey extends Comparable {
 
     // Get the cryptocurrency address corresponding to this public key.
     Address address();
+
+    // Feed a canonical encoding of the key into a packet digest.
+    void digest(PacketDigest digest);
 }
@@ -0,0 +1,97 @@
+package com.shuffle.bitcoin.ecies;
+
+import com.shuffle.bitcoin.CryptographyError;
+
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The parts of ECIES shared by encryption and decryption.
+ *
+ * The ciphertext is R || c || t, where R = kG is an ephemeral public key, c is the plaintext
+ * encrypted with AES-256 in counter mode, and t is an HMAC-SHA256 of R and c. Both keys are
+ * derived from the x coordinate of kP, where P is the recipient's public key.
+ *
+ * The plaintext begins with a byte which says whether it is an address or another ciphertext,
+ * since the shuffle phase encrypts the same address many times over.
+ */
+final class Ecies {
+    static final int MAC = 32;
+    static final int OVERHEAD = Secp256k1.POINT + MAC;
+
+    static final byte ADDRESS = 0;
+    static final byte LAYER = 1;
+
+    private static final byte ENCRYPTION_KEY = 0;
+    private static final byte MAC_KEY = 1;
+
+    private Ecies() {}
+
+    static byte[] encrypt(ECPoint key, ECPoint ephemeral, BigInteger k, byte[] plaintext) {
+        byte[] shared = Secp256k1.multiply(key, k).getAffineXCoord().getEncoded();
+
+        byte[] bytes = new byte[Secp256k1.POINT + plaintext.length + MAC];
+        System.arraycopy(Secp256k1.encode(ephemeral), 0, bytes, 0, Secp256k1.POINT);
+        System.arraycopy(cipher(shared, plaintext), 0, bytes, Secp256k1.POINT, plaintext.length);
+        System.arraycopy(mac(shared, bytes, bytes.length - MAC), 0, bytes, bytes.length - MAC, MAC);
+        return bytes;
+    }
+
+    static byte[] decrypt(BigInteger secret, byte[] bytes) throws CryptographyError {
+        if (bytes.length <= OVERHEAD) {
+            throw new CryptographyError();
+        }
+
+        ECPoint ephemeral = Secp256k1.decode(bytes, 0);
+        byte[] shared = Secp256k1.multiply(ephemeral, secret).getAffineXCoord().getEncoded();
+
+        byte[] mac = Arrays.copyOfRange(bytes, bytes.length - MAC, bytes.length);
+        if (!MessageDigest.isEqual(mac, mac(shared, bytes, bytes.length - MAC))) {
+            throw new CryptographyError();
+        }
+
+        return cipher(shared, Arrays.copyOfRange(bytes, Secp256k1.POINT, bytes.length - MAC));
+    }
+
+    // Counter mode is its own inverse.
+    private static byte[] cipher(byte[] shared, byte[] input) {
+        try {
+            Cipher aes = Cipher.getInstance("AES/CTR/NoPadding");
+            aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(derive(shared, ENCRYPTION_KEY), "AES"), new IvParameterSpec(new byte[16]));
+            return aes.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            throw new CryptographyError();
+        }
+    }
+
+    private static byte[] mac(byte[] shared, byte[] bytes, int length) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(derive(shared, MAC_KEY), "HmacSHA256"));
+            mac.update(bytes, 0, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new CryptographyError();
+        }
+    }
+
+    private static byte[] derive(byte[] shared, byte purpose) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(shared);
+            sha.update(purpose);
+            return sha.digest();
+        } catch (GeneralSecurityException e) {
+            throw new CryptographyError();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.shuffle.bitcoin.ecies;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.protocol.FormatException;
+
+import java.util.Arrays;
+
+/**
+ * An encrypted address. It consists of an ephemeral public key, the ciphertext and a MAC.
+ */
+public final class EciesAddress implements Address {
+    final byte[] bytes;
+
+    EciesAddress(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public byte[] toBytes() {
+        return bytes.clone();
+    }
+
+    public static EciesAddress fromBytes(byte[] bytes) throws FormatException {
+        // There must be at least a point, a MAC, and a byte saying what is inside.
+        if (bytes == null || bytes.length < Ecies.OVERHEAD + 1) {
+            throw new FormatException();
+        }
+
+        return new EciesAddress(bytes.clone());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EciesAddress && Arrays.equals(bytes, ((EciesAddress) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "ecies[" + bytes.length + "]";
+    }
+}
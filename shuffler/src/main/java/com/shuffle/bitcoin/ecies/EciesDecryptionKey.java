@@ -0,0 +1,69 @@
+package com.shuffle.bitcoin.ecies;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.AddressFormat;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.protocol.FormatException;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * An ECIES private key on secp256k1.
+ */
+public class EciesDecryptionKey implements DecryptionKey {
+    private final BigInteger secret;
+    private final EciesEncryptionKey ek;
+
+    public EciesDecryptionKey(BigInteger secret, AddressFormat format, SecureRandom random) {
+        if (secret == null) {
+            throw new NullPointerException();
+        }
+        if (secret.signum() <= 0 || secret.compareTo(Secp256k1.N) >= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.secret = secret;
+        this.ek = new EciesEncryptionKey(Secp256k1.multiplyG(secret), format, random);
+    }
+
+    // Generate a new key.
+    public EciesDecryptionKey(AddressFormat format, SecureRandom random) {
+        this(Secp256k1.randomScalar(random), format, random);
+    }
+
+    public EciesDecryptionKey(AddressFormat format) {
+        this(format, new SecureRandom());
+    }
+
+    @Override
+    public EncryptionKey EncryptionKey() {
+        return ek;
+    }
+
+    @Override
+    public Address decrypt(Address m) throws FormatException, CryptographyError {
+        if (!(m instanceof EciesAddress)) {
+            throw new FormatException();
+        }
+
+        byte[] plaintext = Ecies.decrypt(secret, ((EciesAddress) m).bytes);
+        byte[] inner = Arrays.copyOfRange(plaintext, 1, plaintext.length);
+        switch (plaintext[0]) {
+            case Ecies.ADDRESS:
+                return ek.format.deserialize(inner);
+            case Ecies.LAYER:
+                return EciesAddress.fromBytes(inner);
+            default:
+                throw new FormatException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "dk[" + ek.key + "]";
+    }
+}
@@ -0,0 +1,83 @@
+package com.shuffle.bitcoin.ecies;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.AddressFormat;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.EncryptionKey;
+
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * An ECIES public key on secp256k1.
+ */
+public class EciesEncryptionKey implements EncryptionKey {
+    final ECPoint key;
+    final AddressFormat format;
+    private final SecureRandom random;
+
+    public EciesEncryptionKey(ECPoint key, AddressFormat format, SecureRandom random) {
+        if (key == null || format == null || random == null) {
+            throw new NullPointerException();
+        }
+
+        // The same point object is used every time so that its wNAF table is only computed once.
+        this.key = Secp256k1.importPoint(key);
+        this.format = format;
+        this.random = random;
+    }
+
+    public EciesEncryptionKey(ECPoint key, AddressFormat format) {
+        this(key, format, new SecureRandom());
+    }
+
+    public EciesEncryptionKey(byte[] key, AddressFormat format) throws CryptographyError {
+        this(Secp256k1.decode(key, 0), format);
+    }
+
+    public byte[] toBytes() {
+        return Secp256k1.encode(key);
+    }
+
+    @Override
+    public Address encrypt(Address m) throws CryptographyError {
+        if (m == null) {
+            throw new NullPointerException();
+        }
+
+        byte[] inner;
+        byte type;
+        if (m instanceof EciesAddress) {
+            inner = ((EciesAddress) m).bytes;
+            type = Ecies.LAYER;
+        } else {
+            inner = format.serialize(m);
+            type = Ecies.ADDRESS;
+        }
+
+        byte[] plaintext = new byte[inner.length + 1];
+        plaintext[0] = type;
+        System.arraycopy(inner, 0, plaintext, 1, inner.length);
+
+        BigInteger k = Secp256k1.randomScalar(random);
+        return new EciesAddress(Ecies.encrypt(key, Secp256k1.multiplyG(k), k, plaintext));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EciesEncryptionKey && key.equals(((EciesEncryptionKey) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toBytes());
+    }
+
+    @Override
+    public String toString() {
+        return "ek[" + key + "]";
+    }
+}
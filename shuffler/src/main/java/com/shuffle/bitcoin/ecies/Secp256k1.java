@@ -0,0 +1,78 @@
+package com.shuffle.bitcoin.ecies;
+
+import com.shuffle.bitcoin.CryptographyError;
+
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.crypto.ec.CustomNamedCurves;
+import org.spongycastle.math.ec.ECMultiplier;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+import org.spongycastle.math.ec.WNafL2RMultiplier;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Arithmetic on the secp256k1 curve.
+ *
+ * Multiples of the generator, which are needed for every new key and every ephemeral key, are
+ * computed with a comb table which is built the first time it is needed and kept afterwards.
+ * Multiples of any other point are computed with windowed NAF. The precomputed odd multiples
+ * are kept with the point, so a public key which is encrypted to many times only needs them
+ * computed once.
+ */
+public final class Secp256k1 {
+    static final X9ECParameters params = CustomNamedCurves.getByName("secp256k1");
+
+    public static final ECPoint G = params.getG();
+
+    public static final BigInteger N = params.getN();
+
+    public static final int POINT = 33; // The size of a compressed point.
+
+    private static final ECMultiplier fixed = new FixedPointCombMultiplier();
+
+    private static final ECMultiplier variable = new WNafL2RMultiplier();
+
+    private Secp256k1() {}
+
+    public static ECPoint multiplyG(BigInteger k) {
+        return fixed.multiply(G, k).normalize();
+    }
+
+    public static ECPoint multiply(ECPoint p, BigInteger k) {
+        return variable.multiply(p, k).normalize();
+    }
+
+    // A random number between 1 and N - 1.
+    public static BigInteger randomScalar(SecureRandom random) {
+        BigInteger x;
+        do {
+            x = new BigInteger(N.bitLength(), random);
+        } while (x.signum() == 0 || x.compareTo(N) >= 0);
+        return x;
+    }
+
+    public static byte[] encode(ECPoint p) {
+        return p.getEncoded(true);
+    }
+
+    // Read a compressed point from the given position.
+    public static ECPoint decode(byte[] bytes, int offset) throws CryptographyError {
+        if (offset < 0 || bytes.length - offset < POINT) {
+            throw new CryptographyError();
+        }
+
+        try {
+            return params.getCurve().decodePoint(Arrays.copyOfRange(bytes, offset, offset + POINT));
+        } catch (IllegalArgumentException e) {
+            throw new CryptographyError();
+        }
+    }
+
+    // Bring a point from elsewhere onto our curve, so that the faster arithmetic is used.
+    public static ECPoint importPoint(ECPoint p) {
+        return params.getCurve().importPoint(p).normalize();
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ *
+ * An implementation of EncryptionKey and DecryptionKey with ECIES on secp256k1.
+ *
+ */
+package com.shuffle.bitcoin.ecies;
@@ -0,0 +1,53 @@
+package com.shuffle.bitcoin.keys;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Operations on the canonical forms of keys and addresses.
+ */
+final class Bytes {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Bytes() {}
+
+    // Compare as unsigned numbers of the same length, or lexicographically otherwise.
+    static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >>> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    // Keeps one instance of each key or address, so that equal ones are usually the same object
+    // and can be compared with ==. Instances which are no longer used anywhere else are forgotten.
+    static final class Interner<X> {
+        private final Map<X, WeakReference<X>> instances = new WeakHashMap<>();
+
+        synchronized X intern(X x) {
+            WeakReference<X> ref = instances.get(x);
+            X instance = ref == null ? null : ref.get();
+            if (instance != null) {
+                return instance;
+            }
+
+            instances.put(x, new WeakReference<>(x));
+            return x;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.shuffle.bitcoin.keys;
+
+import com.shuffle.bitcoin.Signature;
+import com.shuffle.bitcoin.ecies.Secp256k1;
+import com.shuffle.protocol.FormatException;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * An ECDSA signature on secp256k1. Only the signature with the lower of the two possible values
+ * of s is accepted, so that there is only one valid form of each signature.
+ */
+public final class EcdsaSignature implements Signature {
+    public static final int SIZE = 64;
+
+    private static final BigInteger HALF = Secp256k1.N.shiftRight(1);
+
+    final BigInteger r;
+    final BigInteger s;
+
+    EcdsaSignature(BigInteger r, BigInteger s) {
+        this.r = r;
+        this.s = s.compareTo(HALF) > 0 ? Secp256k1.N.subtract(s) : s;
+    }
+
+    // r and s, 32 bytes each.
+    public byte[] toBytes() {
+        byte[] bytes = new byte[SIZE];
+        put(r, bytes, 0);
+        put(s, bytes, SIZE / 2);
+        return bytes;
+    }
+
+    public static EcdsaSignature fromBytes(byte[] bytes) throws FormatException {
+        if (bytes == null) {
+            throw new NullPointerException();
+        }
+        if (bytes.length != SIZE) {
+            throw new FormatException();
+        }
+
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(bytes, 0, SIZE / 2));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(bytes, SIZE / 2, SIZE));
+        if (r.signum() == 0 || r.compareTo(Secp256k1.N) >= 0
+                || s.signum() == 0 || s.compareTo(HALF) > 0) {
+            throw new FormatException();
+        }
+
+        return new EcdsaSignature(r, s);
+    }
+
+    // The DER encoding, as it appears in a bitcoin script.
+    public byte[] toDER() {
+        byte[] r = this.r.toByteArray();
+        byte[] s = this.s.toByteArray();
+
+        byte[] der = new byte[6 + r.length + s.length];
+        der[0] = 0x30;
+        der[1] = (byte) (4 + r.length + s.length);
+        der[2] = 0x02;
+        der[3] = (byte) r.length;
+        System.arraycopy(r, 0, der, 4, r.length);
+        der[4 + r.length] = 0x02;
+        der[5 + r.length] = (byte) s.length;
+        System.arraycopy(s, 0, der, 6 + r.length, s.length);
+        return der;
+    }
+
+    private static void put(BigInteger x, byte[] to, int offset) {
+        byte[] b = x.toByteArray();
+        int length = Math.min(b.length, SIZE / 2); // toByteArray may have a leading zero.
+        System.arraycopy(b, b.length - length, to, offset + SIZE / 2 - length, length);
+    }
+
+    @Override
+    public Signature copy() {
+        return this; // Immutable.
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof EcdsaSignature)) {
+            return false;
+        }
+
+        EcdsaSignature sig = (EcdsaSignature) o;
+
+        return r.equals(sig.r) && s.equals(sig.s);
+    }
+
+    @Override
+    public int hashCode() {
+        return r.hashCode() * 31 + s.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ecdsa[" + Bytes.hex(toBytes()) + "]";
+    }
+}
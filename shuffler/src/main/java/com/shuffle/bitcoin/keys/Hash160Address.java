@@ -0,0 +1,90 @@
+package com.shuffle.bitcoin.keys;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.protocol.FormatException;
+
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import java.util.Arrays;
+
+/**
+ * A bitcoin address, which is the hash160 of a public key.
+ */
+public final class Hash160Address implements Address, Comparable<Hash160Address> {
+    public static final int SIZE = 20;
+
+    private static final Bytes.Interner<Hash160Address> interned = new Bytes.Interner<>();
+
+    final byte[] bytes;
+    private final int hash;
+
+    private Hash160Address(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    static Hash160Address intern(byte[] bytes) {
+        return interned.intern(new Hash160Address(bytes));
+    }
+
+    public static Hash160Address fromBytes(byte[] bytes) throws FormatException {
+        if (bytes == null) {
+            throw new NullPointerException();
+        }
+        if (bytes.length != SIZE) {
+            throw new FormatException();
+        }
+
+        return intern(bytes.clone());
+    }
+
+    // RIPEMD160(SHA256(key))
+    static Hash160Address hash160(byte[] key) {
+        SHA256Digest sha = new SHA256Digest();
+        byte[] h = new byte[sha.getDigestSize()];
+        sha.update(key, 0, key.length);
+        sha.doFinal(h, 0);
+
+        RIPEMD160Digest ripemd = new RIPEMD160Digest();
+        byte[] bytes = new byte[SIZE];
+        ripemd.update(h, 0, h.length);
+        ripemd.doFinal(bytes, 0);
+
+        return intern(bytes);
+    }
+
+    public byte[] toBytes() {
+        return bytes.clone();
+    }
+
+    @Override
+    public int compareTo(Hash160Address address) {
+        return this == address ? 0 : Bytes.compare(bytes, address.bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Hash160Address)) {
+            return false;
+        }
+
+        Hash160Address address = (Hash160Address) o;
+
+        return hash == address.hash && Arrays.equals(bytes, address.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "address[" + Bytes.hex(bytes) + "]";
+    }
+}
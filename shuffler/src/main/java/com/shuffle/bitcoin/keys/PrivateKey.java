@@ -0,0 +1,98 @@
+package com.shuffle.bitcoin.keys;
+
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.ShuffleTransaction;
+import com.shuffle.bitcoin.Signature;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.bitcoin.ecies.Secp256k1;
+import com.shuffle.protocol.InvalidImplementationError;
+import com.shuffle.protocol.Packet;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * A private key on secp256k1. Packets are signed with deterministic ECDSA (RFC 6979).
+ */
+public final class PrivateKey extends SigningKey {
+    final BigInteger d;
+    private final PublicKey vk;
+
+    public PrivateKey(BigInteger d) {
+        if (d == null) {
+            throw new NullPointerException();
+        }
+        if (d.signum() <= 0 || d.compareTo(Secp256k1.N) >= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.d = d;
+        this.vk = PublicKey.of(Secp256k1.multiplyG(d));
+    }
+
+    public PrivateKey(SecureRandom random) {
+        this(Secp256k1.randomScalar(random));
+    }
+
+    @Override
+    public VerificationKey VerificationKey() throws CryptographyError {
+        return vk;
+    }
+
+    // Sign a 32-byte hash.
+    public EcdsaSignature sign(byte[] hash) {
+        if (hash == null) {
+            throw new NullPointerException();
+        }
+
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+        signer.init(true, new ECPrivateKeyParameters(d, PublicKey.domain));
+        BigInteger[] rs = signer.generateSignature(hash);
+        return new EcdsaSignature(rs[0], rs[1]);
+    }
+
+    @Override
+    public Signature makeSignature(Transaction t) throws CryptographyError {
+        if (!(t instanceof ShuffleTransaction)) {
+            throw new InvalidImplementationError();
+        }
+
+        return ((ShuffleTransaction) t).sign(this);
+    }
+
+    @Override
+    public Signature makeSignature(Packet p) throws CryptographyError {
+        return sign(p.digest());
+    }
+
+    @Override
+    public int compareTo(Object o) {
+        if (!(o instanceof PrivateKey)) {
+            return -1;
+        }
+
+        return vk.compareTo(((PrivateKey) o).vk);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PrivateKey && d.equals(((PrivateKey) o).d);
+    }
+
+    @Override
+    public int hashCode() {
+        return vk.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "sk[" + vk.toString() + "]";
+    }
+}
@@ -0,0 +1,158 @@
+package com.shuffle.bitcoin.keys;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.ShuffleTransaction;
+import com.shuffle.bitcoin.Signature;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.bitcoin.ecies.Secp256k1;
+import com.shuffle.protocol.FormatException;
+import com.shuffle.protocol.InvalidImplementationError;
+import com.shuffle.protocol.Packet;
+import com.shuffle.protocol.PacketDigest;
+
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.util.Arrays;
+
+/**
+ * A public key on secp256k1, kept as the 33 bytes of its compressed form.
+ *
+ * Keys are ordered by their addresses, as VerificationKey requires. The address and the hash
+ * code are computed once, and keys are interned, so sorting players or looking them up in a map
+ * takes no more than a few array operations.
+ */
+public final class PublicKey implements VerificationKey {
+    public static final int SIZE = Secp256k1.POINT;
+
+    static final ECDomainParameters domain = new ECDomainParameters(
+            Secp256k1.G.getCurve(), Secp256k1.G, Secp256k1.N);
+
+    private static final Bytes.Interner<PublicKey> interned = new Bytes.Interner<>();
+
+    final byte[] bytes;
+    final ECPoint point;
+    private final Hash160Address address;
+    private final int hash;
+
+    private PublicKey(byte[] bytes, ECPoint point) {
+        this.bytes = bytes;
+        this.point = point;
+        this.address = Hash160Address.hash160(bytes);
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    static PublicKey of(ECPoint point) {
+        return interned.intern(new PublicKey(Secp256k1.encode(point), point));
+    }
+
+    public static PublicKey fromBytes(byte[] bytes) throws FormatException {
+        if (bytes == null) {
+            throw new NullPointerException();
+        }
+        if (bytes.length != SIZE) {
+            throw new FormatException();
+        }
+
+        ECPoint point;
+        try {
+            point = Secp256k1.decode(bytes, 0);
+        } catch (CryptographyError e) {
+            throw new FormatException();
+        }
+        if (point.isInfinity()) {
+            throw new FormatException();
+        }
+
+        return interned.intern(new PublicKey(bytes.clone(), point));
+    }
+
+    public byte[] toBytes() {
+        return bytes.clone();
+    }
+
+    // Verify a signature of a 32-byte hash.
+    public boolean verify(byte[] hash, EcdsaSignature sig) {
+        if (hash == null || sig == null) {
+            throw new NullPointerException();
+        }
+
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(point, domain));
+        return signer.verifySignature(hash, sig.r, sig.s);
+    }
+
+    @Override
+    public boolean verify(Transaction t, Signature sig) throws InvalidImplementationError {
+        if (!(t instanceof ShuffleTransaction)) {
+            throw new InvalidImplementationError();
+        }
+
+        return ((ShuffleTransaction) t).verify(this, sig);
+    }
+
+    @Override
+    public boolean verify(Packet packet, Signature sig) {
+        if (!(sig instanceof EcdsaSignature)) {
+            throw new InvalidImplementationError();
+        }
+
+        return verify(packet.digest(), (EcdsaSignature) sig);
+    }
+
+    @Override
+    public Address address() {
+        return address;
+    }
+
+    @Override
+    public void digest(PacketDigest digest) {
+        digest.update(bytes);
+    }
+
+    @Override
+    public int compareTo(Object o) {
+        if (!(o instanceof PublicKey)) {
+            return -1;
+        }
+
+        PublicKey key = (PublicKey) o;
+
+        if (this == key) {
+            return 0;
+        }
+
+        int c = address.compareTo(key.address);
+        // Two keys with the same address, if there ever were such a thing, are still different.
+        return c != 0 ? c : Bytes.compare(bytes, key.bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof PublicKey)) {
+            return false;
+        }
+
+        PublicKey key = (PublicKey) o;
+
+        return hash == key.hash && Arrays.equals(bytes, key.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "vk[" + Bytes.hex(bytes) + "]";
+    }
+}
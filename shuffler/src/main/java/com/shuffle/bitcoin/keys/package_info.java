@@ -0,0 +1,8 @@
+/**
+ *
+ * Implementations of VerificationKey, SigningKey, Address and Signature with bitcoin keys on
+ * secp256k1. Keys and addresses are kept in their canonical byte form, a compressed public key
+ * and the hash160 of it, so that comparing and hashing them is cheap.
+ *
+ */
+package com.shuffle.bitcoin.keys;
@@ -0,0 +1,112 @@
+package com.shuffle.bitcoin.onion;
+
+import com.shuffle.bitcoin.CryptographyError;
+
+import com.shuffle.bitcoin.ecies.Secp256k1;
+
+import org.spongycastle.math.ec.ECPoint;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The format of an onion and the primitives used to build it.
+ *
+ * An onion is a header of a fixed number of slots followed by a payload of fixed size. The first
+ * slot belongs to the outermost layer and holds an ephemeral public key, a MAC and the number of
+ * layers underneath. The owner of the layer combines the ephemeral key with his decryption key to
+ * get a secret shared with whoever added the layer. He checks the MAC, decrypts the rest of the
+ * header and shifts it up by one slot, filling in the last slot with pseudorandom bytes, and
+ * decrypts the payload. Adding a layer does the reverse, dropping the last slot, which is never
+ * in use as long as there are fewer layers than slots. Either way, the size stays the same.
+ *
+ * The MAC of a layer covers only the slots which are in use underneath it, since the others
+ * may be replaced by the time the layer is removed.
+ */
+final class Onion {
+    static final int POINT = Secp256k1.POINT;
+    static final int MAC = 16;
+    static final int SLOT = POINT + MAC + 1; // The last byte is the number of layers underneath.
+
+    static final int PAYLOAD = 64;
+    static final int MAX_ADDRESS = PAYLOAD - 1; // The first byte of the payload is the length.
+
+    // The different streams generated from the same secret.
+    private static final byte HEADER_STREAM = 0;
+    private static final byte PAYLOAD_STREAM = 1;
+    private static final byte FILLER_STREAM = 2;
+    private static final byte MAC_KEY = 3;
+
+    private Onion() {}
+
+    // The secret shared by the owners of a and b, where p = a * B = b * A.
+    static byte[] secret(ECPoint p) {
+        return sha256(Secp256k1.encode(p), null);
+    }
+
+    // The number of layers underneath the outermost one.
+    static int layers(byte[] header) {
+        return header[POINT + MAC] & 0xff;
+    }
+
+    static byte[] headerStream(byte[] secret, int length) {
+        return stream(secret, HEADER_STREAM, length);
+    }
+
+    static byte[] payloadStream(byte[] secret) {
+        return stream(secret, PAYLOAD_STREAM, PAYLOAD);
+    }
+
+    static byte[] filler(byte[] secret, int length) {
+        return stream(secret, FILLER_STREAM, length);
+    }
+
+    // The MAC of a layer, which covers the payload and the given number of slots after the first.
+    static byte[] mac(byte[] secret, byte[] header, int layers, byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(sha256(secret, MAC_KEY), "HmacSHA256"));
+            mac.update(header, SLOT, layers * SLOT);
+            mac.update(payload);
+            return Arrays.copyOf(mac.doFinal(), MAC);
+        } catch (GeneralSecurityException e) {
+            throw new CryptographyError();
+        }
+    }
+
+    static void xor(byte[] to, int offset, byte[] stream) {
+        for (int i = 0; i < stream.length; i++) {
+            to[offset + i] ^= stream[i];
+        }
+    }
+
+    // AES-256 in counter mode, with a different key for each purpose.
+    private static byte[] stream(byte[] secret, byte purpose, int length) {
+        try {
+            Cipher aes = Cipher.getInstance("AES/CTR/NoPadding");
+            aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(sha256(secret, purpose), "AES"), new IvParameterSpec(new byte[16]));
+            return aes.doFinal(new byte[length]);
+        } catch (GeneralSecurityException e) {
+            throw new CryptographyError();
+        }
+    }
+
+    private static byte[] sha256(byte[] data, Byte purpose) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(data);
+            if (purpose != null) {
+                sha.update(purpose);
+            }
+            return sha.digest();
+        } catch (GeneralSecurityException e) {
+            throw new CryptographyError();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.shuffle.bitcoin.onion;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.protocol.FormatException;
+
+import java.util.Arrays;
+
+/**
+ * An address with one or more layers of encryption. It is always the same size, however many
+ * layers it has.
+ */
+public final class OnionAddress implements Address {
+    final byte[] header;
+    final byte[] payload;
+
+    OnionAddress(byte[] header, byte[] payload) {
+        this.header = header;
+        this.payload = payload;
+    }
+
+    // The size of an onion with the given number of slots.
+    public static int size(int slots) {
+        return slots * Onion.SLOT + Onion.PAYLOAD;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = Arrays.copyOf(header, header.length + payload.length);
+        System.arraycopy(payload, 0, bytes, header.length, payload.length);
+        return bytes;
+    }
+
+    public static OnionAddress fromBytes(byte[] bytes, int slots) throws FormatException {
+        if (slots < 1 || bytes == null || bytes.length != size(slots)) {
+            throw new FormatException();
+        }
+
+        int split = slots * Onion.SLOT;
+        return new OnionAddress(Arrays.copyOf(bytes, split), Arrays.copyOfRange(bytes, split, bytes.length));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof OnionAddress)) {
+            return false;
+        }
+
+        OnionAddress a = (OnionAddress) o;
+        return Arrays.equals(header, a.header) && Arrays.equals(payload, a.payload);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(header) * 31 + Arrays.hashCode(payload);
+    }
+
+    @Override
+    public String toString() {
+        return "onion[" + Onion.layers(header) + "]";
+    }
+}
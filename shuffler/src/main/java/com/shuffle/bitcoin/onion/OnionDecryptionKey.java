@@ -0,0 +1,97 @@
+package com.shuffle.bitcoin.onion;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.AddressFormat;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.bitcoin.ecies.Secp256k1;
+import com.shuffle.protocol.FormatException;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Removes a layer from an onion.
+ */
+public class OnionDecryptionKey implements DecryptionKey {
+    private final BigInteger secret;
+    private final OnionEncryptionKey ek;
+
+    public OnionDecryptionKey(BigInteger secret, int slots, AddressFormat format, SecureRandom random) {
+        if (secret == null) {
+            throw new NullPointerException();
+        }
+        if (secret.signum() <= 0 || secret.compareTo(Secp256k1.N) >= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.secret = secret;
+        this.ek = new OnionEncryptionKey(Secp256k1.multiplyG(secret), slots, format, random);
+    }
+
+    // Generate a new key.
+    public OnionDecryptionKey(int slots, AddressFormat format, SecureRandom random) {
+        this(Secp256k1.randomScalar(random), slots, format, random);
+    }
+
+    public OnionDecryptionKey(int slots, AddressFormat format) {
+        this(slots, format, new SecureRandom());
+    }
+
+    @Override
+    public EncryptionKey EncryptionKey() {
+        return ek;
+    }
+
+    @Override
+    public Address decrypt(Address m) throws FormatException, CryptographyError {
+        if (!(m instanceof OnionAddress)) {
+            throw new FormatException();
+        }
+
+        int slots = ek.slots;
+        OnionAddress onion = (OnionAddress) m;
+        if (onion.header.length != slots * Onion.SLOT || onion.payload.length != Onion.PAYLOAD) {
+            throw new FormatException();
+        }
+
+        int layers = Onion.layers(onion.header);
+        if (layers >= slots) {
+            throw new CryptographyError();
+        }
+
+        byte[] shared = Onion.secret(Secp256k1.multiply(Secp256k1.decode(onion.header, 0), secret));
+
+        byte[] mac = Arrays.copyOfRange(onion.header, Onion.POINT, Onion.POINT + Onion.MAC);
+        if (!MessageDigest.isEqual(mac, Onion.mac(shared, onion.header, layers, onion.payload))) {
+            throw new CryptographyError();
+        }
+
+        byte[] payload = onion.payload.clone();
+        Onion.xor(payload, 0, Onion.payloadStream(shared));
+
+        if (layers == 0) {
+            int length = payload[0] & 0xff;
+            if (length > Onion.MAX_ADDRESS) {
+                throw new FormatException();
+            }
+            return ek.format.deserialize(Arrays.copyOfRange(payload, 1, length + 1));
+        }
+
+        // Shift the header up by one slot and fill in the end.
+        int rest = (slots - 1) * Onion.SLOT;
+        byte[] header = Arrays.copyOfRange(onion.header, Onion.SLOT, slots * Onion.SLOT + Onion.SLOT);
+        Onion.xor(header, 0, Onion.headerStream(shared, rest));
+        System.arraycopy(Onion.filler(shared, Onion.SLOT), 0, header, rest, Onion.SLOT);
+
+        return new OnionAddress(header, payload);
+    }
+
+    @Override
+    public String toString() {
+        return "dk[" + ek.key + "]";
+    }
+}
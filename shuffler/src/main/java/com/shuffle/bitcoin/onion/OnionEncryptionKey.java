@@ -0,0 +1,120 @@
+package com.shuffle.bitcoin.onion;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.AddressFormat;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.bitcoin.ecies.Secp256k1;
+
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Adds a layer to an onion, or makes a new onion out of an address.
+ */
+public class OnionEncryptionKey implements EncryptionKey {
+    final ECPoint key;
+    final int slots; // The most layers an onion can have. Every player must use the same number.
+    final AddressFormat format;
+    private final SecureRandom random;
+
+    public OnionEncryptionKey(ECPoint key, int slots, AddressFormat format, SecureRandom random) {
+        if (key == null || format == null || random == null) {
+            throw new NullPointerException();
+        }
+        if (slots < 1 || slots > 256) {
+            throw new IllegalArgumentException();
+        }
+
+        this.key = Secp256k1.importPoint(key);
+        this.slots = slots;
+        this.format = format;
+        this.random = random;
+    }
+
+    public OnionEncryptionKey(ECPoint key, int slots, AddressFormat format) {
+        this(key, slots, format, new SecureRandom());
+    }
+
+    public byte[] toBytes() {
+        return Secp256k1.encode(key);
+    }
+
+    @Override
+    public Address encrypt(Address m) throws CryptographyError {
+        byte[] header;
+        byte[] payload;
+        int layers; // The number of layers that m already has.
+
+        if (m instanceof OnionAddress) {
+            OnionAddress onion = (OnionAddress) m;
+            if (onion.header.length != slots * Onion.SLOT) {
+                throw new CryptographyError();
+            }
+
+            header = onion.header;
+            payload = onion.payload.clone();
+            layers = Onion.layers(header) + 1;
+        } else {
+            byte[] address = format.serialize(m);
+            if (address.length > Onion.MAX_ADDRESS) {
+                throw new CryptographyError();
+            }
+
+            header = null;
+            payload = new byte[Onion.PAYLOAD];
+            payload[0] = (byte) address.length;
+            System.arraycopy(address, 0, payload, 1, address.length);
+            layers = 0;
+        }
+
+        // There must be room to drop the last slot.
+        if (layers >= slots) {
+            throw new CryptographyError();
+        }
+
+        BigInteger x = Secp256k1.randomScalar(random);
+        byte[] alpha = Secp256k1.encode(Secp256k1.multiplyG(x));
+        byte[] secret = Onion.secret(Secp256k1.multiply(key, x));
+
+        // A new onion starts out with a header of garbage.
+        if (header == null) {
+            header = Onion.filler(secret, slots * Onion.SLOT);
+        }
+
+        byte[] next = new byte[slots * Onion.SLOT];
+        System.arraycopy(alpha, 0, next, 0, Onion.POINT);
+        next[Onion.POINT + Onion.MAC] = (byte) layers;
+        System.arraycopy(header, 0, next, Onion.SLOT, (slots - 1) * Onion.SLOT);
+        Onion.xor(next, Onion.SLOT, Onion.headerStream(secret, (slots - 1) * Onion.SLOT));
+        Onion.xor(payload, 0, Onion.payloadStream(secret));
+
+        byte[] mac = Onion.mac(secret, next, layers, payload);
+        System.arraycopy(mac, 0, next, Onion.POINT, Onion.MAC);
+
+        return new OnionAddress(next, payload);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof OnionEncryptionKey)) {
+            return false;
+        }
+
+        OnionEncryptionKey k = (OnionEncryptionKey) o;
+        return slots == k.slots && key.equals(k.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toBytes()) * 31 + slots;
+    }
+
+    @Override
+    public String toString() {
+        return "ek[" + key + "]";
+    }
+}
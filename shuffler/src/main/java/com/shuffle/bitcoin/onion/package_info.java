@@ -0,0 +1,9 @@
+/**
+ *
+ * An implementation of EncryptionKey and DecryptionKey for the shuffle phase in which the
+ * ciphertext stays the same size no matter how many layers of encryption have been added to
+ * it, using a layered format similar to Sphinx.
+ * http://www.cypherpunks.ca/~iang/pubs/Sphinx_Oakland09.pdf
+ *
+ */
+package com.shuffle.bitcoin.onion;
@@ -18,7 +18,7 @@ public interface Registration {
     long time();
 
     // The keys corresponding to addresses to be contributed to this join.
-    // ( Should be only 1 for the first versions of the protocol.)
+    // ( Every registration to the same mix must have the same number of keys.)
     List<VerificationKey> keys();
 
     // The player corresponding to this registration.
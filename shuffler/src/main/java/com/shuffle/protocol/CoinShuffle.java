@@ -20,9 +20,12 @@ import com.shuffle.protocol.blame.Reason;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.math.BigInteger;
 import java.net.ProtocolException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -31,7 +34,7 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
 
 /**
  *
@@ -52,13 +55,41 @@ final class CoinShuffle {
 
     final MessageFactory messages;
 
+    final TimeoutPolicy timeouts; // Decides how long to wait for messages from the other players.
+
+    final Journal journal; // Lets a machine be recovered after a restart. (may be null)
+
+    // Rounds with at least this many players send the output vector as a digest. (see Round.disseminate)
+    final int digestThreshold;
+
+    // The most addresses sent in one packet in the shuffle phase. (see Round.sendFrames)
+    final int frameSize;
+
+    // Rounds with more players than this are split into groups of at most this many. (see CascadeRound)
+    final int groupSize;
+
+    // Sends the shuffle transaction in the background. (may be null, in which case the protocol
+    // sends it itself before returning)
+    final Submitter submitter;
+
     static Logger log= LogManager.getLogger(CoinShuffle.class);
 
     public class ShuffleMachine {
-        Phase phase;
+        // Written only by the thread running the protocol, but may be read from any other.
+        volatile Phase phase;
 
         final SessionIdentifier session;
 
+        final Journal.Log journal; // This machine's part of the journal. (may be null)
+
+        // Everything generated randomly goes through here so that it can be journaled.
+        final Crypto crypto;
+
+        final Notifier notifier; // Reports our progress to a listener. (may be null)
+
+        // Told when the phase changes if the network is being recorded. (may be null)
+        volatile Trace.Recorder trace = null;
+
         final long amount; // The amount to be shuffled.
 
         final private SigningKey sk; // My signing private key.
@@ -67,38 +98,89 @@ final class CoinShuffle {
 
         final SortedSet<VerificationKey> players;
 
+        // The inputs contributed by each player. Every player contributes the same number of
+        // inputs and receives the same number of new outputs, so that nobody stands out.
+        final Map<VerificationKey, List<VerificationKey>> inputs;
+
+        final Map<VerificationKey, VerificationKey> owners; // The player who contributed each input.
+
+        final List<SigningKey> inputKeys; // The keys to my own inputs.
+
+        final int k; // The number of inputs per player.
+
         final Address change;
 
         final int maxRetries;
 
         final int minPlayers;
 
+        // If not null, the new addresses are mixed with DiceMix rather than the sequential shuffle.
+        final DiceMix.Codec dicemix;
+
+        // The signatures which have been checked in this session.
+        final SignatureCache verified = new SignatureCache(SignatureCache.DEFAULT_CAPACITY);
+
+        // The shuffle transaction, if it was handed to the submitter. (may be null)
+        volatile Submitter.Submission submission = null;
+
         // the phase can be accessed concurrently in case we want to update
-        // the user on how the protocol is going.
+        // the user on how the protocol is going. To be told whenever it changes,
+        // provide a ShuffleListener instead.
         public Phase currentPhase() {
             return phase;
         }
 
+        // Move on to the given phase.
+        void setPhase(Phase next) {
+            Phase previous = phase;
+            phase = next;
+            if (journal != null) {
+                journal.phase(next);
+            }
+            if (notifier != null && previous != next) {
+                notifier.phaseChanged(previous, next);
+            }
+            if (trace != null && previous != next) {
+                trace.phase(next);
+            }
+        }
+
+        // The player to whom an input belongs. (null if it is not one of ours)
+        VerificationKey owner(VerificationKey input) {
+            return owners.get(input);
+        }
+
+        // Called whenever we accuse someone.
+        Blame raise(Blame blame) {
+            if (notifier != null) {
+                notifier.blame(blame);
+            }
+            return blame;
+        }
+
         // A single round of the protocol. It is possible that the players may go through
         // several failed rounds until they have eliminated malicious players.
         class Round {
 
-            final private int me; // Which player am I?
+            final int me; // Which player am I?
 
-            final private Map<Integer, VerificationKey> players; // The keys representing all the players.
+            final Map<Integer, VerificationKey> players; // The keys representing all the players.
 
-            final private int N; // The number of players.
+            final int N; // The number of players.
 
             // This will contain the new encryption public keys.
             final Map<VerificationKey, EncryptionKey> encryptionKeys = new HashMap<>();
 
             final Address change; // My change address. (may be null).
 
-            final Map<VerificationKey, Signature> signatures = new HashMap<>();
+            final Map<VerificationKey, Signature> signatures = new HashMap<>(); // By input.
 
             Transaction t = null;
 
-            final private Mailbox mailbox;
+            // The set of new addresses into which the coins will be deposited.
+            Queue<Address> newAddresses = null;
+
+            final Mailbox mailbox;
 
             Matrix protocolDefinition(
             ) throws
@@ -115,7 +197,7 @@ final class CoinShuffle {
 
                 // Phase 1: Announcement
                 // In the announcement phase, participants distribute temporary encryption keys.
-                phase = Phase.Announcement;
+                setPhase(Phase.Announcement);
 
                 // Check for sufficient funds.
                 // There was a problem with the wording of the original paper which would have meant
@@ -131,7 +213,7 @@ final class CoinShuffle {
                 // Everyone except player 1 creates a new keypair and sends it around to everyone else.
                 DecryptionKey dk = null;
                 EncryptionKey ek;
-                if (me != 1) {
+                if (me >= firstKey()) {
                     dk = crypto.makeDecryptionKey();
                     ek = dk.EncryptionKey();
 
@@ -148,62 +230,174 @@ final class CoinShuffle {
                 // Now we wait to receive similar key from everyone else.
                 Map<VerificationKey, Message> announcement = null;
                 try {
-                    announcement = mailbox.receiveFromMultiple(playerSet(2, N), phase, true);
+                    announcement = mailbox.receiveFromMultiple(playerSet(firstKey(), N), phase, true);
                 } catch (BlameException e) {
                     // might receive blame messages about insufficient funds.
-                    phase = Phase.Blame;
-                    return fillBlameMatrix(new Matrix());
+                    if (!mixBlamed()) {
+                        setPhase(Phase.Blame);
+                        return fillBlameMatrix(new Matrix());
+                    }
+
+                    // Or the others may have got on with the mix without us and found something
+                    // wrong with it, in which case they need our key to work out who.
+                    try {
+                        announcement = receiveRemaining(playerSet(firstKey(), N), false);
+                    } catch (BlameException f) {
+                        throw new InvalidImplementationError();
+                    }
+                    readAnnouncements(announcement, encryptionKeys, change);
+                    return blameMix(dk);
                 }
 
                 readAnnouncements(announcement, encryptionKeys, change);
 
-                // Phase 2: Shuffle
-                // In the shuffle phase, we create a sequence of orderings which will b successively
-                // applied by each particpant. Everyone has the incentive to insert their own address
-                // at a random location, which is sufficient to ensure randomness of the whole thing
-                // to all participants.
-                phase = Phase.Shuffling;
+                matrix = mix(dk);
+                if (matrix != null) {
+                    return matrix;
+                }
+
+                // Phase 5: verification and submission.
+                // Everyone creates a Bitcoin transaction and signs it, then broadcasts the signature.
+                // If all signatures check out, then the transaction is history into the net.
+                setPhase(Phase.VerificationAndSubmission);
 
-                // The set of new addresses into which the coins will be deposited.
-                Queue<Address> newAddresses = null;
+                Map<VerificationKey, List<VerificationKey>> from = new LinkedHashMap<>();
+                for (int i = 1; i <= N; i++) {
+                    from.put(players.get(i), inputs.get(players.get(i)));
+                }
 
                 try {
+                    t = coin.shuffleTransaction(amount, from, newAddresses, change);
+                } catch (CoinNetworkError e) {
+                    // If there is an error, then see if a double spending transaction can be found.
+                    setPhase(Phase.Blame);
+                    Matrix bm = new Matrix();
+
+                    Message doubleSpend = messages.make();
+                    for (VerificationKey key : players.values()) {
+                        // The player is to blame even if only one of his inputs was spent.
+                        for (VerificationKey input : inputs.get(key)) {
+                            Transaction o = coin.getConflictingTransaction(input.address(), amount);
+                            if (o != null) {
+                                doubleSpend.attach(raise(Blame.DoubleSpend(input, o)));
+                                bm.put(vk, key, Evidence.DoubleSpend(true, o));
+                            }
+                        }
+                    }
+                    if (doubleSpend.isEmpty()) {
+                        throw new CoinNetworkError();
+                    }
 
-                    // Each participant chooses a new bitcoin address which will be their new outputs.
-                    SigningKey sk_new = crypto.makeSigningKey();
-                    Address addr_new = sk_new.VerificationKey().address();
+                    mailbox.broadcast(doubleSpend, phase);
+                    return fillBlameMatrix(bm);
+                }
 
-                    // Player one begins the cycle and encrypts its new address with everyone's privateKey, in order.
-                    // Each subsequent player reorders the cycle and removes one layer of encryption.
-                    Message shuffled = messages.make();
-                    if (me != 1) {
-                        shuffled = decryptAll(shuffled.attach(mailbox.receiveFrom(players.get(me - 1), phase)), dk, me - 1);
-                        if (shuffled == null) {
-                            return blameShuffleMisbehavior(dk);
+                // One signature for each of my inputs, in order.
+                Message mySignatures = messages.make();
+                for (SigningKey key : inputKeys) {
+                    Signature signature = key.makeSignature(t);
+                    signatures.put(key.VerificationKey(), signature);
+                    mySignatures.attach(signature);
+                }
+                mailbox.broadcast(mySignatures, phase);
+
+                Map<VerificationKey, Message> signatureMessages;
+                try {
+                    signatureMessages = mailbox.receiveFromMultiple(playerSet(1, N), phase, true);
+                } catch (BlameException e) {
+                    // Someone found something wrong with the mix after we thought it had gone
+                    // fine, in which case he needs our key to work out who.
+                    if (mixBlamed()) {
+                        return blameMix(dk);
+                    }
+                    setPhase(Phase.Blame);
+                    return fillBlameMatrix(new Matrix());
+                }
+
+                // Verify the signatures.
+                Map<VerificationKey, Signature> invalid = new HashMap<>();
+                for (Map.Entry<VerificationKey, Message> sig : signatureMessages.entrySet()) {
+                    for (VerificationKey key : inputs.get(sig.getKey())) {
+                        Signature signature = sig.getValue().readSignature();
+                        signatures.put(key, signature);
+                        if (!verified.verify(key, t, signature)) {
+                            invalid.put(key, signature);
                         }
                     }
+                }
 
-                    // Add our own address to the mix. Note that if me == N, ie, the last player, then no
-                    // encryption is done. That is because we have reached the last layer of encryption.
-                    Address encrypted = addr_new;
-                    for (int i = N; i > me; i--) {
-                        // Successively encrypt with the keys of the players who haven't had their turn yet.
-                        encrypted = encryptionKeys.get(players.get(i)).encrypt(encrypted);
+                if (invalid.size() > 0) {
+                    setPhase(Phase.Blame);
+                    Matrix bm = new Matrix();
+                    Message blameMessage = messages.make();
+                    blameMessage.attach(raise(Blame.InvalidSignature(invalid)));
+
+                    for(Map.Entry<VerificationKey, Signature> bad : invalid.entrySet()) {
+                        VerificationKey key = bad.getKey();
+                        Signature signature = bad.getValue();
+                        bm.put(vk, owner(key), Evidence.InvalidSignature(true, signature));
                     }
+                    return fillBlameMatrix(bm);
+                }
+
+                if (mailbox.blameReceived()) {
+                    setPhase(Phase.Blame);
+                    return fillBlameMatrix(new Matrix());
+                }
+
+                // Everything checked out, so the transaction can be put together.
+                Transaction signed = coin.signedTransaction(t, signatures);
+
+                // Send the transaction into the net. With a submitter, we don't wait around for it.
+                if (submitter != null) {
+                    submission = submitter.submit(signed);
+                } else {
+                    signed.send();
+                }
+
+                // The protocol has completed successfully.
+                setPhase(Phase.Completed);
+
+                return null;
+            }
+
+            // Phases 2 to 4, in which the new addresses are mixed and everyone checks that nobody
+            // has equivocated. Either returns the blame matrix or leaves the result in newAddresses.
+            Matrix mix(DecryptionKey dk) throws FormatException, CryptographyError,
+                    InvalidImplementationError, ValueException, InterruptedException, ProtocolException {
+
+                // Phase 2: Shuffle
+                // In the shuffle phase, we create a sequence of orderings which will b successively
+                // applied by each particpant. Everyone has the incentive to insert their own address
+                // at a random location, which is sufficient to ensure randomness of the whole thing
+                // to all participants.
+                setPhase(Phase.Shuffling);
+
+                try {
 
-                    // Insert new entry and reorder the keys.
-                    shuffled = shuffle(shuffled.attach(encrypted));
+                    // Each participant chooses a new bitcoin address for each of his inputs,
+                    // which will be their new outputs.
+                    List<Address> addrs_new = new LinkedList<>();
+                    for (int i = 0; i < k; i++) {
+                        addrs_new.add(crypto.makeSigningKey().VerificationKey().address());
+                    }
 
-                    // Pass it along to the next player.
-                    if (me != N) {
-                        mailbox.send(new Packet(shuffled, session, phase, vk, players.get(me + 1)));
+                    Message shuffled = passAround(dk, addrs_new);
+                    if (shuffled == null) {
+                        return blameShuffleMisbehavior(dk);
                     }
 
                     // Phase 3: broadcast outputs.
                     // In this phase, the last player just broadcasts the transaction to everyone else.
-                    phase = Phase.BroadcastOutput;
+                    setPhase(Phase.BroadcastOutput);
 
-                    if (me == N) {
+                    if (digests()) {
+                        newAddresses = disseminate(shuffled);
+                        if (newAddresses == null) {
+                            // Either the last player or somebody passing on his output lied.
+                            return blameShuffleMisbehavior(dk);
+                        }
+                    } else if (me == N) {
                         // The last player adds his own new address in without encrypting anything and shuffles the result.
                         newAddresses = readNewAddresses(shuffled);
                         mailbox.broadcast(shuffled, phase);
@@ -211,108 +405,194 @@ final class CoinShuffle {
                         newAddresses = readNewAddresses(mailbox.receiveFrom(players.get(N), phase));
                     }
 
-                    // Everyone else receives the broadcast and checks to make sure their message was included.
-                    if (!newAddresses.contains(addr_new)) {
-                        phase = Phase.Blame;
-                        mailbox.broadcast(messages.make().attach(Blame.MissingOutput(players.get(N))), phase);
+                    // Everyone else receives the broadcast and checks to make sure all their outputs were included.
+                    if (!newAddresses.containsAll(addrs_new)) {
+                        setPhase(Phase.Blame);
+                        mailbox.broadcast(messages.make().attach(raise(Blame.MissingOutput(players.get(N)))), phase);
                         return blameShuffleMisbehavior(dk);
                     }
 
                     // Phase 4: equivocation check.
                     // In this phase, participants check whether any player has history different
                     // encryption keys to different players.
-                    phase = Phase.EquivocationCheck;
+                    setPhase(Phase.EquivocationCheck);
 
-                    matrix = equivocationCheck(encryptionKeys, vk);
+                    Matrix matrix = equivocationCheck(encryptionKeys, vk, true);
                     if (matrix != null) {
                         return matrix;
                     }
                 } catch (BlameException e) {
-                    log.error("Blame exception ", e);
-                    // TODO might receive messages about failed shuffles or failed equivocation check.
+                    // Someone else found something wrong with the shuffle, or got through the
+                    // equivocation check before us and found that somebody spent his money.
+                    if (mixBlamed()) {
+                        return blameShuffleMisbehavior(dk);
+                    }
+                    setPhase(Phase.Blame);
+                    return fillBlameMatrix(new Matrix());
                 }
 
-                // Phase 5: verification and submission.
-                // Everyone creates a Bitcoin transaction and signs it, then broadcasts the signature.
-                // If all signatures check out, then the transaction is history into the net.
-                phase = Phase.VerificationAndSubmission;
+                return null;
+            }
 
-                List<VerificationKey> inputs = new LinkedList<>();
-                for (int i = 1; i <= N; i++) {
-                    inputs.add(players.get(i));
+            // Whether anyone has said that something went wrong in the mix.
+            boolean mixBlamed() throws FormatException {
+                for (SignedPacket packet : mailbox.getPacketsByPhase(Phase.Blame)) {
+                    Message message = packet.packet.message.copy();
+                    while (!message.isEmpty()) {
+                        switch (message.readBlame().reason) {
+                            case ShuffleFailure:
+                            case MissingOutput:
+                            case ShuffleAndEquivocationFailure:
+                                return true;
+                        }
+                    }
                 }
+                return false;
+            }
 
-                try {
-                    t = coin.shuffleTransaction(amount, inputs, newAddresses, change);
-                } catch (CoinNetworkError e) {
-                    // If there is an error, then see if a double spending transaction can be found.
-                    phase = Phase.Blame;
-                    Matrix bm = new Matrix();
+            // Join in the blame phase after someone else found something wrong with the mix.
+            Matrix blameMix(DecryptionKey dk) throws InterruptedException, FormatException, ValueException, ProtocolException {
+                return blameShuffleMisbehavior(dk);
+            }
 
-                    Message doubleSpend = messages.make();
-                    for (VerificationKey key : players.values()) {
-                        Transaction o = coin.getConflictingTransaction(key.address(), amount);
-                        if (o != null) {
-                            doubleSpend.attach(Blame.DoubleSpend(key, o));
-                            bm.put(vk, key, Evidence.DoubleSpend(true, o));
-                        }
-                    }
-                    if (doubleSpend.isEmpty()) {
-                        throw new CoinNetworkError();
+            // The shuffle itself. Returns the shuffled and fully decrypted addresses if I am the
+            // last player, or null if something was wrong with what I received, in which case blame
+            // has already been sent out.
+            Message passAround(DecryptionKey dk, List<Address> addrs_new) throws FormatException, CryptographyError,
+                    InvalidImplementationError, ValueException, InterruptedException, BlameException {
+
+                // Player one begins the cycle and encrypts its new address with everyone's privateKey, in order.
+                // Each subsequent player reorders the cycle and removes one layer of encryption.
+                Message shuffled = messages.make();
+                if (me != 1) {
+                    // The addresses may come a few at a time, in which case we decrypt
+                    // each frame while waiting for the next.
+                    Decryption decryption = new Decryption(dk, (me - 1) * k);
+                    mailbox.receiveFrames(players.get(me - 1), phase, decryption);
+                    shuffled = decryption.result();
+                    if (shuffled == null) {
+                        return null;
                     }
+                }
 
-                    mailbox.broadcast(doubleSpend, phase);
-                    return fillBlameMatrix(bm);
+                // Add our own addresses to the mix. Note that if me == N, ie, the last player, then no
+                // encryption is done. That is because we have reached the last layer of encryption.
+                for (Address addr_new : addrs_new) {
+                    shuffled.attach(encrypt(addr_new, N, me));
                 }
 
-                mailbox.broadcast(messages.make().attach(sk.makeSignature(t)), phase);
+                // Reorder the entries.
+                shuffled = shuffle(shuffled, crypto);
 
-                Map<VerificationKey, Message> signatureMessages = null;
-                try {
-                    signatureMessages = mailbox.receiveFromMultiple(playerSet(1, N), phase, false);
-                } catch (BlameException e) {
-                    log.warn("Blame exception ", e);
-                    /* This should not happen. */
+                // Pass it along to the next player.
+                if (me != N) {
+                    sendFrames(shuffled, players.get(me + 1));
                 }
 
-                // Verify the signatures.
-                assert signatureMessages != null;
-                Map<VerificationKey, Signature> invalid = new HashMap<>();
-                for (Map.Entry<VerificationKey, Message> sig : signatureMessages.entrySet()) {
-                    VerificationKey key = sig.getKey();
-                    Signature signature = sig.getValue().readSignature();
-                    signatures.put(key, signature);
-                    if (!key.verify(t, signature)) {
-                        invalid.put(key, signature);
+                return shuffled;
+            }
+
+            // Successively encrypt with the keys of players from down to, but not including, to.
+            Address encrypt(Address address, int from, int to) throws CryptographyError {
+                for (int i = from; i > to; i--) {
+                    address = encryptionKeys.get(players.get(i)).encrypt(address);
+                }
+                return address;
+            }
+
+            // The first player to announce a key. (Player 1 doesn't need one in the sequential shuffle.)
+            int firstKey() {
+                return 2;
+            }
+
+            // Whether the output vector is broadcast as a digest rather than in full.
+            boolean digests() {
+                return N > 2 && N >= digestThreshold;
+            }
+
+            // The output vector is split into one chunk for each player but the last. This
+            // is where the chunk for player i begins.
+            int chunkStart(int i) {
+                return (int)((long)(i - 1) * N * k / (N - 1));
+            }
+
+            // Hash-then-fetch version of phase 3. Rather than sending the whole output vector to
+            // everyone, the last player sends each player a digest of it along with one chunk.
+            // Everyone passes their chunk on to everyone else, and checks the reassembled vector
+            // against the digest. The last player uploads the vector once rather than N - 1 times.
+            // Returns null if the output vector could not be reconstructed.
+            Queue<Address> disseminate(Message shuffled) throws InterruptedException, FormatException,
+                    ValueException, ProtocolException, BlameException {
+
+                if (me == N) {
+                    Queue<Address> newAddresses = readNewAddresses(shuffled);
+                    Message digest = crypto.hash(shuffled);
+
+                    List<Address> all = new LinkedList<>(newAddresses);
+                    for (int i = 1; i < N; i++) {
+                        Message chunk = messages.make();
+                        for (Address address : all.subList(chunkStart(i), chunkStart(i + 1))) {
+                            chunk.attach(address);
+                        }
+                        mailbox.send(new Packet(chunk.attach(digest), session, phase, vk, players.get(i)));
                     }
+
+                    return newAddresses;
                 }
 
-                if (invalid.size() > 0) {
-                    phase = Phase.Blame;
-                    Matrix bm = new Matrix();
-                    Message blameMessage = messages.make();
-                    blameMessage.attach(Blame.InvalidSignature(invalid));
+                // Our chunk and the digest, signed by the last player.
+                Message fromLast = mailbox.waitFor(players.get(N), phase);
+                Message chunk;
+                try {
+                    chunk = readChunk(fromLast, me);
+                } catch (FormatException e) {
+                    // The last player didn't send us a whole chunk. Pass on nothing, so that
+                    // nobody else can reconstruct the output vector either.
+                    mailbox.broadcast(messages.make(), phase);
+                    return null;
+                }
+                Message digest = fromLast;
 
-                    for(Map.Entry<VerificationKey, Signature> bad : invalid.entrySet()) {
-                        VerificationKey key = bad.getKey();
-                        Signature signature = bad.getValue();
-                        bm.put(vk, key, Evidence.InvalidSignature(true, signature));
+                // Pass our chunk on to everyone else.
+                mailbox.broadcast(chunk, phase);
+
+                Map<VerificationKey, Message> chunks = mailbox.receiveFromMultiple(playerSet(1, N - 1), phase, true);
+                chunks.put(vk, chunk);
+
+                Message vector = messages.make();
+                for (int i = 1; i < N; i++) {
+                    Message next = chunks.get(players.get(i));
+                    if (next == null) {
+                        return null;
                     }
-                    return fillBlameMatrix(bm);
+                    vector.attach(next);
                 }
 
-                if (mailbox.blameReceived()) {
-                    phase = Phase.Blame;
-                    return fillBlameMatrix(new Matrix());
+                if (!crypto.hash(vector).equals(digest)) {
+                    return null;
                 }
 
-                // Send the transaction into the net.
-                t.send();
+                // The chunk from each player has to have been the right size.
+                Queue<Address> newAddresses;
+                try {
+                    newAddresses = readNewAddresses(vector);
+                } catch (FormatException e) {
+                    return null;
+                }
+                if (newAddresses.size() != N * k) {
+                    return null;
+                }
 
-                // The protocol has completed successfully.
-                phase = Phase.Completed;
+                return newAddresses;
+            }
 
-                return null;
+            // Read the i'th chunk of the output vector from the start of a message.
+            Message readChunk(Message message, int i) throws FormatException {
+                Message chunk = messages.make();
+                for (int j = chunkStart(i); j < chunkStart(i + 1); j++) {
+                    chunk.attach(message.readAddress());
+                }
+                return chunk;
             }
 
             Queue<Address> readNewAddresses(Message message) throws FormatException, InvalidImplementationError {
@@ -327,30 +607,89 @@ final class CoinShuffle {
             }
 
             Message decryptAll(Message message, DecryptionKey key, int expected) throws InvalidImplementationError, FormatException {
-                Message decrypted = messages.make();
+                Decryption decryption = new Decryption(key, expected);
+                decryption.read(message);
+                return decryption.result();
+            }
 
+            // Removes a layer of encryption from the addresses in the shuffle phase, one frame at a time.
+            class Decryption implements Mailbox.FrameReader {
+                final DecryptionKey key;
+                final int expected; // The number of addresses that should arrive.
+
+                final Message decrypted = messages.make();
+                final Set<Address> addrs = new HashSet<>(); // Used to check that all addresses are different.
                 int count = 0;
-                Set<Address> addrs = new HashSet<>(); // Used to check that all addresses are different.
+                boolean failed = false; // Whether some address could not be decrypted.
 
-                Message copy = message.copy();
-                while (!copy.isEmpty()) {
-                    Address address = copy.readAddress();
-                    addrs.add(address);
-                    count++;
+                Decryption(DecryptionKey key, int expected) {
+                    this.key = key;
+                    this.expected = expected;
+                }
+
+                @Override
+                public boolean read(Message frame) throws FormatException, InvalidImplementationError {
+                    Message copy = frame.copy();
+                    int size = 0;
                     try {
-                        decrypted.attach(key.decrypt(address));
-                    } catch (CryptographyError e) {
-                        mailbox.broadcast(messages.make().attach(Blame.ShuffleFailure()), phase);
+                        while (!copy.isEmpty()) {
+                            Address address = copy.readAddress();
+                            addrs.add(address);
+                            count++;
+                            size++;
+                            decrypted.attach(key.decrypt(address));
+                        }
+                    } catch (FormatException | CryptographyError e) {
+                        failed = true;
+                        return false;
+                    }
+
+                    // The last frame is always smaller than the rest, even if that means it is
+                    // empty, so we know when the sender is done and can check that nothing was
+                    // left out without waiting for the timeout. If he has already sent too many,
+                    // there's no point in waiting for the rest.
+                    return size == frameSize && count <= expected;
+                }
+
+                // The decrypted addresses, or null if something was wrong with them, in which
+                // case blame has already been sent out.
+                Message result() throws InvalidImplementationError {
+                    if (failed) {
+                        setPhase(Phase.Blame);
+                        mailbox.broadcast(messages.make().attach(raise(Blame.ShuffleFailure())), phase);
+                        return null;
+                    }
+
+                    if (addrs.size() != count || count != expected) {
+                        setPhase(Phase.Blame);
+                        mailbox.broadcast(messages.make().attach(raise(Blame.MissingOutput(players.get(N)))), phase);
                         return null;
                     }
+
+                    return decrypted;
                 }
+            }
 
-                if (addrs.size() != count || count != expected) {
-                    mailbox.broadcast(messages.make().attach(Blame.MissingOutput(players.get(N))), phase);
-                    return null;
+            // Send the shuffled addresses to the next player, no more than frameSize of them in
+            // each packet, so that he can begin decrypting before he has received them all. The
+            // last frame is smaller than frameSize, and is empty if it has to be, so that he
+            // knows when he has them all.
+            void sendFrames(Message shuffled, VerificationKey to) throws FormatException, InvalidImplementationError {
+                Message copy = shuffled.copy();
+                Message frame = messages.make();
+                int size = 0;
+                while (!copy.isEmpty()) {
+                    frame.attach(copy.readAddress());
+                    size++;
+
+                    if (size == frameSize) {
+                        mailbox.send(new Packet(frame, session, phase, vk, to));
+                        frame = messages.make();
+                        size = 0;
+                    }
                 }
 
-                return decrypted;
+                mailbox.send(new Packet(frame, session, phase, vk, to));
             }
 
             // In certain cases, it is possible for an equivocation message to be sent but
@@ -359,13 +698,15 @@ final class CoinShuffle {
             boolean equivocationCheckSent = false;
 
             // There is an error case in which we have to do an equivocation check, so this phase is in a separate function.
-            private Matrix equivocationCheck(
+            Matrix equivocationCheck(
                     Map<VerificationKey, EncryptionKey> encryptonKeys,
-                    VerificationKey vk) throws InterruptedException, ValueException, FormatException, ProtocolException, BlameException {
+                    VerificationKey vk,
+                    boolean blameInterrupt // Whether to stop if a blame message is received.
+            ) throws InterruptedException, ValueException, FormatException, ProtocolException, BlameException {
 
                 // Put all temporary encryption keys into a list and hash the result.
                 Message equivocationCheck = messages.make();
-                for (int i = 2; i <= players.size(); i++) {
+                for (int i = firstKey(); i <= players.size(); i++) {
                     equivocationCheck.attach(encryptonKeys.get(players.get(i)));
                 }
 
@@ -376,7 +717,8 @@ final class CoinShuffle {
                 }
 
                 // Wait for a similar message from everyone else and check that the result is the name.
-                Map<VerificationKey, Message> hashes = mailbox.receiveFromMultiple(playerSet(1, players.size()), phase, true);
+                // Some hashes may have come in already if the check was interrupted by blame.
+                Map<VerificationKey, Message> hashes = receiveRemaining(playerSet(1, players.size()), blameInterrupt);
                 hashes.put(vk, equivocationCheck);
 
                 if (areEqual(hashes.values())) {
@@ -385,25 +727,45 @@ final class CoinShuffle {
 
                 // If the hashes are not equal, enter the blame phase.
                 // Collect all packets from phase 1 and 3.
-                phase = Phase.Blame;
+                setPhase(Phase.Blame);
                 Message blameMessage = messages.make();
                 List<SignedPacket> evidence = mailbox.getPacketsByPhase(Phase.Announcement);
                 evidence.addAll(mailbox.getPacketsByPhase(Phase.BroadcastOutput));
-                blameMessage.attach(Blame.EquivocationFailure(evidence));
+                blameMessage.attach(raise(Blame.EquivocationFailure(evidence)));
                 mailbox.broadcast(blameMessage, phase);
 
                 return fillBlameMatrix(new Matrix());
             }
 
+            // Receive a message from each of the given players in the current phase, including
+            // any that came in before we were interrupted by blame.
+            Map<VerificationKey, Message> receiveRemaining(Set<VerificationKey> from, boolean blameInterrupt)
+                    throws InterruptedException, ValueException, FormatException, ProtocolException, BlameException {
+
+                Map<VerificationKey, Message> received = new HashMap<>();
+                for (SignedPacket packet : mailbox.getPacketsByPhase(phase)) {
+                    if (!packet.packet.signer.equals(vk) && from.contains(packet.packet.signer)) {
+                        received.put(packet.packet.signer, packet.packet.message);
+                    }
+                }
+
+                Set<VerificationKey> remaining = new HashSet<>(from);
+                remaining.removeAll(received.keySet());
+                received.putAll(mailbox.receiveFromMultiple(remaining, phase, blameInterrupt));
+                return received;
+            }
+
             // Check for players with insufficient funds. This happens in phase 1 and phase 5.
             private Matrix blameInsufficientFunds() throws InterruptedException, FormatException, ValueException {
-                List<VerificationKey> offenders = new LinkedList<>();
+                List<VerificationKey> offenders = new LinkedList<>(); // The inputs which are short.
 
-                // Check that each participant has the required amounts.
+                // Check that each participant has the required amounts in every input.
                 for (VerificationKey player : players.values()) {
-                    if (coin.valueHeld(player.address()) < amount) {
-                        // Enter the blame phase.
-                        offenders.add(player);
+                    for (VerificationKey input : inputs.get(player)) {
+                        if (coin.valueHeld(input.address()) < amount) {
+                            // Enter the blame phase.
+                            offenders.add(input);
+                        }
                     }
                 }
 
@@ -413,19 +775,20 @@ final class CoinShuffle {
                 }
 
                 // If not, enter blame phase and find offending transactions.
-                phase = Phase.Blame;
+                setPhase(Phase.Blame);
                 Matrix matrix = new Matrix();
                 Message blameMessage = messages.make();
                 for (VerificationKey offender : offenders) {
                     Transaction t = coin.getConflictingTransaction(offender.address(), amount);
 
+                    // The blame names the input, but it is the player who is responsible.
                     if (t == null) {
-                        blameMessage.attach(Blame.NoFundsAtAll(offender));
-                        matrix.put(vk, offender,
+                        blameMessage.attach(raise(Blame.NoFundsAtAll(offender)));
+                        matrix.put(vk, owner(offender),
                                 Evidence.NoFundsAtAll(true));
                     } else {
-                        blameMessage.attach(Blame.InsufficientFunds(offender, t));
-                        matrix.put(vk, offender,
+                        blameMessage.attach(raise(Blame.InsufficientFunds(offender, t)));
+                        matrix.put(vk, owner(offender),
                                 Evidence.InsufficientFunds(true, t));
                     }
                 }
@@ -438,10 +801,16 @@ final class CoinShuffle {
             }
 
             // Some misbehavior that has occurred during the shuffle phase.
-            private Matrix blameShuffleMisbehavior(DecryptionKey dk) throws InterruptedException, FormatException, ValueException, ProtocolException, BlameException {
-                // First skip to phase 4 and do an equivocation check.
-                phase = Phase.EquivocationCheck;
-                Matrix matrix = equivocationCheck(encryptionKeys, vk);
+            private Matrix blameShuffleMisbehavior(DecryptionKey dk) throws InterruptedException, FormatException, ValueException, ProtocolException {
+                // First skip to phase 4 and do an equivocation check. Others may already be
+                // sending blame, so that doesn't stop the check this time.
+                setPhase(Phase.EquivocationCheck);
+                Matrix matrix;
+                try {
+                    matrix = equivocationCheck(encryptionKeys, vk, false);
+                } catch (BlameException e) {
+                    throw new InvalidImplementationError();
+                }
 
                 // If we get a blame matrix back, that means that the culprit was found.
                 if (matrix != null) {
@@ -449,7 +818,7 @@ final class CoinShuffle {
                 }
 
                 // Otherwise, there are some more things we have to check.
-                phase = Phase.Blame;
+                setPhase(Phase.Blame);
 
                 // Collect all packets from phase 2 and 3.
                 Message blameMessage = messages.make();
@@ -457,7 +826,7 @@ final class CoinShuffle {
                 evidence.addAll(mailbox.getPacketsByPhase(Phase.BroadcastOutput));
 
                 // Send them all with the decryption key.
-                blameMessage.attach(Blame.ShuffleAndEquivocationFailure(dk, evidence));
+                blameMessage.attach(raise(Blame.ShuffleAndEquivocationFailure(dk, evidence)));
                 mailbox.broadcast(blameMessage, phase);
 
                 return fillBlameMatrix(new Matrix());
@@ -481,8 +850,8 @@ final class CoinShuffle {
                 // The encryption keys history from every player to every other.
                 Map<VerificationKey, Map<VerificationKey, EncryptionKey>> sentKeys = new HashMap<>();
 
-                // The list of messages history in phase 2.
-                Map<VerificationKey, Message> shuffleMessages = new HashMap<>();
+                // The packets sent in phase 2 by each player.
+                Map<VerificationKey, List<Packet>> shuffleMessages = new HashMap<>();
 
                 // The set of decryption keys from each player.
                 Map<VerificationKey, DecryptionKey> decryptionKeys = new HashMap<>();
@@ -502,9 +871,15 @@ final class CoinShuffle {
                                     if (from.equals(vk)) {
                                         break; // Skip, this is mine.
                                     }
+                                    // The blame names an input, which must belong to someone.
+                                    VerificationKey accused = owner(blame.accused);
+                                    if (accused == null) {
+                                        matrix.put(vk, from, null /* TODO */);
+                                        break;
+                                    }
                                     // Do we already know about this? The evidence is not credible if we don't.
-                                    credible = matrix.blameExists(vk, blame.accused, Reason.NoFundsAtAll);
-                                    matrix.put(from, blame.accused,
+                                    credible = matrix.blameExists(vk, accused, Reason.NoFundsAtAll);
+                                    matrix.put(from, accused,
                                             new Evidence(Reason.NoFundsAtAll, credible));
                                     break;
                                 }
@@ -512,20 +887,21 @@ final class CoinShuffle {
                                     if (from.equals(vk)) {
                                         break; // Skip, this is mine.
                                     }
-                                    if (blame.t == null) {
+                                    VerificationKey accused = owner(blame.accused);
+                                    if (blame.t == null || accused == null) {
                                         matrix.put(vk, from, null /* TODO */);
                                         break;
                                     }
                                     // Is the evidence included sufficient?
                                     credible = coin.spendsFrom(blame.accused.address(), amount, blame.t);
-                                    matrix.put(from, blame.accused,
+                                    matrix.put(from, accused,
                                             new Evidence(Reason.InsufficientFunds, credible, blame.t));
                                     break;
                                 }
                                 case EquivocationFailure: {
                                     // These are the keys received by everyone in the announcement phase.
                                     Map<VerificationKey, EncryptionKey> receivedKeys = new HashMap<>();
-                                    fillBlameMatrixCollectHistory(vk, from, blame.packets, matrix, outputVectors, shuffleMessages, receivedKeys, sentKeys);
+                                    fillBlameMatrixCollectHistory(vk, from, players.get(N), blame.packets, matrix, outputVectors, shuffleMessages, receivedKeys, sentKeys, verified);
 
                                     // Check on whether this player correctly reported the hash that he did.
                                     Message equivocationCheck = messages.make();
@@ -545,21 +921,22 @@ final class CoinShuffle {
 
                                     break;
                                 }
-                                case ShuffleFailure: {
-                                    break; // Should have already been handled.
+                                case ShuffleFailure:
+                                case MissingOutput: {
+                                    break; // Worked out from the shuffle itself below.
                                 }
                                 case ShuffleAndEquivocationFailure: {
-                                    if (decryptionKeys.containsKey(from)) {
-                                        // TODO blame someone here.
-                                    }
-                                    decryptionKeys.put(from, blame.privateKey);
-
-                                    // Check that the decryption key is valid.
-                                    if (!blame.privateKey.EncryptionKey().equals(encryptionKeys.get(from))) {
-                                        // TODO blame someone here.
+                                    // Player 1 has no key to reveal.
+                                    if (blame.privateKey != null) {
+                                        // Check that the decryption key is valid.
+                                        if (!blame.privateKey.EncryptionKey().equals(encryptionKeys.get(from))) {
+                                            matrix.put(vk, from, null /* TODO */);
+                                        } else {
+                                            decryptionKeys.put(from, blame.privateKey);
+                                        }
                                     }
 
-                                    fillBlameMatrixCollectHistory(vk, from, blame.packets, matrix, outputVectors, shuffleMessages, new HashMap<VerificationKey, EncryptionKey>(), sentKeys);
+                                    fillBlameMatrixCollectHistory(vk, from, players.get(N), blame.packets, matrix, outputVectors, shuffleMessages, new HashMap<VerificationKey, EncryptionKey>(), sentKeys, verified);
 
                                     break;
                                 }
@@ -567,9 +944,14 @@ final class CoinShuffle {
                                     if (from.equals(vk)) {
                                         break; // Skip, this is mine.
                                     }
+                                    VerificationKey accused = owner(blame.accused);
+                                    if (accused == null) {
+                                        matrix.put(vk, from, null /* TODO */);
+                                        break;
+                                    }
                                     // Is the evidence included sufficient?
                                     credible = coin.spendsFrom(blame.accused.address(), amount, blame.t);
-                                    matrix.put(from, blame.accused,
+                                    matrix.put(from, accused,
                                             Evidence.DoubleSpend(credible, blame.t));
                                     break;
                                 }
@@ -583,8 +965,8 @@ final class CoinShuffle {
                                     }
                                     for (Map.Entry<VerificationKey, Signature> invalid : blame.invalid.entrySet()) {
                                         // Is the evidence included sufficient?
-                                        credible = t != null && !invalid.getKey().verify(t, invalid.getValue());
-                                        matrix.put(from, blame.accused,
+                                        credible = t != null && !verified.verify(invalid.getKey(), t, invalid.getValue());
+                                        matrix.put(from, owner(invalid.getKey()),
                                                 Evidence.InvalidSignature(credible, invalid.getValue()));
                                     }
                                     break;
@@ -607,14 +989,53 @@ final class CoinShuffle {
                     }
 
                     List<Message> outputMessages = new LinkedList<>();
-                    for (Packet packet : outputVectors.values()) {
-                        outputMessages.add(packet.message);
+                    Map<VerificationKey, Message> chunks = new HashMap<>();
+                    for (Map.Entry<VerificationKey, Packet> output : outputVectors.entrySet()) {
+                        if (!digests()) {
+                            outputMessages.add(output.getValue().message);
+                            continue;
+                        }
+
+                        // Everyone received a different chunk, but they should all have the same digest.
+                        VerificationKey from = output.getKey();
+                        Message digest = output.getValue().message.copy();
+                        Message chunk;
+                        try {
+                            chunk = readChunk(digest, position(from));
+                        } catch (FormatException e) {
+                            // The last player signed something that isn't a whole chunk.
+                            matrix.put(vk, players.get(N), Evidence.EquivocationFailureBroadcast(
+                                    Collections.singletonMap(from, output.getValue())));
+                            continue;
+                        }
+                        outputMessages.add(digest);
+                        chunks.put(from, chunk);
+
+                        // Did this player pass on the chunk he was given?
+                        for (SignedPacket forwarded : mailbox.getPacketsByPhase(Phase.BroadcastOutput)) {
+                            if (forwarded.packet.signer.equals(from) && !forwarded.packet.message.equals(chunk)) {
+                                Map<VerificationKey, Packet> equivocation = new HashMap<>();
+                                equivocation.put(players.get(N), output.getValue());
+                                equivocation.put(from, forwarded.packet);
+                                matrix.put(vk, from, Evidence.EquivocationFailureBroadcast(equivocation));
+                            }
+                        }
                     }
 
                     // If they are not all equal, blame the last player for equivocating.
                     if (!areEqual(outputMessages)) {
                         matrix.put(vk, players.get(N),
                                 Evidence.EquivocationFailureBroadcast(outputVectors));
+                    } else if (chunks.size() == N - 1) {
+                        // The last player signed every chunk, so they had better add up to the digest.
+                        Message vector = messages.make();
+                        for (int i = 1; i < N; i++) {
+                            vector.attach(chunks.get(players.get(i)));
+                        }
+                        if (!crypto.hash(vector).equals(outputMessages.get(0))) {
+                            matrix.put(vk, players.get(N),
+                                    Evidence.EquivocationFailureBroadcast(outputVectors));
+                        }
                     }
                 }
 
@@ -657,50 +1078,103 @@ final class CoinShuffle {
                 }
 
                 if (decryptionKeys.size() > 0) {
-                    // We should have one decryption key for every player except the first.
-                    Set<VerificationKey> leftover = playerSet(1, players.size() - 1);
-                    leftover.removeAll(outputVectors.keySet());
-                    if (leftover.size() > 0) {
-                        log.warn("leftover");
-                        // TODO blame someone.
-                    } else {
-                        SortedSet<Address> outputs = new TreeSet<>();
+                    blameShuffle(matrix, decryptionKeys, shuffleMessages, outputVectors);
+                }
 
-                        for (int i = 2; i < players.size(); i++) {
-                            Message message = shuffleMessages.get(players.get(i));
+                return matrix;
+            }
 
-                            // Grab the correct number of addresses and decrypt them.
-                            SortedSet<Address> addresses = new TreeSet<>();
-                            for (int j = 0; j < i - 2; j++) {
-                                Address address = message.readAddress();
-                                if (address == null) {
-                                    // TODO blame someone.
-                                }
-                                for (int k = players.size(); k >= 2; k--) {
-                                    address = decryptionKeys.get(players.get(i)).decrypt(address);
-                                }
-                                addresses.add(address);
-                            }
+            // Once everyone has revealed his decryption key, whatever each player sent in phase 2
+            // can be decrypted all the way. Everyone should have passed on every address he was
+            // given along with his own, so the first player who didn't is the one to blame.
+            void blameShuffle(
+                    Matrix matrix,
+                    Map<VerificationKey, DecryptionKey> decryptionKeys,
+                    Map<VerificationKey, List<Packet>> shuffleMessages,
+                    Map<VerificationKey, Packet> outputVectors) {
+
+                // Nothing can be decrypted without the keys of everyone after player 1.
+                for (int i = 2; i <= N; i++) {
+                    if (!decryptionKeys.containsKey(players.get(i))) {
+                        return;
+                    }
+                }
 
-                            if (addresses.size() != i - 1) {
-                                // TODO blame someone.
-                            }
+                Set<Address> previous = Collections.emptySet();
+                for (int i = 1; i <= N; i++) {
+                    VerificationKey player = players.get(i);
+
+                    // The last player's output is what he broadcast in phase 3. If he sent
+                    // different outputs to different players, he has already been blamed for it.
+                    List<Packet> sent = shuffleMessages.get(player);
+                    if (i == N) {
+                        if (digests() || outputVectors.isEmpty()) {
+                            return;
+                        }
+                        sent = Collections.singletonList(outputVectors.values().iterator().next());
+                    }
 
-                            addresses.removeAll(outputs);
+                    List<VerificationKey> layers = new LinkedList<>();
+                    for (int j = i + 1; j <= N; j++) {
+                        layers.add(players.get(j));
+                    }
 
-                            if (addresses.size() != 1) {
-                                // TODO blame someone.
-                            }
+                    Set<Address> addresses = decryptSent(sent, layers, decryptionKeys, i * k);
+                    if (addresses == null || !addresses.containsAll(previous)) {
+                        matrix.put(vk, player, Evidence.ShuffleAndEquivocationFailure());
+                        return;
+                    }
 
-                            outputs.add(addresses.first());
-                        }
+                    previous = addresses;
+                }
+            }
+
+            // Remove the layers of encryption of the given players, outermost first, from the
+            // addresses in the packets that a player sent in phase 2. Returns null unless there
+            // are exactly as many as expected and they are all different.
+            Set<Address> decryptSent(
+                    List<Packet> sent,
+                    List<VerificationKey> layers,
+                    Map<VerificationKey, DecryptionKey> decryptionKeys,
+                    int expected) {
 
-                        // We should not have been able to get this far.
-                        // TODO Blame someone!
+                if (sent == null) {
+                    return null;
+                }
+
+                Set<Address> addresses = new HashSet<>();
+                int count = 0;
+                try {
+                    for (Packet packet : sent) {
+                        Message message = packet.message.copy();
+                        while (!message.isEmpty()) {
+                            Address address = message.readAddress();
+                            for (VerificationKey layer : layers) {
+                                address = decryptionKeys.get(layer).decrypt(address);
+                            }
+                            addresses.add(address);
+                            count++;
+                        }
                     }
+                } catch (FormatException | CryptographyError e) {
+                    return null;
                 }
 
-                return matrix;
+                if (count != expected || addresses.size() != count) {
+                    return null;
+                }
+
+                return addresses;
+            }
+
+            // The position of a player in this round, or -1 if he isn't in it.
+            int position(VerificationKey player) {
+                for (int i = 1; i <= N; i++) {
+                    if (players.get(i).equals(player)) {
+                        return i;
+                    }
+                }
+                return -1;
             }
 
             // Get the set of players from i to N.
@@ -748,15 +1222,484 @@ final class CoinShuffle {
             }
         }
 
-        // Run the protocol. This function manages retries and (nonmalicious) error cases.
-        // The core loop is in the function protocolDefinition above.
+        // A round in which the new addresses are mixed in a DC-net rather than passed from one
+        // player to the next. Everybody broadcasts at the same time in every phase, so the round
+        // takes the same number of steps however many players there are. (see DiceMix)
+        class DiceMixRound extends Round {
+            final DiceMix.Codec codec;
+
+            final int M; // The number of new addresses in the round.
+
+            DiceMixRound(Map<Integer, VerificationKey> players, Address change, Mailbox mailbox, DiceMix.Codec codec) throws InvalidParticipantSetException {
+                super(players, change, mailbox);
+                this.codec = codec;
+                this.M = N * k;
+            }
+
+            // Everyone shares a secret with everyone else, so everyone needs a key.
+            @Override
+            int firstKey() {
+                return 1;
+            }
+
+            @Override
+            Matrix mix(DecryptionKey dk) throws FormatException, CryptographyError,
+                    InvalidImplementationError, ValueException, InterruptedException, ProtocolException {
+
+                try {
+                    // Phase 4: equivocation check.
+                    // This comes first because if anyone sent different keys to different players,
+                    // the secrets computed from them would not cancel out.
+                    setPhase(Phase.EquivocationCheck);
+
+                    Matrix matrix = equivocationCheck(encryptionKeys, vk, true);
+                    if (matrix != null) {
+                        return matrix;
+                    }
+
+                    // Phase 2: commit.
+                    // Everyone chooses new addresses and works out what to broadcast in the DC-net,
+                    // but only sends a hash of it at first so that nobody can choose what to send
+                    // after seeing what the others sent.
+                    setPhase(Phase.Shuffling);
+
+                    List<Address> addrs_new = new LinkedList<>();
+                    List<BigInteger> encoded = new LinkedList<>();
+                    for (int i = 0; i < k; i++) {
+                        Address address = crypto.makeSigningKey().VerificationKey().address();
+                        addrs_new.add(address);
+                        encoded.add(codec.encode(address));
+                    }
+
+                    BigInteger[] vector = DiceMix.powerSums(encoded, M);
+                    for (int i = 1; i <= N; i++) {
+                        if (i != me) {
+                            // Of each pair of players, the first adds the pad and the second subtracts it.
+                            DiceMix.add(vector, pad(dk, players.get(i)), i < me);
+                        }
+                    }
+
+                    Message dcnet = messages.make();
+                    for (BigInteger x : vector) {
+                        dcnet.attach(x);
+                    }
+
+                    mailbox.broadcast(crypto.hash(dcnet), phase);
+                    Map<VerificationKey, Message> commitments = mailbox.receiveFromMultiple(playerSet(1, N), phase, true);
+
+                    // Phase 3: broadcast outputs.
+                    // Everyone broadcasts his part of the DC-net. Adding them all up leaves the
+                    // power sums of everyone's new addresses, from which the addresses are found.
+                    setPhase(Phase.BroadcastOutput);
+
+                    mailbox.broadcast(dcnet, phase);
+                    Map<VerificationKey, Message> vectors = mailbox.receiveFromMultiple(playerSet(1, N), phase, true);
+
+                    BigInteger[] sum = vector.clone();
+                    for (Map.Entry<VerificationKey, Message> entry : vectors.entrySet()) {
+                        BigInteger[] next = readVector(entry.getValue());
+                        if (next == null || !crypto.hash(entry.getValue()).equals(commitments.get(entry.getKey()))) {
+                            return blameDisruption(dk);
+                        }
+                        DiceMix.add(sum, next, false);
+                    }
+
+                    // The addresses come out in numerical order, which says nothing about who owns them.
+                    List<BigInteger> solution = DiceMix.solve(sum);
+                    if (solution == null) {
+                        return blameDisruption(dk);
+                    }
+
+                    newAddresses = new LinkedList<>();
+                    for (BigInteger x : solution) {
+                        try {
+                            newAddresses.add(codec.decode(x));
+                        } catch (FormatException e) {
+                            return blameDisruption(dk);
+                        }
+                    }
+
+                    if (!newAddresses.containsAll(addrs_new)) {
+                        return blameDisruption(dk);
+                    }
+
+                    return null;
+                } catch (BlameException e) {
+                    // Someone else thinks the DC-net was disrupted.
+                    return blameDisruption(dk);
+                }
+            }
+
+            // The pad shared with another player.
+            BigInteger[] pad(DecryptionKey dk, VerificationKey other) {
+                return DiceMix.pad(codec.sharedSecret(dk, encryptionKeys.get(other)), M);
+            }
+
+            // Read what a player broadcast in the DC-net. (null if it isn't the right length)
+            BigInteger[] readVector(Message message) throws InvalidImplementationError {
+                Message copy = message.copy();
+                BigInteger[] vector = new BigInteger[M];
+                try {
+                    for (int i = 0; i < M; i++) {
+                        vector[i] = copy.readNumber();
+                        if (vector[i].signum() < 0 || vector[i].compareTo(DiceMix.P) >= 0) {
+                            return null;
+                        }
+                    }
+                } catch (FormatException e) {
+                    return null;
+                }
+
+                return copy.isEmpty() ? vector : null;
+            }
+
+            @Override
+            Matrix blameMix(DecryptionKey dk) throws InterruptedException, FormatException, ValueException {
+                return blameDisruption(dk);
+            }
+
+            // Nobody passes anything on in a DC-net. What each player put in is worked out in
+            // blameDisruption instead.
+            @Override
+            void blameShuffle(
+                    Matrix matrix,
+                    Map<VerificationKey, DecryptionKey> decryptionKeys,
+                    Map<VerificationKey, List<Packet>> shuffleMessages,
+                    Map<VerificationKey, Packet> outputVectors) {
+            }
+
+            // Something went wrong in the DC-net. Everyone reveals his key so that everyone can
+            // work out what each player put in without the pads, and then the player who put in
+            // something other than the power sums of his addresses can be found.
+            private Matrix blameDisruption(DecryptionKey dk) throws InterruptedException, FormatException, ValueException {
+                setPhase(Phase.Blame);
+
+                List<SignedPacket> evidence = mailbox.getPacketsByPhase(Phase.BroadcastOutput);
+                mailbox.broadcast(messages.make().attach(raise(Blame.ShuffleAndEquivocationFailure(dk, evidence))), phase);
+                mailbox.receiveAllBlame();
+
+                Map<VerificationKey, DecryptionKey> revealed = new HashMap<>();
+                for (SignedPacket packet : mailbox.getPacketsByPhase(Phase.Blame)) {
+                    Message message = packet.packet.message.copy();
+                    while (!message.isEmpty()) {
+                        Blame blame = message.readBlame();
+                        if (blame.privateKey != null) {
+                            revealed.put(packet.packet.signer, blame.privateKey);
+                        }
+                    }
+                }
+
+                Map<VerificationKey, Message> commitments = new HashMap<>();
+                for (SignedPacket packet : mailbox.getPacketsByPhase(Phase.Shuffling)) {
+                    commitments.put(packet.packet.signer, packet.packet.message);
+                }
+
+                Map<VerificationKey, Message> vectors = new HashMap<>();
+                for (SignedPacket packet : mailbox.getPacketsByPhase(Phase.BroadcastOutput)) {
+                    vectors.put(packet.packet.signer, packet.packet.message);
+                }
+
+                Matrix matrix = new Matrix();
+
+                // If the DC-net never got that far, there is nothing to check.
+                if (vectors.size() < N) {
+                    return matrix;
+                }
+
+                for (int i = 1; i <= N; i++) {
+                    VerificationKey player = players.get(i);
+                    if (player.equals(vk)) {
+                        continue;
+                    }
+
+                    // A player who does not reveal the key he announced has something to hide.
+                    DecryptionKey key = revealed.get(player);
+                    if (key == null || !key.EncryptionKey().equals(encryptionKeys.get(player))) {
+                        matrix.put(vk, player, new Evidence(Reason.ShuffleFailure, true));
+                        continue;
+                    }
+
+                    Message message = vectors.get(player);
+                    BigInteger[] cleartext = readVector(message);
+                    if (cleartext == null || !crypto.hash(message).equals(commitments.get(player))) {
+                        matrix.put(vk, player, new Evidence(Reason.ShuffleFailure, true));
+                        continue;
+                    }
+
+                    // Take away his pads.
+                    for (int j = 1; j <= N; j++) {
+                        if (j != i) {
+                            DiceMix.add(cleartext, DiceMix.pad(codec.sharedSecret(key, encryptionKeys.get(players.get(j))), M), j > i);
+                        }
+                    }
+
+                    if (!DiceMix.valid(cleartext, k)) {
+                        matrix.put(vk, player, new Evidence(Reason.ShuffleFailure, true));
+                    }
+                }
+
+                return matrix;
+            }
+        }
+
+        // A round for very large numbers of players, who are split into groups of consecutive
+        // players. Every group shuffles its own addresses as in the sequential shuffle, all at
+        // the same time, and then the last players of the groups shuffle everything together in
+        // a second ring. With G groups, a round takes about N / G + G steps rather than N. The
+        // addresses are encrypted for the second ring underneath the encryption for the group,
+        // so nobody can tell which group an address came from unless everyone in the second
+        // ring is dishonest.
+        class CascadeRound extends Round {
+            final int G; // The number of groups.
+
+            CascadeRound(Map<Integer, VerificationKey> players, Address change, Mailbox mailbox, int G) throws InvalidParticipantSetException {
+                super(players, change, mailbox);
+                if (G < 1 || G > N) {
+                    throw new IllegalArgumentException();
+                }
+                this.G = G;
+            }
+
+            // The first player in group g. The groups differ in size by at most one.
+            int first(int g) {
+                return (int)((long)(g - 1) * N / G) + 1;
+            }
+
+            // The last player in group g, who is the one that takes part in the second ring.
+            int last(int g) {
+                return first(g + 1) - 1;
+            }
+
+            int group(int i) {
+                int g = 1;
+                while (i > last(g)) {
+                    g++;
+                }
+                return g;
+            }
+
+            // The packets that a player sent to one other player in phase 2. (null if none)
+            List<Packet> sentTo(List<Packet> sent, VerificationKey to) {
+                if (sent == null) {
+                    return null;
+                }
+
+                List<Packet> packets = new LinkedList<>();
+                for (Packet packet : sent) {
+                    if (to.equals(packet.recipient)) {
+                        packets.add(packet);
+                    }
+                }
+                return packets.isEmpty() ? null : packets;
+            }
+
+            // The same as for the sequential shuffle, except that the addresses go through the
+            // groups first and the second ring after, so the layers come off in a different order.
+            @Override
+            void blameShuffle(
+                    Matrix matrix,
+                    Map<VerificationKey, DecryptionKey> decryptionKeys,
+                    Map<VerificationKey, List<Packet>> shuffleMessages,
+                    Map<VerificationKey, Packet> outputVectors) {
+
+                // Everyone has a layer in the cascade.
+                for (int i = 1; i <= N; i++) {
+                    if (!decryptionKeys.containsKey(players.get(i))) {
+                        return;
+                    }
+                }
+
+                // The last player of each group has a layer in the second ring.
+                List<VerificationKey> ring = new LinkedList<>();
+                for (int h = 1; h <= G; h++) {
+                    ring.add(players.get(last(h)));
+                }
+
+                // Everything that should go into the second ring.
+                Set<Address> groups = new HashSet<>();
+
+                // The groups shuffle at the same time, so whoever noticed that something went wrong
+                // may not have heard from everyone in the other groups yet. Someone who hasn't
+                // sent anything isn't to blame here, but then the second ring can't be checked.
+                boolean complete = true;
+
+                for (int g = 1; g <= G; g++) {
+                    Set<Address> previous = Collections.emptySet();
+                    for (int i = first(g); i <= last(g); i++) {
+                        VerificationKey player = players.get(i);
+
+                        // The last player of the first group starts the second ring with
+                        // what his group gave him, so he has nothing to send yet.
+                        if (i == last(1)) {
+                            break;
+                        }
+
+                        // Everyone else passes it on in the group, except the last player, who
+                        // sends the group's output to the last player of the first group.
+                        List<VerificationKey> layers = new LinkedList<>();
+                        VerificationKey to = players.get(last(1));
+                        if (i != last(g)) {
+                            to = players.get(i + 1);
+                            for (int j = i + 1; j <= last(g); j++) {
+                                layers.add(players.get(j));
+                            }
+                        }
+                        layers.addAll(ring);
+
+                        List<Packet> sent = sentTo(shuffleMessages.get(player), to);
+                        if (sent == null) {
+                            complete = false;
+                            break;
+                        }
+
+                        Set<Address> addresses = decryptSent(sent, layers, decryptionKeys, (i - first(g) + 1) * k);
+                        if (addresses == null || !addresses.containsAll(previous)) {
+                            matrix.put(vk, player, Evidence.ShuffleAndEquivocationFailure());
+                            return;
+                        }
+
+                        previous = addresses;
+                    }
+                    groups.addAll(previous);
+                }
+
+                if (!complete) {
+                    return;
+                }
+
+                // Then the second ring, each of whose players should have passed on all of it.
+                Set<Address> previous = groups;
+                for (int h = 1; h <= G; h++) {
+                    VerificationKey player = players.get(last(h));
+
+                    // As in the sequential shuffle, the last player's output is what he broadcast.
+                    List<Packet> sent;
+                    if (h == G) {
+                        if (digests() || outputVectors.isEmpty()) {
+                            return;
+                        }
+                        sent = Collections.singletonList(outputVectors.values().iterator().next());
+                    } else {
+                        sent = sentTo(shuffleMessages.get(player), players.get(last(h + 1)));
+                        if (sent == null) {
+                            return;
+                        }
+                    }
+
+                    Set<Address> addresses = decryptSent(sent, ring.subList(h, G), decryptionKeys, N * k);
+                    if (addresses == null || !addresses.containsAll(previous)) {
+                        matrix.put(vk, player, Evidence.ShuffleAndEquivocationFailure());
+                        return;
+                    }
+
+                    previous = addresses;
+                }
+            }
+
+            // Everyone announces a key, since the first player of a group is also the last
+            // if he is the only one in it.
+            @Override
+            int firstKey() {
+                return 1;
+            }
+
+            @Override
+            Message passAround(DecryptionKey dk, List<Address> addrs_new) throws FormatException, CryptographyError,
+                    InvalidImplementationError, ValueException, InterruptedException, BlameException {
+
+                int g = group(me);
+
+                // First the group shuffles on its own.
+                Message shuffled = messages.make();
+                if (me != first(g)) {
+                    Decryption decryption = new Decryption(dk, (me - first(g)) * k);
+                    mailbox.receiveFrames(players.get(me - 1), phase, decryption);
+                    shuffled = decryption.result();
+                    if (shuffled == null) {
+                        return null;
+                    }
+                }
+
+                // Our addresses are encrypted for the second ring, in reverse order, and then
+                // for the players in our group who haven't had their turn yet.
+                for (Address addr_new : addrs_new) {
+                    Address encrypted = addr_new;
+                    for (int h = G; h >= 1; h--) {
+                        encrypted = encryptionKeys.get(players.get(last(h))).encrypt(encrypted);
+                    }
+                    shuffled.attach(encrypt(encrypted, last(g), me));
+                }
+
+                shuffled = shuffle(shuffled, crypto);
+
+                if (me != last(g)) {
+                    sendFrames(shuffled, players.get(me + 1));
+                    return shuffled;
+                }
+
+                // Now the second ring. Its first player collects the outputs of all the groups.
+                Message mixed;
+                if (g == 1) {
+                    mixed = decryptAll(shuffled, dk, last(1) * k);
+                    for (int h = 2; h <= G && mixed != null; h++) {
+                        Decryption decryption = new Decryption(dk, (last(h) - first(h) + 1) * k);
+                        mailbox.receiveFrames(players.get(last(h)), phase, decryption);
+                        Message output = decryption.result();
+                        mixed = output == null ? null : mixed.attach(output);
+                    }
+                } else {
+                    sendFrames(shuffled, players.get(last(1)));
+
+                    Decryption decryption = new Decryption(dk, N * k);
+                    mailbox.receiveFrames(players.get(last(g - 1)), phase, decryption);
+                    mixed = decryption.result();
+                }
+
+                if (mixed == null) {
+                    return null;
+                }
+
+                mixed = shuffle(mixed, crypto);
+
+                // The last player in the last group is player N, who ends up with the result.
+                if (g != G) {
+                    sendFrames(mixed, players.get(last(g + 1)));
+                }
+
+                return mixed;
+            }
+        }
+
+        // Run the protocol and tell the listener, if there is one, how it went. The listener
+        // is told exactly once, however the machine stops.
         ReturnState run(Network network) throws InvalidImplementationError, InterruptedException {
+            ReturnState result = null;
+            try {
+                result = play(network);
+                return result;
+            } catch (Throwable e) {
+                result = new ReturnState(false, session, currentPhase(), e, null);
+                throw e;
+            } finally {
+                if (notifier != null) {
+                    notifier.completed(result);
+                }
+            }
+        }
+
+        // This function manages retries and (nonmalicious) error cases.
+        // The core loop is in the function protocolDefinition above.
+        private ReturnState play(Network network) throws InvalidImplementationError, InterruptedException {
 
             // Don't let the protocol be run more than once at a time.
             if (phase != Phase.Uninitiated) {
                 return new ReturnState(false, session, currentPhase(), new ProtocolStartedException(), null);
             }
 
+            if (network instanceof Trace.Recorder.Recording) {
+                trace = ((Trace.Recorder.Recording) network).recorder();
+            }
+
             int attempt = 0;
 
             // The eliminated players. A player is eliminated when there is a subset of players
@@ -783,7 +1726,12 @@ final class CoinShuffle {
                     }
 
                     // Make an inbox for the next round.
-                    Mailbox mailbox = new Mailbox(session, sk, numberedPlayers.values(), network);
+                    Mailbox mailbox = new Mailbox(session, sk, numberedPlayers.values(), network, timeouts, journal, notifier, verified);
+
+                    // If we have restarted, the others may have sent us something while we were down.
+                    if (journal != null && journal.replaying()) {
+                        mailbox.requestResend(messages.make());
+                    }
 
                     // Send an introductory message and make sure all players agree on who is in
                     // this round of the protocol.
@@ -791,7 +1739,17 @@ final class CoinShuffle {
 
                     // Run the protocol.
                     try {
-                        blame = new Round(numberedPlayers, change, mailbox).protocolDefinition();
+                        Round round;
+                        if (dicemix != null) {
+                            round = new DiceMixRound(numberedPlayers, change, mailbox, dicemix);
+                        } else if (numberedPlayers.size() > groupSize) {
+                            // Round up, so that no group is larger than groupSize.
+                            int groups = (numberedPlayers.size() + groupSize - 1) / groupSize;
+                            round = new CascadeRound(numberedPlayers, change, mailbox, groups);
+                        } else {
+                            round = new Round(numberedPlayers, change, mailbox);
+                        }
+                        blame = round.protocolDefinition();
                     } catch (TimeoutError e) {
                         // TODO We have to go into "suspect" mode at this point to determine why the timeout occurred.
                         log.warn("player " + sk.toString() + " received a time out: ", e);
@@ -802,7 +1760,7 @@ final class CoinShuffle {
 
                     if (endPhase != Phase.Blame) {
                         // The protocol was successful, so return.
-                        return new ReturnState(true, session, endPhase, null, null);
+                        return new ReturnState(true, session, endPhase, null, null, submission);
                     }
 
                     attempt++;
@@ -812,7 +1770,7 @@ final class CoinShuffle {
                     }
 
                     // Eliminate malicious players if possible and try again.
-                    phase = Phase.Uninitiated;
+                    setPhase(Phase.Uninitiated);
 
                     break; // TODO remove this line.
                     // TODO
@@ -852,9 +1810,10 @@ final class CoinShuffle {
                 SortedSet<VerificationKey> players,
                 Address change,
                 int maxRetries,
-                int minPlayers) {
+                int minPlayers,
+                SessionOptions options) {
 
-            if (session == null || sk == null || players == null) {
+            if (session == null || sk == null || players == null || options == null) {
                 throw new NullPointerException();
             }
 
@@ -862,6 +1821,9 @@ final class CoinShuffle {
                 throw new IllegalArgumentException();
             }
 
+            Map<VerificationKey, List<VerificationKey>> inputs = options.inputs;
+            List<SigningKey> inputKeys = options.inputKeys;
+
             this.session = session;
             this.amount = amount;
             this.sk = sk;
@@ -870,12 +1832,60 @@ final class CoinShuffle {
             this.change = change;
             this.maxRetries = maxRetries;
             this.minPlayers = minPlayers;
+            this.dicemix = options.dicemix;
             this.phase = Phase.Uninitiated;
+
+            // By default, each player contributes the one input corresponding to his key.
+            if (inputs == null) {
+                inputs = new HashMap<>();
+                for (VerificationKey player : players) {
+                    inputs.put(player, Collections.singletonList(player));
+                }
+                inputKeys = Collections.singletonList(sk);
+            }
+
+            this.k = inputKeys.size();
+            this.owners = new HashMap<>();
+            for (VerificationKey player : players) {
+                List<VerificationKey> in = inputs.get(player);
+                if (in == null || in.size() != k) {
+                    throw new IllegalArgumentException();
+                }
+
+                for (VerificationKey input : in) {
+                    // No input can be contributed twice.
+                    if (owners.put(input, player) != null) {
+                        throw new IllegalArgumentException();
+                    }
+                }
+            }
+
+            // The keys I was given must be the keys to the inputs everyone expects from me.
+            // (If I'm not a player at all, that is caught when the round begins.)
+            List<VerificationKey> mine = inputs.get(vk);
+            for (int i = 0; mine != null && i < k; i++) {
+                if (!mine.get(i).equals(inputKeys.get(i).VerificationKey())) {
+                    throw new IllegalArgumentException();
+                }
+            }
+
+            this.inputs = inputs;
+            this.inputKeys = inputKeys;
+
+            // If the journal already knows about this session, the machine replays it.
+            this.journal = CoinShuffle.this.journal == null ? null : CoinShuffle.this.journal.log(session);
+            this.crypto = journal == null ? CoinShuffle.this.crypto : journal.crypto(CoinShuffle.this.crypto);
+
+            this.notifier = options.listener == null ? null : new Notifier(session, options.listener, options.executor);
         }
     }
 
     // Algorithm to randomly shuffle the elements of a message.
     Message shuffle(Message message) throws CryptographyError, InvalidImplementationError, FormatException {
+        return shuffle(message, crypto);
+    }
+
+    Message shuffle(Message message, Crypto crypto) throws CryptographyError, InvalidImplementationError, FormatException {
         Message copy = message.copy();
         Message shuffled = messages.make();
 
@@ -940,16 +1950,19 @@ final class CoinShuffle {
     static void fillBlameMatrixCollectHistory(
             VerificationKey vk,
             VerificationKey from,
+            VerificationKey last, // The last player, who sends out the output vector.
             List<SignedPacket> packets,
             Matrix matrix,
             // The messages sent in the broadcast phase by the last player to all the other players.
             Map<VerificationKey, Packet> outputVectors,
-             // The list of messages history in phase 2.
-            Map<VerificationKey, Message> shuffleMessages,
+             // The packets sent in phase 2 by each player.
+            Map<VerificationKey, List<Packet>> shuffleMessages,
             // The keys received by everyone in the announcement phase.
             Map<VerificationKey, EncryptionKey> receivedKeys,
             // The keys sent by everyone in the announcement phase.
-            Map<VerificationKey, Map<VerificationKey, EncryptionKey>> sentKeys
+            Map<VerificationKey, Map<VerificationKey, EncryptionKey>> sentKeys,
+            // The signatures which have already been checked.
+            SignatureCache verified
     ) throws FormatException {
 
         if(packets == null) {
@@ -959,9 +1972,26 @@ final class CoinShuffle {
 
         // Collect all packets received in the appropriate place.
         for (SignedPacket received : packets) {
+            // Evidence that wasn't signed by the player it came from is worthless. Most of these
+            // packets have been seen before, so checking them again is usually free.
+            if (!verified.verify(received)) {
+                matrix.put(vk, from, null /* TODO */);
+                continue;
+            }
+
             Packet packet = received.packet;
             switch (packet.phase) {
                 case BroadcastOutput:
+                    // If the output vector was sent as a digest, the other players pass chunks of
+                    // it around in this phase too. Those are checked separately.
+                    if (!packet.signer.equals(last)) {
+                        break;
+                    }
+                    // What the last player says he sent proves nothing. What matters is what
+                    // the others received.
+                    if (from.equals(last)) {
+                        break;
+                    }
                     if (outputVectors.containsKey(from)) {
                         // We should only ever receive one such message from each player.
                         if (outputVectors.containsKey(from) && !outputVectors.get(from).equals(received.packet)) {
@@ -982,10 +2012,19 @@ final class CoinShuffle {
                     receivedKeys.put(packet.signer, key);
                     break;
                 case Shuffling:
-                    if (shuffleMessages.containsKey(from)) {
-                        // TODO blame someone here.
+                    // What a player says he sent proves nothing. What matters is what the next
+                    // player received, which may have come in several frames.
+                    if (!from.equals(packet.recipient)) {
+                        break;
+                    }
+                    List<Packet> sent = shuffleMessages.get(packet.signer);
+                    if (sent == null) {
+                        sent = new LinkedList<>();
+                        shuffleMessages.put(packet.signer, sent);
+                    }
+                    if (!sent.contains(packet)) {
+                        sent.add(packet);
                     }
-                    shuffleMessages.put(from, packet.message);
                     break;
                 default:
                     // TODO this case should never happen. It's not malicious but it's not allowed either.
@@ -996,19 +2035,18 @@ final class CoinShuffle {
 
     }
 
-    // Run the protocol without creating a new thread.
+    // Run the protocol without creating a new thread. If this session was interrupted by a restart
+    // and a journal was provided, then the machine picks up where it left off.
     public ReturnState run(
             SessionIdentifier session, // Unique session identifier.
-            long amount, // The amount to be shuffled per player.
+            long amount, // The amount to be shuffled per input.
             SigningKey sk, // The signing key of the current player.
             SortedSet<VerificationKey> players, // The set of players, sorted alphabetically by address.
             Address change, // Change address. (can be null)
             int maxRetries, // maximum number of rounds this protocol can go through.,
             int minPlayers, // Minimum number of players allowed for the protocol to continue.
             Network network, // The network that connects us to the other players.
-            // If this is not null, the machine is put in this queue so that another thread can
-            // query the phase as it runs.
-            LinkedBlockingQueue<ShuffleMachine> queue
+            SessionOptions options // Everything else about the session that has a default.
     ) throws InvalidImplementationError, InterruptedException {
         if (amount <= 0) {
             throw new IllegalArgumentException();
@@ -1016,23 +2054,124 @@ final class CoinShuffle {
         if (session == null || sk == null || players == null || change == null || network == null) {
             throw new NullPointerException();
         }
-        ShuffleMachine machine = new ShuffleMachine(session, amount, sk, players, change, maxRetries, minPlayers);
-        if (queue != null) {
-            queue.add(machine);
-        }
+        ShuffleMachine machine = new ShuffleMachine(session, amount, sk, players, change, maxRetries, minPlayers, options);
         return machine.run(network);
     }
 
+    // The settings shared by every session run with the same CoinShuffle. Anything which is not
+    // set keeps its default.
+    public static final class Options {
+        TimeoutPolicy timeouts = new TimeoutPolicy();
+        Journal journal = null;
+        int digestThreshold = Integer.MAX_VALUE;
+        int frameSize = Integer.MAX_VALUE;
+        int groupSize = Integer.MAX_VALUE;
+        Submitter submitter = null;
+
+        // Decides how long to wait for other players. Shared by all sessions.
+        public Options timeouts(TimeoutPolicy timeouts) {
+            if (timeouts == null) {
+                throw new NullPointerException();
+            }
+            this.timeouts = timeouts;
+            return this;
+        }
+
+        // Records sessions so that they can be resumed after a restart.
+        public Options journal(Journal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        // Rounds with at least this many players send out the output vector as a digest. Every
+        // player in a session must use the same value.
+        public Options digestThreshold(int digestThreshold) {
+            this.digestThreshold = digestThreshold;
+            return this;
+        }
+
+        // The most addresses to send in one packet in the shuffle phase.
+        public Options frameSize(int frameSize) {
+            if (frameSize < 1) {
+                throw new IllegalArgumentException();
+            }
+            this.frameSize = frameSize;
+            return this;
+        }
+
+        // Rounds with more players than this are split into groups which shuffle at the same
+        // time. A size near the square root of the number of players is fastest. Every player
+        // in a session must use the same value.
+        public Options groupSize(int groupSize) {
+            if (groupSize < 1) {
+                throw new IllegalArgumentException();
+            }
+            this.groupSize = groupSize;
+            return this;
+        }
+
+        // Sends the transaction in the background, so that the protocol doesn't wait for it.
+        public Options submitter(Submitter submitter) {
+            this.submitter = submitter;
+            return this;
+        }
+    }
+
+    // The settings of a single session which have defaults.
+    public static final class SessionOptions {
+        Map<VerificationKey, List<VerificationKey>> inputs = null;
+        List<SigningKey> inputKeys = null;
+        ShuffleListener listener = null;
+        Executor executor = null;
+        DiceMix.Codec dicemix = null;
+
+        // The inputs contributed by each player, and the keys to my own inputs in order. Everyone
+        // must have the same number. By default, each player contributes only the input
+        // belonging to his own key.
+        public SessionOptions inputs(Map<VerificationKey, List<VerificationKey>> inputs, List<SigningKey> inputKeys) {
+            if (inputs == null || inputKeys == null) {
+                throw new NullPointerException();
+            }
+            this.inputs = inputs;
+            this.inputKeys = inputKeys;
+            return this;
+        }
+
+        // Is told about the progress of the protocol. Its callbacks are run by the executor.
+        public SessionOptions listener(ShuffleListener listener, Executor executor) {
+            if (listener == null || executor == null) {
+                throw new NullPointerException();
+            }
+            this.listener = listener;
+            this.executor = executor;
+            return this;
+        }
+
+        // Use DiceMix rather than the sequential shuffle. Every player in the session must make
+        // the same choice.
+        public SessionOptions dicemix(DiceMix.Codec dicemix) {
+            this.dicemix = dicemix;
+            return this;
+        }
+    }
+
     public CoinShuffle(
             MessageFactory messages, // Object that knows how to create and copy messages.
             Crypto crypto, // Connects to the cryptography.
-            Coin coin // Connects us to the Bitcoin or other cryptocurrency netork.
+            Coin coin, // Connects us to the Bitcoin or other cryptocurrency netork.
+            Options options // Everything else, which has defaults.
     ) {
-        if (crypto == null || coin == null || messages == null) {
+        if (crypto == null || coin == null || messages == null || options == null) {
             throw new NullPointerException();
         }
         this.crypto = crypto;
         this.coin = coin;
         this.messages = messages;
+        this.timeouts = options.timeouts;
+        this.journal = options.journal;
+        this.digestThreshold = options.digestThreshold;
+        this.frameSize = options.frameSize;
+        this.groupSize = options.groupSize;
+        this.submitter = options.submitter;
     }
 }
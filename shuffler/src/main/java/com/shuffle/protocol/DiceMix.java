@@ -0,0 +1,308 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.EncryptionKey;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The arithmetic behind DiceMix, an alternative to the sequential shuffle in which every player
+ * broadcasts at the same time, so that a round takes the same number of steps no matter how many
+ * players there are.
+ * http://crypsys.mmci.uni-saarland.de/projects/FastDC/paper.pdf
+ *
+ * The players mix their new addresses in a DC-net. Each address is treated as a number x in a
+ * prime field, and each player broadcasts the sums of the powers x, x^2, ... x^M of his addresses,
+ * where M is the total number of addresses in the round. Every pair of players shares a secret
+ * from which both can compute the same stream of pseudorandom numbers. One adds it to what he
+ * broadcasts and the other subtracts it, so the streams cancel out when all the broadcasts are
+ * added together. What remains are the power sums of every address in the round, from which the
+ * addresses can be recovered without anyone being able to tell who put in which.
+ */
+public final class DiceMix {
+
+    // What DiceMix needs to know about keys and addresses that the rest of the protocol does not.
+    public interface Codec {
+        // A secret shared by the owner of the decryption key and the owner of the encryption key.
+        // Each must be able to compute the same secret with his own decryption key and the other's
+        // encryption key.
+        byte[] sharedSecret(DecryptionKey mine, EncryptionKey theirs) throws CryptographyError;
+
+        // An address as a number between 1 and DiceMix.P - 1.
+        BigInteger encode(Address address) throws FormatException;
+
+        Address decode(BigInteger number) throws FormatException;
+    }
+
+    // The order of the field, 2^255 - 19. It is large enough to hold an address.
+    static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+    private DiceMix() {}
+
+    // The sums of the first n powers of the given numbers.
+    static BigInteger[] powerSums(List<BigInteger> xs, int n) {
+        BigInteger[] sums = new BigInteger[n];
+        Arrays.fill(sums, BigInteger.ZERO);
+
+        for (BigInteger x : xs) {
+            BigInteger power = BigInteger.ONE;
+            for (int i = 0; i < n; i++) {
+                power = power.multiply(x).mod(P);
+                sums[i] = sums[i].add(power).mod(P);
+            }
+        }
+
+        return sums;
+    }
+
+    // A stream of n pseudorandom numbers which two players can both compute from the secret they share.
+    static BigInteger[] pad(byte[] secret, int n) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CryptographyError();
+        }
+
+        BigInteger[] pad = new BigInteger[n];
+        for (int i = 0; i < n; i++) {
+            // Twice as many bits as we need, so that the result is very nearly uniform.
+            byte[] bytes = new byte[64];
+            for (int half = 0; half < 2; half++) {
+                sha.update(secret);
+                sha.update(new byte[]{(byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i, (byte) half});
+                System.arraycopy(sha.digest(), 0, bytes, half * 32, 32);
+            }
+            pad[i] = new BigInteger(1, bytes).mod(P);
+        }
+
+        return pad;
+    }
+
+    // Add the second vector to the first, or subtract it.
+    static void add(BigInteger[] to, BigInteger[] vector, boolean subtract) {
+        for (int i = 0; i < to.length; i++) {
+            to[i] = (subtract ? to[i].subtract(vector[i]) : to[i].add(vector[i])).mod(P);
+        }
+    }
+
+    // Find the numbers with the given power sums. Returns null unless there are exactly as many
+    // different nonzero numbers as there are sums, which is what happens if two players chose the
+    // same address or if somebody broadcast something other than power sums.
+    static List<BigInteger> solve(BigInteger[] sums) {
+        int n = sums.length;
+
+        // Newton's identities give the elementary symmetric polynomials of the numbers
+        // from their power sums.
+        BigInteger[] e = new BigInteger[n + 1];
+        e[0] = BigInteger.ONE;
+        for (int j = 1; j <= n; j++) {
+            BigInteger x = BigInteger.ZERO;
+            for (int i = 1; i <= j; i++) {
+                BigInteger term = e[j - i].multiply(sums[i - 1]);
+                x = i % 2 == 1 ? x.add(term) : x.subtract(term);
+            }
+            e[j] = x.multiply(BigInteger.valueOf(j).modInverse(P)).mod(P);
+        }
+
+        // The numbers are the roots of the polynomial with these coefficients.
+        BigInteger[] f = new BigInteger[n + 1];
+        for (int j = 0; j <= n; j++) {
+            f[n - j] = j % 2 == 0 ? e[j] : e[j].negate().mod(P);
+        }
+
+        List<BigInteger> roots = new ArrayList<>();
+        if (!findRoots(f, roots)) {
+            return null;
+        }
+
+        // A repeated root is found as many times as it is repeated. Zero is not allowed
+        // because it contributes nothing to the sums, so it could stand for a missing number.
+        Collections.sort(roots);
+        if (n > 0 && roots.get(0).signum() == 0) {
+            return null;
+        }
+        for (int i = 1; i < n; i++) {
+            if (roots.get(i).equals(roots.get(i - 1))) {
+                return null;
+            }
+        }
+
+        return roots;
+    }
+
+    // Whether the given vector is the power sums of exactly k numbers.
+    static boolean valid(BigInteger[] sums, int k) {
+        if (sums.length < k) {
+            return false;
+        }
+
+        List<BigInteger> roots = solve(Arrays.copyOf(sums, k));
+        return roots != null && Arrays.equals(powerSums(roots, sums.length), sums);
+    }
+
+    // How many times to try to split a polynomial before deciding that it can't be done.
+    // A polynomial with distinct roots fails to split with probability about 1/2 each time.
+    private static final int ATTEMPTS = 48;
+
+    // Split a monic polynomial until it is in linear factors, and return whether that was possible.
+    // This is the algorithm of Cantor and Zassenhaus. For any a, about half the roots r are
+    // such that r + a is a square, and those are the roots of gcd(f, (x + a)^((P - 1)/2) - 1).
+    // A polynomial with a repeated root or with no roots in the field never splits completely.
+    private static boolean findRoots(BigInteger[] f, List<BigInteger> roots) {
+        int degree = f.length - 1;
+        if (degree == 0) {
+            return true;
+        }
+
+        if (degree == 1) {
+            roots.add(f[0].negate().mod(P));
+            return true;
+        }
+
+        BigInteger half = P.subtract(BigInteger.ONE).shiftRight(1);
+        for (long a = 0; a < ATTEMPTS; a++) {
+            BigInteger[] g = powMod(new BigInteger[]{BigInteger.valueOf(a), BigInteger.ONE}, half, f);
+            g = trim(subtract(g, new BigInteger[]{BigInteger.ONE}));
+            g = gcd(f, g);
+
+            if (g.length > 1 && g.length < f.length) {
+                return findRoots(g, roots) && findRoots(divide(f, g)[0], roots);
+            }
+        }
+
+        return false;
+    }
+
+    // Polynomials are arrays of coefficients, starting with the constant term.
+
+    private static BigInteger[] trim(BigInteger[] a) {
+        int length = a.length;
+        while (length > 0 && a[length - 1].signum() == 0) {
+            length--;
+        }
+        return length == a.length ? a : Arrays.copyOf(a, length);
+    }
+
+    private static BigInteger[] subtract(BigInteger[] a, BigInteger[] b) {
+        BigInteger[] c = new BigInteger[Math.max(a.length, b.length)];
+        for (int i = 0; i < c.length; i++) {
+            BigInteger x = i < a.length ? a[i] : BigInteger.ZERO;
+            BigInteger y = i < b.length ? b[i] : BigInteger.ZERO;
+            c[i] = x.subtract(y).mod(P);
+        }
+        return c;
+    }
+
+    // The product is not reduced, since it is always divided by something afterwards.
+    private static BigInteger[] multiply(BigInteger[] a, BigInteger[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return new BigInteger[]{};
+        }
+
+        BigInteger[] c = new BigInteger[a.length + b.length - 1];
+        Arrays.fill(c, BigInteger.ZERO);
+        for (int i = 0; i < a.length; i++) {
+            for (int j = 0; j < b.length; j++) {
+                c[i + j] = c[i + j].add(a[i].multiply(b[j]));
+            }
+        }
+        return c;
+    }
+
+    // Like multiply(a, a), but each cross term is only computed once.
+    private static BigInteger[] square(BigInteger[] a) {
+        if (a.length == 0) {
+            return a;
+        }
+
+        BigInteger[] c = new BigInteger[2 * a.length - 1];
+        Arrays.fill(c, BigInteger.ZERO);
+        for (int i = 0; i < a.length; i++) {
+            for (int j = i + 1; j < a.length; j++) {
+                c[i + j] = c[i + j].add(a[i].multiply(a[j]));
+            }
+        }
+        for (int i = 0; i < c.length; i++) {
+            c[i] = c[i].shiftLeft(1);
+        }
+        for (int i = 0; i < a.length; i++) {
+            c[2 * i] = c[2 * i].add(a[i].multiply(a[i]));
+        }
+        return c;
+    }
+
+    // The quotient and remainder of a divided by b. (b must not be zero) The coefficients
+    // of the remainder are only reduced at the end, which saves most of the work.
+    private static BigInteger[][] divide(BigInteger[] a, BigInteger[] b) {
+        a = trim(a);
+        b = trim(b);
+        int degree = b.length - 1;
+        BigInteger lead = b[degree];
+        BigInteger inverse = lead.equals(BigInteger.ONE) ? null : lead.modInverse(P);
+
+        BigInteger[] remainder = Arrays.copyOf(a, a.length);
+        BigInteger[] quotient = new BigInteger[Math.max(a.length - degree, 0)];
+        for (int i = quotient.length - 1; i >= 0; i--) {
+            BigInteger q = remainder[i + degree].mod(P);
+            if (inverse != null) {
+                q = q.multiply(inverse).mod(P);
+            }
+            quotient[i] = q;
+            remainder[i + degree] = BigInteger.ZERO;
+
+            if (q.signum() != 0) {
+                for (int j = 0; j < degree; j++) {
+                    remainder[i + j] = remainder[i + j].subtract(q.multiply(b[j]));
+                }
+            }
+        }
+
+        for (int i = 0; i < remainder.length; i++) {
+            remainder[i] = remainder[i].mod(P);
+        }
+
+        return new BigInteger[][]{trim(quotient), trim(remainder)};
+    }
+
+    private static BigInteger[] powMod(BigInteger[] base, BigInteger exponent, BigInteger[] f) {
+        BigInteger[] result = new BigInteger[]{BigInteger.ONE};
+        base = divide(base, f)[1];
+        for (int i = exponent.bitLength() - 1; i >= 0; i--) {
+            result = divide(square(result), f)[1];
+            if (exponent.testBit(i)) {
+                result = divide(multiply(result, base), f)[1];
+            }
+        }
+        return result;
+    }
+
+    private static BigInteger[] gcd(BigInteger[] a, BigInteger[] b) {
+        a = trim(a);
+        b = trim(b);
+        while (b.length > 0) {
+            BigInteger[] r = divide(a, b)[1];
+            a = b;
+            b = r;
+        }
+
+        // Make it monic, so that dividing by it is easier.
+        if (a.length > 0 && !a[a.length - 1].equals(BigInteger.ONE)) {
+            BigInteger inverse = a[a.length - 1].modInverse(P);
+            BigInteger[] monic = new BigInteger[a.length];
+            for (int i = 0; i < a.length; i++) {
+                monic[i] = a[i].multiply(inverse).mod(P);
+            }
+            return monic;
+        }
+        return a;
+    }
+}
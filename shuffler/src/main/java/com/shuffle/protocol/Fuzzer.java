@@ -0,0 +1,655 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.CoinNetworkError;
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Looks for bugs by running lots of random simulations with malicious players in them.
+ *
+ * A scenario says how much money each player has, whether he spends or double spends it, which
+ * of the Adversary's lies he tells, and how badly the network between the players behaves. The
+ * fuzzer makes up scenarios at random and runs each one deterministically, so that a scenario
+ * always does the same thing, and an Oracle looks at the results to decide whether something
+ * went wrong. Many scenarios run at once, one per core. When one fails, the fuzzer shrinks it by
+ * taking away players, lies and network trouble for as long as it keeps failing, so that what
+ * is reported is about as small as it can be.
+ */
+public final class Fuzzer {
+    private static Logger log = LogManager.getLogger(Fuzzer.class);
+
+    // Where the fuzzer gets the things that a simulation needs.
+    public interface Environment {
+        MessageFactory messages();
+        Crypto crypto(long seed);
+        Simulator.MockCoin coin(); // A new coin network for every simulation.
+        SessionIdentifier session(long seed);
+    }
+
+    // Decides whether a simulation went the way it should have.
+    public interface Oracle {
+        // Returns null if nothing went wrong, or else a description of what did. The players
+        // are in the same order as the scenario's roles.
+        String check(Scenario scenario, List<SigningKey> players, Map<SigningKey, ReturnState> results);
+    }
+
+    static final long AMOUNT = 17; // How much is shuffled.
+    static final long SPEND = 16; // How much a player spends when he spends his money.
+    static final long[] FUNDS = new long[]{20, 10, 0};
+
+    // What one player does.
+    public static final class Role {
+        final long funds;
+        final boolean spend; // Whether he spends his money before the shuffle.
+        final boolean doubleSpend; // Whether he spends it during the shuffle.
+        final int[] equivocateAnnouncement; // Who he lies to in the announcement phase.
+        final int[] equivocateOutputVector; // Who he lies to in the broadcast phase.
+        final int drop; // Which address he drops in the shuffle phase. (zero for none)
+        final int duplicate; // Which address he duplicates in its place. (zero for none)
+        final boolean replace; // Whether he replaces it with a new address instead.
+
+        Role(long funds, boolean spend, boolean doubleSpend,
+             int[] equivocateAnnouncement, int[] equivocateOutputVector,
+             int drop, int duplicate, boolean replace) {
+
+            if (funds < 0 || drop < 0 || duplicate < 0) {
+                throw new IllegalArgumentException();
+            }
+
+            // Nobody can spend money that he doesn't have, and he can only spend it once.
+            this.funds = funds;
+            this.spend = spend && funds >= SPEND;
+            this.doubleSpend = doubleSpend && !this.spend && funds >= SPEND;
+            this.equivocateAnnouncement = players(equivocateAnnouncement);
+            this.equivocateOutputVector = players(equivocateOutputVector);
+            this.drop = drop;
+            this.duplicate = drop == 0 || duplicate == drop || replace ? 0 : duplicate;
+            this.replace = replace && drop != 0;
+        }
+
+        // An honest player.
+        public Role() {
+            this(FUNDS[0], false, false, null, null, 0, 0, false);
+        }
+
+        private static int[] players(int[] players) {
+            if (players == null) {
+                return new int[]{};
+            }
+
+            int[] sorted = players.clone();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private static int[] within(int[] players, int n) {
+            int count = 0;
+            for (int p : players) {
+                if (p <= n) {
+                    count ++;
+                }
+            }
+            return Arrays.copyOf(players, count);
+        }
+
+        // The same role in a scenario with only n players.
+        Role within(int n) {
+            return new Role(funds, spend, doubleSpend,
+                    within(equivocateAnnouncement, n), within(equivocateOutputVector, n),
+                    drop > n ? 0 : drop, duplicate > n ? 0 : duplicate, replace);
+        }
+
+        public boolean lies() {
+            return equivocateAnnouncement.length > 0 || equivocateOutputVector.length > 0 || drop != 0;
+        }
+
+        public boolean honest() {
+            return funds >= AMOUNT && !spend && !doubleSpend && !lies();
+        }
+
+        // Simpler versions of this role, from the simplest.
+        List<Role> simpler() {
+            List<Role> simpler = new ArrayList<>();
+            if (honest()) {
+                return simpler;
+            }
+
+            simpler.add(new Role());
+            if (funds < FUNDS[0]) {
+                simpler.add(new Role(FUNDS[0], spend, doubleSpend, equivocateAnnouncement, equivocateOutputVector, drop, duplicate, replace));
+            }
+            if (spend || doubleSpend) {
+                simpler.add(new Role(funds, false, false, equivocateAnnouncement, equivocateOutputVector, drop, duplicate, replace));
+            }
+            if (equivocateAnnouncement.length > 0) {
+                simpler.add(new Role(funds, spend, doubleSpend, null, equivocateOutputVector, drop, duplicate, replace));
+            }
+            if (equivocateOutputVector.length > 0) {
+                simpler.add(new Role(funds, spend, doubleSpend, equivocateAnnouncement, null, drop, duplicate, replace));
+            }
+            if (drop != 0) {
+                simpler.add(new Role(funds, spend, doubleSpend, equivocateAnnouncement, equivocateOutputVector, 0, 0, false));
+            }
+            return simpler;
+        }
+
+        void apply(Simulator.InitialState init) {
+            init.player().initialFunds(funds);
+
+            if (spend) {
+                init.spend(SPEND);
+            } else if (doubleSpend) {
+                init.doubleSpend(SPEND);
+            }
+
+            if (equivocateAnnouncement.length > 0) {
+                init.equivocateAnnouncement(equivocateAnnouncement);
+            }
+
+            if (equivocateOutputVector.length > 0) {
+                init.equivocateOutputVector(equivocateOutputVector);
+            }
+
+            if (replace) {
+                init.replace(drop);
+            } else if (duplicate != 0) {
+                init.replace(drop, duplicate);
+            } else if (drop != 0) {
+                init.drop(drop);
+            }
+        }
+
+        @Override
+        public String toString() {
+            String str = "funds " + funds;
+
+            if (spend) {
+                str += ", spends " + SPEND;
+            }
+
+            if (doubleSpend) {
+                str += ", double spends " + SPEND;
+            }
+
+            if (equivocateAnnouncement.length > 0) {
+                str += ", equivocates announcement to " + Arrays.toString(equivocateAnnouncement);
+            }
+
+            if (equivocateOutputVector.length > 0) {
+                str += ", equivocates output vector to " + Arrays.toString(equivocateOutputVector);
+            }
+
+            if (replace) {
+                str += ", replaces address " + drop + " with a new one";
+            } else if (duplicate != 0) {
+                str += ", replaces address " + drop + " with address " + duplicate;
+            } else if (drop != 0) {
+                str += ", drops address " + drop;
+            }
+
+            return str;
+        }
+    }
+
+    // Everything needed to run a simulation again.
+    public static final class Scenario {
+        final long seed;
+        final List<Role> roles;
+        final long latency; // In milliseconds, between every pair of players.
+        final long jitter;
+        final double loss;
+        final int slow; // A player whose links are slower than the others. (zero for none)
+        final long delay; // How much slower.
+        final int cut; // A player who is cut off from everyone else for a while. (zero for none)
+        final long from;
+        final long until;
+
+        Scenario(long seed, List<Role> roles,
+                 long latency, long jitter, double loss,
+                 int slow, long delay,
+                 int cut, long from, long until) {
+
+            if (roles == null) {
+                throw new NullPointerException();
+            }
+            if (roles.size() < 2 || slow < 0 || slow > roles.size() || cut < 0 || cut > roles.size()) {
+                throw new IllegalArgumentException();
+            }
+
+            this.seed = seed;
+            this.roles = Collections.unmodifiableList(new ArrayList<>(roles));
+            this.latency = latency;
+            this.jitter = jitter;
+            this.loss = loss;
+            this.slow = delay == 0 ? 0 : slow;
+            this.delay = slow == 0 ? 0 : delay;
+            this.cut = cut;
+            this.from = cut == 0 ? 0 : from;
+            this.until = cut == 0 ? 0 : until;
+
+            // Check that the network makes sense.
+            links();
+        }
+
+        // Whether every packet sent eventually arrives.
+        public boolean reliable() {
+            return loss == 0 && cut == 0;
+        }
+
+        public boolean honest() {
+            for (Role role : roles) {
+                if (!role.honest()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Links links() {
+            Links links = new Links(new Links.Link(latency, jitter, 0, loss));
+
+            if (slow != 0) {
+                Links.Link link = new Links.Link(latency + delay, jitter, 0, loss);
+                for (int i = 1; i <= roles.size(); i++) {
+                    if (i != slow) {
+                        links.link(slow, i, link);
+                    }
+                }
+            }
+
+            if (cut != 0) {
+                links.partition(Collections.singleton(cut), from, until);
+            }
+
+            return links;
+        }
+
+        // The same scenario without one of the players. Players after him move up by one.
+        Scenario without(int player) {
+            List<Role> roles = new ArrayList<>();
+            for (int i = 1; i <= this.roles.size(); i++) {
+                if (i != player) {
+                    roles.add(this.roles.get(i - 1).within(this.roles.size() - 1));
+                }
+            }
+
+            return new Scenario(seed, roles, latency, jitter, loss,
+                    slow == player ? 0 : slow > player ? slow - 1 : slow, delay,
+                    cut == player ? 0 : cut > player ? cut - 1 : cut, from, until);
+        }
+
+        Scenario with(int player, Role role) {
+            List<Role> roles = new ArrayList<>(this.roles);
+            roles.set(player - 1, role);
+            return new Scenario(seed, roles, latency, jitter, loss, slow, delay, cut, from, until);
+        }
+
+        // Simpler versions of this scenario. Fewer players come first, since they make everything
+        // after them go faster.
+        List<Scenario> simpler() {
+            List<Scenario> simpler = new ArrayList<>();
+
+            if (roles.size() > 2) {
+                for (int i = roles.size(); i >= 1; i--) {
+                    simpler.add(without(i));
+                }
+            }
+
+            for (int i = 1; i <= roles.size(); i++) {
+                for (Role role : roles.get(i - 1).simpler()) {
+                    simpler.add(with(i, role));
+                }
+            }
+
+            if (cut != 0) {
+                simpler.add(new Scenario(seed, roles, latency, jitter, loss, slow, delay, 0, 0, 0));
+            }
+            if (loss != 0) {
+                simpler.add(new Scenario(seed, roles, latency, jitter, 0, slow, delay, cut, from, until));
+            }
+            if (slow != 0) {
+                simpler.add(new Scenario(seed, roles, latency, jitter, loss, 0, 0, cut, from, until));
+            }
+            if (jitter != 0) {
+                simpler.add(new Scenario(seed, roles, latency, 0, loss, slow, delay, cut, from, until));
+            }
+            if (latency != 0) {
+                simpler.add(new Scenario(seed, roles, 0, jitter, loss, slow, delay, cut, from, until));
+            }
+
+            return simpler;
+        }
+
+        void apply(Simulator.InitialState init) {
+            for (Role role : roles) {
+                role.apply(init);
+            }
+        }
+
+        @Override
+        public String toString() {
+            String str = "scenario[seed " + seed + ", " + roles.size() + " players, latency "
+                    + latency + "+" + jitter + " ms";
+
+            if (loss > 0) {
+                str += ", loss " + loss;
+            }
+
+            if (slow != 0) {
+                str += ", player " + slow + " delayed " + delay + " ms";
+            }
+
+            if (cut != 0) {
+                str += ", player " + cut + " cut off from " + from + " to " + until + " ms";
+            }
+
+            str += "]";
+
+            for (int i = 1; i <= roles.size(); i++) {
+                str += "\n    " + i + ": " + roles.get(i - 1);
+            }
+
+            return str;
+        }
+    }
+
+    // A scenario that failed, along with the smallest version of it that the fuzzer could find.
+    public static final class Report {
+        public final Scenario original;
+        public final Scenario minimal;
+        public final String failure; // What went wrong with the minimal scenario.
+
+        Report(Scenario original, Scenario minimal, String failure) {
+            this.original = original;
+            this.minimal = minimal;
+            this.failure = failure;
+        }
+
+        @Override
+        public String toString() {
+            return failure + "\n  minimal " + minimal + "\n  original " + original;
+        }
+    }
+
+    // Errors which an honest player is allowed to end with. Anything the other players can do
+    // wrong should end in blame, so only trouble with the network is acceptable.
+    static boolean expected(Throwable error) {
+        return error == null || error instanceof TimeoutError || error instanceof CoinNetworkError;
+    }
+
+    // Honest players should never crash or accuse one another, and if everyone is honest and
+    // every packet arrives, everyone should succeed.
+    public static final Oracle HONEST = new Oracle() {
+        @Override
+        public String check(Scenario scenario, List<SigningKey> players, Map<SigningKey, ReturnState> results) {
+            if (players == null || results == null) {
+                return "no results";
+            }
+
+            List<VerificationKey> honest = new ArrayList<>();
+            for (int i = 1; i <= players.size(); i++) {
+                if (!results.containsKey(players.get(i - 1))) {
+                    return "player " + i + " has no result";
+                }
+
+                if (scenario.roles.get(i - 1).honest()) {
+                    honest.add(players.get(i - 1).VerificationKey());
+                }
+            }
+
+            for (int i = 1; i <= players.size(); i++) {
+                if (!scenario.roles.get(i - 1).honest()) {
+                    continue;
+                }
+
+                ReturnState result = results.get(players.get(i - 1));
+
+                if (!expected(result.error)) {
+                    return "honest player " + i + " threw " + result.error;
+                }
+
+                if (result.blame != null) {
+                    for (VerificationKey accuser : honest) {
+                        for (VerificationKey accused : honest) {
+                            if (result.blame.get(accuser, accused) != null) {
+                                return "honest player " + i + " saw honest player "
+                                        + (honest.indexOf(accuser) + 1) + " blame honest player "
+                                        + (honest.indexOf(accused) + 1) + ": " + result;
+                            }
+                        }
+                    }
+                }
+
+                if (!result.success && scenario.honest() && scenario.reliable()) {
+                    return "honest player " + i + " failed: " + result;
+                }
+            }
+
+            return null;
+        }
+    };
+
+    private final Environment environment;
+    private final Oracle oracle;
+    private final int maxPlayers;
+    private final int parallelism; // How many simulations run at once.
+    private final int maxShrinks; // The most simulations to run while shrinking one scenario.
+
+    public Fuzzer(Environment environment, Oracle oracle, int maxPlayers, int parallelism, int maxShrinks) {
+        if (environment == null || oracle == null) {
+            throw new NullPointerException();
+        }
+        if (maxPlayers < 3 || parallelism < 1 || maxShrinks < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.environment = environment;
+        this.oracle = oracle;
+        this.maxPlayers = maxPlayers;
+        this.parallelism = parallelism;
+        this.maxShrinks = maxShrinks;
+    }
+
+    public Fuzzer(Environment environment) {
+        this(environment, HONEST, 6, Runtime.getRuntime().availableProcessors(), 200);
+    }
+
+    private static int[] subset(Random random, int n) {
+        List<Integer> chosen = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            if (random.nextBoolean()) {
+                chosen.add(i);
+            }
+        }
+
+        int[] subset = new int[chosen.size()];
+        for (int i = 0; i < subset.length; i++) {
+            subset[i] = chosen.get(i);
+        }
+        return subset;
+    }
+
+    // Make up a scenario. Most players are honest.
+    public Scenario generate(Random random) {
+        int n = 3 + random.nextInt(maxPlayers - 2);
+
+        List<Role> roles = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            if (random.nextInt(3) != 0) {
+                roles.add(new Role());
+                continue;
+            }
+
+            int drop = random.nextInt(4) == 0 ? 1 + random.nextInt(n) : 0;
+            roles.add(new Role(
+                    FUNDS[random.nextInt(FUNDS.length)],
+                    random.nextInt(4) == 0,
+                    random.nextInt(4) == 0,
+                    random.nextInt(4) == 0 ? subset(random, n) : null,
+                    random.nextInt(4) == 0 ? subset(random, n) : null,
+                    drop,
+                    drop != 0 && random.nextBoolean() ? 1 + random.nextInt(n) : 0,
+                    random.nextBoolean()));
+        }
+
+        long latency = random.nextInt(3) == 0 ? 0 : random.nextInt(200);
+        long jitter = random.nextBoolean() ? 0 : random.nextInt(300);
+        double loss = random.nextInt(8) == 0 ? random.nextDouble() * 0.05 : 0;
+
+        int slow = 0;
+        long delay = 0;
+        if (random.nextInt(4) == 0) {
+            slow = 1 + random.nextInt(n);
+            delay = 1 + random.nextInt(5000);
+        }
+
+        int cut = 0;
+        long from = 0;
+        long until = 0;
+        if (random.nextInt(8) == 0) {
+            cut = 1 + random.nextInt(n);
+            from = random.nextInt(5000);
+            until = from + (long)(random.nextDouble() * 2 * Scheduler.TIMEOUT);
+        }
+
+        return new Scenario(random.nextLong(), roles, latency, jitter, loss, slow, delay, cut, from, until);
+    }
+
+    // Run a scenario and return what went wrong, or null if nothing did.
+    public String run(Scenario scenario) {
+        return run(scenario, null);
+    }
+
+    private String run(Scenario scenario, ExecutorService players) {
+        Simulator sim = new Simulator(environment.messages(), environment.crypto(scenario.seed), players);
+        Simulator.InitialState init = sim.initialize(environment.session(scenario.seed), AMOUNT)
+                .defaultCoin(environment.coin()).deterministic(scenario.seed, scenario.links());
+        scenario.apply(init);
+
+        Map<SigningKey, ReturnState> results;
+        try {
+            results = init.run();
+        } catch (RuntimeException | InvalidImplementationError e) {
+            return "simulation threw " + e;
+        }
+
+        return oracle.check(scenario, init.keys(), results);
+    }
+
+    // Find the smallest version of a failing scenario which still fails.
+    public Scenario shrink(Scenario failing) {
+        String failure = run(failing);
+        if (failure == null) {
+            return failing;
+        }
+
+        return shrink(failing, failure, null).minimal;
+    }
+
+    private Report shrink(Scenario failing, String failure, ExecutorService players) {
+        Scenario minimal = failing;
+        int tries = 0;
+
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+
+            for (Scenario candidate : minimal.simpler()) {
+                if (tries >= maxShrinks) {
+                    return new Report(failing, minimal, failure);
+                }
+                tries ++;
+
+                String result = run(candidate, players);
+                if (result != null) {
+                    minimal = candidate;
+                    failure = result;
+                    progress = true;
+                    break;
+                }
+            }
+        }
+
+        return new Report(failing, minimal, failure);
+    }
+
+    // Run many random scenarios and report the ones that failed, shrunk, in the order in which
+    // they were made up. The same seed always makes the same scenarios.
+    public List<Report> fuzz(long seed, int runs) throws InterruptedException, ExecutionException {
+        if (runs < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        ThreadFactory daemons = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        // The simulations are run on one pool and their players on another, since the
+        // players spend most of their time waiting for their turn.
+        ExecutorService simulations = Executors.newFixedThreadPool(parallelism, daemons);
+        final ExecutorService players = Executors.newCachedThreadPool(daemons);
+        CompletionService<Report> completion = new ExecutorCompletionService<>(simulations);
+
+        Random random = new Random(seed);
+        final Report[] reports = new Report[runs];
+
+        try {
+            for (int i = 0; i < runs; i++) {
+                final int index = i;
+                final Scenario scenario = generate(random);
+                completion.submit(new Callable<Report>() {
+                    @Override
+                    public Report call() {
+                        String failure = run(scenario, players);
+                        if (failure == null) {
+                            return null;
+                        }
+
+                        Report report = shrink(scenario, failure, players);
+                        log.warn("Fuzzer found a failure in run " + index + ": " + report);
+                        reports[index] = report;
+                        return report;
+                    }
+                });
+            }
+
+            for (int i = 0; i < runs; i++) {
+                completion.take().get();
+            }
+        } finally {
+            simulations.shutdownNow();
+            players.shutdownNow();
+        }
+
+        List<Report> failures = new ArrayList<>();
+        for (Report report : reports) {
+            if (report != null) {
+                failures.add(report);
+            }
+        }
+        return failures;
+    }
+}
@@ -0,0 +1,478 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.SigningKey;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of everything that would be needed to resume a ShuffleMachine if the
+ * process were to restart in the middle of a session: phase transitions, every packet sent
+ * and received, and everything that was generated randomly. A machine that is started with
+ * a session that already appears in the journal replays it. It is fed the same random numbers
+ * and keys and the same packets in the same order as before, so it reconstructs exactly the
+ * same state, and then continues with the live network where it left off.
+ *
+ * Records are written to the file as they are made but are only forced to disk before a
+ * packet is sent, since that is the only point at which anything we have done becomes visible
+ * to the other players. Sessions running concurrently share a journal and share fsyncs. A thread
+ * which needs the journal to be durable while another is syncing waits for it to finish and then
+ * syncs everything that was written in the meantime in one go.
+ *
+ * Replaying the journal gives back what was received before the restart, but not what the other
+ * players sent while we were down. A machine that is replaying asks them to send that again
+ * once it has caught up with the journal. (see Mailbox.requestResend)
+ *
+ * The journal holds signing and decryption keys in the clear. The file is created so that only
+ * its owner can read or write it, and an existing file is restricted in the same way.
+ */
+public class Journal implements Closeable {
+    private static Logger log = LogManager.getLogger(Journal.class);
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    // The journal has to be able to write down packets and keys, but it doesn't know what they are.
+    public interface Codec {
+        byte[] encode(SignedPacket packet) throws InvalidImplementationError;
+        SignedPacket decodeSignedPacket(byte[] bytes) throws FormatException;
+
+        byte[] encode(DecryptionKey key) throws InvalidImplementationError;
+        DecryptionKey decodeDecryptionKey(byte[] bytes) throws FormatException;
+
+        byte[] encode(SigningKey key) throws InvalidImplementationError;
+        SigningKey decodeSigningKey(byte[] bytes) throws FormatException;
+    }
+
+    enum Type {
+        Phase,
+        Sent,
+        Received,
+        Random,
+        DecryptionKey,
+        SigningKey
+    }
+
+    static class Record {
+        final Type type;
+        final byte[] body;
+
+        Record(Type type, byte[] body) {
+            this.type = type;
+            this.body = body;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Codec codec;
+
+    // Where the records of each session were found when the journal was opened. They are only
+    // read back if the session is resumed, so sessions which never are cost little memory.
+    private final Map<String, List<Long>> recovered = new HashMap<>();
+
+    // The last phase recorded for each session.
+    private final Map<String, Phase> phases = new HashMap<>();
+
+    private long written; // The length of the file including everything written so far.
+
+    // Used for group commit.
+    private final Object syncLock = new Object();
+    private long durable; // Everything before this position is on disk.
+    private boolean syncing = false;
+
+    public Journal(File file, Codec codec) throws IOException {
+        if (file == null || codec == null) {
+            throw new NullPointerException();
+        }
+
+        this.codec = codec;
+        restrict(file);
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+
+        written = read();
+        durable = written;
+
+        // Anything after the last complete record was a write that was cut off.
+        channel.truncate(written);
+        channel.position(written);
+    }
+
+    // Make sure that only the owner of the file can read or write it, creating it if it
+    // doesn't exist yet so that nobody else ever has the chance to open it.
+    private static void restrict(File file) throws IOException {
+        Set<PosixFilePermission> owner = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+        Path path = file.toPath();
+        try {
+            try {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(owner));
+            } catch (FileAlreadyExistsException e) {
+                Files.setPosixFilePermissions(path, owner);
+            }
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, so do what we can.
+            file.createNewFile();
+            if (!(file.setReadable(false, false) && file.setReadable(true, true)
+                    && file.setWritable(false, false) && file.setWritable(true, true))) {
+                log.warn("could not make " + file + " private to its owner.");
+            }
+        }
+    }
+
+    // Read the given number of bytes starting at the given position.
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Go through every complete record in the file and return the position after the last one.
+    private long read() throws IOException {
+        long position = 0;
+        long size = channel.size();
+        CRC32 crc = new CRC32();
+
+        while (position + 8 <= size) {
+            ByteBuffer header = read(position, 8);
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length < 3 || position + 8 + length > size) {
+                break;
+            }
+
+            ByteBuffer body = read(position + 8, length);
+            crc.reset();
+            crc.update(body.array());
+            if ((int)crc.getValue() != checksum) {
+                break;
+            }
+
+            int type = body.get();
+            byte[] tag = new byte[body.getShort() & 0xffff];
+            if (type < 0 || type >= Type.values().length || tag.length > body.remaining()) {
+                break;
+            }
+            body.get(tag);
+
+            String session = new String(tag, utf8);
+            if (type == Type.Phase.ordinal()) {
+                int phase = body.remaining() == 1 ? body.get() : -1;
+                if (phase < 0 || phase >= Phase.values().length) {
+                    break;
+                }
+                phases.put(session, Phase.values()[phase]);
+            }
+
+            List<Long> positions = recovered.get(session);
+            if (positions == null) {
+                positions = new ArrayList<>();
+                recovered.put(session, positions);
+            }
+            positions.add(position);
+
+            position += 8 + length;
+        }
+
+        if (position < size) {
+            log.warn("discarding " + (size - position) + " bytes of incomplete records at the end of the journal.");
+        }
+
+        return position;
+    }
+
+    static String tag(SessionIdentifier session) {
+        return session.protocol() + "\u0000" + session.version() + "\u0000" + session.id();
+    }
+
+    // Append a record and return the position at which it ends.
+    private long append(String session, Type type, byte[] payload) {
+        byte[] tag = session.getBytes(utf8);
+        ByteBuffer body = ByteBuffer.allocate(3 + tag.length + payload.length);
+        body.put((byte)type.ordinal());
+        body.putShort((short)tag.length);
+        body.put(tag);
+        body.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        ByteBuffer record = ByteBuffer.allocate(8 + body.capacity());
+        record.putInt(body.capacity());
+        record.putInt((int)crc.getValue());
+        record.put(body.array());
+        record.flip();
+
+        synchronized (this) {
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            } catch (IOException e) {
+                throw new JournalError(e);
+            }
+            written += record.capacity();
+            if (type == Type.Phase) {
+                phases.put(session, Phase.values()[payload[0]]);
+            }
+            return written;
+        }
+    }
+
+    // Wait until everything up to the given position is on disk.
+    private void sync(long position) {
+        synchronized (syncLock) {
+            while (syncing && durable < position) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JournalError(e);
+                }
+            }
+
+            if (durable >= position) {
+                return;
+            }
+
+            syncing = true;
+        }
+
+        // Everything written up to now goes to disk with this sync, not just our record.
+        long target;
+        synchronized (this) {
+            target = written;
+        }
+
+        boolean success = false;
+        try {
+            channel.force(false);
+            success = true;
+        } catch (IOException e) {
+            throw new JournalError(e);
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (success) {
+                    durable = Math.max(durable, target);
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    // The last phase recorded for a session, or null if the journal knows nothing about it.
+    public synchronized Phase lastPhase(SessionIdentifier session) {
+        return phases.get(tag(session));
+    }
+
+    // Read back the records at the given positions, which were checked when the journal was opened.
+    private Queue<Record> load(List<Long> positions) {
+        Queue<Record> records = new LinkedList<>();
+        try {
+            for (long position : positions) {
+                ByteBuffer body = read(position + 8, read(position, 8).getInt());
+                Type type = Type.values()[body.get()];
+                int tag = body.getShort() & 0xffff;
+                body.position(body.position() + tag);
+                byte[] payload = new byte[body.remaining()];
+                body.get(payload);
+                records.add(new Record(type, payload));
+            }
+        } catch (IOException e) {
+            throw new JournalError(e);
+        }
+        return records;
+    }
+
+    // Get the part of the journal belonging to a given session.
+    Log log(SessionIdentifier session) {
+        String tag = tag(session);
+        List<Long> positions;
+        synchronized (this) {
+            positions = recovered.remove(tag);
+        }
+        return new Log(tag, positions == null ? null : load(positions));
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync(written);
+        channel.close();
+    }
+
+    // The journal of a single session. If the session was already in the journal when it
+    // was opened, then the log first replays the old records before writing new ones.
+    class Log {
+        final String session;
+
+        // Records that have yet to be replayed.
+        final Queue<Record> sent = new LinkedList<>();
+        final Queue<Record> received = new LinkedList<>();
+        final Queue<Record> generated = new LinkedList<>();
+
+        Log(String session, Queue<Record> records) {
+            this.session = session;
+
+            if (records == null) {
+                return;
+            }
+
+            for (Record record : records) {
+                switch (record.type) {
+                    case Sent:
+                        sent.add(record);
+                        break;
+                    case Received:
+                        received.add(record);
+                        break;
+                    case Random:
+                    case DecryptionKey:
+                    case SigningKey:
+                        generated.add(record);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        boolean replaying() {
+            return !(sent.isEmpty() && received.isEmpty() && generated.isEmpty());
+        }
+
+        void phase(Phase phase) {
+            append(session, Type.Phase, new byte[]{(byte)phase.ordinal()});
+        }
+
+        // The next packet that was sent before the restart, or null if there are no more.
+        SignedPacket replaySent() {
+            return decode(sent.poll());
+        }
+
+        // Must be called before a packet is sent. Returns when the packet is on disk.
+        void sent(SignedPacket packet) {
+            sync(append(session, Type.Sent, codec.encode(packet)));
+        }
+
+        // The next packet that was received before the restart, or null if there are no more.
+        SignedPacket replayReceived() {
+            return decode(received.poll());
+        }
+
+        void received(SignedPacket packet) {
+            append(session, Type.Received, codec.encode(packet));
+        }
+
+        private SignedPacket decode(Record record) {
+            if (record == null) {
+                return null;
+            }
+
+            try {
+                return codec.decodeSignedPacket(record.body);
+            } catch (FormatException e) {
+                throw new JournalError(e);
+            }
+        }
+
+        // The next record of something generated randomly, which must be of the given type.
+        private Record replayGenerated(Type type) {
+            Record record = generated.peek();
+            if (record == null) {
+                return null;
+            }
+
+            if (record.type != type) {
+                // The machine is not doing what it did before the restart.
+                throw new JournalError();
+            }
+
+            return generated.remove();
+        }
+
+        // A Crypto which remembers everything it generates in the journal and which first
+        // gives back whatever it generated before the restart.
+        Crypto crypto(final Crypto crypto) {
+            return new Crypto() {
+                @Override
+                public SigningKey makeSigningKey() throws CryptographyError {
+                    Record record = replayGenerated(Type.SigningKey);
+                    if (record != null) {
+                        try {
+                            return codec.decodeSigningKey(record.body);
+                        } catch (FormatException e) {
+                            throw new JournalError(e);
+                        }
+                    }
+
+                    SigningKey key = crypto.makeSigningKey();
+                    append(session, Type.SigningKey, codec.encode(key));
+                    return key;
+                }
+
+                @Override
+                public DecryptionKey makeDecryptionKey() throws CryptographyError {
+                    Record record = replayGenerated(Type.DecryptionKey);
+                    if (record != null) {
+                        try {
+                            return codec.decodeDecryptionKey(record.body);
+                        } catch (FormatException e) {
+                            throw new JournalError(e);
+                        }
+                    }
+
+                    DecryptionKey key = crypto.makeDecryptionKey();
+                    append(session, Type.DecryptionKey, codec.encode(key));
+                    return key;
+                }
+
+                @Override
+                public int getRandom(int n) throws CryptographyError, InvalidImplementationError {
+                    Record record = replayGenerated(Type.Random);
+                    if (record != null) {
+                        return ByteBuffer.wrap(record.body).getInt();
+                    }
+
+                    int random = crypto.getRandom(n);
+                    append(session, Type.Random, ByteBuffer.allocate(4).putInt(random).array());
+                    return random;
+                }
+
+                @Override
+                public Message hash(Message m) throws CryptographyError, InvalidImplementationError {
+                    return crypto.hash(m);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.shuffle.protocol;
+
+/**
+ * To be thrown when the journal cannot be read or written.
+ */
+public class JournalError extends Error {
+    public JournalError(Throwable cause) {
+        super(cause);
+    }
+
+    public JournalError() {
+    }
+}
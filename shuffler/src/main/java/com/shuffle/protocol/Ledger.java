@@ -0,0 +1,533 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.CoinNetworkError;
+import com.shuffle.bitcoin.Signature;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * A ledger which lives in memory, for running the whole protocol against something that behaves
+ * like a real coin network without needing a node. Transactions go into a mempool, where one that
+ * spends an output which another has already spent is refused, and are put in blocks as the
+ * ledger's clock moves forward. The clock is virtual, so it only moves when it is told to.
+ *
+ * Every query can be made to take some time, like a query to a remote node would. The time is
+ * spent outside of the ledger's lock, so queries from different threads overlap.
+ */
+public final class Ledger implements Simulator.MockCoin {
+
+    // An output of a transaction in the ledger.
+    public static final class Output {
+        public final Address address;
+        public final long value;
+        public final Tx tx; // The transaction which created it.
+        public final int index;
+
+        private Output(Address address, long value, Tx tx, int index) {
+            this.address = address;
+            this.value = value;
+            this.tx = tx;
+            this.index = index;
+        }
+
+        @Override
+        public String toString() {
+            return "output[" + address + ", " + value + "]";
+        }
+    }
+
+    public final class Tx implements Transaction {
+        final List<Output> inputs;
+        final List<Output> outputs;
+
+        private Tx(List<Output> inputs, Map<Address, Long> outputs) {
+            this.inputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+
+            List<Output> out = new ArrayList<>();
+            for (Map.Entry<Address, Long> output : outputs.entrySet()) {
+                out.add(new Output(output.getKey(), output.getValue(), this, out.size()));
+            }
+            this.outputs = Collections.unmodifiableList(out);
+        }
+
+        Ledger ledger() {
+            return Ledger.this;
+        }
+
+        public List<Output> inputs() {
+            return inputs;
+        }
+
+        public List<Output> outputs() {
+            return outputs;
+        }
+
+        @Override
+        public void send() throws CoinNetworkError {
+            Ledger.this.send(this);
+        }
+
+        // The ledger doesn't check signatures, so this only needs to tell transactions apart.
+        @Override
+        public byte[] sighash(VerificationKey key) {
+            return toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Two transactions are the same if they spend the same outputs and pay the same
+        // amounts to the same addresses, so that players who each make the shuffle
+        // transaction for themselves all get the same one.
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Tx)) {
+                return false;
+            }
+
+            Tx tx = (Tx) o;
+
+            if (inputs.isEmpty() || !inputs.equals(tx.inputs) || outputs.size() != tx.outputs.size()) {
+                return false;
+            }
+
+            for (int i = 0; i < outputs.size(); i++) {
+                Output a = outputs.get(i);
+                Output b = tx.outputs.get(i);
+                if (!a.address.equals(b.address) || a.value != b.value) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            if (inputs.isEmpty()) {
+                return System.identityHashCode(this);
+            }
+
+            int hash = inputs.hashCode();
+            for (Output output : outputs) {
+                hash = hash * 31 + output.address.hashCode();
+                hash = hash * 31 + (int) (output.value ^ (output.value >>> 32));
+            }
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + inputs + " ==> " + outputs + "}";
+        }
+    }
+
+    public static final class Block {
+        public final int height;
+        public final long time; // On the ledger's clock.
+        public final List<Tx> transactions;
+
+        private Block(int height, long time, List<Tx> transactions) {
+            this.height = height;
+            this.time = time;
+            this.transactions = Collections.unmodifiableList(transactions);
+        }
+
+        @Override
+        public String toString() {
+            return "block[" + height + ", " + transactions.size() + " transactions]";
+        }
+    }
+
+    final long blockInterval; // Virtual milliseconds between blocks.
+    final long latency; // Real milliseconds taken by every query.
+
+    private long time = 0;
+    private long nextBlock;
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final Set<Tx> mempool = new LinkedHashSet<>();
+
+    // The block height of every transaction, or -1 if it is in the mempool.
+    private final Map<Tx, Integer> heights = new HashMap<>();
+
+    // The transaction which spends an output.
+    private final Map<Output, Tx> spentBy = new HashMap<>();
+
+    // The unspent outputs held by each address.
+    private final Map<Address, Set<Output>> unspent = new HashMap<>();
+
+    // The transactions which spend from or send to each address, oldest first.
+    private final Map<Address, List<Tx>> spends = new HashMap<>();
+    private final Map<Address, List<Tx>> receives = new HashMap<>();
+
+    public Ledger(
+            long blockInterval, // Virtual milliseconds between blocks.
+            long latency // Real milliseconds taken by every query. (may be zero)
+    ) {
+        if (blockInterval <= 0 || latency < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.blockInterval = blockInterval;
+        this.latency = latency;
+        nextBlock = blockInterval;
+    }
+
+    public Ledger() {
+        this(600000, 0);
+    }
+
+    // Wait as long as a query to a remote node would take.
+    private void query() throws CoinNetworkError {
+        if (latency == 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CoinNetworkError();
+        }
+    }
+
+    private static <X> void index(Map<Address, List<X>> index, Address address, X x) {
+        List<X> list = index.get(address);
+        if (list == null) {
+            list = new ArrayList<>();
+            index.put(address, list);
+        }
+        list.add(x);
+    }
+
+    private static <X> X last(Map<Address, List<X>> index, Address address) {
+        List<X> list = index.get(address);
+        return list == null || list.isEmpty() ? null : list.get(list.size() - 1);
+    }
+
+    // Put a transaction in the mempool. It must already have been checked.
+    private void accept(Tx tx) {
+        mempool.add(tx);
+        heights.put(tx, -1);
+
+        for (Output input : tx.inputs) {
+            spentBy.put(input, tx);
+            unspent.get(input.address).remove(input);
+            index(spends, input.address, tx);
+        }
+
+        for (Output output : tx.outputs) {
+            Set<Output> held = unspent.get(output.address);
+            if (held == null) {
+                held = new LinkedHashSet<>();
+                unspent.put(output.address, held);
+            }
+            held.add(output);
+            index(receives, output.address, tx);
+        }
+    }
+
+    // Send a transaction into the mempool. Sending the same transaction again does nothing, but
+    // one which spends an output that some other transaction has already spent is refused.
+    public synchronized void send(Transaction t) throws CoinNetworkError {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+
+        if (!(t instanceof Tx) || ((Tx) t).ledger() != this) {
+            throw new InvalidImplementationError();
+        }
+
+        Tx tx = (Tx) t;
+
+        long available = 0;
+        for (Output input : tx.inputs) {
+            if (!heights.containsKey(input.tx)) {
+                throw new CoinNetworkError(); // Spends from a transaction we have never seen.
+            }
+
+            Tx spender = spentBy.get(input);
+            if (spender != null) {
+                if (spender.equals(tx)) {
+                    return; // We have this one already.
+                }
+                throw new CoinNetworkError();
+            }
+
+            available += input.value;
+        }
+
+        for (Output output : tx.outputs) {
+            available -= output.value;
+        }
+
+        if (available < 0) {
+            throw new CoinNetworkError();
+        }
+
+        accept(tx);
+    }
+
+    // Give an address a new output out of nowhere.
+    @Override
+    public synchronized void put(Address addr, long value) {
+        if (addr == null) {
+            throw new NullPointerException();
+        }
+        if (value <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        Map<Address, Long> outputs = new HashMap<>();
+        outputs.put(addr, value);
+        accept(new Tx(Collections.<Output>emptyList(), outputs));
+    }
+
+    // Spends all of the address's outputs, with the change going back to the same address.
+    @Override
+    public synchronized Transaction spend(Address from, Address to, long amount) {
+        Set<Output> held = unspent.get(from);
+        if (held == null || held.isEmpty()) {
+            return null;
+        }
+
+        long total = 0;
+        for (Output output : held) {
+            total += output.value;
+        }
+
+        if (amount > total) {
+            return null;
+        }
+
+        Map<Address, Long> outputs = new LinkedHashMap<>();
+        outputs.put(to, amount);
+        if (total > amount) {
+            Long change = outputs.get(from);
+            outputs.put(from, (change == null ? 0 : change) + total - amount);
+        }
+
+        return new Tx(new ArrayList<>(held), outputs);
+    }
+
+    @Override
+    public Transaction shuffleTransaction(
+            long amount,
+            Map<VerificationKey, List<VerificationKey>> from,
+            Queue<Address> to,
+            Map<VerificationKey, Address> changeAddresses) throws CoinNetworkError {
+
+        if (amount <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        query();
+
+        synchronized (this) {
+            List<Output> inputs = new LinkedList<>();
+            Map<Address, Long> outputs = new LinkedHashMap<>();
+
+            for (Map.Entry<VerificationKey, List<VerificationKey>> player : from.entrySet()) {
+                long remaining = 0;
+
+                for (VerificationKey key : player.getValue()) {
+                    Set<Output> held = unspent.get(key.address());
+                    long value = 0;
+                    if (held != null) {
+                        for (Output output : held) {
+                            inputs.add(output);
+                            value += output.value;
+                        }
+                    }
+
+                    if (value < amount) {
+                        throw new CoinNetworkError();
+                    }
+                    remaining += value - amount;
+                }
+
+                Address change = changeAddresses.get(player.getKey());
+                if (change != null && remaining > 0) {
+                    outputs.put(change, remaining);
+                }
+            }
+
+            for (Address address : to) {
+                if (outputs.containsKey(address)) {
+                    throw new CoinNetworkError(); // Nobody would do this on purpose.
+                }
+                outputs.put(address, amount);
+            }
+
+            return new Tx(inputs, outputs);
+        }
+    }
+
+    // The ledger doesn't check signatures.
+    @Override
+    public Transaction signedTransaction(Transaction t, Map<VerificationKey, Signature> signatures) {
+        return t;
+    }
+
+    @Override
+    public long valueHeld(Address addr) throws CoinNetworkError {
+        query();
+
+        synchronized (this) {
+            Set<Output> held = unspent.get(addr);
+            if (held == null) {
+                return 0;
+            }
+
+            long value = 0;
+            for (Output output : held) {
+                value += output.value;
+            }
+            return value;
+        }
+    }
+
+    // The most recent transaction to spend from the address, or if none has, the most recent to
+    // send to it.
+    @Override
+    public Transaction getConflictingTransaction(Address addr, long amount) {
+        if (valueHeld(addr) >= amount) {
+            return null;
+        }
+
+        synchronized (this) {
+            Tx t = last(spends, addr);
+            if (t != null) {
+                return t;
+            }
+            return last(receives, addr);
+        }
+    }
+
+    @Override
+    public boolean spendsFrom(Address addr, long amount, Transaction t) {
+        query();
+
+        if (!(t instanceof Tx)) {
+            return false;
+        }
+
+        for (Output input : ((Tx) t).inputs) {
+            if (input.address.equals(addr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean seen(Transaction t) throws CoinNetworkError {
+        return confirmations(t) >= 0;
+    }
+
+    // The number of blocks containing or on top of the transaction, which is zero if it is in
+    // the mempool, or -1 if the ledger doesn't have it.
+    public int confirmations(Transaction t) throws CoinNetworkError {
+        query();
+
+        if (!(t instanceof Tx)) {
+            return -1;
+        }
+
+        synchronized (this) {
+            Tx tx = (Tx) t;
+
+            // We might have a different copy of the same transaction.
+            if (!tx.inputs.isEmpty()) {
+                tx = spentBy.get(tx.inputs.get(0));
+                if (tx == null || !tx.equals(t)) {
+                    return -1;
+                }
+            }
+
+            Integer height = heights.get(tx);
+            if (height == null) {
+                return -1;
+            }
+            return height < 0 ? 0 : blocks.size() - height;
+        }
+    }
+
+    // Put everything in the mempool into a new block.
+    public synchronized Block mine() {
+        return mine(time);
+    }
+
+    private Block mine(long at) {
+        Block block = new Block(blocks.size(), at, new ArrayList<>(mempool));
+        blocks.add(block);
+
+        for (Tx tx : mempool) {
+            heights.put(tx, block.height);
+        }
+        mempool.clear();
+
+        return block;
+    }
+
+    // Move the clock forward, making a block at every interval that is passed.
+    public synchronized List<Block> advance(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        List<Block> mined = new LinkedList<>();
+        time += millis;
+        while (nextBlock <= time) {
+            mined.add(mine(nextBlock));
+            nextBlock += blockInterval;
+        }
+        return mined;
+    }
+
+    public synchronized long time() {
+        return time;
+    }
+
+    public synchronized int height() {
+        return blocks.size();
+    }
+
+    public synchronized Block block(int height) {
+        return blocks.get(height);
+    }
+
+    public synchronized List<Tx> mempool() {
+        return new ArrayList<>(mempool);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder("ledger[height " + blocks.size() + ", mempool " + mempool.size() + "; ");
+        Iterator<Map.Entry<Address, Set<Output>>> i = unspent.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Address, Set<Output>> entry = i.next();
+            str.append(entry.getKey()).append(" ").append(entry.getValue());
+            if (i.hasNext()) {
+                str.append(", ");
+            }
+        }
+        return str.append("]").toString();
+    }
+}
@@ -0,0 +1,135 @@
+package com.shuffle.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How packets get from one player to another in a deterministic simulation. Players are
+ * numbered from 1 in the order in which they were added to the simulation.
+ *
+ * Each pair of players is joined by a link with a latency that varies at random, a bandwidth,
+ * and a chance of losing packets. Packets on the same link can overtake one another if the
+ * latency varies by more than the time between them. Groups of players can also be cut off
+ * from everyone else for a while, during which anything sent between them is lost.
+ */
+public final class Links {
+
+    public static final class Link {
+        final long latency; // The least time that a packet takes, in milliseconds.
+        final long jitter; // The most extra time that a packet can take, in milliseconds.
+        final long bandwidth; // In bytes per second. (zero for no limit)
+        final double loss; // The chance that a packet is lost.
+
+        public Link(long latency, long jitter, long bandwidth, double loss) {
+            if (latency < 0 || jitter < 0 || bandwidth < 0 || loss < 0 || loss > 1) {
+                throw new IllegalArgumentException();
+            }
+
+            this.latency = latency;
+            this.jitter = jitter;
+            this.bandwidth = bandwidth;
+            this.loss = loss;
+        }
+
+        public Link(long latency, long jitter) {
+            this(latency, jitter, 0, 0);
+        }
+
+        @Override
+        public String toString() {
+            return "link[" + latency + "+" + jitter + " ms, " + bandwidth + " B/s, " + loss + " loss]";
+        }
+    }
+
+    private static final class Partition {
+        final Set<Integer> side;
+        final long from;
+        final long until;
+
+        Partition(Set<Integer> side, long from, long until) {
+            this.side = side;
+            this.from = from;
+            this.until = until;
+        }
+    }
+
+    // Roughly what a real packet carries besides its message: the session, phase, keys and signature.
+    static final long OVERHEAD = 160;
+
+    private final Link defaultLink;
+    private final Map<Long, Link> links = new HashMap<>();
+    private final List<Partition> partitions = new ArrayList<>();
+
+    public Links(Link defaultLink) {
+        if (defaultLink == null) {
+            throw new NullPointerException();
+        }
+
+        this.defaultLink = defaultLink;
+    }
+
+    // Packets arrive instantly and are never lost.
+    public Links() {
+        this(new Link(0, 0));
+    }
+
+    private static long pair(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    // Set the link between two players, in both directions.
+    public Links link(int a, int b, Link link) {
+        if (link == null) {
+            throw new NullPointerException();
+        }
+        if (a < 1 || b < 1 || a == b) {
+            throw new IllegalArgumentException();
+        }
+
+        links.put(pair(a, b), link);
+        return this;
+    }
+
+    // Cut the given players off from everyone else from one time until another, in virtual
+    // milliseconds from the start of the simulation.
+    public Links partition(Set<Integer> side, long from, long until) {
+        if (side == null) {
+            throw new NullPointerException();
+        }
+        if (from < 0 || until < from) {
+            throw new IllegalArgumentException();
+        }
+
+        partitions.add(new Partition(Collections.unmodifiableSet(new HashSet<>(side)), from, until));
+        return this;
+    }
+
+    Link link(int from, int to) {
+        Link link = links.get(pair(from, to));
+        return link == null ? defaultLink : link;
+    }
+
+    // Whether a packet sent at the given time between the given players is lost to a partition.
+    boolean partitioned(int from, int to, long at) {
+        for (Partition partition : partitions) {
+            if (at >= partition.from && at < partition.until
+                    && partition.side.contains(from) != partition.side.contains(to)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // How many bytes a packet would take up on the wire, which is estimated from the canonical
+    // encoding of its message.
+    static long size(SignedPacket packet) throws InvalidImplementationError {
+        PacketDigest encoding = new PacketDigest();
+        packet.packet.message.digest(encoding);
+        return encoding.length() + OVERHEAD;
+    }
+}
@@ -5,15 +5,22 @@ import com.shuffle.bitcoin.SigningKey;
 import com.shuffle.bitcoin.VerificationKey;
 import com.shuffle.protocol.blame.BlameException;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -21,42 +28,166 @@ import java.util.Set;
  * Created by Daniel Krawisz on 1/22/16.
  */
 public class Mailbox {
+    private static Logger log = LogManager.getLogger(Mailbox.class);
+
     final private Network network;
     final private SessionIdentifier session;
     final private SigningKey sk;
     final private Collection<VerificationKey> players; // The keys representing all the players.
+    final private TimeoutPolicy timeouts; // Decides how long to wait for messages.
+    final private Journal.Log journal; // Remembers what we sent and received. (may be null)
+    final private Notifier notifier; // Tells a listener what we sent and received. (may be null)
+    final private SignatureCache verified; // The signatures which have been checked in this session.
 
     final private Queue<SignedPacket> delivered = new LinkedList<>(); // A queue of messages that has been delivered that we aren't ready to look at yet.
     final private Queue<SignedPacket> history = new LinkedList<>(); // All messages sent or received (does not include those in delivered).
+    final private Set<ByteBuffer> received = new HashSet<>(); // The digests of all packets received, which cover the signer and the phase.
     private boolean blameReceived = false;
 
-    Mailbox(SessionIdentifier session, SigningKey sk, Collection<VerificationKey> players, Network network) {
+    // If we are recovering from a restart, what we ask the other players with before we first
+    // wait for them. (null if there is nothing to ask)
+    private Message resend = null;
+
+    // When we first started waiting for messages in each phase.
+    final private Map<Phase, Long> waiting = new EnumMap<>(Phase.class);
+
+    Mailbox(SessionIdentifier session, SigningKey sk, Collection<VerificationKey> players, Network network, TimeoutPolicy timeouts, Journal.Log journal, Notifier notifier, SignatureCache verified) {
+        if (timeouts == null || verified == null) {
+            throw new NullPointerException();
+        }
+
         this.sk = sk;
         this.session = session;
         this.network = network;
         this.players = players;
+        this.timeouts = timeouts;
+        this.journal = journal;
+        this.notifier = notifier;
+        this.verified = verified;
+    }
+
+    Mailbox(SessionIdentifier session, SigningKey sk, Collection<VerificationKey> players, Network network, TimeoutPolicy timeouts, Journal.Log journal) {
+        this(session, sk, players, network, timeouts, journal, null, new SignatureCache(SignatureCache.DEFAULT_CAPACITY));
+    }
+
+    Mailbox(SessionIdentifier session, SigningKey sk, Collection<VerificationKey> players, Network network, TimeoutPolicy timeouts) {
+        this(session, sk, players, network, timeouts, null);
+    }
+
+    Mailbox(SessionIdentifier session, SigningKey sk, Collection<VerificationKey> players, Network network) {
+        this(session, sk, players, network, new TimeoutPolicy());
+    }
+
+    // The time at which we began waiting for messages in the given phase.
+    private long waitingSince(Phase phase) {
+        Long since = waiting.get(phase);
+        if (since == null) {
+            since = System.currentTimeMillis();
+            waiting.put(phase, since);
+        }
+        return since;
+    }
+
+    // The position of a player in the order of the round, starting from 1.
+    private int position(VerificationKey player) {
+        int i = 1;
+        for (VerificationKey key : players) {
+            if (key.equals(player)) {
+                return i;
+            }
+            i++;
+        }
+        return players.size();
     }
 
     public boolean blameReceived() {
         return blameReceived;
     }
 
+    // Anything the other players sent while we were down is lost, and replaying the journal
+    // doesn't bring it back. Once we have replayed everything and are about to wait for the
+    // network, we ask everyone to send us again whatever they have sent us. We drop whatever
+    // we already have.
+    void requestResend(Message request) {
+        resend = request;
+    }
+
+    // Send a request to everyone else to resend what we may have missed. It is not journaled
+    // or kept in the history since it is not part of the protocol.
+    private void sendResendRequest() throws TimeoutError, InvalidImplementationError {
+        for (VerificationKey to : players) {
+            if (!to.equals(sk.VerificationKey())) {
+                Packet packet = new Packet(resend, session, Phase.Resend, sk.VerificationKey(), to);
+                network.sendTo(to, new SignedPacket(packet, sk.makeSignature(packet)));
+            }
+        }
+        resend = null;
+    }
+
+    // Send again everything we have sent to a player who has restarted.
+    private void resend(VerificationKey to) throws TimeoutError, InvalidImplementationError {
+        for (SignedPacket packet : history) {
+            if (packet.packet.signer.equals(sk.VerificationKey())
+                    && (packet.packet.recipient == null || packet.packet.recipient.equals(to))) {
+                network.sendTo(to, packet);
+            }
+        }
+    }
+
     public void broadcast(Message message, Phase phase) throws TimeoutError, CryptographyError, InvalidImplementationError {
+        // If there is a relay, we only have to send the message once.
+        if (network instanceof Relay) {
+            send(new Packet(message, session, phase, sk.VerificationKey(), null));
+            return;
+        }
+
+        // The packets all contain the same message, so it is only digested once.
+        Packet packet = null;
         for (VerificationKey to : players) {
             // Don't send a message to myself!
             if (!to.equals(sk.VerificationKey())) {
-                send(new Packet(message, session, phase, sk.VerificationKey(), to));
+                packet = packet == null ? new Packet(message, session, phase, sk.VerificationKey(), to) : packet.to(to);
+                send(packet);
             }
         }
     }
 
     // Send a message into the network.
     public void send(Packet packet) throws TimeoutError, CryptographyError, InvalidImplementationError {
-        SignedPacket signed = new SignedPacket(packet, sk.makeSignature(packet));
+        // If we are recovering from a restart, we already signed this packet and may have sent it.
+        // We send it again just in case; the other players drop it if they already have it.
+        SignedPacket signed = journal == null ? null : journal.replaySent();
+        if (signed != null) {
+            if (!signed.packet.equals(packet) || (signed.packet.recipient == null
+                    ? packet.recipient != null : !signed.packet.recipient.equals(packet.recipient))) {
+                // We are not doing the same thing we did before the restart.
+                throw new JournalError();
+            }
+        } else {
+            signed = new SignedPacket(packet, sk.makeSignature(packet));
+
+            // It has to be on disk before anyone else can see it.
+            if (journal != null) {
+                journal.sent(signed);
+            }
+        }
 
-        // Don't send anything to ourselves or to a nonexistent player.
-        if (!packet.recipient.equals(sk.VerificationKey()) && players.contains(packet.recipient)) {
+        if (packet.recipient == null) {
+            // A packet for everyone can only be sent through a relay.
+            if (!(network instanceof Relay)) {
+                throw new IllegalArgumentException();
+            }
+
+            ((Relay) network).broadcast(signed);
+            if (notifier != null) {
+                notifier.sent(signed.copy());
+            }
+        } else if (!packet.recipient.equals(sk.VerificationKey()) && players.contains(packet.recipient)) {
+            // Don't send anything to ourselves or to a nonexistent player.
             network.sendTo(packet.recipient, signed);
+            if (notifier != null) {
+                notifier.sent(signed.copy());
+            }
         }
         history.add(signed.copy());
     }
@@ -68,7 +199,16 @@ public class Mailbox {
             throws FormatException, CryptographyError,
             InterruptedException, TimeoutError, InvalidImplementationError, ValueException {
 
+        return receiveNextPacket(expectedPhase, null);
+    }
+
+    // If from is not null, packets in the expected phase from anyone else are also kept for later.
+    private Packet receiveNextPacket(Phase expectedPhase, VerificationKey from)
+            throws FormatException, CryptographyError,
+            InterruptedException, TimeoutError, InvalidImplementationError, ValueException {
+
         SignedPacket found = null;
+        long since = waitingSince(expectedPhase);
 
         // Go through the queue of received messages if any are there.
         if (delivered.size() > 0) {
@@ -78,7 +218,7 @@ public class Mailbox {
                 Packet packet = next.packet;
 
                 // Return any that matches what we're looking for.
-                if (expectedPhase == packet.phase) {
+                if (expectedPhase == packet.phase && (from == null || from.equals(packet.signer))) {
                     i.remove();
                     found = next;
                     break;
@@ -89,7 +229,57 @@ public class Mailbox {
         // Now we wait for the right message from the network, since we haven't already received it.
         if (found == null) {
             while (true) {
-                SignedPacket next = network.receive();
+                // Packets received before a restart are read back from the journal first.
+                SignedPacket next = journal == null ? null : journal.replayReceived();
+                boolean replayed = next != null;
+                if (!replayed) {
+                    if (resend != null) {
+                        sendResendRequest();
+                    }
+
+                    try {
+                        next = network.receive(timeouts.timeout(expectedPhase, players), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutError e) {
+                        // In the blame phase, running out of time is how we know everyone is done.
+                        if (expectedPhase != Phase.Blame) {
+                            timeouts.timedOut(expectedPhase);
+                        }
+                        throw e;
+                    }
+
+                    // A relayed packet could have been forged by the relay, so check that
+                    // it really came from the player who signed it.
+                    if (next.packet.recipient == null && !verified.verify(next)) {
+                        log.warn("player " + sk.VerificationKey().toString() + " dropped relayed packet with invalid signature: " + next.toString());
+                        continue;
+                    }
+
+                    // The relay might send our own broadcasts back to us.
+                    if (next.packet.recipient == null && next.packet.signer.equals(sk.VerificationKey())) {
+                        continue;
+                    }
+                }
+
+                // A player who has restarted wants whatever we sent him. The request is not
+                // remembered, since he may have to ask again if he restarts again.
+                if (next.packet.phase == Phase.Resend) {
+                    if (session.equals(next.packet.session) && sk.VerificationKey().equals(next.packet.recipient)
+                            && players.contains(next.packet.signer)) {
+                        resend(next.packet.signer);
+                    }
+                    continue;
+                }
+
+                // A player who has restarted sends again whatever he sent before, which we may
+                // already have. Otherwise it would be taken for the next packet he sent.
+                if (!received.add(ByteBuffer.wrap(next.packet.digest()))) {
+                    log.debug("player " + sk.VerificationKey().toString() + " dropped duplicate packet: " + next.toString());
+                    continue;
+                }
+
+                if (!replayed && journal != null) {
+                    journal.received(next);
+                }
                 Packet packet = next.packet;
                 Phase phase = packet.phase;
 
@@ -98,13 +288,22 @@ public class Mailbox {
                     throw new ValueException(ValueException.Values.session, session.toString(), packet.session.toString());
                 }
 
-                // Check that this message is intended for us.
-                if (!packet.recipient.equals(sk.VerificationKey())) {
+                // Check that this message is intended for us. (A packet with no recipient is for everyone.)
+                if (packet.recipient != null && !packet.recipient.equals(sk.VerificationKey())) {
                     throw new ValueException(ValueException.Values.recipient, sk.VerificationKey().toString(), packet.recipient.toString());
                 }
 
-                if (expectedPhase == phase || phase == Phase.Blame) {
+                if (notifier != null) {
+                    notifier.received(next.copy());
+                }
+
+                if (expectedPhase == phase && (from == null || from.equals(packet.signer)) || phase == Phase.Blame) {
                     found = next;
+
+                    // Only broadcast phases tell us anything about how quickly a given peer responds.
+                    if (!replayed && expectedPhase == phase && !TimeoutPolicy.sequential(phase)) {
+                        timeouts.latency(packet.signer, System.currentTimeMillis() - since);
+                    }
                     break;
                 }
 
@@ -154,9 +353,55 @@ public class Mailbox {
             throw new ValueException(ValueException.Values.phase, packet.phase.toString(), expectedPhase.toString());
         }
 
+        // The sender had to wait for everyone before him to take their turn.
+        timeouts.completed(expectedPhase, position(from), System.currentTimeMillis() - waitingSince(expectedPhase));
+
         return packet.message;
     }
 
+    // Wait for a message from a given player when others may be sending in the same phase.
+    // Their messages are kept to be received later.
+    public Message waitFor(VerificationKey from, Phase expectedPhase)
+            throws TimeoutError, CryptographyError, FormatException, ValueException,
+            InvalidImplementationError, InterruptedException, BlameException {
+
+        Packet packet = receiveNextPacket(expectedPhase, from);
+
+        if (packet.phase == Phase.Blame && expectedPhase != Phase.Blame) {
+            throw new BlameException(packet.signer, packet);
+        }
+
+        return packet.message;
+    }
+
+    // Reads a message which is sent in several frames.
+    public interface FrameReader {
+        // Read the next frame and return whether more are expected.
+        boolean read(Message frame) throws FormatException, InvalidImplementationError;
+    }
+
+    // Receive a message from a given player which is sent in several frames. Each frame is
+    // handed to the reader as soon as it arrives, so the reader can work on it while the rest
+    // are still on their way.
+    public void receiveFrames(VerificationKey from, Phase expectedPhase, FrameReader reader)
+            throws TimeoutError, CryptographyError, FormatException, ValueException,
+            InvalidImplementationError, InterruptedException, BlameException {
+
+        while (true) {
+            Packet packet = receiveNextPacket(expectedPhase, from);
+
+            if (packet.phase == Phase.Blame && expectedPhase != Phase.Blame) {
+                throw new BlameException(packet.signer, packet);
+            }
+
+            if (!reader.read(packet.message)) {
+                break;
+            }
+        }
+
+        timeouts.completed(expectedPhase, position(from), System.currentTimeMillis() - waitingSince(expectedPhase));
+    }
+
     // Receive messages from a set of players, which may come in any order.
     public Map<VerificationKey, Message> receiveFromMultiple(
             Set<VerificationKey> from,
@@ -183,12 +428,15 @@ public class Mailbox {
             VerificationKey sender = packet.signer;
 
             if(broadcasts.containsKey(sender)) {
+                // An exact duplicate would have been dropped, so this is a different message.
                 throw new ProtocolException();
             }
             broadcasts.put(sender, packet.message);
             from.remove(sender);
         }
 
+        timeouts.completed(expectedPhase, 1, System.currentTimeMillis() - waitingSince(expectedPhase));
+
         return broadcasts;
     }
 
@@ -204,7 +452,7 @@ public class Mailbox {
         // First get the blame messages in history too.
         for (SignedPacket packet : history) {
             if (packet.packet.phase == Phase.Blame) {
-                blame.get(sk.VerificationKey()).add(packet.packet);
+                blame.get(packet.packet.signer).add(packet.packet);
             }
         }
 
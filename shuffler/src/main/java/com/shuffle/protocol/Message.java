@@ -6,6 +6,8 @@ import com.shuffle.bitcoin.EncryptionKey;
 import com.shuffle.bitcoin.Signature;
 import com.shuffle.protocol.blame.Blame;
 
+import java.math.BigInteger;
+
 /**
  * Created by Daniel Krawisz on 12/19/15.
  */
@@ -16,6 +18,7 @@ public interface Message {
     Message attach(Address addr);
     Message attach(Signature sig);
     Message attach(Blame blame);
+    Message attach(BigInteger number); // Used by DiceMix.
 
     Message attach(Message message) throws InvalidImplementationError;
 
@@ -23,6 +26,10 @@ public interface Message {
     Signature readSignature() throws FormatException;
     Address readAddress() throws FormatException;
     Blame readBlame() throws FormatException, CryptographyError;
+    BigInteger readNumber() throws FormatException;
 
     Message copy() throws InvalidImplementationError;
+
+    // Feed the contents of the message into a digest, in order, without reading them.
+    void digest(PacketDigest digest) throws InvalidImplementationError;
 }
@@ -2,6 +2,8 @@ package com.shuffle.protocol;
 
 import com.shuffle.bitcoin.VerificationKey;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A network to the network of shuffle participants.
  *
@@ -9,5 +11,7 @@ import com.shuffle.bitcoin.VerificationKey;
  */
 public interface Network {
     void sendTo(VerificationKey to, SignedPacket packet) throws InvalidImplementationError, TimeoutError;
-    SignedPacket receive() throws TimeoutError, InvalidImplementationError, InterruptedException;
+
+    // Wait for the next packet, throwing TimeoutError if none arrives within the given time.
+    SignedPacket receive(long timeout, TimeUnit unit) throws TimeoutError, InvalidImplementationError, InterruptedException;
 }
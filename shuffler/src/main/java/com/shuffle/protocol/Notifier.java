@@ -0,0 +1,116 @@
+package com.shuffle.protocol;
+
+import com.shuffle.protocol.blame.Blame;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Passes events from a ShuffleMachine to a ShuffleListener. The events are queued and handed
+ * to the executor in order, one at a time, so that the listener sees them in the order in which
+ * they happened regardless of how many threads the executor has.
+ */
+final class Notifier {
+    private static Logger log = LogManager.getLogger(Notifier.class);
+
+    final SessionIdentifier session;
+    final private ShuffleListener listener;
+    final private Executor executor;
+
+    final private Queue<Runnable> events = new LinkedList<>();
+    private boolean running = false; // Whether a task draining the queue has been handed to the executor.
+
+    Notifier(SessionIdentifier session, ShuffleListener listener, Executor executor) {
+        if (session == null || listener == null || executor == null) {
+            throw new NullPointerException();
+        }
+
+        this.session = session;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable next;
+                synchronized (Notifier.this) {
+                    next = events.poll();
+                    if (next == null) {
+                        running = false;
+                        return;
+                    }
+                }
+
+                try {
+                    next.run();
+                } catch (RuntimeException e) {
+                    // A broken listener should not stop the others from being called.
+                    log.warn("listener threw exception: ", e);
+                }
+            }
+        }
+    };
+
+    private void post(Runnable event) {
+        synchronized (this) {
+            events.add(event);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+
+        executor.execute(drain);
+    }
+
+    void phaseChanged(final Phase from, final Phase to) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.phaseChanged(session, from, to);
+            }
+        });
+    }
+
+    void sent(final SignedPacket packet) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.sent(session, packet);
+            }
+        });
+    }
+
+    void received(final SignedPacket packet) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.received(session, packet);
+            }
+        });
+    }
+
+    void blame(final Blame blame) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.blame(session, blame);
+            }
+        });
+    }
+
+    void completed(final ReturnState state) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.completed(session, state);
+            }
+        });
+    }
+}
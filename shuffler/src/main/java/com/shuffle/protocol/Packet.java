@@ -16,10 +16,15 @@ public class Packet {
     final SessionIdentifier session;
     final Phase phase;
     final VerificationKey signer;
-    final VerificationKey recipient;
+    final VerificationKey recipient; // null if the packet is for every player, as through a Relay.
+
+    // The digests of the message and of the whole packet. They are computed the first time
+    // they are needed, so the message must not be changed after the packet has been signed.
+    private volatile byte[] messageDigest = null;
+    private volatile byte[] digest = null;
 
     public Packet(Message message, SessionIdentifier session, Phase phase, VerificationKey signer, VerificationKey recipient) {
-        if (session == null || phase == null || signer == null || recipient == null) {
+        if (session == null || phase == null || signer == null) {
             throw new NullPointerException();
         }
 
@@ -46,7 +51,7 @@ public class Packet {
         int hash = message == null ? 0 : message.hashCode();
         hash = hash * 15 + session.hashCode();
         hash = hash * 15 + signer.hashCode();
-        hash = hash * 15 + recipient.hashCode();
+        hash = hash * 15 + (recipient == null ? 0 : recipient.hashCode());
         return hash;
     }
 
@@ -56,6 +61,49 @@ public class Packet {
     }
 
     public Packet copy() {
-        return new Packet(message.copy(), session, phase, signer, recipient);
+        Packet copy = new Packet(message.copy(), session, phase, signer, recipient);
+        copy.messageDigest = messageDigest;
+        copy.digest = digest;
+        return copy;
+    }
+
+    // The same message addressed to someone else. The message is not copied, and its digest is
+    // only computed once for all the packets made this way.
+    Packet to(VerificationKey recipient) {
+        Packet packet = new Packet(message, session, phase, signer, recipient);
+        packet.messageDigest = messageDigest;
+        return packet;
+    }
+
+    // The digest of the packet, which is what is signed. It covers the session, the phase,
+    // the signer, the recipient, and the contents of the message.
+    public byte[] digest() throws InvalidImplementationError {
+        byte[] d = digest;
+        if (d == null) {
+            byte[] m = messageDigest;
+            if (m == null) {
+                PacketDigest md = new PacketDigest();
+                if (message != null) {
+                    message.digest(md);
+                }
+                m = md.digest();
+                messageDigest = m;
+            }
+
+            PacketDigest pd = new PacketDigest();
+            pd.update(session.protocol()).update(session.version()).update(session.id());
+            pd.update(phase.name());
+            signer.digest(pd);
+            pd.update(recipient != null);
+            if (recipient != null) {
+                recipient.digest(pd);
+            }
+            pd.update(m);
+
+            d = pd.digest();
+            digest = d;
+        }
+
+        return d.clone();
     }
 }
@@ -0,0 +1,85 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.CryptographyError;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the SHA-256 digest of a canonical encoding of a packet, which is fed in one field at
+ * a time rather than being put together first. Integers are big-endian, and anything of variable
+ * length is preceded by its length, so that different sequences of fields never produce the same
+ * encoding. Implementations of Message and VerificationKey use this to feed in their contents.
+ */
+public final class PacketDigest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MessageDigest sha;
+    private final byte[] buffer = new byte[8];
+    private long length = 0; // The number of bytes fed in so far.
+
+    public PacketDigest() {
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CryptographyError();
+        }
+    }
+
+    public PacketDigest update(boolean b) {
+        sha.update(b ? (byte) 1 : (byte) 0);
+        length++;
+        return this;
+    }
+
+    public PacketDigest update(byte b) {
+        sha.update(b);
+        length++;
+        return this;
+    }
+
+    public PacketDigest update(int n) {
+        for (int i = 0; i < 4; i++) {
+            buffer[i] = (byte) (n >>> (24 - 8 * i));
+        }
+        sha.update(buffer, 0, 4);
+        length += 4;
+        return this;
+    }
+
+    public PacketDigest update(long n) {
+        for (int i = 0; i < 8; i++) {
+            buffer[i] = (byte) (n >>> (56 - 8 * i));
+        }
+        sha.update(buffer, 0, 8);
+        length += 8;
+        return this;
+    }
+
+    public PacketDigest update(byte[] bytes) {
+        update(bytes.length);
+        sha.update(bytes);
+        length += bytes.length;
+        return this;
+    }
+
+    public PacketDigest update(String string) {
+        return update(string.getBytes(UTF8));
+    }
+
+    public PacketDigest update(BigInteger number) {
+        return update(number.toByteArray());
+    }
+
+    // The length of the encoding that has been fed in so far.
+    public long length() {
+        return length;
+    }
+
+    // Finish the digest. The object cannot be used after this.
+    public byte[] digest() {
+        return sha.digest();
+    }
+}
@@ -12,4 +12,5 @@ public enum Phase {
     VerificationAndSubmission, // Generate transaction, distribute signatures, and send it off.
     Completed,
     Blame, // Someone has attempted to cheat.
+    Resend, // A player who has restarted asks the others to send again what he may have missed.
 }
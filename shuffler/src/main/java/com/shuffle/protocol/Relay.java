@@ -0,0 +1,13 @@
+package com.shuffle.protocol;
+
+/**
+ * A network in which some intermediary, such as the moderator, can pass a packet on to every
+ * player at once. A player uploads a broadcast once rather than once per player, and the relay
+ * forwards the same signed packet to everyone else. Recipients check the original signature,
+ * so the relay is trusted no more than any other part of the network.
+ *
+ * A packet which is to go to everyone has no recipient.
+ */
+public interface Relay extends Network {
+    void broadcast(SignedPacket packet) throws InvalidImplementationError, TimeoutError;
+}
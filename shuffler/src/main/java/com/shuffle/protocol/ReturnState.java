@@ -2,6 +2,8 @@ package com.shuffle.protocol;
 
 import com.shuffle.protocol.blame.Matrix;
 
+import java.util.concurrent.ExecutionException;
+
 /**
  * An error state that the protocol returns if the it fails.
  *
@@ -14,12 +16,32 @@ public class ReturnState {
     Throwable error = null;
     Matrix blame = null;
 
-    public ReturnState(boolean success, SessionIdentifier session, Phase phase, Throwable error, Matrix blame) {
+    // What became of the shuffle transaction, if it was sent in the background. (may be null)
+    Submitter.Submission submission = null;
+
+    public ReturnState(
+            boolean success,
+            SessionIdentifier session,
+            Phase phase,
+            Throwable error,
+            Matrix blame,
+            Submitter.Submission submission) {
         this.success = success;
         this.session = session;
         this.phase = phase;
         this.error = error;
         this.blame = blame;
+        this.submission = submission;
+    }
+
+    public ReturnState(boolean success, SessionIdentifier session, Phase phase, Throwable error, Matrix blame) {
+        this(success, session, phase, error, blame, null);
+    }
+
+    // Tells whether the network took the transaction, once it knows. (null if the protocol
+    // failed or sent the transaction itself)
+    public Submitter.Submission submission() {
+        return submission;
     }
 
     protected ReturnState() {}
@@ -42,6 +64,15 @@ public class ReturnState {
         }
 
         if (success) {
+            if (submission != null && submission.isDone()) {
+                boolean seen;
+                try {
+                    seen = submission.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    seen = false;
+                }
+                return "Successful run" + session + (seen ? "; transaction seen" : "; transaction not seen");
+            }
             return "Successful run" + session;
         }
 
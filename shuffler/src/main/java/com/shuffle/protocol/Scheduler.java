@@ -0,0 +1,319 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.VerificationKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the players of a simulation one at a time on a virtual clock, so that a simulation does
+ * exactly the same thing every time it is run with the same seed.
+ *
+ * Every player still has a thread of its own, since the protocol is written to block while it
+ * waits for messages, but only one of them is allowed to run at a time and the others wait
+ * for the scheduler to hand them the turn. A player gives up the turn when it waits for a
+ * message that has not arrived. When nobody is running, the scheduler delivers one of the
+ * packets in flight, chosen with its own random number generator, and gives the turn to the
+ * player who receives it. If nothing is in flight, the clock jumps ahead to the first player
+ * whose wait has run out, who then times out without any real time passing.
+ *
+ * If there are Links, they decide when each packet arrives or whether it is lost. Otherwise
+ * packets arrive as soon as they are sent.
+ */
+final class Scheduler<V> {
+
+    // Called on the scheduler's thread when a packet arrives, which should put it in the
+    // player's inbox.
+    interface Delivery {
+        void deliver(VerificationKey to, SignedPacket packet) throws InterruptedException;
+    }
+
+    // How long the players wait for messages, in virtual milliseconds. Waiting costs nothing,
+    // so it is long enough that nobody times out unless something is really wrong.
+    static final long TIMEOUT = 600000;
+
+    // A policy which always gives the same timeout, since the usual one learns from how much
+    // real time passes.
+    static TimeoutPolicy timeouts() {
+        return new TimeoutPolicy(TIMEOUT, TIMEOUT, TIMEOUT);
+    }
+
+    private enum State {
+        Ready, // Has not run yet.
+        Running,
+        Waiting, // Waiting for a message.
+        Finished
+    }
+
+    private static final class Event {
+        final long at; // When the packet arrives.
+        final VerificationKey to;
+        final SignedPacket packet;
+
+        Event(long at, VerificationKey to, SignedPacket packet) {
+            this.at = at;
+            this.to = to;
+            this.packet = packet;
+        }
+    }
+
+    // A player run by the scheduler. Everything here is guarded by the scheduler.
+    final class Process implements Runnable {
+        final VerificationKey key;
+        final int index; // Starting from 1, in the order in which the players were added.
+        final Queue<SignedPacket> inbox; // Filled by the Delivery.
+        final FutureTask<V> task;
+
+        private State state = State.Ready;
+        private long deadline = Long.MAX_VALUE;
+
+        private Process(VerificationKey key, int index, Queue<SignedPacket> inbox, Callable<V> task) {
+            this.key = key;
+            this.index = index;
+            this.inbox = inbox;
+            this.task = new FutureTask<>(task);
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (Scheduler.this) {
+                    while (running != this) {
+                        Scheduler.this.wait();
+                    }
+                }
+                task.run();
+            } catch (InterruptedException e) {
+                task.cancel(false);
+            } finally {
+                synchronized (Scheduler.this) {
+                    state = State.Finished;
+                    if (running == this) {
+                        running = null;
+                    }
+                    Scheduler.this.notifyAll();
+                }
+            }
+        }
+
+        // Used by the player's network in place of waiting for real.
+        SignedPacket receive(long timeout, TimeUnit unit) throws TimeoutError, InterruptedException {
+            synchronized (Scheduler.this) {
+                SignedPacket next = inbox.poll();
+                if (next != null) {
+                    return next;
+                }
+
+                // Give up the turn until something arrives or we time out.
+                state = State.Waiting;
+                deadline = now + Math.min(unit.toMillis(timeout), Long.MAX_VALUE - now);
+                running = null;
+                Scheduler.this.notifyAll();
+                while (running != this) {
+                    Scheduler.this.wait();
+                }
+
+                next = inbox.poll();
+                if (next == null) {
+                    throw new TimeoutError();
+                }
+                return next;
+            }
+        }
+    }
+
+    private final Random random;
+    private final Links links; // (may be null)
+    private final Delivery delivery;
+
+    private final Map<VerificationKey, Process> processes = new LinkedHashMap<>();
+    private final List<Event> events = new ArrayList<>(); // Packets in flight.
+
+    // When each link will be done sending what it has already been given, for links with
+    // limited bandwidth.
+    private final Map<Long, Long> busy = new HashMap<>();
+
+    private long now = 0; // The virtual time in milliseconds.
+    private Process running = null; // The player who has the turn.
+
+    Scheduler(
+            long seed,
+            Links links, // (may be null)
+            Delivery delivery) {
+        if (delivery == null) {
+            throw new NullPointerException();
+        }
+
+        random = new Random(seed);
+        this.links = links;
+        this.delivery = delivery;
+    }
+
+    synchronized Process add(VerificationKey key, Queue<SignedPacket> inbox, Callable<V> task) {
+        if (key == null || inbox == null || task == null) {
+            throw new NullPointerException();
+        }
+
+        Process process = new Process(key, processes.size() + 1, inbox, task);
+        processes.put(key, process);
+        return process;
+    }
+
+    // Put a packet in flight. It is delivered later, by the scheduler.
+    synchronized void send(VerificationKey to, SignedPacket packet) throws InvalidImplementationError {
+        long at = now;
+
+        Process sender = processes.get(packet.packet.signer);
+        Process receiver = processes.get(to);
+        if (links != null && sender != null && receiver != null) {
+            at = arrival(sender.index, receiver.index, packet);
+            if (at < 0) {
+                return; // Lost.
+            }
+        }
+
+        events.add(new Event(at, to, packet));
+    }
+
+    // When a packet sent now would arrive, or -1 if it is lost.
+    private long arrival(int from, int to, SignedPacket packet) throws InvalidImplementationError {
+        if (links.partitioned(from, to, now)) {
+            return -1;
+        }
+
+        Links.Link link = links.link(from, to);
+        if (link.loss > 0 && random.nextDouble() < link.loss) {
+            return -1;
+        }
+
+        // A packet has to wait for the ones before it on the same link to be sent.
+        long sent = now;
+        if (link.bandwidth > 0) {
+            long key = ((long) from << 32) | to;
+            Long free = busy.get(key);
+            long start = free == null ? now : Math.max(now, free);
+            sent = start + (Links.size(packet) * 1000 + link.bandwidth - 1) / link.bandwidth;
+            busy.put(key, sent);
+        }
+
+        long jitter = link.jitter == 0 ? 0 : (long) (random.nextDouble() * (link.jitter + 1));
+        return sent + link.latency + jitter;
+    }
+
+    synchronized long now() {
+        return now;
+    }
+
+    // Run every player until all have finished. Each player's result is left in its task.
+    // There must be a thread in the executor for every player, since they all wait at once.
+    void run(ExecutorService executor) throws InterruptedException {
+        List<Future<?>> threads = new ArrayList<>();
+        boolean finished = false;
+
+        try {
+            synchronized (this) {
+                for (Process process : processes.values()) {
+                    threads.add(executor.submit(process));
+                }
+
+                while (true) {
+                    while (running != null) {
+                        wait();
+                    }
+
+                    Process next = next();
+                    if (next == null) {
+                        finished = true;
+                        return;
+                    }
+
+                    next.state = State.Running;
+                    running = next;
+                    notifyAll();
+                }
+            }
+        } finally {
+            if (!finished) {
+                for (Future<?> thread : threads) {
+                    thread.cancel(true);
+                }
+            }
+        }
+    }
+
+    // Decide who runs next, delivering packets along the way. Returns null when everyone has
+    // finished.
+    private Process next() throws InterruptedException {
+        // Players who have not started go first, in random order.
+        List<Process> ready = new ArrayList<>();
+        for (Process process : processes.values()) {
+            if (process.state == State.Ready) {
+                ready.add(process);
+            }
+        }
+        if (!ready.isEmpty()) {
+            return ready.get(random.nextInt(ready.size()));
+        }
+
+        while (true) {
+            long deadline = Long.MAX_VALUE;
+            for (Process process : processes.values()) {
+                if (process.state == State.Waiting) {
+                    deadline = Math.min(deadline, process.deadline);
+                }
+            }
+
+            long at = Long.MAX_VALUE;
+            for (Event event : events) {
+                at = Math.min(at, event.at);
+            }
+
+            if (at == Long.MAX_VALUE && deadline == Long.MAX_VALUE) {
+                return null;
+            }
+
+            if (at <= deadline) {
+                // Deliver one of the earliest packets.
+                List<Integer> earliest = new ArrayList<>();
+                for (int i = 0; i < events.size(); i++) {
+                    if (events.get(i).at == at) {
+                        earliest.add(i);
+                    }
+                }
+                Event event = events.remove((int) earliest.get(random.nextInt(earliest.size())));
+                now = Math.max(now, event.at);
+
+                Process to = processes.get(event.to);
+                if (to == null || to.state == State.Finished) {
+                    continue;
+                }
+
+                delivery.deliver(event.to, event.packet);
+                if (to.state == State.Waiting) {
+                    return to;
+                }
+                continue;
+            }
+
+            // Nothing arrives in time, so somebody times out.
+            now = deadline;
+            List<Process> expired = new ArrayList<>();
+            for (Process process : processes.values()) {
+                if (process.state == State.Waiting && process.deadline == deadline) {
+                    expired.add(process);
+                }
+            }
+            return expired.get(random.nextInt(expired.size()));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.shuffle.protocol;
+
+import com.shuffle.protocol.blame.Blame;
+
+/**
+ * Receives updates on the progress of a ShuffleMachine. The callbacks are run on an executor
+ * provided along with the listener, never on the thread running the protocol. Callbacks from the
+ * same machine are run one at a time and in the order in which the events occurred.
+ */
+public interface ShuffleListener {
+    // The machine moved from one phase to another.
+    void phaseChanged(SessionIdentifier session, Phase from, Phase to);
+
+    // A packet was sent to another player.
+    void sent(SessionIdentifier session, SignedPacket packet);
+
+    // A packet was received from another player.
+    void received(SessionIdentifier session, SignedPacket packet);
+
+    // The machine accused another player of something.
+    void blame(SessionIdentifier session, Blame blame);
+
+    // The machine is done, successfully or otherwise. No more callbacks will follow.
+    void completed(SessionIdentifier session, ReturnState state);
+}
@@ -0,0 +1,135 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Signature;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers signatures that have already been checked, so that they don't have to be checked again.
+ *
+ * The same packets are verified several times. Once when they are received, and then again each
+ * time they are sent back as evidence in a blame message. In the blame phase, every player sends
+ * his history to every other, so without a cache every player would verify about N^2 packets.
+ *
+ * Only valid signatures are remembered, so that nobody can fill up the cache with garbage. Each
+ * session has its own cache, since nothing signed in one session is seen in another. When the
+ * cache is full, the oldest entries are forgotten first.
+ *
+ * A signature is remembered by the bytes it signs, so a transaction must be the same as one
+ * which has been checked before, not merely equal to it, for the check to be skipped.
+ */
+public final class SignatureCache {
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    // A signature together with what it signs and the key which is supposed to have signed it.
+    private static final class Entry {
+        final VerificationKey key;
+        final byte[] digest; // The digest of a packet or the signature hash of a transaction.
+        final Signature signature;
+        final int hash;
+
+        Entry(VerificationKey key, byte[] digest, Signature signature) {
+            this.key = key;
+            this.digest = digest;
+            this.signature = signature;
+
+            int hash = key.hashCode();
+            hash = hash * 31 + Arrays.hashCode(digest);
+            this.hash = hash * 31 + signature.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+
+            Entry e = (Entry)o;
+
+            return hash == e.hash && key.equals(e.key) && Arrays.equals(digest, e.digest)
+                    && signature.equals(e.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final int capacity;
+    private final Set<Entry> valid = Collections.newSetFromMap(new ConcurrentHashMap<Entry, Boolean>());
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>(); // Oldest first.
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    public SignatureCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+    }
+
+    public boolean verify(SignedPacket signed) {
+        if (signed == null) {
+            throw new NullPointerException();
+        }
+
+        Packet packet = signed.packet;
+        Entry entry = new Entry(packet.signer, packet.digest(), signed.signature);
+        if (valid.contains(entry)) {
+            return true;
+        }
+
+        if (!packet.signer.verify(packet, signed.signature)) {
+            return false;
+        }
+
+        remember(entry);
+        return true;
+    }
+
+    public boolean verify(VerificationKey key, Transaction t, Signature signature) throws InvalidImplementationError {
+        if (key == null || t == null || signature == null) {
+            throw new NullPointerException();
+        }
+
+        Entry entry = new Entry(key, t.sighash(key), signature);
+        if (valid.contains(entry)) {
+            return true;
+        }
+
+        if (!key.verify(t, signature)) {
+            return false;
+        }
+
+        remember(entry);
+        return true;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private void remember(Entry entry) {
+        if (!valid.add(entry)) {
+            return; // Another thread got here first.
+        }
+
+        // Every new entry pushes out at most one old one, so the size stays near the capacity.
+        order.add(entry);
+        if (size.incrementAndGet() > capacity) {
+            Entry oldest = order.poll();
+            if (oldest != null) {
+                valid.remove(oldest);
+                size.decrementAndGet();
+            }
+        }
+    }
+}
@@ -11,21 +11,31 @@ import com.shuffle.bitcoin.VerificationKey;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,10 +45,12 @@ import java.util.concurrent.TimeUnit;
  * Created by Daniel Krawisz on 12/6/15.
  */
 public final class Simulator {
-    ConcurrentMap<VerificationKey, BlackBox> machines;
-    //long amount;
     final MessageFactory messages;
     final Crypto crypto;
+
+    // Runs the players. Every player blocks while it waits for messages, so there must be at
+    // least as many threads as there are players in all the simulations running at once.
+    final ExecutorService executor;
     private static Logger log= LogManager.getLogger(Simulator.class);
 
     public interface MockCoin extends Coin {
@@ -55,6 +67,8 @@ public final class Simulator {
     private class Network implements com.shuffle.protocol.Network {
         MessageReplacement malicious; // Can be used to replace messages with malicious ones.
         final BlockingQueue<SignedPacket> inbox = new LinkedBlockingQueue<>();
+        Simulation simulation; // The simulation in which the player takes part.
+        Scheduler<Map.Entry<SigningKey, ReturnState>>.Process process; // (null unless the simulation is deterministic)
 
         Network() {
         }
@@ -88,7 +102,7 @@ public final class Simulator {
             }
 
             try {
-                Simulator.this.sendTo(to, copy);
+                simulation.sendTo(to, copy);
             } catch (InterruptedException e) {
                 // This means that the thread running the machine we are delivering to has been interrupted.
                 // This would look like a timeout if this were happening over a real network.
@@ -97,8 +111,12 @@ public final class Simulator {
         }
 
         @Override
-        public SignedPacket receive() throws TimeoutError, InterruptedException {
-            SignedPacket next = inbox.poll(1, TimeUnit.SECONDS);
+        public SignedPacket receive(long timeout, TimeUnit unit) throws TimeoutError, InterruptedException {
+            if (process != null) {
+                return process.receive(timeout, unit);
+            }
+
+            SignedPacket next = inbox.poll(timeout, unit);
             if (next == null) {
                 throw new TimeoutError();
             }
@@ -110,6 +128,28 @@ public final class Simulator {
         }
     }
 
+    // A network which also acts as a relay, forwarding broadcasts to every other player.
+    private class RelayNetwork extends Network implements Relay {
+        @Override
+        public void broadcast(SignedPacket packet) throws InvalidImplementationError, TimeoutError {
+            SignedPacket copy = packet.copy();
+
+            if (malicious != null) {
+                try {
+                    copy = malicious.replace(copy);
+                } catch (FormatException e) {
+                    log.error("Error broadcasting ", e);
+                }
+            }
+
+            try {
+                simulation.broadcast(copy);
+            } catch (InterruptedException e) {
+                throw new TimeoutError();
+            }
+        }
+    }
+
     public class Composition implements MessageReplacement {
         MessageReplacement first;
         MessageReplacement rest;
@@ -133,6 +173,7 @@ public final class Simulator {
         final CoinShuffle shuffle;
         final CoinShuffle.ShuffleMachine machine;
         Network network;
+        final com.shuffle.protocol.Network traced; // What the machine runs on, which may be recorded.
         final SigningKey sk;
         final SortedSet<VerificationKey> players;
 
@@ -145,16 +186,41 @@ public final class Simulator {
                 long amount,
                 SigningKey sk,
                 SortedSet<VerificationKey> players,
+                Map<VerificationKey, List<VerificationKey>> inputs,
+                List<SigningKey> inputKeys,
                 Coin coin,
-                Transaction t) {
+                Transaction t,
+                boolean relay, // Whether broadcasts go through a relay.
+                int digestThreshold, // How many players before the output vector is sent as a digest.
+                int frameSize, // The most addresses sent in one packet in the shuffle phase.
+                int groupSize, // How many players before they are split into groups.
+                DiceMix.Codec dicemix, // If not null, the players use DiceMix.
+                TimeoutPolicy timeouts,
+                Trace.Recorder recorder, // Records what the player does. (may be null)
+                ShuffleListener listener, // Is told about the player's progress. (may be null)
+                Executor executor) { // Runs the listener's callbacks. (may be null if listener is)
             this.session = session;
             this.sk = sk;
             this.coin = coin;
-            this.network = new Network();
+            this.network = relay ? new RelayNetwork() : new Network();
+            this.traced = recorder == null ? network : recorder.network(network);
             this.players = players;
             this.t = t;
-            shuffle = new CoinShuffle(messages, crypto, coin);
-            this.machine = shuffle.new ShuffleMachine(session, amount, sk, players, null, 1, 2);
+            CoinShuffle.Options options = new CoinShuffle.Options().timeouts(timeouts)
+                    .digestThreshold(digestThreshold).frameSize(frameSize).groupSize(groupSize);
+            shuffle = new CoinShuffle(messages, recorder == null ? crypto : recorder.crypto(crypto), coin, options);
+
+            CoinShuffle.SessionOptions sessionOptions = new CoinShuffle.SessionOptions().dicemix(dicemix);
+            if (inputs != null) {
+                sessionOptions.inputs(inputs, inputKeys);
+            }
+            if (listener != null) {
+                sessionOptions.listener(listener, executor);
+            }
+            this.machine = shuffle.new ShuffleMachine(session, amount, sk, players, null, 1, 2, sessionOptions);
+            if (t != null) {
+                network.addReplacement(new DoubleSpend());
+            }
         }
 
         Adversary lie(MessageReplacement lie) {
@@ -162,6 +228,20 @@ public final class Simulator {
             return this;
         }
 
+        // Part way through the protocol, send the malicious bitcoin transaction. It goes out just
+        // before his hash in phase 4, which nobody can get past without, so that it is always in
+        // the network by the time anyone makes the shuffle transaction.
+        class DoubleSpend implements MessageReplacement {
+            @Override
+            public SignedPacket replace(SignedPacket sigPacket) {
+                if (sigPacket.packet.phase == Phase.EquivocationCheck && !transactionSent) {
+                    t.send();
+                    transactionSent = true;
+                }
+                return sigPacket;
+            }
+        }
+
         // A player sends different encryption keys to different players.
         public class EquivocateEncryptionKeys implements MessageReplacement {
             final Set<VerificationKey> others;
@@ -190,7 +270,8 @@ public final class Simulator {
             public SignedPacket replace(SignedPacket sigPacket) {
                 Packet packet = sigPacket.packet;
 
-                if (packet.phase == Phase.Announcement && others.contains(packet.recipient)) {
+                // A player can't equivocate through a relay, since everyone gets the same packet.
+                if (packet.phase == Phase.Announcement && packet.recipient != null && others.contains(packet.recipient)) {
                     Message message = packet.message.copy();
 
                     // Sometimes a change address is included with message 1.
@@ -243,7 +324,12 @@ public final class Simulator {
 
             @Override
             public SignedPacket replace(SignedPacket packet) {
-                if (packet.packet.phase == Phase.BroadcastOutput && others.contains(packet.packet.recipient)) {
+                if (packet.packet.phase == Phase.BroadcastOutput && packet.packet.recipient != null && others.contains(packet.packet.recipient)) {
+                    // If the output vector is sent as a digest, send a different chunk with the same digest.
+                    if (addresses(packet.packet) == null) {
+                        return rechunk(packet.packet, 0);
+                    }
+
                     if (alternate == null) {
                         // Reshuffle the packet we just got.
                         try {
@@ -261,7 +347,86 @@ public final class Simulator {
             }
         }
 
-        // Drop an address in phase 2.
+        // The addresses in a packet in which the player passes on the shuffled outputs, which
+        // is any packet in phase 2, and a broadcast of the outputs in phase 3. (null if the
+        // packet is anything else)
+        List<Address> addresses(Packet packet) {
+            if (packet.phase != Phase.Shuffling && packet.phase != Phase.BroadcastOutput) {
+                return null;
+            }
+
+            List<Address> addresses = new ArrayList<>();
+            Message message = packet.message.copy();
+            try {
+                while (!message.isEmpty()) {
+                    addresses.add(message.readAddress());
+                }
+            } catch (FormatException e) {
+                // Not just addresses, so it's something else, like a digest.
+                return null;
+            }
+
+            return addresses.isEmpty() ? null : addresses;
+        }
+
+        // Sign a packet with the same header and a different list of addresses.
+        SignedPacket resign(Packet packet, List<Address> addresses) {
+            Message message = messages.make();
+            for (Address address : addresses) {
+                message.attach(address);
+            }
+
+            Packet newPacket = new Packet(message, packet.session, packet.phase, packet.signer, packet.recipient);
+            return new SignedPacket(newPacket, sk.makeSignature(newPacket));
+        }
+
+        // Replace the chunk at the start of a packet in which the output vector is sent as a
+        // digest with new addresses, leaving out the given number of them, and keep the digest.
+        SignedPacket rechunk(Packet packet, int drop) {
+            Message message = packet.message.copy();
+            int count = 0;
+            try {
+                while (true) {
+                    message.readAddress();
+                    count++;
+                }
+            } catch (FormatException e) {
+                // What's left is the digest.
+            }
+
+            Message chunk = messages.make();
+            for (int i = drop; i < count; i++) {
+                chunk.attach(crypto.makeSigningKey().VerificationKey().address());
+            }
+            chunk.attach(message);
+
+            Packet newPacket = new Packet(chunk, packet.session, packet.phase, packet.signer, packet.recipient);
+            return new SignedPacket(newPacket, sk.makeSignature(newPacket));
+        }
+
+        // The last player sends some players less than their whole chunk of the output vector.
+        public class ShortChunk implements MessageReplacement {
+            final Set<VerificationKey> others = new TreeSet<>();
+
+            public ShortChunk(int[] others) {
+                for (int i : others) {
+                    this.others.add(new ArrayList<>(players).get(i - 1));
+                }
+            }
+
+            @Override
+            public SignedPacket replace(SignedPacket packet) {
+                if (packet.packet.phase == Phase.BroadcastOutput && packet.packet.recipient != null
+                        && others.contains(packet.packet.recipient) && addresses(packet.packet) == null) {
+                    return rechunk(packet.packet, 1);
+                }
+
+                return packet;
+            }
+        }
+
+        // Drop an address in phase 2, or from the outputs if he broadcasts them in phase 3.
+        // Addresses are counted from 1, and around again if there are fewer than that.
         public class DropAddress implements MessageReplacement {
             int drop;
 
@@ -271,32 +436,17 @@ public final class Simulator {
 
             @Override
             public SignedPacket replace(SignedPacket sigPacket) throws FormatException {
-                Packet packet = sigPacket.packet;
-
-                if (packet.phase == Phase.Shuffling) {
-                    // drop a random address from the packet.
-                    List<Address> addresses = new LinkedList<>();
-                    Message message = packet.message.copy();
-
-                    while (!message.isEmpty()) {
-                        addresses.add(message.readAddress());
-                    }
-
-                    int i = 0;
-                    for (Address address : addresses) {
-                        if (i != drop) {
-                            message.attach(address);
-                        }
-                    }
-
-                    Packet newPacket = new Packet(message, packet.session, packet.phase, packet.signer, packet.recipient);
-                    return new SignedPacket(newPacket, sk.makeSignature(newPacket));
+                List<Address> addresses = addresses(sigPacket.packet);
+                if (addresses == null) {
+                    return sigPacket;
                 }
-                return sigPacket;
+
+                addresses.remove((drop - 1) % addresses.size());
+                return resign(sigPacket.packet, addresses);
             }
         }
 
-        // Drop an address and replace with a duplicate in phase 2.
+        // Drop an address and replace it with a duplicate of another.
         public class DropAddressReplaceDuplicate implements MessageReplacement {
             int drop;
             int duplicate;
@@ -308,35 +458,28 @@ public final class Simulator {
 
             @Override
             public SignedPacket replace(SignedPacket sigPacket) throws FormatException {
-                Packet packet = sigPacket.packet;
-
-                if (packet.phase == Phase.Shuffling) {
-                    // drop a random address from the packet.
-                    List<Address> addresses = new LinkedList<>();
-                    Message message = packet.message.copy();
+                List<Address> addresses = addresses(sigPacket.packet);
+                if (addresses == null) {
+                    return sigPacket;
+                }
 
-                    while (!message.isEmpty()) {
-                        addresses.add(message.readAddress());
-                    }
-                    Address duplicate = addresses.get(this.duplicate);
-
-                    int i = 0;
-                    for (Address address : addresses) {
-                        if (i != drop) {
-                            message.attach(address);
-                        } else {
-                            message.attach(duplicate);
-                        }
-                    }
+                int dropped = (drop - 1) % addresses.size();
+                int duplicated = (duplicate - 1) % addresses.size();
+                if (duplicated == dropped) {
+                    duplicated = (duplicated + 1) % addresses.size();
+                }
 
-                    Packet newPacket = new Packet(message, packet.session, packet.phase, packet.signer, packet.recipient);
-                    return new SignedPacket(newPacket, sk.makeSignature(newPacket));
+                if (duplicated == dropped) {
+                    // There is only one address, so there is nothing else to duplicate.
+                    addresses.remove(dropped);
+                } else {
+                    addresses.set(dropped, addresses.get(duplicated));
                 }
-                return sigPacket;
+                return resign(sigPacket.packet, addresses);
             }
         }
 
-        // Drop an address and replace with a new one in phase 2.
+        // Drop an address and replace it with a new one.
         public class DropAddressReplaceNew implements MessageReplacement {
             final Address alternate;
             int drop;
@@ -348,26 +491,28 @@ public final class Simulator {
 
             @Override
             public SignedPacket replace(SignedPacket sigPacket) throws FormatException {
-                Packet packet = sigPacket.packet;
-                if (packet.phase == Phase.Shuffling) {
-                    // drop a random address from the packet.
-                    List<Address> addresses = new LinkedList<>();
-                    Message message = packet.message.copy();
+                List<Address> addresses = addresses(sigPacket.packet);
+                if (addresses == null) {
+                    return sigPacket;
+                }
 
-                    while (!message.isEmpty()) {
-                        addresses.add(message.readAddress());
-                    }
+                addresses.set((drop - 1) % addresses.size(), alternate);
+                return resign(sigPacket.packet, addresses);
+            }
+        }
 
-                    int i = 0;
-                    for (Address address : addresses) {
-                        if (i != drop) {
-                            message.attach(address);
-                        } else {
-                            message.attach(alternate);
-                        }
-                    }
+        // Change what is broadcast in the DC-net in phase 3, when the players use DiceMix.
+        public class DisruptDCNet implements MessageReplacement {
 
-                    Packet newPacket = new Packet(message, packet.session, packet.phase, packet.signer, packet.recipient);
+            @Override
+            public SignedPacket replace(SignedPacket sigPacket) throws FormatException {
+                Packet packet = sigPacket.packet;
+                if (packet.phase == Phase.BroadcastOutput) {
+                    Message message = packet.message.copy();
+                    Message disrupted = messages.make().attach(message.readNumber().add(BigInteger.ONE).mod(DiceMix.P));
+                    disrupted.attach(message);
+
+                    Packet newPacket = new Packet(disrupted, packet.session, packet.phase, packet.signer, packet.recipient);
                     return new SignedPacket(newPacket, sk.makeSignature(newPacket));
                 }
                 return sigPacket;
@@ -380,7 +525,7 @@ public final class Simulator {
 
         public ReturnState turnOn() throws InvalidImplementationError {
             try {
-                return machine.run(network);
+                return machine.run(traced);
             } catch (InterruptedException e) {
                 return new ReturnState(false, session, machine.currentPhase(), e, null);
             }
@@ -391,11 +536,6 @@ public final class Simulator {
         }
 
         public void deliver(SignedPacket packet) throws InterruptedException {
-            // Part way through the protocol, send the malicious bitcoin transaction. 
-            if (packet.packet.phase == Phase.EquivocationCheck && !transactionSent && t != null) {
-                t.send();
-                transactionSent = true;
-            }
             network.deliver(packet);
         }
 
@@ -404,157 +544,176 @@ public final class Simulator {
         }
     }
 
-    // A wrapper for an adversary that can run a player as a separate thread. Could be good or evil!
-    private class BlackBox implements Runnable {
-        Adversary machine;
-        Thread thread;
-
-        // Used to send a message from the new thread to the old one.
-        BlockingQueue<ReturnState> q;
+    // A wrapper for an adversary that can run a player on the executor. Could be good or evil!
+    private class BlackBox implements Callable<Map.Entry<SigningKey, ReturnState>> {
+        final Adversary machine;
 
         public BlackBox(Adversary machine) {
             this.machine = machine;
-            thread = null;
-            q = new LinkedBlockingQueue<>();
         }
 
         public void deliver(SignedPacket packet) throws InvalidImplementationError, InterruptedException {
             machine.deliver(packet);
         }
 
-        public void interrupt() {
-            if (thread != null) {
-                thread.interrupt();
+        @Override
+        public Map.Entry<SigningKey, ReturnState> call() {
+            ReturnState result;
+            try {
+                result = machine.turnOn();
+            } catch (InvalidImplementationError e) {
+                result = new ReturnState(false, machine.session(), machine.currentPhase(), e, null);
             }
+            return new AbstractMap.SimpleImmutableEntry<>(machine.identity(), result);
         }
+    }
 
-        public Future<Map.Entry<SigningKey, ReturnState>> doIt() {
-            class entry implements Map.Entry<SigningKey, ReturnState> {
-                SigningKey key;
-                ReturnState re;
-
-                public entry(SigningKey key, ReturnState re) {
-                    this.key = key;
-                    this.re = re;
-                }
+    // The players in a single run of the protocol. Simulations don't share anything, so any
+    // number of them can run at the same time.
+    private class Simulation implements Scheduler.Delivery {
+        // In the order in which the players were given, so that deterministic runs stay that way.
+        final Map<VerificationKey, BlackBox> machines = new LinkedHashMap<>();
 
-                @Override
-                public SigningKey getKey() {
-                    return key;
-                }
+        // Runs the players one at a time on a virtual clock. (null if they run freely)
+        final Scheduler<Map.Entry<SigningKey, ReturnState>> scheduler;
 
-                @Override
-                public ReturnState getValue() {
-                    return re;
-                }
+        Simulation(List<Adversary> init, Long seed, Links links) {
+            scheduler = seed == null ? null : new Scheduler<Map.Entry<SigningKey, ReturnState>>(seed, links, this);
 
-                @Override
-                public ReturnState setValue(ReturnState returnState) {
-                    re = returnState;
-                    return re;
+            try {
+                for (Adversary in : init) {
+                    VerificationKey key = in.identity().VerificationKey();
+                    BlackBox machine = new BlackBox(in);
+                    in.network.simulation = this;
+                    if (scheduler != null) {
+                        in.network.process = scheduler.add(key, in.network.inbox, machine);
+                    }
+                    machines.put(key, machine);
                 }
+            } catch (CryptographyError e) {
+                log.error("Some Crypto error happened", e);
             }
+        }
 
-            // Start new thread.
-            thread = new Thread(this);
-            thread.start();
-
-            // Wait for message from new thread.
-            return new Future<Map.Entry<SigningKey, ReturnState>>() {
-                @Override
-                public boolean cancel(boolean b) {
-                    return false;
-                }
-
-                @Override
-                public boolean isCancelled() {
-                    return false;
-                }
-
-                @Override
-                public boolean isDone() {
-                    return !q.isEmpty();
-                }
+        public void sendTo(VerificationKey to, SignedPacket packet) throws InvalidImplementationError, InterruptedException {
+            if (scheduler != null) {
+                scheduler.send(to, packet);
+                return;
+            }
 
-                @Override
-                public Map.Entry<SigningKey, ReturnState> get() throws InterruptedException, ExecutionException {
-                    return new entry(machine.identity(), q.take());
-                }
+            machines.get(to).deliver(packet);
+        }
 
-                @Override
-                public Map.Entry<SigningKey, ReturnState> get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, java.util.concurrent.TimeoutException {
-                    return new entry(machine.identity(), q.poll(l, timeUnit));
+        // Deliver the same packet to everyone but the one who signed it.
+        public void broadcast(SignedPacket packet) throws InvalidImplementationError, InterruptedException {
+            for (Map.Entry<VerificationKey, BlackBox> machine : machines.entrySet()) {
+                if (!machine.getKey().equals(packet.packet.signer)) {
+                    sendTo(machine.getKey(), packet.copy());
                 }
-            };
+            }
         }
 
         @Override
-        public void run() {
+        public void deliver(VerificationKey to, SignedPacket packet) throws InterruptedException {
+            machines.get(to).deliver(packet);
+        }
+
+        // What a machine returned, or a failure if it died.
+        void collect(BlackBox machine, Future<Map.Entry<SigningKey, ReturnState>> future, Map<SigningKey, ReturnState> results)
+                throws InterruptedException {
             try {
-                q.add(machine.turnOn());
-            } catch (InvalidImplementationError e) {
-                q.add(new ReturnState(false, machine.session(), machine.currentPhase(), e, null));
+                Map.Entry<SigningKey, ReturnState> sim = future.get();
+                results.put(sim.getKey(), sim.getValue());
+            } catch (ExecutionException | CancellationException e) {
+                // The machine died, which is a failure rather than something to wait for.
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                log.error("player " + machine.machine.identity() + " failed", cause);
+                results.put(machine.machine.identity(), new ReturnState(
+                        false, machine.machine.session(), machine.machine.currentPhase(), cause, null));
             }
         }
-    }
-
-    public void sendTo(VerificationKey to, SignedPacket packet) throws InvalidImplementationError, InterruptedException {
-        machines.get(to).deliver(packet);
-    }
 
-    public Simulator(MessageFactory messages, Crypto crypto)  {
-        this.messages = messages;
-        this.crypto = crypto;
-    }
+        // Run the machines one at a time until they have all finished.
+        Map<SigningKey, ReturnState> runDeterministic() {
+            Map<SigningKey, ReturnState> results = new HashMap<>();
 
-    private synchronized Map<SigningKey, ReturnState> runSimulation(
-            long amount,
-            List<Adversary> init)  {
-        if (init == null ) throw new NullPointerException();
+            try {
+                scheduler.run(executor);
+                for (Map.Entry<VerificationKey, BlackBox> machine : machines.entrySet()) {
+                    collect(machine.getValue(), machine.getValue().machine.network.process.task, results);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
 
-        machines = new ConcurrentHashMap<>();
+            return results;
+        }
 
-        int i = 0;
-        try {
-            for (Adversary in : init) {
-                machines.put(in.identity().VerificationKey(),
-                        new BlackBox(in));
-                i++;
+        // Run all the machines and wait for each to finish.
+        Map<SigningKey, ReturnState> run() {
+            if (scheduler != null) {
+                return runDeterministic();
             }
-        } catch (CryptographyError e) {
-            log.error("Some Crypto error happened",e);
-        }
 
-        //Timer timer = new Timer();
-        List<Future<Map.Entry<SigningKey, ReturnState>>> wait = new LinkedList<>();
-        Map<SigningKey, ReturnState> results = new HashMap<>();
+            CompletionService<Map.Entry<SigningKey, ReturnState>> completion = new ExecutorCompletionService<>(executor);
+            Map<Future<Map.Entry<SigningKey, ReturnState>>, BlackBox> running = new HashMap<>();
+            Map<SigningKey, ReturnState> results = new HashMap<>();
 
-        // First run all the machines.
-        for (BlackBox machine : machines.values()) {
             // TODO allow for the machines to be started in various orders.
-            Future<Map.Entry<SigningKey, ReturnState>> future = machine.doIt();
-            wait.add(future);
-        }
-
-        // TODO Allow for timeouts.
-        while (wait.size() != 0) {
-            Iterator<Future<Map.Entry<SigningKey, ReturnState>>> I = wait.iterator();
-            while (I.hasNext()) {
-                Future<Map.Entry<SigningKey, ReturnState>> future = I.next();
-                if (future.isDone()) {
-                    try {
-                        Map.Entry<SigningKey, ReturnState> sim = future.get();
-                        results.put(sim.getKey(), sim.getValue());
-                    } catch (InterruptedException | ExecutionException e) {
-                        e.printStackTrace();
-                    }
+            for (BlackBox machine : machines.values()) {
+                running.put(completion.submit(machine), machine);
+            }
 
-                    I.remove();
+            try {
+                // TODO Allow for timeouts.
+                while (!running.isEmpty()) {
+                    Future<Map.Entry<SigningKey, ReturnState>> future = completion.take();
+                    collect(running.remove(future), future, results);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // Only left over if we were interrupted.
+                for (Future<Map.Entry<SigningKey, ReturnState>> future : running.keySet()) {
+                    future.cancel(true);
                 }
             }
+
+            return results;
         }
+    }
+
+    public Simulator(
+            MessageFactory messages,
+            Crypto crypto,
+            ExecutorService executor // Runs the players. (may be null, in which case the simulator makes its own)
+    ) {
+        this.messages = messages;
+        this.crypto = crypto;
+        this.executor = executor != null ? executor : Executors.newCachedThreadPool(new ThreadFactory() {
+            final ThreadFactory threads = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                // So that a simulator which is not shut down doesn't keep the program running.
+                Thread thread = threads.newThread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Simulator(MessageFactory messages, Crypto crypto)  {
+        this(messages, crypto, null);
+    }
+
+    private Map<SigningKey, ReturnState> runSimulation(
+            List<Adversary> init,
+            Long seed // If not null, the players are run one at a time in an order given by the seed.
+    ) {
+        if (init == null) throw new NullPointerException();
 
-        return results;
+        return new Simulation(init, seed, null).run();
     }
 
     public class InitialState {
@@ -562,6 +721,17 @@ public final class Simulator {
         private final long amount;
         private final Deque<Player> players = new LinkedList<>();
         private MockCoin defaultCoin = null;
+        private int inputs = 1; // The number of inputs contributed by every player.
+        private boolean relay = false; // Whether broadcasts go through a relay.
+        private int digestThreshold = Integer.MAX_VALUE; // When to send the output vector as a digest.
+        private int frameSize = Integer.MAX_VALUE; // The most addresses sent at once in the shuffle phase.
+        private int groupSize = Integer.MAX_VALUE; // The largest group in a cascade.
+        private DiceMix.Codec dicemix = null; // Whether to use DiceMix instead of the sequential shuffle.
+        private Long seed = null; // If not null, the simulation is deterministic.
+        private Links links = null; // How packets travel in a deterministic simulation. (may be null)
+        private long time = -1; // How long the last deterministic run took in virtual time.
+        private List<SigningKey> keys = null; // The players' keys in the last run, in order.
+        private Map<SigningKey, List<SigningKey>> inputKeys = null; // Each player's inputs in the last run.
 
         private class Player {
             long initialAmount = 0;
@@ -576,13 +746,20 @@ public final class Simulator {
             // Whether the adversary should equivocate during the broadcast phase and to whom.
             int[] equivocateOutputVector = new int[]{};
 
+            // Whether the adversary should send short chunks of the output vector and to whom.
+            int[] shortChunk = new int[]{};
+
             int drop = 0; // Whether to drop an address in phase 2.
             int duplicate = 0; // Whether to duplicate another address and replace it with the dropped address.
             boolean replace = false; // Whether to replace dropped address with a new one.
+            boolean disrupt = false; // Whether to disrupt the DC-net.
+            Trace.Recorder recorder = null; // Records the player's side of the session. (may be null)
+            ShuffleListener listener = null; // Is told about the player's progress. (may be null)
+            Executor executor = null; // Runs the listener's callbacks.
 
             Player() {}
 
-            Adversary adversary(Map<Player, SigningKey> keys) {
+            Adversary adversary(Map<Player, SigningKey> keys, Map<Player, List<SigningKey>> inputKeys) {
                 MockCoin newcoin;
                 if(coin != null) {
                     newcoin = coin;
@@ -593,31 +770,44 @@ public final class Simulator {
                 }
 
                 SortedSet<VerificationKey> identities = new TreeSet<>();
+                Map<VerificationKey, List<VerificationKey>> inputs = new HashMap<>();
+
+                for (Player player : keys.keySet()) {
+                    identities.add(keys.get(player).VerificationKey());
 
-                for (SigningKey key : keys.values()) {
-                    identities.add(key.VerificationKey());
+                    List<VerificationKey> in = new LinkedList<>();
+                    for (SigningKey input : inputKeys.get(player)) {
+                        in.add(input.VerificationKey());
+                    }
+                    inputs.put(keys.get(player).VerificationKey(), in);
                 }
 
                 SigningKey key = keys.get(this);
-                Address address = key.VerificationKey().address();
                 Transaction doubleSpendTrans = null;
 
                 // Set up the player's initial funds.
                 if (initialAmount > 0) {
-                    Address previousAddress = crypto.makeSigningKey().VerificationKey().address();
-                    newcoin.put(previousAddress, initialAmount);
-                    newcoin.spend(previousAddress, address, initialAmount).send();
+                    for (SigningKey input : inputKeys.get(this)) {
+                        Address previousAddress = crypto.makeSigningKey().VerificationKey().address();
+                        newcoin.put(previousAddress, initialAmount);
+                        newcoin.spend(previousAddress, input.VerificationKey().address(), initialAmount).send();
+                    }
+
+                    // If he has several inputs, it's the last one he spends, which isn't his own key.
+                    List<SigningKey> in = inputKeys.get(this);
+                    Address spent = in.get(in.size() - 1).VerificationKey().address();
 
                     // Plot twist! We spend it all!
                     if (spend > 0) {
-                        newcoin.spend(address, crypto.makeSigningKey().VerificationKey().address(), spend).send();
+                        newcoin.spend(spent, crypto.makeSigningKey().VerificationKey().address(), spend).send();
                     } else if(doubleSpend > 0) {
                         // is he going to double spend? If so, make a new transaction for him.
-                        doubleSpendTrans = coin.spend(address, crypto.makeSigningKey().VerificationKey().address(), doubleSpend);
+                        doubleSpendTrans = newcoin.spend(spent, crypto.makeSigningKey().VerificationKey().address(), doubleSpend);
                     }
                 }
 
-                Adversary adversary = new Adversary(session, amount, key, identities, newcoin, doubleSpendTrans);
+                Adversary adversary = new Adversary(session, amount, key, identities, inputs, inputKeys.get(this), newcoin, doubleSpendTrans, relay, digestThreshold, frameSize, groupSize, dicemix,
+                        seed == null ? new TimeoutPolicy() : Scheduler.timeouts(), recorder, listener, executor);
 
                 if (equivocateAnnouncement != null && equivocateAnnouncement.length > 0) {
                     adversary.lie(adversary.new EquivocateEncryptionKeys(equivocateAnnouncement));
@@ -627,6 +817,10 @@ public final class Simulator {
                     adversary.lie(adversary.new EquivocateOutputVector(equivocateOutputVector));
                 }
 
+                if (shortChunk != null && shortChunk.length > 0) {
+                    adversary.lie(adversary.new ShortChunk(shortChunk));
+                }
+
                 if (replace && drop != 0) {
                     adversary.lie(adversary.new DropAddressReplaceNew(drop));
                 } else if (duplicate != 0 && drop != 0) {
@@ -635,6 +829,10 @@ public final class Simulator {
                     adversary.lie(adversary.new DropAddress(drop));
                 }
 
+                if (disrupt) {
+                    adversary.lie(adversary.new DisruptDCNet());
+                }
+
                 return adversary;
             }
         }
@@ -650,6 +848,86 @@ public final class Simulator {
             return this;
         }
 
+        // Every player contributes the given number of inputs. The first is the player's own
+        // key, which is the one that spends or double spends if he is told to.
+        public InitialState inputs(int k) {
+            if (k < 1) {
+                throw new IllegalArgumentException();
+            }
+            inputs = k;
+            return this;
+        }
+
+        // All broadcasts go through a relay rather than directly to each player.
+        public InitialState relay() {
+            relay = true;
+            return this;
+        }
+
+        // Rounds with at least this many players send out the output vector as a digest.
+        public InitialState digests(int threshold) {
+            digestThreshold = threshold;
+            return this;
+        }
+
+        // The shuffled addresses are passed along in frames of at most the given size.
+        public InitialState frames(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException();
+            }
+            frameSize = size;
+            return this;
+        }
+
+        // If there are more players than the given size, they are split into groups of at most
+        // that size, which shuffle at the same time before their outputs are cascaded.
+        public InitialState groups(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException();
+            }
+            groupSize = size;
+            return this;
+        }
+
+        // The players mix their addresses with DiceMix.
+        public InitialState dicemix(DiceMix.Codec codec) {
+            if (codec == null) {
+                throw new NullPointerException();
+            }
+            dicemix = codec;
+            return this;
+        }
+
+        // The players are run one at a time on a virtual clock, with packets delivered in an
+        // order given by the seed, so that the same seed always gives the same run. Timeouts
+        // take no real time at all.
+        public InitialState deterministic(long seed) {
+            return deterministic(seed, null);
+        }
+
+        // The same, but packets travel over the given links rather than arriving instantly.
+        public InitialState deterministic(long seed, Links links) {
+            this.seed = seed;
+            this.links = links;
+            return this;
+        }
+
+        // How many virtual milliseconds the last run took, or -1 if it was not deterministic.
+        public long time() {
+            return time;
+        }
+
+        // The keys of the players in the last run, in the order in which they were added.
+        // (null if there has not been a run)
+        public List<SigningKey> keys() {
+            return keys;
+        }
+
+        // The keys to a player's inputs in the last run, beginning with his own.
+        public List<SigningKey> inputKeys(SigningKey player) {
+            return inputKeys.get(player);
+        }
+
         public InitialState player() {
             players.addLast(new Player());
             return this;
@@ -685,6 +963,11 @@ public final class Simulator {
             return this;
         }
 
+        InitialState shortChunk(int[] others) {
+            players.getLast().shortChunk = others;
+            return this;
+        }
+
         InitialState change() {
             players.getLast().change = true;
             return this;
@@ -711,24 +994,64 @@ public final class Simulator {
             return this;
         }
 
+        InitialState disrupt() {
+            players.getLast().disrupt = true;
+            return this;
+        }
+
+        InitialState record(Trace.Recorder recorder) {
+            players.getLast().recorder = recorder;
+            return this;
+        }
+
+        InitialState listen(ShuffleListener listener, Executor executor) {
+            if (listener == null || executor == null) {
+                throw new NullPointerException();
+            }
+
+            players.getLast().listener = listener;
+            players.getLast().executor = executor;
+            return this;
+        }
+
         public Map<SigningKey, ReturnState> run() {
             List<Adversary> adversaries = new LinkedList<>();
             Map<Player, SigningKey> keys = new HashMap<>();
 
+            Map<Player, List<SigningKey>> inputKeys = new HashMap<>();
+            List<SigningKey> ordered = new ArrayList<>();
+
             for(Player player : players) {
-                keys.put(player, crypto.makeSigningKey());
+                SigningKey key = crypto.makeSigningKey();
+                keys.put(player, key);
+                ordered.add(key);
+
+                List<SigningKey> in = new LinkedList<>();
+                in.add(key);
+                for (int i = 1; i < inputs; i++) {
+                    in.add(crypto.makeSigningKey());
+                }
+                inputKeys.put(player, in);
             }
 
             // Check that all players have a coin network set up, either the default or their own.
             for(Player player : players) {
-                Adversary adversary = player.adversary(keys);
+                Adversary adversary = player.adversary(keys, inputKeys);
                 if (adversary == null) {
                     return null;
                 }
                 adversaries.add(adversary);
             }
 
-            return Simulator.this.runSimulation(amount, adversaries);
+            this.keys = ordered;
+            this.inputKeys = new HashMap<>();
+            for (Player player : players) {
+                this.inputKeys.put(keys.get(player), inputKeys.get(player));
+            }
+            Simulation simulation = new Simulation(adversaries, seed, links);
+            Map<SigningKey, ReturnState> results = simulation.run();
+            time = simulation.scheduler == null ? -1 : simulation.scheduler.now();
+            return results;
         }
     }
 
@@ -752,6 +1075,72 @@ public final class Simulator {
         return init.run();
     }
 
+    // Simulate successful runs over the given links with each of the given numbers of players.
+    // Returns the time in virtual milliseconds that each took, or null if any run did not
+    // succeed. Since the runs are deterministic, the times are the same on any machine.
+    public Map<Integer, Long> latencyBenchmark(
+            SessionIdentifier session,
+            long amount,
+            MockCoin coin,
+            Links links,
+            long seed,
+            int[] numPlayers
+    ) {
+        return latencyBenchmark(session, amount, coin, links, seed, Integer.MAX_VALUE, numPlayers);
+    }
+
+    public Map<Integer, Long> latencyBenchmark(
+            SessionIdentifier session,
+            long amount,
+            MockCoin coin,
+            Links links,
+            long seed,
+            int groupSize, // The largest group in the cascade. (Integer.MAX_VALUE for no cascade)
+            int[] numPlayers
+    ) {
+        Map<Integer, Long> times = new TreeMap<>();
+
+        for (int n : numPlayers) {
+            InitialState init = initialize(session, amount).defaultCoin(coin).groups(groupSize).deterministic(seed, links);
+            for (int i = 1; i <= n; i++) {
+                init.player().initialFunds(20);
+            }
+
+            Map<SigningKey, ReturnState> results = init.run();
+
+            if (results == null || results.size() != n) {
+                return null;
+            }
+            for (ReturnState result : results.values()) {
+                if (!result.success) {
+                    return null;
+                }
+            }
+
+            log.info("simulated " + n + " players with groups of " + groupSize + " in " + init.time() + " virtual ms");
+            times.put(n, init.time());
+        }
+
+        return times;
+    }
+
+    public Map<SigningKey, ReturnState> multipleInputsRun(
+            SessionIdentifier session,
+            int numPlayers,
+            int inputs, // The number of inputs per player.
+            long amount,
+            MockCoin coin
+    ) {
+
+        InitialState init = initialize(session, amount).defaultCoin(coin).inputs(inputs);
+
+        for (int i = 1; i <= numPlayers; i++) {
+            init.player().initialFunds(20);
+        }
+
+        return init.run();
+    }
+
     public Map<SigningKey, ReturnState> insufficientFundsRun(
             SessionIdentifier session,
             int numPlayers,
@@ -838,12 +1227,12 @@ public final class Simulator {
             coin.put(address, 20);
 
             if (maliciousPlayers.containsKey(key)) {
-                init.add(new Adversary(session, amount, key, players, coin, null).lie(maliciousPlayers.get(key)));
+                init.add(new Adversary(session, amount, key, players, null, null, coin, null, false, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, null, new TimeoutPolicy(), null, null, null).lie(maliciousPlayers.get(key)));
             } else {
-                init.add(new Adversary(session, amount, key, players, coin, null));
+                init.add(new Adversary(session, amount, key, players, null, null, coin, null, false, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, null, new TimeoutPolicy(), null, null, null));
             }
         }
 
-        return runSimulation(amount, init);
+        return runSimulation(init, null);
     }
 }
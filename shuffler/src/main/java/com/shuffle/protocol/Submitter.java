@@ -0,0 +1,194 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Coin;
+import com.shuffle.bitcoin.CoinNetworkError;
+import com.shuffle.bitcoin.Transaction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends transactions into the network in the background, so that a session which has finished
+ * doesn't have to wait for its transaction to get through before it can let go of its thread.
+ *
+ * A transaction is sent again every so often until the network has seen it, or until it has
+ * been sent as many times as allowed. The session returns a Submission with its ReturnState,
+ * which says how it went once it is done.
+ */
+public final class Submitter {
+    private static Logger log = LogManager.getLogger(Submitter.class);
+
+    // The result is whether the network has seen the transaction.
+    public static final class Submission implements Future<Boolean> {
+        public final Transaction transaction;
+
+        private int attempts = 0; // Only touched by the scheduled task.
+
+        // Guarded by this.
+        private boolean done = false;
+        private boolean cancelled = false;
+        private boolean seen = false;
+        private Throwable error = null; // The last error from sending, if any.
+
+        Submission(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        private synchronized boolean finish(boolean seen) {
+            if (done) {
+                return false;
+            }
+            this.seen = seen;
+            done = true;
+            notifyAll();
+            return true;
+        }
+
+        private synchronized void failed(Throwable e) {
+            error = e;
+        }
+
+        // The last error from sending, if there was one. A CoinNetworkError means that the
+        // network was unreachable; anything else means that the submission was abandoned.
+        public synchronized Throwable error() {
+            return error;
+        }
+
+        // The number of times the transaction has been sent.
+        public synchronized int attempts() {
+            return attempts;
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            return finish(false);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public synchronized Boolean get() throws InterruptedException, ExecutionException {
+            while (!done) {
+                wait();
+            }
+            return seen;
+        }
+
+        @Override
+        public synchronized Boolean get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+
+            long end = System.nanoTime() + unit.toNanos(timeout);
+            while (!done) {
+                long left = end - System.nanoTime();
+                if (left <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return seen;
+        }
+
+        @Override
+        public String toString() {
+            return "submission[" + transaction + "]";
+        }
+    }
+
+    final Coin coin;
+    final ScheduledExecutorService scheduler;
+    final long interval; // How long to wait before checking and sending again, in milliseconds.
+    final int maxAttempts; // The most times to send a transaction.
+
+    public Submitter(Coin coin, ScheduledExecutorService scheduler, long interval, int maxAttempts) {
+        if (coin == null || scheduler == null) {
+            throw new NullPointerException();
+        }
+        if (interval <= 0 || maxAttempts < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        this.coin = coin;
+        this.scheduler = scheduler;
+        this.interval = interval;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public Submission submit(Transaction t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+
+        final Submission submission = new Submission(t);
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(submission, this);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            submission.finish(false);
+        }
+        return submission;
+    }
+
+    private void attempt(Submission submission, Runnable again) {
+        if (submission.isDone()) {
+            return; // Cancelled.
+        }
+
+        try {
+            if (submission.attempts > 0 && coin.seen(submission.transaction)) {
+                submission.finish(true);
+                return;
+            }
+
+            if (submission.attempts >= maxAttempts) {
+                log.warn("giving up on " + submission.transaction + " after " + maxAttempts + " attempts");
+                submission.finish(false);
+                return;
+            }
+
+            synchronized (submission) {
+                submission.attempts++;
+            }
+            submission.transaction.send();
+        } catch (CoinNetworkError e) {
+            // Maybe the network will be there next time.
+            submission.failed(e);
+        } catch (RuntimeException | Error e) {
+            // A broken implementation won't be fixed by trying again, and if we let this
+            // go, the scheduler would swallow it and nobody waiting would ever hear back.
+            log.error("could not submit " + submission.transaction, e);
+            submission.failed(e);
+            submission.finish(false);
+            return;
+        }
+
+        try {
+            scheduler.schedule(again, interval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            submission.finish(false);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.VerificationKey;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides how long the mailbox should wait for the next message. Rather than using a fixed
+ * timeout, it keeps an exponentially weighted moving average of how long each peer takes to
+ * respond and of how long each phase takes to complete, in the same way that TCP estimates its
+ * retransmission timeout.
+ *
+ * In phases where everyone sends at once, the timeout is short and depends on the slowest peer.
+ * In the shuffle phase, each player has to wait for everyone before him to finish, so the timeout
+ * is proportional to the number of players.
+ *
+ * Whenever we time out in a phase, the timeout for that phase is doubled, up to the maximum,
+ * until the phase is next seen to complete. (RFC 6298, section 5.5)
+ */
+public class TimeoutPolicy {
+    // Weights given to a new observation, as in RFC 6298.
+    static final double alpha = 0.125;
+    static final double beta = 0.25;
+
+    // How many peers to remember.
+    static final int maxPeers = 4096;
+
+    // A moving estimate of a duration and of its variation.
+    static class Estimate {
+        double mean;
+        double deviation;
+
+        Estimate(long first) {
+            mean = first;
+            deviation = first / 2.0;
+        }
+
+        void observe(long millis) {
+            deviation = (1 - beta) * deviation + beta * Math.abs(mean - millis);
+            mean = (1 - alpha) * mean + alpha * millis;
+        }
+
+        // A duration within which we expect almost all observations to fall.
+        long bound() {
+            return (long)Math.ceil(mean + 4 * deviation);
+        }
+    }
+
+    final long initial; // The timeout to use before we have observed anything.
+    final long min;
+    final long max;
+
+    // Time taken by each peer to respond during a broadcast phase.
+    private final Map<VerificationKey, Estimate> peers = new LinkedHashMap<VerificationKey, Estimate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<VerificationKey, Estimate> eldest) {
+            return size() > maxPeers;
+        }
+    };
+
+    // Time taken by each phase to complete, per sequential step.
+    private final Map<Phase, Estimate> phases = new EnumMap<>(Phase.class);
+
+    // How many times in a row we have timed out in each phase.
+    private final Map<Phase, Integer> backoff = new EnumMap<>(Phase.class);
+
+    public TimeoutPolicy(long initial, long min, long max) {
+        if (min <= 0 || initial < min || max < initial) {
+            throw new IllegalArgumentException();
+        }
+
+        this.initial = initial;
+        this.min = min;
+        this.max = max;
+    }
+
+    public TimeoutPolicy() {
+        this(1000, 250, 120000);
+    }
+
+    // Whether the players in this phase take turns rather than all sending at once.
+    static boolean sequential(Phase phase) {
+        return phase == Phase.Shuffling || phase == Phase.BroadcastOutput;
+    }
+
+    // Record how long we waited for a message from a given peer.
+    public synchronized void latency(VerificationKey peer, long millis) {
+        Estimate estimate = peers.get(peer);
+        if (estimate == null) {
+            peers.put(peer, new Estimate(millis));
+        } else {
+            estimate.observe(millis);
+        }
+    }
+
+    // Record how long a phase took to complete, which required the given number of sequential steps.
+    public synchronized void completed(Phase phase, int steps, long millis) {
+        if (steps < 1) {
+            steps = 1;
+        }
+
+        // The phase got done, so whatever went wrong before has passed.
+        backoff.remove(phase);
+
+        long perStep = millis / steps;
+        Estimate estimate = phases.get(phase);
+        if (estimate == null) {
+            phases.put(phase, new Estimate(perStep));
+        } else {
+            estimate.observe(perStep);
+        }
+    }
+
+    // Record that we gave up waiting for a message in the given phase.
+    public synchronized void timedOut(Phase phase) {
+        Integer times = backoff.get(phase);
+        backoff.put(phase, times == null ? 1 : times + 1);
+    }
+
+    // How long to wait for the next message in the given phase among the given players.
+    public synchronized long timeout(Phase phase, Collection<VerificationKey> players) {
+        long timeout;
+
+        Estimate estimate = phases.get(phase);
+        if (sequential(phase)) {
+            // We may have to wait for every other player to take his turn.
+            long perStep = estimate == null ? initial : Math.max(estimate.bound(), min);
+            timeout = perStep * Math.max(players.size(), 1);
+        } else {
+            timeout = estimate == null ? initial : estimate.bound();
+
+            // Leave enough time for the slowest player we know about.
+            for (VerificationKey player : players) {
+                Estimate peer = peers.get(player);
+                if (peer != null) {
+                    timeout = Math.max(timeout, peer.bound());
+                }
+            }
+        }
+
+        timeout = Math.max(timeout, min);
+        Integer times = backoff.get(phase);
+        for (int i = 0; times != null && i < times && timeout < max; i++) {
+            timeout *= 2;
+        }
+
+        return Math.min(timeout, max);
+    }
+}
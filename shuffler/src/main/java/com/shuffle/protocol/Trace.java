@@ -0,0 +1,566 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A recording of one player's side of a session, which can be played back into a single
+ * ShuffleMachine offline.
+ *
+ * The Recorder sits between a machine and its network and writes down every packet that goes
+ * by, every time a wait for a packet runs out, and every phase that the machine enters. It also
+ * writes down when the machine generates a key or a random number, but not what it generated,
+ * unless it was explicitly asked to. Every record is stamped with the time since the previous
+ * one in microseconds, and numbers are written as varints, so the trace of a whole session is
+ * small enough to keep from production.
+ *
+ * A Replay gives the machine back the same packets in the same order, as fast as the machine can
+ * take them. Whatever was generated and not recorded is generated again by a stand-in Crypto, so
+ * the replay can be timed, but it will diverge from the trace as soon as the machine has to read
+ * something that was encrypted to it, or to find its own address among the outputs. A trace that
+ * was recorded with secrets can be replayed exactly. The replay keeps track of how much time the
+ * machine spends in each phase
+ * between one call to the network and the next. Since nothing is waited for, that is the time the
+ * machine spent working, so a slow session can be run again under a profiler to see where it went.
+ * The coin network is not recorded, so the machine has to be given one which has the same funds
+ * as the real one had when the session began.
+ */
+public final class Trace {
+    private static Logger log = LogManager.getLogger(Trace.class);
+
+    static final int MAGIC = 0x43535452; // "CSTR"
+    static final byte VERSION = 1;
+
+    public enum Type {
+        Phase,
+        Sent,
+        Broadcast,
+        Received,
+        Timeout,
+        Random,
+        DecryptionKey,
+        SigningKey
+    }
+
+    public static final class Event {
+        public final Type type;
+        public final long time; // Microseconds since the recording began.
+        public final Phase phase; // The phase the machine was in. (null before the first phase)
+        final SignedPacket packet; // (null unless a packet was sent or received)
+        final byte[] body; // The encoding of whatever was generated. (null unless something was, empty if it was secret)
+
+        Event(Type type, long time, Phase phase, SignedPacket packet, byte[] body) {
+            this.type = type;
+            this.time = time;
+            this.phase = phase;
+            this.packet = packet;
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return "event[" + time + " us, " + type + (phase == null ? "" : ", " + phase)
+                    + (packet == null ? "" : ", " + packet) + "]";
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long n) throws IOException {
+        while ((n & ~0x7fL) != 0) {
+            out.writeByte((int)(n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte((int) n);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException, FormatException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            n |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new FormatException();
+    }
+
+    // Writes down a session as it happens. One recorder is for one machine.
+    public static final class Recorder implements Closeable {
+        private final DataOutputStream out;
+        private final Journal.Codec codec;
+        private final long start = System.nanoTime();
+
+        private final boolean secrets; // Whether to record keys and random numbers.
+
+        private long last = 0; // When the last record was made.
+        private boolean failed = false;
+
+        // A recorder which does not record anything secret.
+        public Recorder(OutputStream out, Journal.Codec codec) throws IOException {
+            this(out, codec, false);
+        }
+
+        /**
+         * WARNING: if secrets is true, the trace will contain the player's new signing key,
+         * which controls the shuffled output, his decryption key, and every random number he
+         * generated, which together reveal which output belongs to him. Anybody who reads such
+         * a trace can take his money and undo the shuffle. Only record secrets for sessions
+         * that use test coins, and never from production.
+         */
+        public Recorder(OutputStream out, Journal.Codec codec, boolean secrets) throws IOException {
+            if (out == null || codec == null) {
+                throw new NullPointerException();
+            }
+
+            if (secrets) {
+                log.warn("Recording secrets. The trace will contain private keys and must not be shared.");
+            }
+
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.codec = codec;
+            this.secrets = secrets;
+
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(System.currentTimeMillis());
+        }
+
+        // The trace must never get in the way of the session, so if it can't be written, we
+        // just stop writing it.
+        private synchronized void record(Type type, byte[] body) {
+            if (failed) {
+                return;
+            }
+
+            try {
+                long now = (System.nanoTime() - start) / 1000;
+                out.writeByte(type.ordinal());
+                writeVarLong(out, now - last);
+                writeVarLong(out, body.length);
+                out.write(body);
+                last = now;
+            } catch (IOException e) {
+                log.warn("Could not write to trace. Nothing more will be recorded.", e);
+                failed = true;
+            }
+        }
+
+        // Called by the machine when it moves on to another phase.
+        void phase(Phase phase) {
+            record(Type.Phase, new byte[]{(byte)phase.ordinal()});
+        }
+
+        // A network which records everything that goes through it. It is a relay if the
+        // given network is.
+        public Network network(Network network) {
+            if (network == null) {
+                throw new NullPointerException();
+            }
+
+            if (network instanceof Relay) {
+                return new RecordingRelay((Relay) network);
+            }
+            return new Recording(network);
+        }
+
+        // A Crypto which records when it generates anything. What it generated is only
+        // recorded if this recorder records secrets.
+        public Crypto crypto(final Crypto crypto) {
+            if (crypto == null) {
+                throw new NullPointerException();
+            }
+
+            return new Crypto() {
+                @Override
+                public SigningKey makeSigningKey() throws CryptographyError {
+                    SigningKey key = crypto.makeSigningKey();
+                    record(Type.SigningKey, secrets ? codec.encode(key) : new byte[]{});
+                    return key;
+                }
+
+                @Override
+                public DecryptionKey makeDecryptionKey() throws CryptographyError {
+                    DecryptionKey key = crypto.makeDecryptionKey();
+                    record(Type.DecryptionKey, secrets ? codec.encode(key) : new byte[]{});
+                    return key;
+                }
+
+                @Override
+                public int getRandom(int n) throws CryptographyError, InvalidImplementationError {
+                    int random = crypto.getRandom(n);
+                    record(Type.Random, secrets ? ByteBuffer.allocate(4).putInt(random).array() : new byte[]{});
+                    return random;
+                }
+
+                @Override
+                public Message hash(Message m) throws CryptographyError, InvalidImplementationError {
+                    return crypto.hash(m);
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        class Recording implements Network {
+            final Network network;
+
+            Recording(Network network) {
+                this.network = network;
+            }
+
+            Recorder recorder() {
+                return Recorder.this;
+            }
+
+            @Override
+            public void sendTo(VerificationKey to, SignedPacket packet) throws InvalidImplementationError, TimeoutError {
+                record(Type.Sent, codec.encode(packet));
+                network.sendTo(to, packet);
+            }
+
+            @Override
+            public SignedPacket receive(long timeout, TimeUnit unit) throws TimeoutError, InvalidImplementationError, InterruptedException {
+                SignedPacket packet;
+                try {
+                    packet = network.receive(timeout, unit);
+                } catch (TimeoutError e) {
+                    record(Type.Timeout, new byte[]{});
+                    throw e;
+                }
+
+                record(Type.Received, codec.encode(packet));
+                return packet;
+            }
+        }
+
+        private class RecordingRelay extends Recording implements Relay {
+            RecordingRelay(Relay relay) {
+                super(relay);
+            }
+
+            @Override
+            public void broadcast(SignedPacket packet) throws InvalidImplementationError, TimeoutError {
+                record(Type.Broadcast, codec.encode(packet));
+                ((Relay) network).broadcast(packet);
+            }
+        }
+    }
+
+    public final long began; // When the recording began, in milliseconds since the epoch.
+    private final List<Event> events;
+    private final Journal.Codec codec;
+
+    private Trace(long began, List<Event> events, Journal.Codec codec) {
+        this.began = began;
+        this.events = Collections.unmodifiableList(events);
+        this.codec = codec;
+    }
+
+    // Read a trace. If it ends part way through a record, as it would if the process that was
+    // writing it died, the rest of the trace is still read.
+    public static Trace read(InputStream stream, Journal.Codec codec) throws IOException, FormatException {
+        if (stream == null || codec == null) {
+            throw new NullPointerException();
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+            throw new FormatException();
+        }
+        long began = in.readLong();
+
+        List<Event> events = new ArrayList<>();
+        long time = 0;
+        Phase phase = null;
+        while (true) {
+            int type = in.read();
+            if (type < 0) {
+                break;
+            }
+            if (type >= Type.values().length) {
+                throw new FormatException();
+            }
+
+            byte[] body;
+            try {
+                time += readVarLong(in);
+                long length = readVarLong(in);
+                if (length > Integer.MAX_VALUE) {
+                    throw new FormatException();
+                }
+                body = new byte[(int) length];
+                in.readFully(body);
+            } catch (EOFException e) {
+                log.warn("Trace ends part way through a record.");
+                break;
+            }
+
+            switch (Type.values()[type]) {
+                case Phase:
+                    if (body.length != 1 || body[0] < 0 || body[0] >= Phase.values().length) {
+                        throw new FormatException();
+                    }
+                    phase = Phase.values()[body[0]];
+                    events.add(new Event(Type.Phase, time, phase, null, null));
+                    break;
+                case Sent:
+                case Broadcast:
+                case Received:
+                    events.add(new Event(Type.values()[type], time, phase, codec.decodeSignedPacket(body), null));
+                    break;
+                case Random:
+                    if (body.length != 4 && body.length != 0) {
+                        throw new FormatException();
+                    }
+                    events.add(new Event(Type.Random, time, phase, null, body));
+                    break;
+                default:
+                    events.add(new Event(Type.values()[type], time, phase, null, body));
+            }
+        }
+
+        return new Trace(began, events, codec);
+    }
+
+    public List<Event> events() {
+        return events;
+    }
+
+    // How long the recorded session spent in each phase, in microseconds.
+    public Map<Phase, Long> phases() {
+        Map<Phase, Long> phases = new EnumMap<>(Phase.class);
+
+        Event last = null;
+        for (Event event : events) {
+            if (event.type != Type.Phase) {
+                continue;
+            }
+
+            if (last != null) {
+                add(phases, last.phase, event.time - last.time);
+            }
+            last = event;
+        }
+
+        if (last != null) {
+            add(phases, last.phase, events.get(events.size() - 1).time - last.time);
+        }
+
+        return phases;
+    }
+
+    private static void add(Map<Phase, Long> times, Phase phase, long time) {
+        Long sum = times.get(phase);
+        times.put(phase, sum == null ? time : sum + time);
+    }
+
+    public Replay replay() {
+        return new Replay();
+    }
+
+    // Plays the trace back into a machine. A replay can only be used once.
+    public final class Replay {
+        private final Queue<Event> sent = new LinkedList<>();
+        private final Queue<Event> received = new LinkedList<>(); // Including timeouts.
+        private final Queue<Event> generated = new LinkedList<>();
+        private final boolean relay;
+
+        private final Map<Phase, Long> elapsed = new EnumMap<>(Phase.class);
+        private Phase phase = null; // The phase the machine was in at the last step of the trace.
+        private long last = System.nanoTime();
+        private int sends = 0;
+        private int diverged = -1;
+
+        private Replay() {
+            boolean relay = false;
+            for (Event event : events) {
+                switch (event.type) {
+                    case Broadcast:
+                        relay = true;
+                        sent.add(event);
+                        break;
+                    case Sent:
+                        sent.add(event);
+                        break;
+                    case Received:
+                    case Timeout:
+                        received.add(event);
+                        break;
+                    case Random:
+                    case DecryptionKey:
+                    case SigningKey:
+                        generated.add(event);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            this.relay = relay;
+        }
+
+        // Count the time since the machine last called the network toward the phase that it
+        // was in when it got to the next step of the trace.
+        private void spent(Event next) {
+            if (next != null && next.phase != null) {
+                phase = next.phase;
+            }
+
+            long now = System.nanoTime();
+            if (phase != null) {
+                add(elapsed, phase, now - last);
+            }
+            last = now;
+        }
+
+        private void sent(Type type, SignedPacket packet) {
+            Event expected = sent.poll();
+            spent(expected);
+
+            // Encryption is randomized, so what is in a packet can differ from the trace even
+            // when the machine is doing the same thing. We only check where it goes and when.
+            int index = sends++;
+            if (diverged < 0 && (expected == null || expected.type != type
+                    || expected.packet.packet.phase != packet.packet.phase
+                    || (expected.packet.packet.recipient == null ? packet.packet.recipient != null
+                            : !expected.packet.packet.recipient.equals(packet.packet.recipient)))) {
+                log.warn("Replay diverges from the trace at packet " + index + ": " + packet);
+                diverged = index;
+            }
+        }
+
+        // The network to give to the machine, which is a relay if the recorded one was.
+        public Network network() {
+            last = System.nanoTime();
+            return relay ? new ReplayRelay() : new ReplayNetwork();
+        }
+
+        // A Crypto which gives back what was generated when the trace was recorded. Anything
+        // else, including whatever was generated but not recorded, is done by the given Crypto.
+        public Crypto crypto(final Crypto crypto) {
+            if (crypto == null) {
+                throw new NullPointerException();
+            }
+
+            return new Crypto() {
+                @Override
+                public SigningKey makeSigningKey() throws CryptographyError {
+                    byte[] body = generated(Type.SigningKey).body;
+                    if (body.length == 0) {
+                        return crypto.makeSigningKey();
+                    }
+
+                    try {
+                        return codec.decodeSigningKey(body);
+                    } catch (FormatException e) {
+                        throw new CryptographyError();
+                    }
+                }
+
+                @Override
+                public DecryptionKey makeDecryptionKey() throws CryptographyError {
+                    byte[] body = generated(Type.DecryptionKey).body;
+                    if (body.length == 0) {
+                        return crypto.makeDecryptionKey();
+                    }
+
+                    try {
+                        return codec.decodeDecryptionKey(body);
+                    } catch (FormatException e) {
+                        throw new CryptographyError();
+                    }
+                }
+
+                @Override
+                public int getRandom(int n) throws CryptographyError, InvalidImplementationError {
+                    byte[] body = generated(Type.Random).body;
+                    if (body.length == 0) {
+                        return crypto.getRandom(n);
+                    }
+
+                    return ByteBuffer.wrap(body).getInt();
+                }
+
+                @Override
+                public Message hash(Message m) throws CryptographyError, InvalidImplementationError {
+                    return crypto.hash(m);
+                }
+            };
+        }
+
+        private Event generated(Type type) throws CryptographyError {
+            Event event = generated.poll();
+            if (event == null || event.type != type) {
+                // The machine is not doing what it did when the trace was recorded.
+                log.error("Replay diverges from the trace: expected " + event + " but the machine wanted " + type);
+                throw new CryptographyError();
+            }
+            return event;
+        }
+
+        // How long the machine spent in each phase, in nanoseconds.
+        public Map<Phase, Long> elapsed() {
+            return new EnumMap<>(elapsed);
+        }
+
+        // The first packet sent which went to someone else or in another phase than in the
+        // trace, counting from zero, or -1 if the machine has done everything the same so far.
+        public int diverged() {
+            return diverged;
+        }
+
+        private class ReplayNetwork implements Network {
+            @Override
+            public void sendTo(VerificationKey to, SignedPacket packet) throws InvalidImplementationError, TimeoutError {
+                sent(Type.Sent, packet);
+            }
+
+            // If there is nothing more in the trace, the machine times out as it would have
+            // if nothing else had come.
+            @Override
+            public SignedPacket receive(long timeout, TimeUnit unit) throws TimeoutError, InvalidImplementationError, InterruptedException {
+                Event next = received.poll();
+                spent(next);
+
+                if (next == null || next.type == Type.Timeout) {
+                    throw new TimeoutError();
+                }
+                return next.packet;
+            }
+        }
+
+        private class ReplayRelay extends ReplayNetwork implements Relay {
+            @Override
+            public void broadcast(SignedPacket packet) throws InvalidImplementationError, TimeoutError {
+                sent(Type.Broadcast, packet);
+            }
+        }
+    }
+}
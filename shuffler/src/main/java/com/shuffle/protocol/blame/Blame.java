@@ -50,7 +50,6 @@ public class Blame {
                 }
                 break;
             }
-            case ShuffleFailure:
             case NoFundsAtAll:
             case MissingOutput: {
                 if (accused == null) {
@@ -59,7 +58,8 @@ public class Blame {
                 break;
             }
             case ShuffleAndEquivocationFailure: {
-                if (privateKey == null || packets == null) {
+                // Player 1 doesn't have a key in the sequential shuffle, so privateKey can be null.
+                if (packets == null) {
                     throw new IllegalArgumentException();
                 }
                 break;
@@ -144,6 +144,6 @@ public class Blame {
 
     // Sent when there is a failure in phase two and in the subsequent equivocation check.
     public static Blame ShuffleAndEquivocationFailure(DecryptionKey privateKey, List<SignedPacket> packets) {
-        return new Blame(Reason.ShuffleFailure, null, null, privateKey, packets, null);
+        return new Blame(Reason.ShuffleAndEquivocationFailure, null, null, privateKey, packets, null);
     }
 }
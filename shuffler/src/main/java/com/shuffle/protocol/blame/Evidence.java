@@ -156,4 +156,10 @@ public class Evidence {
     static public Evidence EquivocationFailureBroadcast(Map<VerificationKey, Packet> output) {
         return new Evidence(Reason.EquivocationFailure, true, null, null, output, null);
     }
+
+    // The decryption keys revealed in the blame phase show that this player didn't pass on
+    // what he was given in the shuffle phase.
+    static public Evidence ShuffleAndEquivocationFailure() {
+        return new Evidence(Reason.ShuffleAndEquivocationFailure, true, null, null, null, null);
+    }
 }
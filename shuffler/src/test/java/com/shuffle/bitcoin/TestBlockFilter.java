@@ -0,0 +1,117 @@
+package com.shuffle.bitcoin;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for block filters.
+ */
+public class TestBlockFilter {
+
+    final Random random = new Random(29);
+
+    byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    @Test
+    public void testSipHash() {
+        // The test vector from the SipHash paper.
+        byte[] key = new byte[16];
+        byte[] message = new byte[15];
+        for (int i = 0; i < 16; i++) {
+            key[i] = (byte) i;
+        }
+        for (int i = 0; i < 15; i++) {
+            message[i] = (byte) i;
+        }
+
+        BlockFilter filter = new BlockFilter(key, 0, new byte[]{});
+        Assert.assertEquals(0xa129ca6149be45e5L, BlockFilter.sipHash(filter.k0, filter.k1, message));
+    }
+
+    @Test
+    public void testMultiplyHigh() {
+        Assert.assertEquals(0, BlockFilter.multiplyHigh(1L << 32, 1L << 31));
+        Assert.assertEquals(1, BlockFilter.multiplyHigh(1L << 32, 1L << 32));
+        Assert.assertEquals(-2, BlockFilter.multiplyHigh(-1, -1)); // (2^64 - 1)^2 = 2^128 - 2^65 + 1
+    }
+
+    @Test
+    public void testMatch() {
+        byte[] key = bytes(16);
+        List<byte[]> items = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            items.add(bytes(25));
+        }
+
+        BlockFilter filter = BlockFilter.fromBytes(key, BlockFilter.build(key, items).toBytes());
+        Assert.assertEquals(500, filter.n);
+        for (byte[] item : items) {
+            Assert.assertTrue(filter.match(item));
+        }
+
+        // False positives should happen about once in M.
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.match(bytes(25))) {
+                positives++;
+            }
+        }
+        Assert.assertTrue(positives < 3);
+
+        Assert.assertFalse(BlockFilter.build(key, new ArrayList<byte[]>()).match(items.get(0)));
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        File file = File.createTempFile("filters", ".index");
+        file.deleteOnExit();
+
+        // The script we are looking for is in a few of the blocks.
+        byte[] script = bytes(25);
+        int blocks = 3000;
+        List<Integer> expected = new ArrayList<>();
+
+        BlockFilterIndex index = new BlockFilterIndex(file);
+        try {
+            for (int i = 0; i < blocks; i++) {
+                List<byte[]> items = new ArrayList<>();
+                for (int j = 0; j < 5; j++) {
+                    items.add(bytes(25));
+                }
+                if (i % 701 == 3) {
+                    items.add(script);
+                    expected.add(i);
+                }
+                byte[] hash = bytes(32);
+                index.add(hash, BlockFilter.build(BlockFilter.key(hash), items));
+            }
+
+            Assert.assertEquals(expected, index.match(script, null));
+        } finally {
+            index.close();
+        }
+
+        // Open it again and search in parallel.
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        index = new BlockFilterIndex(file);
+        try {
+            Assert.assertEquals(blocks, index.size());
+            Assert.assertEquals(expected, index.match(script, executor));
+        } finally {
+            index.close();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.shuffle.bitcoin;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for the random number generator.
+ */
+public class TestRandomNumbers {
+
+    final RandomNumbers random = new RandomNumbers(new SecureRandom(new byte[]{17}));
+
+    @Test
+    public void testBounds() {
+        Assert.assertEquals(0, random.getRandom(0));
+
+        for (int n : new int[]{1, 2, 3, 7, 1000, Integer.MAX_VALUE}) {
+            for (int i = 0; i < 1000; i++) {
+                int x = random.getRandom(n);
+                Assert.assertTrue(x >= 0 && x <= n);
+            }
+        }
+
+        try {
+            random.getRandom(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    // Every number should come up about as often as every other.
+    public void testUniform() {
+        int n = 5;
+        int trials = 60000;
+        int[] counts = new int[n + 1];
+        for (int i = 0; i < trials; i++) {
+            counts[random.getRandom(n)]++;
+        }
+
+        double expected = (double) trials / (n + 1);
+        double chi = 0;
+        for (int count : counts) {
+            chi += (count - expected) * (count - expected) / expected;
+        }
+
+        // The 99.99th percentile of chi squared with 5 degrees of freedom is about 25.7.
+        Assert.assertTrue("chi squared = " + chi, chi < 25.7);
+    }
+
+    @Test
+    // Different threads must not get the same numbers.
+    public void testThreads() throws Exception {
+        final int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        byte[] bytes = new byte[10000]; // More than one block.
+                        random.nextBytes(bytes);
+                        return bytes;
+                    }
+                }));
+            }
+
+            List<String> seen = new ArrayList<>();
+            for (Future<byte[]> result : results) {
+                String hex = new BigInteger(1, result.get()).toString(16);
+                Assert.assertFalse(seen.contains(hex));
+                seen.add(hex);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.bitcoin.keys.Hash160Address;
+import com.shuffle.bitcoin.keys.PrivateKey;
+import com.shuffle.protocol.FormatException;
+import com.shuffle.protocol.InvalidImplementationError;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for the shuffle transaction.
+ */
+public class TestShuffleTransaction {
+
+    static class MapOutputs implements UnspentOutputs {
+        final Map<Address, List<UnspentOutput>> outputs = new HashMap<>();
+
+        void add(Address address, UnspentOutput utxo) {
+            List<UnspentOutput> list = outputs.get(address);
+            if (list == null) {
+                list = new ArrayList<>();
+                outputs.put(address, list);
+            }
+            list.add(utxo);
+        }
+
+        @Override
+        public List<UnspentOutput> unspent(Address address) {
+            List<UnspentOutput> list = outputs.get(address);
+            return list == null ? Collections.<UnspentOutput>emptyList() : list;
+        }
+    }
+
+    static final AddressFormat format = new AddressFormat() {
+        @Override
+        public byte[] serialize(Address address) {
+            return ((Hash160Address) address).toBytes();
+        }
+
+        @Override
+        public Address deserialize(byte[] bytes) throws FormatException {
+            return Hash160Address.fromBytes(bytes);
+        }
+    };
+
+    final SecureRandom random = new SecureRandom(new byte[]{19});
+
+    UnspentOutput utxo(long value) {
+        byte[] txid = new byte[UnspentOutput.HASH];
+        random.nextBytes(txid);
+        return new UnspentOutput(txid, random.nextInt(4), value);
+    }
+
+    Hash160Address address() {
+        return (Hash160Address) new PrivateKey(random).VerificationKey().address();
+    }
+
+    // Three players. The first has two input keys, one of which holds two outputs.
+    final List<List<PrivateKey>> keys = new ArrayList<>();
+    final MapOutputs utxos = new MapOutputs();
+    final Map<VerificationKey, List<VerificationKey>> from = new LinkedHashMap<>();
+    final Queue<Address> to = new LinkedList<>();
+    final Map<VerificationKey, Address> change = new HashMap<>();
+
+    void setup(long amount) {
+        for (int i = 0; i < 3; i++) {
+            List<PrivateKey> sks = new ArrayList<>();
+            List<VerificationKey> vks = new ArrayList<>();
+            for (int j = 0; j < (i == 0 ? 2 : 1); j++) {
+                PrivateKey sk = new PrivateKey(random);
+                sks.add(sk);
+                vks.add(sk.VerificationKey());
+                utxos.add(sk.VerificationKey().address(), utxo(amount + 1000));
+                to.add(address());
+            }
+            keys.add(sks);
+            from.put(vks.get(0), vks);
+            change.put(vks.get(0), address());
+        }
+        utxos.add(keys.get(0).get(0).VerificationKey().address(), utxo(500));
+    }
+
+    @Test
+    public void testBuild() throws FormatException {
+        long amount = 100000;
+        setup(amount);
+        Bitcoin bitcoin = new Bitcoin(null, format, utxos, null, null, 100);
+
+        ShuffleTransaction t = (ShuffleTransaction) bitcoin.shuffleTransaction(amount, from, to, change);
+
+        Assert.assertEquals(5, t.inputs.size());
+        Assert.assertEquals(4 + 3, t.outputs.size());
+        // The first player's change includes the extra output, less the fee.
+        Assert.assertEquals(2 * 1000 + 500 - 100, t.outputs.get(4).value);
+        Assert.assertEquals(1000 - 100, t.outputs.get(5).value);
+
+        // The cached signature hashes must be the same as if they were computed from scratch.
+        for (int i = 0; i < t.inputs.size(); i++) {
+            Assert.assertArrayEquals(sighash(t, i), t.sighash(i));
+        }
+    }
+
+    @Test
+    public void testNoChangeAddress() {
+        long amount = 100000;
+        setup(amount);
+        Bitcoin bitcoin = new Bitcoin(null, format, utxos, null, null, 100);
+
+        // Player 2 has 1000 left over after the fee and nowhere to put it.
+        change.remove(keys.get(1).get(0).VerificationKey());
+        try {
+            bitcoin.shuffleTransaction(amount, from, to, change);
+            Assert.fail("The change should not have been given to the miners.");
+        } catch (CoinNetworkError e) {
+            // Expected.
+        }
+
+        // If the fee takes all that's left over, no change address is needed.
+        Bitcoin exact = new Bitcoin(null, format, utxos, null, null, 1000);
+        Map<VerificationKey, List<VerificationKey>> one = new LinkedHashMap<>();
+        VerificationKey vk = keys.get(1).get(0).VerificationKey();
+        one.put(vk, from.get(vk));
+        Queue<Address> single = new LinkedList<>();
+        single.add(address());
+
+        ShuffleTransaction t = (ShuffleTransaction) exact.shuffleTransaction(amount, one, single, change);
+        Assert.assertEquals(1, t.outputs.size());
+    }
+
+    @Test
+    public void testSign() {
+        long amount = 50000;
+        setup(amount);
+        ExecutorService signers = Executors.newFixedThreadPool(2);
+        try {
+            Bitcoin sequential = new Bitcoin(null, format, utxos, null, null, 0);
+            Bitcoin parallel = new Bitcoin(null, format, utxos, null, signers, 0);
+
+            Transaction t = sequential.shuffleTransaction(amount, from, to, change);
+            Transaction u = parallel.shuffleTransaction(amount, from, to, change);
+
+            Map<VerificationKey, Signature> signatures = new HashMap<>();
+            for (List<PrivateKey> sks : keys) {
+                // Somebody else's key.
+                VerificationKey other = keys.get(sks == keys.get(1) ? 2 : 1).get(0).VerificationKey();
+                for (PrivateKey sk : sks) {
+                    Signature sig = sk.makeSignature(t);
+                    Assert.assertEquals(sig, sk.makeSignature(u));
+
+                    Assert.assertTrue(sk.VerificationKey().verify(t, sig));
+                    Assert.assertFalse(other.verify(t, sig));
+                    signatures.put(sk.VerificationKey(), sig);
+                }
+            }
+
+            // Checking the signatures doesn't change the transaction.
+            Assert.assertFalse(((ShuffleTransaction) t).complete());
+
+            ShuffleTransaction signed = (ShuffleTransaction) sequential.signedTransaction(t, signatures);
+            Assert.assertTrue(signed.complete());
+            Assert.assertFalse(((ShuffleTransaction) t).complete());
+
+            // The first key has two inputs, so its signature doesn't go with anyone else's.
+            Map<VerificationKey, Signature> wrong = new HashMap<>();
+            wrong.put(keys.get(1).get(0).VerificationKey(), keys.get(0).get(0).makeSignature(u));
+            try {
+                parallel.signedTransaction(u, wrong);
+                Assert.fail();
+            } catch (InvalidImplementationError e) {
+                // Good.
+            }
+
+            Assert.assertFalse(((ShuffleTransaction) u).complete());
+        } finally {
+            signers.shutdown();
+        }
+    }
+
+    // The signature hash of an input, computed the simple way.
+    static byte[] sighash(ShuffleTransaction t, int i) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, 1, 4);
+        out.write(t.inputs.size());
+        for (int j = 0; j < t.inputs.size(); j++) {
+            ShuffleTransaction.Input in = t.inputs.get(j);
+            byte[] txid = in.utxo.txid();
+            for (int k = txid.length - 1; k >= 0; k--) {
+                out.write(txid[k]);
+            }
+            write(out, in.utxo.index, 4);
+            byte[] script = j == i
+                    ? ShuffleTransaction.scriptPubKey((Hash160Address) in.key.address())
+                    : new byte[]{};
+            out.write(script.length);
+            out.write(script, 0, script.length);
+            write(out, 0xffffffffL, 4);
+        }
+        out.write(t.outputs.size());
+        for (ShuffleTransaction.Output o : t.outputs) {
+            write(out, o.value, 8);
+            byte[] script = ShuffleTransaction.scriptPubKey(o.address);
+            out.write(script.length);
+            out.write(script, 0, script.length);
+        }
+        write(out, 0, 4);
+        write(out, 1, 4);
+
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            return sha.digest(sha.digest(out.toByteArray()));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void write(ByteArrayOutputStream out, long x, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write((int) (x >>> (8 * i)));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.shuffle.bitcoin;
+
+import com.shuffle.bitcoin.keys.Hash160Address;
+import com.shuffle.protocol.FormatException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for the utxo snapshot.
+ */
+public class TestUtxoSnapshot {
+
+    final Random random = new Random(23);
+
+    // What should be in the snapshot.
+    final Map<Address, Set<UnspentOutput>> expected = new HashMap<>();
+    final List<Hash160Address> addresses = new ArrayList<>();
+    final List<UnspentOutput> all = new ArrayList<>();
+    final Map<UnspentOutput, Hash160Address> owner = new HashMap<>();
+
+    static UtxoSnapshot.Sink sink(final UtxoSnapshot snapshot) {
+        return new UtxoSnapshot.Sink() {
+            @Override
+            public void add(byte[] hash160, UnspentOutput utxo) {
+                snapshot.add(hash160, utxo);
+            }
+
+            @Override
+            public void spend(byte[] hash160, byte[] txid, int index) {
+                snapshot.spend(hash160, txid, index);
+            }
+        };
+    }
+
+    void add(UtxoSnapshot.Sink sink, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            Hash160Address address = addresses.get(random.nextInt(addresses.size()));
+            byte[] txid = new byte[UnspentOutput.HASH];
+            random.nextBytes(txid);
+            UnspentOutput utxo = new UnspentOutput(txid, random.nextInt(3), random.nextInt(1000000));
+
+            sink.add(address.toBytes(), utxo);
+            expected.get(address).add(utxo);
+            all.add(utxo);
+            owner.put(utxo, address);
+        }
+    }
+
+    void spend(UtxoSnapshot.Sink sink, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            UnspentOutput utxo = all.remove(random.nextInt(all.size()));
+            sink.spend(owner.get(utxo).toBytes(), utxo.txid(), utxo.index);
+            expected.get(owner.get(utxo)).remove(utxo);
+        }
+    }
+
+    // Spend outputs which were never added, as a block does when it spends anything but a
+    // pay-to-pubkey-hash output.
+    void spendUnknown(UtxoSnapshot.Sink sink, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            byte[] txid = new byte[UnspentOutput.HASH];
+            random.nextBytes(txid);
+            sink.spend(addresses.get(random.nextInt(addresses.size())).toBytes(), txid, 0);
+        }
+    }
+
+    void addresses() throws FormatException {
+        // Enough addresses that some have outputs on several pages, and some have none.
+        for (int i = 0; i < 30; i++) {
+            byte[] bytes = new byte[Hash160Address.SIZE];
+            random.nextBytes(bytes);
+            if (i < 3) {
+                bytes[0] = (byte) (0x80 + i); // Test the unsigned order.
+            }
+            Hash160Address address = Hash160Address.fromBytes(bytes);
+            addresses.add(address);
+            expected.put(address, new HashSet<UnspentOutput>());
+        }
+    }
+
+    void check(UtxoSnapshot snapshot) {
+        for (Map.Entry<Address, Set<UnspentOutput>> entry : expected.entrySet()) {
+            List<UnspentOutput> unspent = snapshot.unspent(entry.getKey());
+            Assert.assertEquals(entry.getValue().size(), unspent.size());
+            Assert.assertEquals(entry.getValue(), new HashSet<>(unspent));
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException, FormatException {
+        addresses();
+
+        File file = File.createTempFile("utxo", ".snapshot");
+        file.delete();
+        file.deleteOnExit();
+
+        UtxoSnapshot snapshot = new UtxoSnapshot(file, 1000);
+        try {
+            check(snapshot);
+
+            add(sink(snapshot), 600);
+            check(snapshot);
+            snapshot.compact();
+            Assert.assertEquals(600, snapshot.size());
+            check(snapshot);
+
+            // Spend outputs from the file and from the overlay.
+            add(sink(snapshot), 100);
+            spend(sink(snapshot), 200);
+            check(snapshot);
+
+            // Outputs we never had aren't remembered as spent.
+            int overlay = snapshot.overlay();
+            spendUnknown(sink(snapshot), 50);
+            Assert.assertEquals(overlay, snapshot.overlay());
+            snapshot.compact();
+            Assert.assertEquals(500, snapshot.size());
+            check(snapshot);
+        } finally {
+            snapshot.close();
+        }
+
+        snapshot = new UtxoSnapshot(file);
+        try {
+            check(snapshot);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testBuilder() throws IOException, FormatException {
+        addresses();
+
+        File file = File.createTempFile("utxo", ".snapshot");
+        file.deleteOnExit();
+
+        // Small runs, so that outputs are spent both while in memory and after being written out.
+        UtxoSnapshot.Builder builder = new UtxoSnapshot.Builder(file, 64);
+        try {
+            for (int i = 0; i < 20; i++) {
+                add(builder, 50);
+                spend(builder, 20);
+                spendUnknown(builder, 5);
+            }
+            builder.finish(new byte[UnspentOutput.HASH]);
+        } finally {
+            builder.close();
+        }
+
+        UtxoSnapshot snapshot = new UtxoSnapshot(file);
+        try {
+            Assert.assertEquals(all.size(), snapshot.size());
+            check(snapshot);
+        } finally {
+            snapshot.close();
+        }
+        Assert.assertFalse(new File(file.getPath() + ".run0").exists());
+    }
+}
@@ -0,0 +1,69 @@
+package com.shuffle.bitcoin.ecies;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.EncryptionKey;
+import com.shuffle.protocol.FormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of ECIES on one core. Run with main.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class EciesBenchmark {
+    SecureRandom random;
+    EciesDecryptionKey key;
+    EncryptionKey ek;
+    Address address;
+    Address encrypted;
+
+    @Setup
+    public void setup() {
+        random = new SecureRandom();
+        key = new EciesDecryptionKey(TestEcies.format, random);
+        ek = key.EncryptionKey();
+        address = new TestEcies.TestAddress(new byte[21]);
+        encrypted = ek.encrypt(address);
+    }
+
+    @Benchmark
+    public Object keygen() {
+        return new EciesDecryptionKey(TestEcies.format, random);
+    }
+
+    @Benchmark
+    public Object encrypt() {
+        return ek.encrypt(address);
+    }
+
+    @Benchmark
+    public Object decrypt() throws FormatException {
+        return key.decrypt(encrypted);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EciesBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,116 @@
+package com.shuffle.bitcoin.ecies;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.AddressFormat;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.protocol.FormatException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Tests for ECIES.
+ */
+public class TestEcies {
+
+    static class TestAddress implements Address {
+        final byte[] bytes;
+
+        TestAddress(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestAddress && Arrays.equals(bytes, ((TestAddress) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+
+    static final AddressFormat format = new AddressFormat() {
+        @Override
+        public byte[] serialize(Address address) throws CryptographyError {
+            return ((TestAddress) address).bytes;
+        }
+
+        @Override
+        public Address deserialize(byte[] bytes) throws FormatException {
+            return new TestAddress(bytes);
+        }
+    };
+
+    final SecureRandom random = new SecureRandom(new byte[]{11});
+
+    @Test
+    // The precomputed multiplications must agree with the ordinary ones.
+    public void testMultiply() {
+        for (int i = 0; i < 10; i++) {
+            BigInteger a = Secp256k1.randomScalar(random);
+            BigInteger b = Secp256k1.randomScalar(random);
+
+            Assert.assertEquals(Secp256k1.G.multiply(a).normalize(), Secp256k1.multiplyG(a));
+            Assert.assertEquals(
+                    Secp256k1.multiply(Secp256k1.multiplyG(a), b),
+                    Secp256k1.multiply(Secp256k1.multiplyG(b), a));
+        }
+    }
+
+    @Test
+    public void testLayers() throws FormatException {
+        Address address = new TestAddress(new byte[]{1, 2, 3});
+        EciesDecryptionKey[] keys = new EciesDecryptionKey[5];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new EciesDecryptionKey(format, random);
+        }
+
+        Address encrypted = address;
+        for (int i = keys.length - 1; i >= 0; i--) {
+            encrypted = keys[i].EncryptionKey().encrypt(encrypted);
+        }
+
+        for (EciesDecryptionKey key : keys) {
+            encrypted = key.decrypt(EciesAddress.fromBytes(((EciesAddress) encrypted).toBytes()));
+        }
+
+        Assert.assertEquals(address, encrypted);
+    }
+
+    @Test
+    public void testWrongKey() throws FormatException {
+        EciesDecryptionKey key = new EciesDecryptionKey(format, random);
+        EciesDecryptionKey other = new EciesDecryptionKey(format, random);
+        Address encrypted = key.EncryptionKey().encrypt(new TestAddress(new byte[]{4}));
+
+        try {
+            other.decrypt(encrypted);
+            Assert.fail();
+        } catch (CryptographyError e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testTampering() throws FormatException {
+        EciesDecryptionKey key = new EciesDecryptionKey(format, random);
+        byte[] bytes = ((EciesAddress) key.EncryptionKey().encrypt(new TestAddress(new byte[]{4, 5}))).toBytes();
+
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] tampered = bytes.clone();
+            tampered[i] ^= 1;
+            try {
+                key.decrypt(EciesAddress.fromBytes(tampered));
+                Assert.fail();
+            } catch (CryptographyError e) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.shuffle.bitcoin.keys;
+
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.protocol.FormatException;
+import com.shuffle.protocol.MockMessage;
+import com.shuffle.protocol.MockSessionIdentifier;
+import com.shuffle.protocol.Packet;
+import com.shuffle.protocol.Phase;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Tests for keys and addresses in canonical form.
+ */
+public class TestKeys {
+
+    final SecureRandom random = new SecureRandom(new byte[]{13});
+
+    @Test
+    public void testCompare() {
+        // Bytes are compared as unsigned numbers.
+        Assert.assertTrue(Bytes.compare(new byte[]{(byte) 0x80}, new byte[]{0x7f}) > 0);
+        Assert.assertTrue(Bytes.compare(new byte[]{0x00, (byte) 0xff}, new byte[]{0x01, 0x00}) < 0);
+        Assert.assertEquals(0, Bytes.compare(new byte[]{1, 2, 3}, new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void testIntern() throws FormatException {
+        PrivateKey sk = new PrivateKey(random);
+        PublicKey vk = (PublicKey) sk.VerificationKey();
+
+        PublicKey decoded = PublicKey.fromBytes(vk.toBytes());
+        Assert.assertSame(vk, decoded);
+        Assert.assertSame(vk.address(), Hash160Address.fromBytes(((Hash160Address) vk.address()).toBytes()));
+        Assert.assertSame(vk, new PrivateKey(sk.d).VerificationKey());
+    }
+
+    @Test
+    // Keys must be sorted in the order of their addresses.
+    public void testOrder() {
+        SortedSet<VerificationKey> keys = new TreeSet<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(new PrivateKey(random).VerificationKey());
+        }
+        Assert.assertEquals(20, keys.size());
+
+        List<Hash160Address> addresses = new ArrayList<>();
+        for (VerificationKey key : keys) {
+            addresses.add((Hash160Address) key.address());
+        }
+        for (int i = 1; i < addresses.size(); i++) {
+            Assert.assertTrue(addresses.get(i - 1).compareTo(addresses.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void testSign() throws FormatException {
+        PrivateKey alice = new PrivateKey(random);
+        PrivateKey bob = new PrivateKey(random);
+
+        Packet packet = new Packet(new MockMessage().attach(BigInteger.TEN),
+                new MockSessionIdentifier("testSign"), Phase.Announcement, alice.VerificationKey(), null);
+        EcdsaSignature sig = (EcdsaSignature) alice.makeSignature(packet);
+
+        Assert.assertTrue(alice.VerificationKey().verify(packet, sig));
+        Assert.assertTrue(alice.VerificationKey().verify(packet, EcdsaSignature.fromBytes(sig.toBytes())));
+        Assert.assertFalse(bob.VerificationKey().verify(packet, sig));
+
+        // Signing is deterministic.
+        Assert.assertEquals(sig, alice.makeSignature(packet));
+    }
+
+    @Test
+    public void testFormat() {
+        byte[][] invalid = new byte[][]{
+                new byte[PublicKey.SIZE - 1],
+                new byte[PublicKey.SIZE], // Not a point.
+        };
+
+        for (byte[] bytes : invalid) {
+            try {
+                PublicKey.fromBytes(bytes);
+                Assert.fail();
+            } catch (FormatException e) {
+                // Expected.
+            }
+        }
+
+        try {
+            Hash160Address.fromBytes(new byte[Hash160Address.SIZE + 1]);
+            Assert.fail();
+        } catch (FormatException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.shuffle.bitcoin.onion;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.AddressFormat;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.protocol.FormatException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the onion encryption.
+ */
+public class TestOnion {
+
+    static class TestAddress implements Address {
+        final byte[] bytes;
+
+        TestAddress(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestAddress && Arrays.equals(bytes, ((TestAddress) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+
+    static final AddressFormat format = new AddressFormat() {
+        @Override
+        public byte[] serialize(Address address) throws CryptographyError {
+            return ((TestAddress) address).bytes;
+        }
+
+        @Override
+        public Address deserialize(byte[] bytes) throws FormatException {
+            return new TestAddress(bytes);
+        }
+    };
+
+    final SecureRandom random = new SecureRandom(new byte[]{7});
+
+    List<OnionDecryptionKey> keys(int n, int slots) {
+        List<OnionDecryptionKey> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            keys.add(new OnionDecryptionKey(slots, format, random));
+        }
+        return keys;
+    }
+
+    @Test
+    // Layers are added for the last player first and removed in the opposite order. The onion
+    // is the same size the whole way through.
+    public void testLayers() throws FormatException {
+        int slots = 6;
+        Address address = new TestAddress(new byte[]{1, 2, 3, 4, 5});
+
+        for (int n = 1; n <= slots; n++) {
+            List<OnionDecryptionKey> keys = keys(n, slots);
+
+            Address onion = address;
+            for (int i = n - 1; i >= 0; i--) {
+                onion = keys.get(i).EncryptionKey().encrypt(onion);
+                Assert.assertEquals(OnionAddress.size(slots), ((OnionAddress) onion).toBytes().length);
+            }
+
+            for (int i = 0; i < n; i++) {
+                Assert.assertTrue(onion instanceof OnionAddress);
+                onion = keys.get(i).decrypt(OnionAddress.fromBytes(((OnionAddress) onion).toBytes(), slots));
+                if (i < n - 1) {
+                    Assert.assertEquals(OnionAddress.size(slots), ((OnionAddress) onion).toBytes().length);
+                }
+            }
+
+            Assert.assertEquals(address, onion);
+        }
+    }
+
+    @Test
+    public void testTooManyLayers() {
+        List<OnionDecryptionKey> keys = keys(3, 2);
+        Address onion = new TestAddress(new byte[]{9});
+        onion = keys.get(0).EncryptionKey().encrypt(onion);
+        onion = keys.get(1).EncryptionKey().encrypt(onion);
+        try {
+            keys.get(2).EncryptionKey().encrypt(onion);
+            Assert.fail();
+        } catch (CryptographyError e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testWrongKey() throws FormatException {
+        List<OnionDecryptionKey> keys = keys(2, 4);
+        Address onion = keys.get(0).EncryptionKey().encrypt(new TestAddress(new byte[]{9}));
+        try {
+            keys.get(1).decrypt(onion);
+            Assert.fail();
+        } catch (CryptographyError e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    // Changing any byte of the payload or of the slots in use is detected.
+    public void testTampering() throws FormatException {
+        int slots = 4;
+        List<OnionDecryptionKey> keys = keys(2, slots);
+        Address onion = new TestAddress(new byte[]{9, 8});
+        onion = keys.get(1).EncryptionKey().encrypt(onion);
+        onion = keys.get(0).EncryptionKey().encrypt(onion);
+        byte[] bytes = ((OnionAddress) onion).toBytes();
+
+        int[] positions = new int[]{Onion.POINT, Onion.SLOT + 3, 2 * Onion.SLOT - 1, slots * Onion.SLOT, bytes.length - 1};
+        for (int position : positions) {
+            byte[] tampered = bytes.clone();
+            tampered[position] ^= 1;
+            try {
+                keys.get(0).decrypt(OnionAddress.fromBytes(tampered, slots));
+                Assert.fail();
+            } catch (CryptographyError e) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -2,9 +2,11 @@ package com.shuffle.protocol;
 
 import com.shuffle.bitcoin.Address;
 import com.shuffle.bitcoin.CoinNetworkError;
+import com.shuffle.bitcoin.Signature;
 import com.shuffle.bitcoin.Transaction;
 import com.shuffle.bitcoin.VerificationKey;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -58,6 +60,11 @@ public class MockCoin implements Simulator.MockCoin {
         // A number used to represented slight variations in a transaction which would
         // result in different signatures being produced.
         int z = 1;
+        // Whether the transaction can only be sent once every input has been signed. Only
+        // shuffle transactions are signed, so that tests can move money around freely.
+        boolean signed = false;
+        // The signatures of the inputs, by their addresses.
+        final Map<Address, Signature> signatures = new ConcurrentHashMap<>();
 
         public MockTransaction(List<Output> inputs, List<Output> outputs) {
             for (Output output : inputs) {
@@ -132,6 +139,11 @@ public class MockCoin implements Simulator.MockCoin {
             MockCoin.this.send(this);
         }
 
+        @Override
+        public byte[] sighash(VerificationKey key) {
+            return (z + toString()).getBytes(StandardCharsets.UTF_8);
+        }
+
         public MockTransaction copy() {
             return new MockTransaction(inputs, outputs);
         }
@@ -194,6 +206,14 @@ public class MockCoin implements Simulator.MockCoin {
 
         MockTransaction mt = (MockTransaction) t;
 
+        if (mt.signed) {
+            for (Output input : mt.inputs) {
+                if (!mt.signatures.containsKey(input.address)) {
+                    throw new CoinNetworkError();
+                }
+            }
+        }
+
         // First check that the transaction doesn't send more than it spends.
         long available = 0;
         for (Output input : mt.inputs) {
@@ -256,38 +276,60 @@ public class MockCoin implements Simulator.MockCoin {
 
     @Override
     // TODO transaction fees.
-    public Transaction shuffleTransaction(final long amount, List<VerificationKey> from, Queue<Address> to, Map<VerificationKey, Address> changeAddresses) {
+    public Transaction shuffleTransaction(final long amount, Map<VerificationKey, List<VerificationKey>> from, Queue<Address> to, Map<VerificationKey, Address> changeAddresses) {
         if (amount == 0) {
             throw new IllegalArgumentException();
         }
         List<Output> inputs = new LinkedList<>();
         List<Output> outputs = new LinkedList<>();
 
-        // Are there inputs big enough blockchain make this transaction?
-        for (VerificationKey key : from) {
-            final Address address = key.address();
-            final long value = valueHeld(address);
-            if (value < amount) {
-                throw new CoinNetworkError();
-            }
+        for (Map.Entry<VerificationKey, List<VerificationKey>> player : from.entrySet()) {
+            long remaining = 0;
 
-            Output input = blockchain.get(address);
-            if (input == null) {
-                throw new CoinNetworkError();
+            // Are there inputs big enough blockchain make this transaction?
+            for (VerificationKey key : player.getValue()) {
+                final Address address = key.address();
+                final long value = valueHeld(address);
+                if (value < amount) {
+                    throw new CoinNetworkError();
+                }
+
+                Output input = blockchain.get(address);
+                if (input == null) {
+                    throw new CoinNetworkError();
+                }
+                inputs.add(input);
+                remaining += value - amount;
             }
-            inputs.add(input);
 
             // If a change address has been provided, add that.
-            Address change = changeAddresses.get(key);
+            Address change = changeAddresses.get(player.getKey());
             if (change != null) {
-                outputs.add(new Output(change, value - amount));
+                outputs.add(new Output(change, remaining));
             }
         }
 
         for(Address address : to) {
             outputs.add(new Output(address, amount));
         }
-        return new MockTransaction(inputs, outputs, z);
+        MockTransaction t = new MockTransaction(inputs, outputs, z);
+        t.signed = true;
+        return t;
+    }
+
+    @Override
+    public Transaction signedTransaction(Transaction t, Map<VerificationKey, Signature> signatures) {
+        if (!(t instanceof MockTransaction)) {
+            throw new InvalidImplementationError();
+        }
+
+        MockTransaction mt = (MockTransaction) t;
+        MockTransaction signed = new MockTransaction(mt.inputs, mt.outputs, mt.z);
+        signed.signed = true;
+        for (Map.Entry<VerificationKey, Signature> sig : signatures.entrySet()) {
+            signed.signatures.put(sig.getKey().address(), sig.getValue());
+        }
+        return signed;
     }
 
     @Override
@@ -317,6 +359,21 @@ public class MockCoin implements Simulator.MockCoin {
         return conflict != null && t.equals(conflict);
     }
 
+    @Override
+    public synchronized boolean seen(Transaction t) {
+        if (!(t instanceof MockTransaction)) {
+            return false;
+        }
+
+        for (Output input : ((MockTransaction) t).inputs) {
+            if (!t.equals(spend.get(input))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     @Override
     public String toString() {
         return "{" + blockchain.values().toString() + ", " + spend.toString() + "}";
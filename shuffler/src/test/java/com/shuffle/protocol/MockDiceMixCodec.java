@@ -0,0 +1,45 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.EncryptionKey;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Lets the mock keys and addresses be used with DiceMix.
+ */
+public class MockDiceMixCodec implements DiceMix.Codec {
+
+    @Override
+    public byte[] sharedSecret(DecryptionKey mine, EncryptionKey theirs) throws CryptographyError {
+        if (!(mine instanceof MockDecryptionKey && theirs instanceof MockEncryptionKey)) {
+            throw new CryptographyError();
+        }
+
+        // Both players end up with the same two numbers in the same order.
+        int a = ((MockDecryptionKey) mine).index;
+        int b = ((MockEncryptionKey) theirs).index;
+        return ByteBuffer.allocate(8).putInt(Math.min(a, b)).putInt(Math.max(a, b)).array();
+    }
+
+    @Override
+    public BigInteger encode(Address address) throws FormatException {
+        if (!(address instanceof MockAddress)) {
+            throw new FormatException();
+        }
+
+        return BigInteger.valueOf(((MockAddress) address).index);
+    }
+
+    @Override
+    public Address decode(BigInteger number) throws FormatException {
+        if (number.signum() <= 0 || number.bitLength() > 31) {
+            throw new FormatException();
+        }
+
+        return new MockAddress(number.intValue());
+    }
+}
@@ -15,6 +15,21 @@ public class MockEncryptedAddress implements Address {
         this.key = key;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MockEncryptedAddress)) {
+            return false;
+        }
+
+        MockEncryptedAddress address = (MockEncryptedAddress)o;
+        return encrypted.equals(address.encrypted) && key.equals(address.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return encrypted.hashCode() * 15 + key.hashCode();
+    }
+
     @Override
     public String toString() {
         return "encrypted[" + encrypted.toString() + ", " + key.toString() + "]";
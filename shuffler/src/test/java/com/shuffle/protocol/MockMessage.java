@@ -10,6 +10,7 @@ import com.shuffle.protocol.blame.Blame;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.math.BigInteger;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -58,6 +59,7 @@ public class MockMessage implements Message {
         public Signature sig = null;
         public Hash hash = null;
         public Blame blame;
+        public BigInteger number = null;
 
         public Transaction t;
         // Sometimes, we have blockchain send whole packets that we previously received.
@@ -89,6 +91,10 @@ public class MockMessage implements Message {
 
         public Atom(Blame blame) {this.blame = blame;}
 
+        public Atom(BigInteger number) {
+            this.number = number;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (!(o instanceof Atom)) {
@@ -103,7 +109,8 @@ public class MockMessage implements Message {
                      && ((a.t == null && t == null) || (a.t != null && t != null && t.equals(a.t))) &&
                     ((a.packet == null && packet == null) || (a.packet != null && packet != null && packet.equals(a.packet)))
                      && ((a.blame == null && blame == null) || (a.blame != null && blame != null && blame.equals(a.blame)))
-                     && ((a.hash == null && hash == null) || (a.hash != null && hash != null && hash.equals(a.hash)));
+                     && ((a.hash == null && hash == null) || (a.hash != null && hash != null && hash.equals(a.hash)))
+                     && ((a.number == null && number == null) || (a.number != null && number != null && number.equals(a.number)));
         }
 
         @Override
@@ -113,6 +120,7 @@ public class MockMessage implements Message {
             hash = hash * 15 + (sig == null ? 0 : sig.hashCode());
             hash = hash * 15 + (this.hash == null ? 0 : this.hash.hashCode());
             hash = hash * 15 + (blame == null ? 0 : blame.hashCode());
+            hash = hash * 15 + (number == null ? 0 : number.hashCode());
             return hash;
         }
 
@@ -147,6 +155,10 @@ public class MockMessage implements Message {
                 return blame.toString();
             }
 
+            if (number != null) {
+                return number.toString();
+            }
+
             return "";
         }
 
@@ -180,6 +192,10 @@ public class MockMessage implements Message {
                 return new Atom(blame.copy());
             }
 
+            if (number != null) {
+                return new Atom(number);
+            }
+
             return null;
         }
     }
@@ -263,6 +279,15 @@ public class MockMessage implements Message {
         return this;
     }
 
+    @Override
+    public Message attach(BigInteger number) {
+        if (number == null) {
+            throw new NullPointerException();
+        }
+        atoms.add(new Atom(number));
+        return this;
+    }
+
     public Message attach(Hash hash) {
         if (hash == null) {
             throw new NullPointerException();
@@ -325,6 +350,16 @@ public class MockMessage implements Message {
         return blame;
     }
 
+    @Override
+    public BigInteger readNumber() throws FormatException {
+        Atom atom = atoms.peek();
+        if (atom == null || atom.number == null) {
+            throw new FormatException();
+        }
+
+        return atoms.remove().number;
+    }
+
     @Override
     public Signature readSignature() throws FormatException {
         Atom atom = atoms.peek();
@@ -373,6 +408,34 @@ public class MockMessage implements Message {
         return new MockMessage(newAtoms);
     }
 
+    @Override
+    public void digest(PacketDigest digest) throws InvalidImplementationError {
+        digest.update(atoms.size());
+        for (Atom atom : atoms) {
+            // The mock objects only have a string form, which is good enough for testing.
+            if (atom.addr != null) {
+                digest.update((byte) 1).update(atom.addr.toString());
+            } else if (atom.ek != null) {
+                digest.update((byte) 2).update(atom.ek.toString());
+            } else if (atom.sig != null) {
+                digest.update((byte) 3).update(atom.sig.toString());
+            } else if (atom.hash != null) {
+                digest.update((byte) 4);
+                new MockMessage(atom.hash.hashed).digest(digest);
+            } else if (atom.t != null) {
+                digest.update((byte) 5).update(atom.t.toString());
+            } else if (atom.packet != null) {
+                digest.update((byte) 6).update(atom.packet.digest());
+            } else if (atom.blame != null) {
+                digest.update((byte) 7).update(atom.blame.toString());
+            } else if (atom.number != null) {
+                digest.update((byte) 8).update(atom.number);
+            } else {
+                throw new InvalidImplementationError();
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return atoms.toString();
@@ -5,6 +5,7 @@ import com.shuffle.bitcoin.VerificationKey;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Mock implementation of the Network interface for testing purposes.
@@ -80,7 +81,7 @@ public class MockNetwork implements Network {
     }
 
     @Override
-    public SignedPacket receive() throws TimeoutError {
+    public SignedPacket receive(long timeout, TimeUnit unit) throws TimeoutError {
         if (sent.size() == 0) {
             throw new TimeoutError();
         }
@@ -3,22 +3,27 @@ package com.shuffle.protocol;
 import com.shuffle.bitcoin.Signature;
 import com.shuffle.bitcoin.Transaction;
 
+import java.util.Arrays;
+
 /**
  * Created by Daniel Krawisz on 12/9/15.
  */
 public class MockSignature implements Signature {
     final Transaction t;
     final Packet packet;
+    final byte[] digest; // The digest of the packet, which is what is really signed.
     final MockVerificationKey key;
 
     MockSignature(Transaction t, MockVerificationKey key) {
         this.t = t;
         this.key = key;
         this.packet = null;
+        this.digest = null;
     }
 
     MockSignature(Packet packet, MockVerificationKey key) {
         this.packet = packet;
+        this.digest = packet.digest();
         this.key = key;
         this.t = null;
     }
@@ -40,7 +45,10 @@ public class MockSignature implements Signature {
             return false;
         }
 
-        return (key.equals((MockSignature)o));
+        MockSignature mock = (MockSignature)o;
+
+        return key.equals(mock.key) && Arrays.equals(digest, mock.digest)
+                && (t == null ? mock.t == null : t.equals(mock.t));
     }
 
     @Override
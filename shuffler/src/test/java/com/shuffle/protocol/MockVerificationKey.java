@@ -5,6 +5,8 @@ import com.shuffle.bitcoin.Signature;
 import com.shuffle.bitcoin.Transaction;
 import com.shuffle.bitcoin.VerificationKey;
 
+import java.util.Arrays;
+
 /**
  * TODO
  *
@@ -37,7 +39,7 @@ public class MockVerificationKey implements VerificationKey {
 
         MockSignature mock = (MockSignature)sig;
 
-        return mock.packet != null && mock.packet.equals(packet) && mock.key.equals(this);
+        return mock.digest != null && Arrays.equals(mock.digest, packet.digest()) && mock.key.equals(this);
     }
 
     @Override
@@ -54,6 +56,11 @@ public class MockVerificationKey implements VerificationKey {
         return new MockAddress(index);
     }
 
+    @Override
+    public void digest(PacketDigest digest) {
+        digest.update(index);
+    }
+
     public String toString() {
         return "vk[" + index + "]";
     }
@@ -0,0 +1,63 @@
+package com.shuffle.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for the arithmetic behind DiceMix.
+ */
+public class TestDiceMix {
+
+    @Test
+    public void testSolve() {
+        Random random = new Random(29);
+
+        for (int n = 1; n <= 8; n++) {
+            List<BigInteger> numbers = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                numbers.add(new BigInteger(250, random).add(BigInteger.ONE));
+            }
+
+            List<BigInteger> solution = DiceMix.solve(DiceMix.powerSums(numbers, n));
+            Collections.sort(numbers);
+            Assert.assertEquals(numbers, solution);
+        }
+
+        // Two players chose the same number.
+        List<BigInteger> collision = Arrays.asList(BigInteger.valueOf(7), BigInteger.valueOf(3), BigInteger.valueOf(7));
+        Assert.assertNull(DiceMix.solve(DiceMix.powerSums(collision, 3)));
+
+        // Something that isn't power sums at all.
+        Assert.assertNull(DiceMix.solve(DiceMix.pad(new byte[]{1, 2, 3}, 5)));
+    }
+
+    @Test
+    public void testPadsCancel() {
+        List<BigInteger> numbers = Arrays.asList(BigInteger.valueOf(11), BigInteger.valueOf(5));
+        BigInteger[] first = DiceMix.powerSums(numbers.subList(0, 1), 2);
+        BigInteger[] second = DiceMix.powerSums(numbers.subList(1, 2), 2);
+
+        byte[] secret = new byte[]{4, 5, 6};
+        DiceMix.add(first, DiceMix.pad(secret, 2), false);
+        DiceMix.add(second, DiceMix.pad(secret, 2), true);
+        Assert.assertFalse(DiceMix.valid(first, 1));
+
+        DiceMix.add(first, second, false);
+        Assert.assertEquals(Arrays.asList(BigInteger.valueOf(5), BigInteger.valueOf(11)), DiceMix.solve(first));
+    }
+
+    @Test
+    public void testValid() {
+        List<BigInteger> numbers = Arrays.asList(BigInteger.valueOf(2), BigInteger.valueOf(9));
+        Assert.assertTrue(DiceMix.valid(DiceMix.powerSums(numbers, 6), 2));
+        Assert.assertFalse(DiceMix.valid(DiceMix.powerSums(numbers, 6), 1));
+        Assert.assertFalse(DiceMix.valid(DiceMix.powerSums(numbers, 6), 3));
+    }
+}
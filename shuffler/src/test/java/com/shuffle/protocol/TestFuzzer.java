@@ -0,0 +1,203 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.SigningKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for the fuzzer.
+ */
+public class TestFuzzer {
+
+    static final Fuzzer.Environment environment = new Fuzzer.Environment() {
+        @Override
+        public MessageFactory messages() {
+            return new MockMessageFactory();
+        }
+
+        @Override
+        public Crypto crypto(long seed) {
+            return new MockCrypto((int) seed);
+        }
+
+        @Override
+        public Simulator.MockCoin coin() {
+            return new MockCoin();
+        }
+
+        @Override
+        public SessionIdentifier session(long seed) {
+            return new MockSessionIdentifier("fuzz" + seed);
+        }
+    };
+
+    // Fails whenever anybody spends his money, whatever actually happened.
+    static final Fuzzer.Oracle spenders = new Fuzzer.Oracle() {
+        @Override
+        public String check(Fuzzer.Scenario scenario, List<SigningKey> players, Map<SigningKey, ReturnState> results) {
+            for (Fuzzer.Role role : scenario.roles) {
+                if (role.spend) {
+                    return "spent";
+                }
+            }
+            return null;
+        }
+    };
+
+    // Fails unless every honest player fails and blames every adversary.
+    static final Fuzzer.Oracle blamed = new Fuzzer.Oracle() {
+        @Override
+        public String check(Fuzzer.Scenario scenario, List<SigningKey> players, Map<SigningKey, ReturnState> results) {
+            for (int i = 0; i < players.size(); i++) {
+                if (!scenario.roles.get(i).honest()) {
+                    continue;
+                }
+
+                ReturnState result = results.get(players.get(i));
+                if (result.success || result.blame == null) {
+                    return "honest player " + (i + 1) + " did not blame anyone: " + result;
+                }
+
+                for (int j = 0; j < players.size(); j++) {
+                    if (scenario.roles.get(j).honest()) {
+                        continue;
+                    }
+
+                    boolean accused = false;
+                    for (SigningKey accuser : players) {
+                        accused |= result.blame.get(accuser.VerificationKey(), players.get(j).VerificationKey()) != null;
+                    }
+                    if (!accused) {
+                        return "honest player " + (i + 1) + " did not blame player " + (j + 1) + ": " + result;
+                    }
+                }
+            }
+            return null;
+        }
+    };
+
+    static Fuzzer.Role spender() {
+        return new Fuzzer.Role(20, true, false, null, null, 0, 0, false);
+    }
+
+    @Test
+    public void testGenerate() {
+        Fuzzer fuzzer = new Fuzzer(environment);
+
+        for (int i = 0; i < 20; i++) {
+            Fuzzer.Scenario first = fuzzer.generate(new Random(i));
+            Fuzzer.Scenario second = fuzzer.generate(new Random(i));
+            Assert.assertEquals(first.toString(), second.toString());
+            Assert.assertTrue(first.roles.size() >= 3 && first.roles.size() <= 6);
+        }
+
+        // Nobody spends money he doesn't have.
+        Fuzzer.Role poor = new Fuzzer.Role(10, true, true, new int[]{3, 1}, null, 2, 2, false);
+        Assert.assertFalse(poor.spend);
+        Assert.assertFalse(poor.doubleSpend);
+        Assert.assertEquals(0, poor.duplicate);
+        Assert.assertTrue(Arrays.equals(new int[]{1, 3}, poor.equivocateAnnouncement));
+        Assert.assertFalse(poor.honest());
+        Assert.assertTrue(new Fuzzer.Role().honest());
+    }
+
+    @Test
+    public void testHonest() {
+        Fuzzer fuzzer = new Fuzzer(environment);
+
+        List<Fuzzer.Role> roles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            roles.add(new Fuzzer.Role());
+        }
+
+        Assert.assertNull(fuzzer.run(new Fuzzer.Scenario(7, roles, 50, 20, 0, 2, 300, 0, 0, 0)));
+
+        // A player without enough money is blamed, but nobody honest is.
+        roles.set(1, new Fuzzer.Role(10, false, false, null, null, 0, 0, false));
+        Assert.assertNull(fuzzer.run(new Fuzzer.Scenario(7, roles, 50, 20, 0, 0, 0, 0, 0, 0)));
+    }
+
+    @Test
+    public void testDrop() {
+        Fuzzer honest = new Fuzzer(environment);
+        Fuzzer fuzzer = new Fuzzer(environment, blamed, 6, 2, 0);
+
+        Fuzzer.Role[] adversaries = new Fuzzer.Role[]{
+                new Fuzzer.Role(20, false, false, null, null, 2, 0, false),
+                new Fuzzer.Role(20, false, false, null, null, 1, 3, false),
+                new Fuzzer.Role(20, false, false, null, null, 3, 0, true)};
+
+        // Wherever the adversary ends up in the order of the players, he is caught.
+        for (Fuzzer.Role adversary : adversaries) {
+            for (int i = 0; i < 4; i++) {
+                List<Fuzzer.Role> roles = new ArrayList<>();
+                for (int j = 0; j < 4; j++) {
+                    roles.add(j == i ? adversary : new Fuzzer.Role());
+                }
+
+                Fuzzer.Scenario scenario = new Fuzzer.Scenario(11 + i, roles, 50, 20, 0, 0, 0, 0, 0, 0);
+                Assert.assertNull(scenario.toString(), honest.run(scenario));
+                Assert.assertNull(scenario.toString(), fuzzer.run(scenario));
+            }
+        }
+
+        // Anything the other players do wrong should end in blame, not an exception.
+        Assert.assertTrue(Fuzzer.expected(null));
+        Assert.assertTrue(Fuzzer.expected(new TimeoutError()));
+        Assert.assertFalse(Fuzzer.expected(new FormatException()));
+        Assert.assertFalse(Fuzzer.expected(new java.net.ProtocolException()));
+    }
+
+    @Test
+    public void testShrink() {
+        Fuzzer fuzzer = new Fuzzer(environment, spenders, 6, 2, 200);
+
+        List<Fuzzer.Role> roles = new ArrayList<>();
+        roles.add(new Fuzzer.Role());
+        roles.add(spender());
+        roles.add(new Fuzzer.Role(10, false, false, new int[]{1}, null, 0, 0, false));
+        roles.add(spender());
+        roles.add(new Fuzzer.Role(20, false, false, null, new int[]{2, 3}, 1, 0, true));
+        Fuzzer.Scenario failing = new Fuzzer.Scenario(3, roles, 100, 50, 0.01, 1, 200, 4, 0, 5000);
+        Assert.assertNotNull(fuzzer.run(failing));
+
+        Fuzzer.Scenario minimal = fuzzer.shrink(failing);
+        Assert.assertNotNull(fuzzer.run(minimal));
+        Assert.assertEquals(2, minimal.roles.size());
+        Assert.assertTrue(minimal.reliable());
+        Assert.assertEquals(0, minimal.latency);
+        Assert.assertEquals(0, minimal.jitter);
+        Assert.assertEquals(0, minimal.slow);
+
+        int spent = 0;
+        for (Fuzzer.Role role : minimal.roles) {
+            if (role.spend) {
+                spent++;
+                Assert.assertFalse(role.lies());
+            } else {
+                Assert.assertTrue(role.honest());
+            }
+        }
+        Assert.assertEquals(1, spent);
+    }
+
+    @Test
+    public void testFuzz() throws Exception {
+        Fuzzer fuzzer = new Fuzzer(environment, Fuzzer.HONEST, 5, 4, 20);
+
+        // There are bugs left to find, so only check that what is found is real.
+        for (Fuzzer.Report report : fuzzer.fuzz(1234, 16)) {
+            Assert.assertNotNull(report.failure);
+            Assert.assertNotNull(report.minimal.toString(), fuzzer.run(report.minimal));
+            Assert.assertTrue(report.minimal.roles.size() <= report.original.roles.size());
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.CryptographyError;
+import com.shuffle.bitcoin.DecryptionKey;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.protocol.blame.BlameException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for the journal.
+ */
+public class TestJournal {
+
+    // Mock objects can't really be serialized, so we just remember them and write down an index.
+    static class MockCodec implements Journal.Codec {
+        final List<Object> objects = new ArrayList<>();
+
+        byte[] remember(Object o) {
+            objects.add(o);
+            return ByteBuffer.allocate(4).putInt(objects.size() - 1).array();
+        }
+
+        Object recall(byte[] bytes) throws FormatException {
+            if (bytes.length != 4) {
+                throw new FormatException();
+            }
+            int index = ByteBuffer.wrap(bytes).getInt();
+            if (index < 0 || index >= objects.size()) {
+                throw new FormatException();
+            }
+            return objects.get(index);
+        }
+
+        @Override
+        public byte[] encode(SignedPacket packet) {
+            return remember(packet);
+        }
+
+        @Override
+        public SignedPacket decodeSignedPacket(byte[] bytes) throws FormatException {
+            return (SignedPacket)recall(bytes);
+        }
+
+        @Override
+        public byte[] encode(DecryptionKey key) {
+            return remember(key);
+        }
+
+        @Override
+        public DecryptionKey decodeDecryptionKey(byte[] bytes) throws FormatException {
+            return (DecryptionKey)recall(bytes);
+        }
+
+        @Override
+        public byte[] encode(SigningKey key) {
+            return remember(key);
+        }
+
+        @Override
+        public SigningKey decodeSigningKey(byte[] bytes) throws FormatException {
+            return (SigningKey)recall(bytes);
+        }
+    }
+
+    SignedPacket packet(SessionIdentifier session, int from, int to, Phase phase) {
+        MockSigningKey sender = new MockSigningKey(from);
+        return sender.makeSignedPacket(
+                new Packet(new MockMessage(), session, phase, sender.VerificationKey(), new MockVerificationKey(to)));
+    }
+
+    @Test
+    public void testReplay() throws IOException, InterruptedException, FormatException,
+            ValueException, BlameException, CryptographyError, InvalidImplementationError {
+
+        File file = File.createTempFile("journal", null);
+        file.deleteOnExit();
+        MockCodec codec = new MockCodec();
+        SessionIdentifier session = new MockSessionIdentifier("testReplay");
+        MockSigningKey sk = new MockSigningKey(1);
+
+        Set<VerificationKey> players = new HashSet<>();
+        for (int i = 1; i <= 3; i++) {
+            players.add(new MockVerificationKey(i));
+        }
+
+        DecryptionKey dk;
+        int random;
+        SignedPacket first = packet(session, 2, 1, Phase.Announcement);
+        SignedPacket second = packet(session, 3, 1, Phase.Announcement);
+        {
+            Journal journal = new Journal(file, codec);
+            Journal.Log log = journal.log(session);
+            Assert.assertFalse(log.replaying());
+
+            Crypto crypto = log.crypto(new MockCrypto(77));
+            dk = crypto.makeDecryptionKey();
+            random = crypto.getRandom(1000);
+
+            log.phase(Phase.Announcement);
+            MockNetwork network = new MockNetwork();
+            network.deliver(first);
+            network.deliver(second);
+            Mailbox mailbox = new Mailbox(session, sk, players, network, new TimeoutPolicy(), log);
+            mailbox.broadcast(new MockMessage(), Phase.Announcement);
+            mailbox.receiveFrom(new MockVerificationKey(2), Phase.Announcement);
+            mailbox.receiveFrom(new MockVerificationKey(3), Phase.Announcement);
+            Assert.assertEquals(2, network.getResponses().size());
+
+            journal.close();
+        }
+
+        // Pretend the process restarted.
+        Journal journal = new Journal(file, codec);
+        Assert.assertEquals(Phase.Announcement, journal.lastPhase(session));
+        Assert.assertNull(journal.lastPhase(new MockSessionIdentifier("other")));
+
+        Journal.Log log = journal.log(session);
+        Assert.assertTrue(log.replaying());
+
+        // A different seed, so we would notice if it were used.
+        Crypto crypto = log.crypto(new MockCrypto(78));
+        Assert.assertTrue(dk == crypto.makeDecryptionKey());
+        Assert.assertEquals(random, crypto.getRandom(1000));
+
+        // Nothing is available on the network, so everything must come from the journal.
+        MockNetwork network = new MockNetwork();
+        Mailbox mailbox = new Mailbox(session, sk, players, network, new TimeoutPolicy(), log);
+        mailbox.broadcast(new MockMessage(), Phase.Announcement);
+        Assert.assertEquals(first.packet.message, mailbox.receiveFrom(new MockVerificationKey(2), Phase.Announcement));
+        Assert.assertEquals(second.packet.message, mailbox.receiveFrom(new MockVerificationKey(3), Phase.Announcement));
+        Assert.assertFalse(log.replaying());
+
+        // The packets we sent before are sent again.
+        Assert.assertEquals(2, network.getResponses().size());
+
+        journal.close();
+    }
+
+    // A peer restarts in the middle of the shuffle phase and sends again what he sent before.
+    // What he sends again must not be taken for the next frame.
+    @Test
+    public void testPeerRestart() throws IOException, InterruptedException, FormatException,
+            ValueException, BlameException, CryptographyError, InvalidImplementationError {
+
+        File file = File.createTempFile("journal", null);
+        file.deleteOnExit();
+        MockCodec codec = new TestTrace.MockCodec(); // Packets come back as copies.
+        SessionIdentifier session = new MockSessionIdentifier("testPeerRestart");
+        MockSigningKey peer = new MockSigningKey(1);
+        VerificationKey me = new MockVerificationKey(2);
+
+        Set<VerificationKey> players = new HashSet<>();
+        for (int i = 1; i <= 3; i++) {
+            players.add(new MockVerificationKey(i));
+        }
+
+        Message first = new MockMessage().attach(new MockAddress(101));
+        Message second = new MockMessage().attach(new MockAddress(102));
+
+        MockNetwork before = new MockNetwork();
+        {
+            Journal journal = new Journal(file, codec);
+            Journal.Log log = journal.log(session);
+            log.phase(Phase.Shuffling);
+            Mailbox mailbox = new Mailbox(session, peer, players, before, new TimeoutPolicy(), log);
+            mailbox.send(new Packet(first, session, Phase.Shuffling, peer.VerificationKey(), me));
+            journal.close();
+        }
+
+        MockNetwork after = new MockNetwork();
+        {
+            Journal journal = new Journal(file, codec);
+            Journal.Log log = journal.log(session);
+            Mailbox mailbox = new Mailbox(session, peer, players, after, new TimeoutPolicy(), log);
+            mailbox.send(new Packet(first, session, Phase.Shuffling, peer.VerificationKey(), me));
+            mailbox.send(new Packet(second, session, Phase.Shuffling, peer.VerificationKey(), me));
+            journal.close();
+        }
+        Assert.assertEquals(2, after.getResponses().size());
+
+        // We get everything he sent, both before and after the restart.
+        MockNetwork network = new MockNetwork();
+        for (Map.Entry<SignedPacket, VerificationKey> sent : before.getResponses()) {
+            network.deliver(sent.getKey());
+        }
+        for (Map.Entry<SignedPacket, VerificationKey> sent : after.getResponses()) {
+            network.deliver(sent.getKey());
+        }
+
+        final List<Message> frames = new ArrayList<>();
+        Mailbox mailbox = new Mailbox(session, new MockSigningKey(2), players, network);
+        mailbox.receiveFrames(peer.VerificationKey(), Phase.Shuffling, new Mailbox.FrameReader() {
+            @Override
+            public boolean read(Message frame) {
+                frames.add(frame);
+                return frames.size() < 2;
+            }
+        });
+
+        Assert.assertEquals(Arrays.asList(first, second), frames);
+        Assert.assertEquals(2, mailbox.getPacketsByPhase(Phase.Shuffling).size());
+    }
+
+    // Player 2 sends us his announcement while we are down, so it is not in the journal.
+    @Test
+    public void testRestartInFlight() throws IOException, InterruptedException, FormatException,
+            ValueException, BlameException, CryptographyError, InvalidImplementationError {
+
+        File file = File.createTempFile("journal", null);
+        file.deleteOnExit();
+        MockCodec codec = new MockCodec();
+        SessionIdentifier session = new MockSessionIdentifier("testRestartInFlight");
+        MockSigningKey sk = new MockSigningKey(1);
+        MockSigningKey peer = new MockSigningKey(2);
+
+        Set<VerificationKey> players = new HashSet<>();
+        for (int i = 1; i <= 3; i++) {
+            players.add(new MockVerificationKey(i));
+        }
+
+        {
+            Journal journal = new Journal(file, codec);
+            Journal.Log log = journal.log(session);
+            log.phase(Phase.Announcement);
+            Mailbox mailbox = new Mailbox(session, sk, players, new MockNetwork(), new TimeoutPolicy(), log);
+            mailbox.broadcast(new MockMessage(), Phase.Announcement);
+            journal.close();
+        }
+
+        MockNetwork peerNetwork = new MockNetwork();
+        Mailbox peerMailbox = new Mailbox(session, peer, players, peerNetwork);
+        Message announcement = new MockMessage().attach(new MockAddress(201));
+        peerMailbox.broadcast(announcement, Phase.Announcement);
+        peerNetwork.getResponses().clear(); // Lost.
+
+        // Pretend the process restarted.
+        Journal journal = new Journal(file, codec);
+        Journal.Log log = journal.log(session);
+        MockNetwork network = new MockNetwork();
+        Mailbox mailbox = new Mailbox(session, sk, players, network, new TimeoutPolicy(), log);
+        mailbox.requestResend(new MockMessage());
+        mailbox.broadcast(new MockMessage(), Phase.Announcement);
+
+        // There is nothing in the journal from player 2, so we ask for it.
+        try {
+            mailbox.receiveFrom(peer.VerificationKey(), Phase.Announcement);
+            Assert.fail();
+        } catch (TimeoutError e) {
+            // Expected.
+        }
+
+        // Player 2 sees the request while waiting for our announcement, which we sent again.
+        int requests = 0;
+        SignedPacket ours = null;
+        for (Map.Entry<SignedPacket, VerificationKey> sent : network.getResponses()) {
+            if (sent.getKey().packet.phase == Phase.Resend) {
+                requests++;
+                if (sent.getValue().equals(peer.VerificationKey())) {
+                    peerNetwork.deliver(sent.getKey());
+                }
+            } else if (sent.getValue().equals(peer.VerificationKey())) {
+                ours = sent.getKey();
+            }
+        }
+        Assert.assertEquals(2, requests);
+        Assert.assertNotNull(ours);
+        peerNetwork.deliver(ours);
+        peerMailbox.receiveFrom(sk.VerificationKey(), Phase.Announcement);
+        Assert.assertEquals(1, peerNetwork.getResponses().size());
+
+        // Now we get his announcement. We only ask once.
+        network.getResponses().clear();
+        network.deliver(peerNetwork.getResponses().remove().getKey());
+        Assert.assertEquals(announcement, mailbox.receiveFrom(peer.VerificationKey(), Phase.Announcement));
+        Assert.assertTrue(network.getResponses().isEmpty());
+
+        journal.close();
+    }
+
+    // The journal has keys in it, so nobody else should be able to read it.
+    @Test
+    public void testPermissions() throws IOException {
+        File dir = File.createTempFile("journal", null);
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        dir.deleteOnExit();
+
+        File created = new File(dir, "created");
+        File existing = new File(dir, "existing");
+        created.deleteOnExit();
+        existing.deleteOnExit();
+        Assert.assertTrue(existing.createNewFile());
+
+        Set<PosixFilePermission> owner = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+        for (File file : new File[]{created, existing}) {
+            new Journal(file, new MockCodec()).close();
+            try {
+                Assert.assertEquals(owner, Files.getPosixFilePermissions(file.toPath()));
+            } catch (UnsupportedOperationException e) {
+                Assert.assertTrue(file.canRead() && file.canWrite());
+            }
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws IOException, CryptographyError, InvalidImplementationError {
+        File file = File.createTempFile("journal", null);
+        file.deleteOnExit();
+        MockCodec codec = new MockCodec();
+        SessionIdentifier session = new MockSessionIdentifier("testTornRecord");
+
+        {
+            Journal journal = new Journal(file, codec);
+            Journal.Log log = journal.log(session);
+            log.phase(Phase.Shuffling);
+            log.crypto(new MockCrypto(12)).getRandom(100);
+            journal.close();
+        }
+
+        long length = file.length();
+
+        // Part of a record, as if the process died while writing it.
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5});
+        out.close();
+
+        Journal journal = new Journal(file, codec);
+        Assert.assertEquals(Phase.Shuffling, journal.lastPhase(session));
+        Assert.assertEquals(length, file.length());
+        Assert.assertTrue(journal.log(session).replaying());
+        journal.close();
+    }
+
+    @Test(expected = JournalError.class)
+    public void testDivergence() throws IOException, CryptographyError, InvalidImplementationError {
+        File file = File.createTempFile("journal", null);
+        file.deleteOnExit();
+        MockCodec codec = new MockCodec();
+        SessionIdentifier session = new MockSessionIdentifier("testDivergence");
+
+        {
+            Journal journal = new Journal(file, codec);
+            journal.log(session).crypto(new MockCrypto(12)).getRandom(100);
+            journal.close();
+        }
+
+        // The machine generates something different the second time around.
+        Journal journal = new Journal(file, codec);
+        journal.log(session).crypto(new MockCrypto(12)).makeDecryptionKey();
+    }
+}
@@ -0,0 +1,161 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.CoinNetworkError;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the in-memory ledger.
+ */
+public class TestLedger {
+
+    @Test
+    public void testMempool() {
+        Ledger ledger = new Ledger();
+        Address a = new MockAddress(1);
+        Address b = new MockAddress(2);
+        Address c = new MockAddress(3);
+
+        ledger.put(a, 20);
+        Assert.assertEquals(20, ledger.valueHeld(a));
+
+        // Nothing can be spent that isn't there.
+        Assert.assertNull(ledger.spend(b, c, 1));
+        Assert.assertNull(ledger.spend(a, c, 21));
+
+        Transaction t = ledger.spend(a, b, 16);
+        Transaction conflict = ledger.spend(a, c, 16);
+        Assert.assertEquals(20, ledger.valueHeld(a));
+        Assert.assertFalse(ledger.seen(t));
+        Assert.assertEquals(-1, ledger.confirmations(t));
+
+        t.send();
+        Assert.assertTrue(ledger.seen(t));
+        Assert.assertEquals(4, ledger.valueHeld(a));
+        Assert.assertEquals(16, ledger.valueHeld(b));
+
+        // Sending it again does nothing.
+        t.send();
+        Assert.assertEquals(2, ledger.mempool().size());
+        Assert.assertEquals(16, ledger.valueHeld(b));
+
+        // A double spend is refused.
+        try {
+            conflict.send();
+            Assert.fail();
+        } catch (CoinNetworkError e) {
+            // Good.
+        }
+        Assert.assertFalse(ledger.seen(conflict));
+        Assert.assertEquals(0, ledger.valueHeld(c));
+
+        // Spending an output in the mempool is fine.
+        ledger.spend(b, c, 16).send();
+        Assert.assertEquals(0, ledger.valueHeld(b));
+        Assert.assertEquals(16, ledger.valueHeld(c));
+    }
+
+    @Test
+    public void testBlocks() {
+        Ledger ledger = new Ledger(1000, 0);
+        Address a = new MockAddress(1);
+        Address b = new MockAddress(2);
+
+        ledger.put(a, 20);
+        Transaction t = ledger.spend(a, b, 20);
+        t.send();
+        Assert.assertEquals(0, ledger.confirmations(t));
+
+        Assert.assertTrue(ledger.advance(999).isEmpty());
+        Assert.assertEquals(0, ledger.height());
+
+        List<Ledger.Block> mined = ledger.advance(1);
+        Assert.assertEquals(1, mined.size());
+        Assert.assertEquals(1000, mined.get(0).time);
+        Assert.assertEquals(2, mined.get(0).transactions.size());
+        Assert.assertTrue(ledger.mempool().isEmpty());
+        Assert.assertEquals(1, ledger.confirmations(t));
+
+        // Empty blocks are made too.
+        Assert.assertEquals(3, ledger.advance(3500).size());
+        Assert.assertEquals(4, ledger.height());
+        Assert.assertEquals(4000, ledger.block(3).time);
+        Assert.assertEquals(4, ledger.confirmations(t));
+        Assert.assertTrue(ledger.seen(t));
+    }
+
+    @Test
+    public void testConflictingTransaction() {
+        Ledger ledger = new Ledger();
+        Address a = new MockAddress(1);
+        Address b = new MockAddress(2);
+        Address c = new MockAddress(3);
+
+        // Nothing there at all.
+        Assert.assertNull(ledger.getConflictingTransaction(a, 17));
+
+        // Not enough was sent to the address.
+        ledger.put(c, 10);
+        Transaction poor = ledger.spend(c, a, 10);
+        poor.send();
+        Assert.assertEquals(poor, ledger.getConflictingTransaction(a, 17));
+        Assert.assertNull(ledger.getConflictingTransaction(a, 10));
+
+        // Enough was sent, but it was spent.
+        ledger.put(b, 20);
+        Transaction spent = ledger.spend(b, c, 16);
+        spent.send();
+        Assert.assertEquals(spent, ledger.getConflictingTransaction(b, 17));
+        Assert.assertTrue(ledger.spendsFrom(b, 17, spent));
+        Assert.assertFalse(ledger.spendsFrom(a, 17, spent));
+    }
+
+    @Test
+    public void testLatency() {
+        Ledger ledger = new Ledger(1000, 20);
+        Address a = new MockAddress(1);
+        ledger.put(a, 20);
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(20, ledger.valueHeld(a));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 20);
+    }
+
+    @Test
+    public void testSimulation() {
+        Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(6789));
+        SessionIdentifier session = new MockSessionIdentifier("ledger");
+        Ledger ledger = new Ledger();
+
+        Map<SigningKey, ReturnState> results = sim.successfulRun(session, 5, 17, ledger);
+        Assert.assertEquals(5, results.size());
+        for (ReturnState result : results.values()) {
+            Assert.assertTrue(result.success);
+        }
+
+        // Every player's funds went into the same transaction.
+        for (SigningKey key : results.keySet()) {
+            Assert.assertEquals(0, ledger.valueHeld(key.VerificationKey().address()));
+        }
+
+        Ledger.Tx shuffle = null;
+        for (Ledger.Tx tx : ledger.mempool()) {
+            if (tx.inputs().size() == 5) {
+                Assert.assertNull(shuffle);
+                shuffle = tx;
+            }
+        }
+        Assert.assertNotNull(shuffle);
+        Assert.assertEquals(5, shuffle.outputs().size());
+
+        ledger.mine();
+        Assert.assertEquals(1, ledger.confirmations(shuffle));
+    }
+}
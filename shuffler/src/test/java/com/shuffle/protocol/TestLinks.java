@@ -0,0 +1,124 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.SigningKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Tests for simulating the network between players.
+ */
+public class TestLinks {
+
+    static Simulator.InitialState init(String name, int players, Links links) {
+        Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(4242));
+        Simulator.InitialState init = sim.initialize(new MockSessionIdentifier(name), 17)
+                .defaultCoin(new MockCoin()).deterministic(7, links);
+        for (int i = 1; i <= players; i++) {
+            init.player().initialFunds(20);
+        }
+        return init;
+    }
+
+    static boolean succeeded(Map<SigningKey, ReturnState> results) {
+        for (ReturnState result : results.values()) {
+            if (!result.success) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void testLinks() {
+        Links.Link slow = new Links.Link(300, 20);
+        Links links = new Links(new Links.Link(10, 0)).link(2, 1, slow)
+                .partition(Collections.singleton(3), 100, 200);
+
+        Assert.assertSame(slow, links.link(1, 2));
+        Assert.assertSame(slow, links.link(2, 1));
+        Assert.assertEquals(10, links.link(1, 3).latency);
+
+        Assert.assertFalse(links.partitioned(3, 1, 99));
+        Assert.assertTrue(links.partitioned(3, 1, 100));
+        Assert.assertTrue(links.partitioned(1, 3, 199));
+        Assert.assertFalse(links.partitioned(1, 3, 200));
+        Assert.assertFalse(links.partitioned(1, 2, 150));
+
+        try {
+            links.link(1, 1, slow);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Good.
+        }
+    }
+
+    @Test
+    // With a fixed latency, a run takes twice as long when the latency is doubled.
+    public void testLatency() {
+        Simulator.InitialState fast = init("latency", 4, new Links(new Links.Link(50, 0)));
+        Assert.assertTrue(succeeded(fast.run()));
+
+        Simulator.InitialState slow = init("latency", 4, new Links(new Links.Link(100, 0)));
+        Assert.assertTrue(succeeded(slow.run()));
+
+        Assert.assertTrue(fast.time() > 0);
+        Assert.assertEquals(2 * fast.time(), slow.time());
+
+        // Jitter reorders packets, but shouldn't break anything.
+        Simulator.InitialState jitter = init("jitter", 4, new Links(new Links.Link(50, 200)));
+        Assert.assertTrue(succeeded(jitter.run()));
+    }
+
+    @Test
+    public void testBandwidth() {
+        Simulator.InitialState unlimited = init("bandwidth", 4, new Links(new Links.Link(50, 0)));
+        Assert.assertTrue(succeeded(unlimited.run()));
+
+        Simulator.InitialState limited = init("bandwidth", 4, new Links(new Links.Link(50, 0, 1000, 0)));
+        Assert.assertTrue(succeeded(limited.run()));
+
+        Assert.assertTrue(limited.time() > unlimited.time());
+    }
+
+    @Test
+    // Players who can't hear one another fail, and they find out without waiting for real.
+    public void testPartitionAndLoss() {
+        long start = System.currentTimeMillis();
+
+        Simulator.InitialState partitioned = init("partition", 4,
+                new Links(new Links.Link(50, 0)).partition(Collections.singleton(2), 0, Long.MAX_VALUE));
+        Map<SigningKey, ReturnState> results = partitioned.run();
+        Assert.assertEquals(4, results.size());
+        for (ReturnState result : results.values()) {
+            Assert.assertFalse(result.success);
+        }
+        Assert.assertTrue(partitioned.time() >= Scheduler.TIMEOUT);
+
+        Simulator.InitialState lost = init("loss", 4, new Links(new Links.Link(50, 0, 0, 1)));
+        results = lost.run();
+        Assert.assertEquals(4, results.size());
+        for (ReturnState result : results.values()) {
+            Assert.assertFalse(result.success);
+        }
+
+        Assert.assertTrue(System.currentTimeMillis() - start < Scheduler.TIMEOUT);
+    }
+
+    @Test
+    public void testLatencyBenchmark() {
+        Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(5555));
+        Map<Integer, Long> times = sim.latencyBenchmark(new MockSessionIdentifier("benchmark"), 17,
+                new MockCoin(), new Links(new Links.Link(80, 40)), 3, new int[]{3, 6, 9});
+
+        Assert.assertNotNull(times);
+        Assert.assertEquals(3, times.size());
+
+        // The shuffle is sequential, so it takes longer with more players.
+        Assert.assertTrue(times.get(3) < times.get(6));
+        Assert.assertTrue(times.get(6) < times.get(9));
+    }
+}
@@ -8,6 +8,8 @@ import org.junit.Test;
 
 import java.net.ProtocolException;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -73,6 +75,98 @@ public class TestMailbox {
         }
     }
 
+    // A network which pretends to be a relay.
+    static class MockRelay extends MockNetwork implements Relay {
+        final Queue<SignedPacket> broadcasts = new LinkedList<>();
+
+        @Override
+        public void broadcast(SignedPacket packet) {
+            broadcasts.add(packet);
+        }
+    }
+
+    @Test
+    public void testRelay() throws InterruptedException, BlameException, ValueException, FormatException {
+        MockRelay network = new MockRelay();
+        MockSessionIdentifier session = new MockSessionIdentifier("testRelay");
+        MockSigningKey me = new MockSigningKey(1);
+
+        Set<VerificationKey> players = new HashSet<VerificationKey>();
+        for (int i = 1; i <= 4; i ++) {
+            players.add(new MockVerificationKey(i));
+        }
+
+        Mailbox mailbox = new Mailbox(session, me, players, network);
+
+        // A broadcast is sent only once, to nobody in particular.
+        mailbox.broadcast(new MockMessage(), Phase.Announcement);
+        Assert.assertEquals(0, network.getResponses().size());
+        Assert.assertEquals(1, network.broadcasts.size());
+        Assert.assertNull(network.broadcasts.peek().packet.recipient);
+
+        // The relay tries to pass off a packet as coming from player 2.
+        Packet forged = new Packet(new MockMessage(), session, Phase.Announcement, new MockVerificationKey(2), null);
+        network.deliver(new SignedPacket(forged, new MockSigningKey(3).makeSignature(forged)));
+
+        // The relay sends our own broadcast back to us.
+        network.deliver(network.broadcasts.peek());
+
+        // A genuine broadcast from player 2.
+        MockSigningKey sender = new MockSigningKey(2);
+        network.deliver(sender.makeSignedPacket(
+                new Packet(new MockMessage(), session, Phase.Announcement, sender.VerificationKey(), null)));
+
+        // Only the genuine packet comes through.
+        mailbox.receiveFrom(sender.VerificationKey(), Phase.Announcement);
+        // (History holds our own broadcast and the one from player 2.)
+        Assert.assertEquals(2, mailbox.getPacketsByPhase(Phase.Announcement).size());
+
+        try {
+            mailbox.receiveFrom(sender.VerificationKey(), Phase.Announcement);
+            Assert.fail();
+        } catch (TimeoutError e) {
+            // Nothing else should be available.
+        }
+    }
+
+    @Test
+    public void testReceiveFrames() throws InterruptedException, BlameException, ValueException, FormatException {
+        MockNetwork network = new MockNetwork();
+        MockSessionIdentifier session = new MockSessionIdentifier("testReceiveFrames");
+        MockSigningKey me = new MockSigningKey(1);
+
+        Set<VerificationKey> players = new HashSet<VerificationKey>();
+        for (int i = 1; i <= 3; i ++) {
+            players.add(new MockVerificationKey(i));
+        }
+
+        MockSigningKey sender = new MockSigningKey(2);
+        MockSigningKey other = new MockSigningKey(3);
+
+        // Three frames from player 2 with a packet from player 3 in the middle. Each frame is
+        // different, since an exact duplicate would be dropped.
+        for (int i = 0; i < 4; i++) {
+            MockSigningKey from = i == 1 ? other : sender;
+            network.deliver(from.makeSignedPacket(
+                    new Packet(new MockMessage().attach(new MockAddress(i)), session, Phase.Shuffling, from.VerificationKey(), me.VerificationKey())));
+        }
+
+        Mailbox mailbox = new Mailbox(session, me, players, network);
+
+        final List<Message> frames = new LinkedList<>();
+        mailbox.receiveFrames(sender.VerificationKey(), Phase.Shuffling, new Mailbox.FrameReader() {
+            @Override
+            public boolean read(Message frame) {
+                frames.add(frame);
+                return frames.size() < 3;
+            }
+        });
+        Assert.assertEquals(3, frames.size());
+
+        // The packet from player 3 was kept for later.
+        mailbox.receiveFrom(other.VerificationKey(), Phase.Shuffling);
+    }
+
     static class sendToTestCase {
         int sender;
         int recipient;
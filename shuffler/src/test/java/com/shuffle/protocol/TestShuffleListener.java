@@ -0,0 +1,196 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+import com.shuffle.protocol.blame.Blame;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that a listener is told what a machine does, in order, and that it always hears when the
+ * machine is done.
+ */
+public class TestShuffleListener {
+
+    // Remembers every callback and checks that they make sense together.
+    static class RecordingListener implements ShuffleListener {
+        final List<String> events = new ArrayList<>();
+        final List<Blame> blame = new ArrayList<>();
+        final List<ReturnState> completed = new ArrayList<>();
+        final Set<Phase> entered = EnumSet.noneOf(Phase.class);
+
+        Phase phase = Phase.Uninitiated;
+        int sent = 0;
+        int received = 0;
+
+        private void check(boolean ok, String event) {
+            events.add(event);
+            if (!ok) {
+                throw new AssertionError("Unexpected " + event + " after " + events);
+            }
+        }
+
+        @Override
+        public void phaseChanged(SessionIdentifier session, Phase from, Phase to) {
+            check(completed.isEmpty() && from == phase && to != from, "phase " + from + " -> " + to);
+            phase = to;
+            entered.add(to);
+        }
+
+        @Override
+        public void sent(SessionIdentifier session, SignedPacket packet) {
+            sent++;
+            check(completed.isEmpty() && packet.packet.phase == phase, "sent " + packet.packet.phase);
+        }
+
+        @Override
+        public void received(SessionIdentifier session, SignedPacket packet) {
+            received++;
+            check(completed.isEmpty() && phase != Phase.Uninitiated, "received " + packet.packet.phase);
+        }
+
+        @Override
+        public void blame(SessionIdentifier session, Blame blame) {
+            this.blame.add(blame);
+            check(completed.isEmpty() && phase != Phase.Uninitiated, "blame " + blame.reason);
+        }
+
+        @Override
+        public void completed(SessionIdentifier session, ReturnState state) {
+            completed.add(state);
+            check(completed.size() == 1, "completed " + state);
+        }
+    }
+
+    // Wait for every callback that has been handed to the executor.
+    static void drain(ExecutorService executor) throws InterruptedException {
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    static Simulator.InitialState initialize(String name) {
+        Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(5150));
+        return sim.initialize(new MockSessionIdentifier(name), 17).defaultCoin(new MockCoin()).deterministic(3);
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        Simulator.InitialState init = initialize("listen success");
+        init.player().initialFunds(20);
+        init.player().initialFunds(20).listen(listener, executor);
+        init.player().initialFunds(20);
+
+        Map<SigningKey, ReturnState> results = init.run();
+        drain(executor);
+
+        ReturnState result = results.get(init.keys().get(1));
+        Assert.assertTrue(result.toString(), result.success);
+        Assert.assertEquals(1, listener.completed.size());
+        Assert.assertSame(result, listener.completed.get(0));
+        Assert.assertTrue(listener.events.get(0).startsWith("phase " + Phase.Uninitiated));
+        Assert.assertTrue(listener.sent > 0);
+        Assert.assertTrue(listener.received > 0);
+        Assert.assertTrue(listener.blame.isEmpty());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // Somebody doesn't have enough money.
+        Simulator.InitialState init = initialize("listen failure");
+        init.player().initialFunds(20).listen(listener, executor);
+        init.player().initialFunds(10);
+        init.player().initialFunds(20);
+
+        Map<SigningKey, ReturnState> results = init.run();
+        drain(executor);
+
+        ReturnState result = results.get(init.keys().get(0));
+        Assert.assertFalse(result.success);
+        Assert.assertEquals(1, listener.completed.size());
+        Assert.assertSame(result, listener.completed.get(0));
+        Assert.assertFalse(listener.blame.isEmpty());
+        Assert.assertTrue(listener.entered.contains(Phase.Blame));
+    }
+
+    // A network which breaks as soon as it is used.
+    static class BrokenNetwork implements Network {
+        final Throwable error; // A RuntimeException or an Error.
+
+        BrokenNetwork(Throwable error) {
+            this.error = error;
+        }
+
+        private void fail() {
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            throw (RuntimeException) error;
+        }
+
+        @Override
+        public void sendTo(VerificationKey to, SignedPacket packet) throws InvalidImplementationError, TimeoutError {
+            fail();
+        }
+
+        @Override
+        public SignedPacket receive(long timeout, TimeUnit unit) throws TimeoutError, InvalidImplementationError, InterruptedException {
+            fail();
+            return null;
+        }
+    }
+
+    @Test
+    public void testException() throws Exception {
+        Throwable[] errors = new Throwable[]{
+                new IllegalStateException(), new InvalidImplementationError(), new JournalError()};
+
+        for (Throwable error : errors) {
+            RecordingListener listener = new RecordingListener();
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+
+            MockCoin coin = new MockCoin();
+            SortedSet<VerificationKey> players = new TreeSet<>();
+            for (int i = 1; i <= 2; i++) {
+                Address previous = new MockAddress(100 + i);
+                coin.put(previous, 20);
+                coin.spend(previous, new MockSigningKey(i).VerificationKey().address(), 20).send();
+                players.add(new MockSigningKey(i).VerificationKey());
+            }
+
+            SessionIdentifier session = new MockSessionIdentifier("listen exception");
+            CoinShuffle shuffle = new CoinShuffle(new MockMessageFactory(), new MockCrypto(8), coin, new CoinShuffle.Options());
+            try {
+                shuffle.new ShuffleMachine(session, 17, new MockSigningKey(1), players, null, 1, 2,
+                        new CoinShuffle.SessionOptions().listener(listener, executor))
+                        .run(new BrokenNetwork(error));
+                Assert.fail();
+            } catch (RuntimeException | Error e) {
+                Assert.assertSame(error, e);
+            }
+            drain(executor);
+
+            Assert.assertEquals(1, listener.completed.size());
+            Assert.assertFalse(listener.completed.get(0).success);
+            Assert.assertSame(error, listener.completed.get(0).error);
+        }
+    }
+}
@@ -59,6 +59,25 @@ public class TestShuffleMachine {
         }
     }
 
+    // Evidence which need not be there at all.
+    public static class BlameEvidencePatternOptional extends Evidence {
+        final Evidence evidence;
+
+        public BlameEvidencePatternOptional(Evidence evidence) {
+            this.evidence = evidence;
+        }
+
+        @Override
+        public boolean match(Evidence e) {
+            return e == null || evidence.match(e);
+        }
+
+        @Override
+        public String toString() {
+            return "Optional[" + evidence + "]";
+        }
+    }
+
     public static class ReturnStatePatternOr extends ReturnState {
         ReturnState a;
         ReturnState b;
@@ -210,6 +229,276 @@ public class TestShuffleMachine {
         );
     }
     
+    // Create a test case representing a successful run in which broadcasts go through a relay.
+    public TestCase SuccessfulRelayRun(int caseNo, int numPlayer, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("relay" + caseNo);
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin()).relay();
+        for (int i = 1; i <= numPlayer; i++) {
+            init.player().initialFunds(20);
+        }
+
+        return successfulExpectation(
+                new TestCase(session, amount, "successful run through a relay with " + numPlayer + " players.", caseNo),
+                init.run()
+        );
+    }
+
+    // Create a test case representing a successful run in which the output vector is sent as a digest.
+    public TestCase SuccessfulDigestRun(int caseNo, int numPlayer, int inputs, boolean relay, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("digest" + caseNo);
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin()).digests(3).inputs(inputs);
+        if (relay) {
+            init.relay();
+        }
+        for (int i = 1; i <= numPlayer; i++) {
+            init.player().initialFunds(20);
+        }
+
+        return successfulExpectation(
+                new TestCase(session, amount, "successful run with digests with " + numPlayer + " players.", caseNo),
+                init.run()
+        );
+    }
+
+    // Create a test case representing a successful run in which the shuffled addresses are sent in frames.
+    public TestCase SuccessfulFramedRun(int caseNo, int numPlayer, int inputs, int frameSize, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("frames" + caseNo);
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin()).frames(frameSize).inputs(inputs);
+        for (int i = 1; i <= numPlayer; i++) {
+            init.player().initialFunds(20);
+        }
+
+        return successfulExpectation(
+                new TestCase(session, amount, "successful run with frames of " + frameSize + " with " + numPlayer + " players.", caseNo),
+                init.run()
+        );
+    }
+
+    // Create a test case representing a successful run in which the players are split into groups.
+    public TestCase SuccessfulCascadeRun(int caseNo, int numPlayer, int inputs, int groupSize, boolean digests, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("cascade" + caseNo);
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin())
+                .groups(groupSize).inputs(inputs);
+        if (digests) {
+            init.digests(3);
+        }
+        for (int i = 1; i <= numPlayer; i++) {
+            init.player().initialFunds(20);
+        }
+
+        return successfulExpectation(
+                new TestCase(session, amount, "successful run with groups of " + groupSize + " with " + numPlayer + " players.", caseNo),
+                init.run()
+        );
+    }
+
+    // Create a test case in which the players are split into groups and one of them drops an
+    // address in phase 2, either leaving it out or putting in a new one instead.
+    public TestCase CascadeShuffleFailure(int caseNo, int numPlayers, int inputs, int groupSize, int liar, boolean replace, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("cascadefail" + caseNo);
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin())
+                .groups(groupSize).inputs(inputs).deterministic(caseNo);
+        for (int i = 1; i <= numPlayers; i++) {
+            init.player().initialFunds(20);
+            if (i == liar) {
+                if (replace) {
+                    init.replace(1);
+                } else {
+                    init.drop(1);
+                }
+            }
+        }
+
+        TestCase test = new TestCase(session, amount, "cascade shuffle failure with groups of " + groupSize + " with " + numPlayers + " players.", caseNo);
+        Map<SigningKey, ReturnState> results = init.run();
+        List<SigningKey> players = init.keys();
+        SigningKey malicious = players.get(liar - 1);
+
+        for (SigningKey i : players) {
+            Matrix bm;
+            if (i.equals(malicious)) {
+                bm = anyMatrix;
+            } else {
+                bm = new Matrix();
+                bm.put(i.VerificationKey(), malicious.VerificationKey(),
+                        new Evidence(Reason.ShuffleAndEquivocationFailure, true));
+            }
+
+            test.put(i, new ReturnState(false, session, Phase.Blame, null, bm), results.get(i));
+        }
+
+        return test;
+    }
+
+    // Create a test case representing a successful run with DiceMix.
+    public TestCase SuccessfulDiceMixRun(int caseNo, int numPlayer, int inputs, boolean relay, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("dicemix" + caseNo);
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin())
+                .dicemix(new MockDiceMixCodec()).inputs(inputs);
+        if (relay) {
+            init.relay();
+        }
+        for (int i = 1; i <= numPlayer; i++) {
+            init.player().initialFunds(20);
+        }
+
+        return successfulExpectation(
+                new TestCase(session, amount, "successful run with DiceMix with " + numPlayer + " players.", caseNo),
+                init.run()
+        );
+    }
+
+    // Create a test case in which one player disrupts the DC-net in DiceMix.
+    public TestCase DiceMixDisruption(int caseNo, int numPlayer, int disruptor, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("disrupt" + caseNo);
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin())
+                .dicemix(new MockDiceMixCodec());
+        for (int i = 1; i <= numPlayer; i++) {
+            init.player().initialFunds(20);
+            if (i == disruptor) {
+                init.disrupt();
+            }
+        }
+
+        TestCase test = new TestCase(session, amount, "DiceMix disruption test case.", caseNo);
+        Map<SigningKey, ReturnState> results = init.run();
+
+        // Find the disruptor.
+        SortedSet<SigningKey> players = new TreeSet<>();
+        players.addAll(results.keySet());
+        SigningKey malicious = null;
+        int index = 0;
+        for (SigningKey i : players) {
+            index++;
+            if (index == disruptor) {
+                malicious = i;
+            }
+        }
+
+        assert malicious != null;
+
+        for (SigningKey i : results.keySet()) {
+            if (i.equals(malicious)) {
+                // Everything looks fine to him until the others blame him, and then he has nobody
+                // to blame himself.
+                test.put(i, new ReturnState(false, session, Phase.Blame, null, new Matrix()), results.get(i));
+                continue;
+            }
+
+            // Everyone can see who disrupted the DC-net once the keys are revealed.
+            Matrix bm = new Matrix();
+            bm.put(i.VerificationKey(), malicious.VerificationKey(), new Evidence(Reason.ShuffleFailure, true));
+            test.put(i, new ReturnState(false, session, Phase.Blame, null, bm), results.get(i));
+        }
+
+        return test;
+    }
+
+    // Create a test case representing a successful run in which each player has several inputs.
+    public TestCase MultipleInputs(int caseNo, int numPlayer, int inputs, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("inputs" + caseNo);
+        MockCoin coin = new MockCoin();
+        long amount = 17;
+
+        return successfulExpectation(
+                new TestCase(session, amount, "successful run with " + numPlayer + " players and " + inputs + " inputs each.", caseNo),
+                sim.multipleInputsRun(session, numPlayer, inputs, amount, coin)
+        );
+    }
+
+    // Create a test case in which some players have several inputs and spend one of them which
+    // isn't their own key, either before the protocol starts or while it is going on.
+    public TestCase MultipleInputsSpent(int caseNo, int numPlayers, int inputs, int[] spenders, boolean doubleSpend, Simulator sim) {
+        SessionIdentifier session = new MockSessionIdentifier("inputspent" + caseNo);
+        MockCoin coin = new MockCoin();
+        long amount = 17;
+
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(coin).inputs(inputs).deterministic(caseNo);
+        for (int i = 1; i <= numPlayers; i++) {
+            init.player().initialFunds(20);
+            for (int spender : spenders) {
+                if (spender == i) {
+                    if (doubleSpend) {
+                        init.doubleSpend(16);
+                    } else {
+                        init.spend(16);
+                    }
+                }
+            }
+        }
+
+        TestCase test = new TestCase(session, amount, "Spent input test case with " + inputs + " inputs each.", caseNo);
+        Map<SigningKey, ReturnState> results = init.run();
+        List<SigningKey> players = init.keys();
+
+        // The blame names the input that was spent, but it's the player who is accused.
+        Map<SigningKey, Transaction> offenders = new HashMap<>();
+        for (int spender : spenders) {
+            SigningKey key = players.get(spender - 1);
+            SigningKey input = init.inputKeys(key).get(inputs - 1);
+            Transaction t = coin.getConflictingTransaction(input.VerificationKey().address(), amount);
+            Assert.assertNotNull(t);
+            offenders.put(key, t);
+        }
+
+        for (SigningKey i : players) {
+            Matrix bm;
+            if (offenders.containsKey(i)) {
+                bm = anyMatrix;
+            } else {
+                bm = new Matrix();
+
+                for (SigningKey j : players) {
+                    for (SigningKey k : players) {
+                        if (offenders.containsKey(j)) {
+                            // We don't care who the malicious players accuse.
+                            bm.put(j.VerificationKey(), k.VerificationKey(), anyReason);
+                        } else if (!offenders.containsKey(k)) {
+                            continue;
+                        } else if (doubleSpend) {
+                            // A player who is still in phase 4 when the others find the double
+                            // spend never makes the transaction, so he has nothing to say.
+                            bm.put(j.VerificationKey(), k.VerificationKey(), new BlameEvidencePatternOptional(
+                                    new Evidence(Reason.DoubleSpend, true, offenders.get(k))));
+                        } else {
+                            bm.put(j.VerificationKey(), k.VerificationKey(),
+                                    new Evidence(Reason.InsufficientFunds, true, offenders.get(k)));
+                        }
+                    }
+                }
+
+                // But somebody has to have found it.
+                Matrix found = results.get(i).blame;
+                Assert.assertNotNull(found);
+                for (SigningKey k : offenders.keySet()) {
+                    boolean accused = false;
+                    for (SigningKey j : players) {
+                        accused |= !offenders.containsKey(j) && found.get(j.VerificationKey(), k.VerificationKey()) != null;
+                    }
+                    Assert.assertTrue(found.toString(), accused);
+                }
+            }
+
+            test.put(i, new ReturnState(false, session, Phase.Blame, null, bm), results.get(i));
+        }
+
+        return test;
+    }
+
     public TestCase InsufficientFunds(
             int caseNo,
             int numPlayers,
@@ -499,6 +788,46 @@ public class TestShuffleMachine {
         return test;
     }
 
+    // Run a test case in which the output vector is sent as a digest and the last player sends
+    // some players a different chunk of it, or less than a whole chunk.
+    public TestCase EquivocateDigest(int caseNo, int numPlayers, int[] equivocation, boolean shortChunk, Simulator sim) {
+        long amount = 17;
+        SessionIdentifier session = new MockSessionIdentifier("eqvdigest" + caseNo);
+        Simulator.InitialState init = sim.initialize(session, amount).defaultCoin(new MockCoin()).digests(3);
+
+        for (int i = 1; i < numPlayers; i ++) {
+            init.player().initialFunds(20);
+        }
+
+        init.player().initialFunds(20);
+        if (shortChunk) {
+            init.shortChunk(equivocation);
+        } else {
+            init.equivocateOutputVector(equivocation);
+        }
+
+        TestCase test = new TestCase(session, amount, "Broadcast phase digest equivocation test case.", caseNo);
+        Map<SigningKey, ReturnState> results = init.run();
+        List<SigningKey> players = init.keys();
+        SigningKey malicious = players.get(numPlayers - 1);
+
+        // Everyone else blames the last player, whoever he lied to.
+        for (SigningKey i : players) {
+            Matrix bm;
+            if (i.equals(malicious)) {
+                bm = anyMatrix;
+            } else {
+                bm = new Matrix();
+                bm.put(i.VerificationKey(), malicious.VerificationKey(),
+                        new Evidence(Reason.EquivocationFailure, true));
+            }
+
+            test.put(i, new ReturnState(false, session, Phase.Blame, null, bm), results.get(i));
+        }
+
+        return test;
+    }
+
     // TODO deal with ordering of players.
     public TestCase DifferentTransactionSignature(int caseNo, int numPlayers, int[] weirdos, Simulator sim) {
         Set<Integer> class2 = new HashSet<>();
@@ -617,6 +946,174 @@ public class TestShuffleMachine {
         EquivocateOutput(caseNo, 10, new int[]{3, 5, 7}, sim).check();
     }*/
 
+    @Test
+    // Tests for successful runs in which broadcasts are sent through a relay.
+    public void testRelay() {
+        MockCrypto crypto = new MockCrypto(101);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        for (int numPlayer = 2; numPlayer <= 6; numPlayer++) {
+            SuccessfulRelayRun(caseNo++, numPlayer, sim).check();
+        }
+    }
+
+    @Test
+    // Tests for successful runs in which the output vector is sent as a digest.
+    public void testDigests() {
+        MockCrypto crypto = new MockCrypto(103);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        for (int numPlayer = 3; numPlayer <= 7; numPlayer++) {
+            SuccessfulDigestRun(caseNo++, numPlayer, 1, false, sim).check();
+        }
+        SuccessfulDigestRun(caseNo++, 4, 3, false, sim).check();
+        SuccessfulDigestRun(caseNo++, 5, 1, true, sim).check();
+        SuccessfulDigestRun(caseNo, 6, 2, true, sim).check();
+    }
+
+    @Test
+    // Tests for a last player who sends different chunks of the output vector to different players.
+    public void testEquivocationDigest() {
+        MockCrypto crypto = new MockCrypto(131);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        EquivocateDigest(caseNo++, 4, new int[]{1}, false, sim).check();
+        EquivocateDigest(caseNo++, 4, new int[]{2}, false, sim).check();
+        EquivocateDigest(caseNo++, 5, new int[]{1, 3}, false, sim).check();
+
+        // A chunk which is too short is not a reason to give up on the session.
+        EquivocateDigest(caseNo++, 4, new int[]{1}, true, sim).check();
+        EquivocateDigest(caseNo++, 4, new int[]{3}, true, sim).check();
+        EquivocateDigest(caseNo, 6, new int[]{2, 4}, true, sim).check();
+    }
+
+    @Test
+    // Tests for successful runs in which the shuffled addresses are sent in frames.
+    public void testFrames() {
+        MockCrypto crypto = new MockCrypto(107);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        for (int numPlayer = 2; numPlayer <= 6; numPlayer++) {
+            SuccessfulFramedRun(caseNo++, numPlayer, 1, 1, sim).check();
+        }
+        SuccessfulFramedRun(caseNo++, 4, 3, 2, sim).check();
+        SuccessfulFramedRun(caseNo, 5, 2, 3, sim).check();
+    }
+
+    @Test
+    // Tests for successful runs in which the players are split into groups.
+    public void testCascade() {
+        MockCrypto crypto = new MockCrypto(113);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        for (int numPlayer = 3; numPlayer <= 8; numPlayer++) {
+            SuccessfulCascadeRun(caseNo++, numPlayer, 1, 2, false, sim).check();
+        }
+        SuccessfulCascadeRun(caseNo++, 7, 1, 3, false, sim).check();
+        SuccessfulCascadeRun(caseNo++, 5, 1, 1, false, sim).check();
+        SuccessfulCascadeRun(caseNo++, 6, 2, 2, false, sim).check();
+        SuccessfulCascadeRun(caseNo, 9, 1, 3, true, sim).check();
+    }
+
+    @Test
+    // Compare the sequential shuffle with a cascade as the number of players grows. The runs
+    // are deterministic, so the times are in virtual milliseconds.
+    public void testScaling() {
+        MockCrypto crypto = new MockCrypto(127);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        Links links = new Links(new Links.Link(50, 0));
+        int[] numPlayers = new int[]{4, 9, 16, 25};
+
+        Map<Integer, Long> sequential = sim.latencyBenchmark(new MockSessionIdentifier("sequential"), 17, new MockCoin(), links, 3, Integer.MAX_VALUE, numPlayers);
+        Map<Integer, Long> cascade = sim.latencyBenchmark(new MockSessionIdentifier("cascade"), 17, new MockCoin(), links, 3, 5, numPlayers);
+
+        Assert.assertNotNull(sequential);
+        Assert.assertNotNull(cascade);
+
+        // Four players fit in one group, so there is no cascade.
+        Assert.assertEquals(sequential.get(4), cascade.get(4));
+
+        // Every player in the sequential shuffle waits for the one before him.
+        for (int i = 1; i < numPlayers.length; i++) {
+            int n = numPlayers[i];
+            int m = numPlayers[i - 1];
+            Assert.assertTrue(sequential.get(n) - sequential.get(m) >= (n - m) * 50);
+            Assert.assertTrue(cascade.get(n) < sequential.get(n));
+        }
+
+        // In a cascade, the groups shuffle at the same time.
+        Assert.assertTrue(2 * (cascade.get(25) - cascade.get(4)) < sequential.get(25) - sequential.get(4));
+    }
+
+    @Test
+    // Tests for a player who drops or replaces an address while his group shuffles.
+    public void testCascadeShuffleFailure() {
+        MockCrypto crypto = new MockCrypto(149);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        // In the first group, in a later group, and the last player of a group.
+        CascadeShuffleFailure(caseNo++, 6, 1, 3, 2, false, sim).check();
+        CascadeShuffleFailure(caseNo++, 6, 1, 3, 5, false, sim).check();
+        CascadeShuffleFailure(caseNo++, 6, 1, 3, 3, true, sim).check();
+        CascadeShuffleFailure(caseNo++, 7, 1, 3, 4, true, sim).check();
+
+        // At the end of the second ring.
+        CascadeShuffleFailure(caseNo++, 9, 1, 3, 9, false, sim).check();
+
+        // With groups of one, and with several inputs.
+        CascadeShuffleFailure(caseNo++, 5, 1, 1, 3, false, sim).check();
+        CascadeShuffleFailure(caseNo, 9, 2, 3, 7, true, sim).check();
+    }
+
+    @Test
+    // Tests for runs which use DiceMix.
+    public void testDiceMix() {
+        MockCrypto crypto = new MockCrypto(109);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        for (int numPlayer = 2; numPlayer <= 6; numPlayer++) {
+            SuccessfulDiceMixRun(caseNo++, numPlayer, 1, false, sim).check();
+        }
+        SuccessfulDiceMixRun(caseNo++, 4, 2, false, sim).check();
+        SuccessfulDiceMixRun(caseNo++, 5, 1, true, sim).check();
+
+        DiceMixDisruption(caseNo++, 3, 2, sim).check();
+        DiceMixDisruption(caseNo, 5, 1, sim).check();
+    }
+
+    @Test
+    // Tests for successful runs in which every player contributes several inputs.
+    public void testMultipleInputs() {
+        MockCrypto crypto = new MockCrypto(99);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        MultipleInputs(caseNo++, 2, 2, sim).check();
+        MultipleInputs(caseNo++, 3, 2, sim).check();
+        MultipleInputs(caseNo++, 3, 3, sim).check();
+        MultipleInputs(caseNo, 5, 4, sim).check();
+    }
+
+    @Test
+    // Tests for players who spend one of several inputs before or during the protocol.
+    public void testMultipleInputsSpent() {
+        MockCrypto crypto = new MockCrypto(139);
+        Simulator sim = new Simulator(new MockMessageFactory(), crypto);
+        int caseNo = 0;
+
+        MultipleInputsSpent(caseNo++, 3, 2, new int[]{2}, false, sim).check();
+        MultipleInputsSpent(caseNo++, 4, 3, new int[]{1, 3}, false, sim).check();
+        MultipleInputsSpent(caseNo++, 3, 2, new int[]{2}, true, sim).check();
+        MultipleInputsSpent(caseNo, 4, 3, new int[]{3, 4}, true, sim).check();
+    }
+
     @Test
     public void testEquivocationAnnounce() {
         MockCrypto crypto = new MockCrypto(87);
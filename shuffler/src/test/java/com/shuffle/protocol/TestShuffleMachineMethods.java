@@ -42,8 +42,8 @@ public class TestShuffleMachineMethods {
         SortedSet<VerificationKey> playerSet = new TreeSet<>();
         playerSet.addAll(players.values());
         CoinShuffle.ShuffleMachine machine =
-                new CoinShuffle(messages, new MockCrypto(seed), new MockCoin()).new
-                        ShuffleMachine(session, 20l, sk, playerSet, null, 1, 2);
+                new CoinShuffle(messages, new MockCrypto(seed), new MockCoin(), new CoinShuffle.Options()).new
+                        ShuffleMachine(session, 20l, sk, playerSet, null, 1, 2, new CoinShuffle.SessionOptions());
         machine.phase = phase;
         return machine.new Round(players, null, new Mailbox(session, sk, playerSet, network));
     }
@@ -140,7 +140,8 @@ public class TestShuffleMachineMethods {
                 new MockMessageFactory(),
                 new MockCrypto(
                         new MockRandomSequence(rand)),
-                new MockCoin());
+                new MockCoin(),
+                new CoinShuffle.Options());
     }
 
     @Test
@@ -321,8 +322,9 @@ public class TestShuffleMachineMethods {
         return new CoinShuffle(
                 new MockMessageFactory(),
                 crypto,
-                new MockCoin()).new ShuffleMachine(
-                    session, 20l, sk, players, null, 0, 2);
+                new MockCoin(),
+                new CoinShuffle.Options()).new ShuffleMachine(
+                    session, 20l, sk, players, null, 0, 2, new CoinShuffle.SessionOptions());
     }
 
     @Test
@@ -396,14 +398,21 @@ public class TestShuffleMachineMethods {
                 }
 
                 SigningKey sk = new MockSigningKey(1);
-                Mailbox mailbox = new Mailbox(mockSessionIdentifier, sk, playerSet, new MockNetwork());
+                MockNetwork network = new MockNetwork();
+                Mailbox mailbox = new Mailbox(mockSessionIdentifier, sk, playerSet, network);
                 CoinShuffle.ShuffleMachine.Round round =
                         standardTestInitialization(mockSessionIdentifier, sk, playerSet, crypto).new Round(players, null, mailbox);
 
+                // Something that can't be decrypted is blamed on the shuffle rather than thrown.
                 try {
-                    round.decryptAll(new MockMessage().attach(input), dk, i);
-                    Assert.fail("Exception should have been thrown.");
+                    Assert.assertNull(round.decryptAll(new MockMessage().attach(input), dk, i));
                 } catch (FormatException | CryptographyError e) {
+                    Assert.fail("Unexpected " + e);
+                }
+
+                Assert.assertEquals(i, network.getResponses().size());
+                for (Map.Entry<SignedPacket, VerificationKey> sent : network.getResponses()) {
+                    Assert.assertEquals(Phase.Blame, sent.getKey().packet.phase);
                 }
             }
         } catch (InvalidImplementationError e) {
@@ -414,6 +423,68 @@ public class TestShuffleMachineMethods {
         }
     }
 
+    // The last frame is always smaller than the rest, so a player who leaves out a whole
+    // frame's worth of addresses is caught as soon as it arrives.
+    @Test
+    public void testFrames() throws InvalidParticipantSetException, FormatException {
+        MockCrypto crypto = new MockCrypto(3271);
+        DecryptionKey dk = crypto.makeDecryptionKey();
+
+        SortedSet<VerificationKey> playerSet = new TreeSet<>();
+        Map<Integer, VerificationKey> players = new HashMap<>();
+        Message input = new MockMessage();
+        Message output = new MockMessage();
+        for (int j = 1; j <= 4; j++) {
+            VerificationKey vk = new MockSigningKey(j).VerificationKey();
+            playerSet.add(vk);
+            players.put(j, vk);
+
+            output.attach(vk.address());
+            input.attach(new MockEncryptedAddress(vk.address(), dk.EncryptionKey()));
+        }
+
+        SessionIdentifier session = new MockSessionIdentifier("testFrames");
+        SigningKey sk = new MockSigningKey(1);
+        MockNetwork network = new MockNetwork();
+        CoinShuffle.ShuffleMachine machine = new CoinShuffle(
+                new MockMessageFactory(), crypto, new MockCoin(), new CoinShuffle.Options().frameSize(2))
+                .new ShuffleMachine(session, 20l, sk, playerSet, null, 0, 2, new CoinShuffle.SessionOptions());
+        machine.phase = Phase.Shuffling;
+        CoinShuffle.ShuffleMachine.Round round = machine.new Round(players, null, new Mailbox(session, sk, playerSet, network));
+
+        // Four addresses go in two full frames and an empty one.
+        round.sendFrames(input, players.get(2));
+        List<Message> frames = new LinkedList<>();
+        for (Map.Entry<SignedPacket, VerificationKey> sent : network.getResponses()) {
+            frames.add(sent.getKey().packet.message);
+        }
+        Assert.assertEquals(3, frames.size());
+        Assert.assertTrue(frames.get(2).isEmpty());
+
+        CoinShuffle.ShuffleMachine.Round.Decryption all = round.new Decryption(dk, 4);
+        Assert.assertTrue(all.read(frames.get(0)));
+        Assert.assertTrue(all.read(frames.get(1)));
+        Assert.assertFalse(all.read(frames.get(2)));
+        Assert.assertEquals(output, all.result());
+
+        // If the second frame is left out, the empty one gives it away.
+        network.getResponses().clear();
+        CoinShuffle.ShuffleMachine.Round.Decryption missing = round.new Decryption(dk, 4);
+        Assert.assertTrue(missing.read(frames.get(0)));
+        Assert.assertFalse(missing.read(frames.get(2)));
+        Assert.assertNull(missing.result());
+        Assert.assertEquals(playerSet.size() - 1, network.getResponses().size());
+        for (Map.Entry<SignedPacket, VerificationKey> sent : network.getResponses()) {
+            Assert.assertEquals(Phase.Blame, sent.getKey().packet.phase);
+        }
+
+        // Nor do we wait for more once there are already too many.
+        CoinShuffle.ShuffleMachine.Round.Decryption extra = round.new Decryption(dk, 2);
+        Assert.assertTrue(extra.read(frames.get(0)));
+        Assert.assertFalse(extra.read(frames.get(1)));
+        Assert.assertNull(extra.result());
+    }
+
     @Test
     public void testReadNewAddresses() {
         MockCrypto crypto = new MockCrypto(84512);
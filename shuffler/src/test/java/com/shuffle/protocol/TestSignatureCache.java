@@ -0,0 +1,94 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Signature;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for the cache of verified signatures.
+ */
+public class TestSignatureCache {
+
+    static SignedPacket sign(SigningKey sk, BigInteger n) {
+        Packet packet = new Packet(new MockMessage().attach(n), new MockSessionIdentifier("testSignatureCache"),
+                Phase.Announcement, sk.VerificationKey(), null);
+        return new SignedPacket(packet, sk.makeSignature(packet));
+    }
+
+    @Test
+    public void testVerify() {
+        SignatureCache cache = new SignatureCache(10);
+        SigningKey alice = new MockSigningKey(1);
+        SigningKey bob = new MockSigningKey(2);
+
+        SignedPacket good = sign(alice, BigInteger.ONE);
+        Assert.assertTrue(cache.verify(good));
+        Assert.assertEquals(1, cache.size());
+
+        // The same packet again, and a copy of it.
+        Assert.assertTrue(cache.verify(good));
+        Assert.assertTrue(cache.verify(good.copy()));
+        Assert.assertEquals(1, cache.size());
+
+        // A packet signed by somebody other than the signer is not valid and is not remembered.
+        Packet packet = sign(alice, BigInteger.TEN).packet;
+        Signature forged = bob.makeSignature(packet);
+        Assert.assertFalse(cache.verify(new SignedPacket(packet, forged)));
+        Assert.assertFalse(cache.verify(new SignedPacket(packet, forged)));
+        Assert.assertEquals(1, cache.size());
+
+        // A valid signature for a different packet.
+        Assert.assertFalse(cache.verify(new SignedPacket(packet, good.signature)));
+    }
+
+    @Test
+    public void testTransaction() {
+        SignatureCache cache = new SignatureCache(10);
+        SigningKey alice = new MockSigningKey(1);
+        VerificationKey vk = alice.VerificationKey();
+
+        MockCoin coin = new MockCoin();
+        List<MockCoin.Output> inputs = Collections.singletonList(new MockCoin.Output(new MockAddress(1), 20));
+        List<MockCoin.Output> outputs = Collections.singletonList(new MockCoin.Output(new MockAddress(2), 20));
+        MockCoin.MockTransaction t = coin.new MockTransaction(inputs, outputs);
+
+        Signature sig = alice.makeSignature(t);
+        Assert.assertTrue(cache.verify(vk, t, sig));
+        Assert.assertEquals(1, cache.size());
+
+        // Signatures are remembered by what they sign, so the same transaction made again
+        // doesn't have to be checked again.
+        Assert.assertTrue(cache.verify(vk, t.copy(), sig));
+        Assert.assertEquals(1, cache.size());
+
+        // A slightly different transaction.
+        Transaction u = coin.new MockTransaction(inputs, outputs, 2);
+        Assert.assertFalse(cache.verify(vk, u, sig));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testCapacity() {
+        int capacity = 8;
+        SignatureCache cache = new SignatureCache(capacity);
+        SigningKey sk = new MockSigningKey(1);
+
+        for (int i = 0; i < 3 * capacity; i++) {
+            Assert.assertTrue(cache.verify(sign(sk, BigInteger.valueOf(i))));
+            Assert.assertTrue(cache.size() <= capacity);
+        }
+        Assert.assertEquals(capacity, cache.size());
+
+        // Forgotten signatures are still valid.
+        Assert.assertTrue(cache.verify(sign(sk, BigInteger.ZERO)));
+        Assert.assertEquals(capacity, cache.size());
+    }
+}
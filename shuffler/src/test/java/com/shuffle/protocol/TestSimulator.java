@@ -0,0 +1,134 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.SigningKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for the simulator itself.
+ */
+public class TestSimulator {
+
+    @Test
+    // Independent simulations can run at the same time.
+    public void testConcurrentSimulations() throws Exception {
+        final Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(5150));
+        ExecutorService runners = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<Map<SigningKey, ReturnState>>> runs = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final SessionIdentifier session = new MockSessionIdentifier("concurrent" + i);
+                final int players = 3 + i % 3;
+                runs.add(runners.submit(new Callable<Map<SigningKey, ReturnState>>() {
+                    @Override
+                    public Map<SigningKey, ReturnState> call() {
+                        return sim.successfulRun(session, players, 17, new MockCoin());
+                    }
+                }));
+            }
+
+            for (int i = 0; i < runs.size(); i++) {
+                Map<SigningKey, ReturnState> results = runs.get(i).get();
+                Assert.assertEquals(3 + i % 3, results.size());
+                for (ReturnState result : results.values()) {
+                    Assert.assertTrue(result.toString(), result.success);
+                }
+            }
+        } finally {
+            runners.shutdownNow();
+        }
+    }
+
+    @Test
+    // A player which throws an exception is reported as having failed rather than waited for forever.
+    public void testDeadPlayer() {
+        Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(8675));
+        SessionIdentifier session = new MockSessionIdentifier("dead");
+
+        Map<Integer, Simulator.MessageReplacement> malicious = new HashMap<>();
+        malicious.put(2, new Simulator.MessageReplacement() {
+            @Override
+            public SignedPacket replace(SignedPacket packet) {
+                throw new IllegalStateException();
+            }
+        });
+
+        Map<SigningKey, ReturnState> results = sim.runWithReplacements(session, 3, 17, new MockCoin(), malicious);
+        Assert.assertEquals(3, results.size());
+
+        int dead = 0;
+        for (ReturnState result : results.values()) {
+            Assert.assertFalse(result.success);
+            if (result.error instanceof IllegalStateException) {
+                dead++;
+            }
+        }
+        Assert.assertEquals(1, dead);
+    }
+
+    // A run in which one player spent his money, so that everyone else has to wait for blame
+    // messages until they time out.
+    static List<String> insufficientFunds(long seed) {
+        Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(1999));
+        Simulator.InitialState init = sim.initialize(new MockSessionIdentifier("deterministic"), 17)
+                .defaultCoin(new MockCoin()).deterministic(seed);
+        for (int i = 1; i <= 5; i++) {
+            init.player().initialFunds(20);
+            if (i == 3) {
+                init.spend(16);
+            }
+        }
+
+        List<String> results = new ArrayList<>();
+        for (ReturnState result : init.run().values()) {
+            Assert.assertFalse(result.success);
+            results.add(result.toString());
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    @Test
+    // A deterministic run does the same thing every time, and its timeouts take no real time.
+    public void testDeterministic() {
+        long start = System.currentTimeMillis();
+        List<String> first = insufficientFunds(42);
+        List<String> second = insufficientFunds(42);
+
+        // The players would wait this long for real if the simulation weren't deterministic.
+        Assert.assertTrue(System.currentTimeMillis() - start < Scheduler.TIMEOUT);
+
+        Assert.assertEquals(5, first.size());
+        Assert.assertEquals(first, second);
+    }
+
+    @Test
+    public void testDeterministicSuccess() {
+        for (long seed = 0; seed < 4; seed++) {
+            Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(31337));
+            Simulator.InitialState init = sim.initialize(new MockSessionIdentifier("seed" + seed), 17)
+                    .defaultCoin(new MockCoin()).deterministic(seed);
+            for (int i = 1; i <= 6; i++) {
+                init.player().initialFunds(20);
+            }
+
+            Map<SigningKey, ReturnState> results = init.run();
+            Assert.assertEquals(6, results.size());
+            for (ReturnState result : results.values()) {
+                Assert.assertTrue(result.toString(), result.success);
+            }
+        }
+    }
+}
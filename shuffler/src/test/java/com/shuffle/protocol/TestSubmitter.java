@@ -0,0 +1,161 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.CoinNetworkError;
+import com.shuffle.bitcoin.Transaction;
+import com.shuffle.bitcoin.VerificationKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for sending transactions in the background.
+ */
+public class TestSubmitter {
+
+    // A transaction that gets lost the first few times it is sent.
+    static class LossyTransaction implements Transaction {
+        final Transaction t;
+        int drops;
+
+        LossyTransaction(Transaction t, int drops) {
+            this.t = t;
+            this.drops = drops;
+        }
+
+        @Override
+        public void send() throws CoinNetworkError {
+            if (drops > 0) {
+                drops--;
+                throw new CoinNetworkError();
+            }
+            t.send();
+        }
+
+        @Override
+        public byte[] sighash(VerificationKey key) {
+            return t.sighash(key);
+        }
+    }
+
+    static class LossyCoin extends MockCoin {
+        @Override
+        public synchronized boolean seen(Transaction t) {
+            return t instanceof LossyTransaction && super.seen(((LossyTransaction) t).t);
+        }
+    }
+
+    // A transaction that is broken in a way that sending it again won't fix.
+    static class BrokenTransaction implements Transaction {
+        final RuntimeException error;
+        int sent = 0;
+
+        BrokenTransaction(RuntimeException error) {
+            this.error = error;
+        }
+
+        @Override
+        public void send() throws CoinNetworkError {
+            sent++;
+            throw error;
+        }
+
+        @Override
+        public byte[] sighash(VerificationKey key) {
+            return new byte[]{};
+        }
+    }
+
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    final LossyCoin coin = new LossyCoin();
+    final Address from = new MockAddress(1);
+    final Address to = new MockAddress(2);
+
+    public TestSubmitter() {
+        coin.put(from, 20);
+    }
+
+    @Test
+    public void testSeen() throws InterruptedException, ExecutionException, TimeoutException {
+        Submitter submitter = new Submitter(coin, scheduler, 1, 5);
+
+        Submitter.Submission submission = submitter.submit(new LossyTransaction(coin.spend(from, to, 10), 2));
+        Assert.assertTrue(submission.get(10, TimeUnit.SECONDS));
+        Assert.assertTrue(submission.isDone());
+        Assert.assertFalse(submission.isCancelled());
+        Assert.assertEquals(3, submission.attempts());
+        Assert.assertNotNull(submission.error());
+        Assert.assertEquals(0, coin.valueHeld(from));
+        Assert.assertEquals(10, coin.valueHeld(to));
+    }
+
+    @Test
+    public void testGiveUp() throws InterruptedException, ExecutionException, TimeoutException {
+        Submitter submitter = new Submitter(coin, scheduler, 1, 3);
+
+        Submitter.Submission submission = submitter.submit(new LossyTransaction(coin.spend(from, to, 10), 100));
+        Assert.assertFalse(submission.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3, submission.attempts());
+        Assert.assertEquals(20, coin.valueHeld(from));
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException, ExecutionException {
+        Submitter submitter = new Submitter(coin, scheduler, 60000, 3);
+
+        Submitter.Submission submission = submitter.submit(new LossyTransaction(coin.spend(from, to, 10), 100));
+        Assert.assertTrue(submission.cancel(false));
+        Assert.assertTrue(submission.isCancelled());
+        Assert.assertFalse(submission.get());
+        Assert.assertFalse(submission.cancel(false));
+    }
+
+    @Test
+    public void testReturnState() throws InterruptedException, ExecutionException, TimeoutException {
+        Submitter submitter = new Submitter(coin, scheduler, 1, 3);
+        SessionIdentifier session = new MockSessionIdentifier("testSubmitter");
+
+        Submitter.Submission submission = submitter.submit(new LossyTransaction(coin.spend(from, to, 10), 0));
+        ReturnState state = new ReturnState(true, session, Phase.Completed, null, null, submission);
+        Assert.assertSame(submission, state.submission());
+        Assert.assertTrue(state.submission().get(10, TimeUnit.SECONDS));
+
+        // Whether the transaction got through doesn't matter to match.
+        Assert.assertTrue(state.match(new ReturnState(true, session, Phase.Completed, null, null)));
+    }
+
+    @Test
+    public void testBroken() throws InterruptedException, ExecutionException, TimeoutException {
+        Submitter submitter = new Submitter(coin, scheduler, 1, 5);
+
+        // The submission ends at once, rather than leaving its future waiting forever.
+        BrokenTransaction broken = new BrokenTransaction(new IllegalStateException());
+        Submitter.Submission submission = submitter.submit(broken);
+        Assert.assertFalse(submission.get(10, TimeUnit.SECONDS));
+        Assert.assertFalse(submission.isCancelled());
+        Assert.assertEquals(1, submission.attempts());
+        Assert.assertEquals(1, broken.sent);
+        Assert.assertSame(broken.error, submission.error());
+
+        // Likewise if the coin network breaks while checking on the transaction.
+        final InvalidImplementationError error = new InvalidImplementationError();
+        LossyCoin coin = new LossyCoin() {
+            @Override
+            public synchronized boolean seen(Transaction t) {
+                throw error;
+            }
+        };
+        coin.put(from, 20);
+
+        submission = new Submitter(coin, scheduler, 1, 5).submit(new LossyTransaction(coin.spend(from, to, 10), 0));
+        Assert.assertFalse(submission.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, submission.attempts());
+        Assert.assertSame(error, submission.error());
+    }
+}
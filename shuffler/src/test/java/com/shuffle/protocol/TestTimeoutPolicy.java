@@ -0,0 +1,144 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the adaptive timeouts.
+ */
+public class TestTimeoutPolicy {
+
+    static List<VerificationKey> players(int n) {
+        VerificationKey[] players = new VerificationKey[n];
+        for (int i = 0; i < n; i++) {
+            players[i] = new MockSigningKey(i + 1).VerificationKey();
+        }
+        return Arrays.asList(players);
+    }
+
+    @Test
+    public void testArguments() {
+        long[][] bad = new long[][]{{1000, 0, 2000}, {100, 250, 2000}, {3000, 250, 2000}};
+        for (long[] args : bad) {
+            try {
+                new TimeoutPolicy(args[0], args[1], args[2]);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // Good.
+            }
+        }
+    }
+
+    @Test
+    public void testEstimate() {
+        TimeoutPolicy timeouts = new TimeoutPolicy(1000, 250, 120000);
+        List<VerificationKey> players = players(3);
+
+        // Nothing has been observed yet.
+        Assert.assertEquals(1000, timeouts.timeout(Phase.Announcement, players));
+
+        // The first observation is taken to vary by half of itself.
+        timeouts.completed(Phase.Announcement, 1, 100);
+        Assert.assertEquals(100 + 4 * 50, timeouts.timeout(Phase.Announcement, players));
+
+        // The same again, so the deviation shrinks by a quarter.
+        timeouts.completed(Phase.Announcement, 1, 100);
+        Assert.assertEquals(100 + 4 * 37.5, timeouts.timeout(Phase.Announcement, players), 0);
+
+        // Other phases are not affected.
+        Assert.assertEquals(1000, timeouts.timeout(Phase.EquivocationCheck, players));
+
+        // A slow peer makes us wait longer, but only for him.
+        VerificationKey slow = new MockSigningKey(9).VerificationKey();
+        timeouts.latency(slow, 2000);
+        Assert.assertEquals(250, timeouts.timeout(Phase.Announcement, players));
+        Assert.assertEquals(2000 + 4 * 1000, timeouts.timeout(Phase.Announcement, Arrays.asList(players.get(0), slow)));
+    }
+
+    @Test
+    public void testClamp() {
+        TimeoutPolicy timeouts = new TimeoutPolicy(1000, 250, 120000);
+        List<VerificationKey> players = players(3);
+
+        timeouts.completed(Phase.EquivocationCheck, 1, 10);
+        Assert.assertEquals(250, timeouts.timeout(Phase.EquivocationCheck, players));
+
+        timeouts.completed(Phase.VerificationAndSubmission, 1, 1000000);
+        Assert.assertEquals(120000, timeouts.timeout(Phase.VerificationAndSubmission, players));
+
+        // Each step of a sequential phase gets at least the minimum.
+        timeouts.completed(Phase.BroadcastOutput, 1, 10);
+        Assert.assertEquals(3 * 250, timeouts.timeout(Phase.BroadcastOutput, players));
+
+        // However many players there are, we don't wait longer than the maximum.
+        Assert.assertEquals(120000, timeouts.timeout(Phase.Shuffling, players(200)));
+    }
+
+    @Test
+    public void testSequential() {
+        TimeoutPolicy timeouts = new TimeoutPolicy(1000, 250, 120000);
+
+        // Before anything is known, each player gets the initial timeout.
+        Assert.assertEquals(3000, timeouts.timeout(Phase.Shuffling, players(3)));
+
+        // The phase took four steps, so each took 100 ms.
+        timeouts.completed(Phase.Shuffling, 4, 400);
+        Assert.assertEquals(3 * 300, timeouts.timeout(Phase.Shuffling, players(3)));
+        Assert.assertEquals(5 * 300, timeouts.timeout(Phase.Shuffling, players(5)));
+
+        // Slow peers don't matter when players take turns.
+        timeouts.latency(players(1).get(0), 5000);
+        Assert.assertEquals(3 * 300, timeouts.timeout(Phase.Shuffling, players(3)));
+    }
+
+    @Test
+    public void testBackoff() {
+        TimeoutPolicy timeouts = new TimeoutPolicy(1000, 250, 120000);
+        List<VerificationKey> players = players(3);
+
+        timeouts.timedOut(Phase.Announcement);
+        Assert.assertEquals(2000, timeouts.timeout(Phase.Announcement, players));
+        timeouts.timedOut(Phase.Announcement);
+        Assert.assertEquals(4000, timeouts.timeout(Phase.Announcement, players));
+        Assert.assertEquals(1000, timeouts.timeout(Phase.EquivocationCheck, players));
+
+        timeouts.timedOut(Phase.Shuffling);
+        Assert.assertEquals(6000, timeouts.timeout(Phase.Shuffling, players));
+
+        // No further than the maximum.
+        for (int i = 0; i < 100; i++) {
+            timeouts.timedOut(Phase.Announcement);
+        }
+        Assert.assertEquals(120000, timeouts.timeout(Phase.Announcement, players));
+
+        // Once the phase completes, we go back to the estimate.
+        timeouts.completed(Phase.Announcement, 1, 100);
+        Assert.assertEquals(300, timeouts.timeout(Phase.Announcement, players));
+    }
+
+    @Test
+    public void testMailboxBackoff() throws Exception {
+        TimeoutPolicy timeouts = new TimeoutPolicy(1000, 250, 120000);
+        List<VerificationKey> players = players(3);
+        SigningKey sk = new MockSigningKey(1);
+        Mailbox mailbox = new Mailbox(new MockSessionIdentifier("backoff"), sk, players, new MockNetwork(), timeouts);
+
+        try {
+            mailbox.receiveFrom(players.get(1), Phase.Announcement);
+            Assert.fail();
+        } catch (TimeoutError e) {
+            // Nobody sent anything.
+        }
+        Assert.assertEquals(2000, timeouts.timeout(Phase.Announcement, players));
+
+        // Running out of blame is not a reason to wait longer next time.
+        mailbox.receiveAllBlame();
+        Assert.assertEquals(1000, timeouts.timeout(Phase.Blame, players));
+    }
+}
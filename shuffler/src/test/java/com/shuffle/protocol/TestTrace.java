@@ -0,0 +1,166 @@
+package com.shuffle.protocol;
+
+import com.shuffle.bitcoin.Address;
+import com.shuffle.bitcoin.Crypto;
+import com.shuffle.bitcoin.SigningKey;
+import com.shuffle.bitcoin.VerificationKey;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for recording and replaying traces.
+ */
+public class TestTrace {
+
+    // Packets are read as they are used, so the codec remembers copies.
+    static class MockCodec extends TestJournal.MockCodec {
+        @Override
+        public byte[] encode(SignedPacket packet) {
+            return remember(packet.copy());
+        }
+
+        @Override
+        public SignedPacket decodeSignedPacket(byte[] bytes) throws FormatException {
+            return ((SignedPacket)recall(bytes)).copy();
+        }
+    }
+
+    static int count(Trace trace, Trace.Type type) {
+        int count = 0;
+        for (Trace.Event event : trace.events()) {
+            if (event.type == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Run a session of four players in which the first is recorded.
+    static Simulator.InitialState record(SessionIdentifier session, Trace.Recorder recorder) throws Exception {
+        Simulator sim = new Simulator(new MockMessageFactory(), new MockCrypto(2323));
+        Simulator.InitialState init = sim.initialize(session, 17).defaultCoin(new MockCoin()).deterministic(5);
+        for (int i = 1; i <= 4; i++) {
+            init.player().initialFunds(20);
+            if (i == 1) {
+                init.record(recorder);
+            }
+        }
+
+        Map<SigningKey, ReturnState> results = init.run();
+        for (ReturnState result : results.values()) {
+            Assert.assertTrue(result.toString(), result.success);
+        }
+        recorder.close();
+        return init;
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        MockCodec codec = new MockCodec();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionIdentifier session = new MockSessionIdentifier("trace");
+        // These are only mock coins, so it's safe to record secrets.
+        Simulator.InitialState init = record(session, new Trace.Recorder(out, codec, true));
+
+        Trace trace = Trace.read(new ByteArrayInputStream(out.toByteArray()), codec);
+        Assert.assertTrue(count(trace, Trace.Type.Sent) > 0);
+        Assert.assertEquals(0, count(trace, Trace.Type.Broadcast));
+        Assert.assertTrue(count(trace, Trace.Type.Received) > 0);
+        Assert.assertTrue(count(trace, Trace.Type.SigningKey) > 0); // His new address.
+        Assert.assertEquals(0, count(trace, Trace.Type.Timeout));
+        Assert.assertEquals(Phase.Announcement, trace.events().get(0).phase);
+        Assert.assertTrue(trace.phases().containsKey(Phase.Announcement));
+        Assert.assertTrue(trace.phases().containsKey(Phase.VerificationAndSubmission));
+
+        long time = 0;
+        for (Trace.Event event : trace.events()) {
+            Assert.assertTrue(event.time >= time);
+            time = event.time;
+        }
+
+        // Replay the first player offline with a coin network that has the money it had before.
+        List<SigningKey> keys = init.keys();
+        MockCoin coin = new MockCoin();
+        SortedSet<VerificationKey> players = new TreeSet<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Address previous = new MockAddress(10000 + i);
+            coin.put(previous, 20);
+            coin.spend(previous, keys.get(i).VerificationKey().address(), 20).send();
+            players.add(keys.get(i).VerificationKey());
+        }
+
+        Trace.Replay replay = trace.replay();
+        CoinShuffle shuffle = new CoinShuffle(new MockMessageFactory(), replay.crypto(new MockCrypto(1)), coin, new CoinShuffle.Options());
+        ReturnState result = shuffle.new ShuffleMachine(session, 17, keys.get(0), players, null, 1, 2, new CoinShuffle.SessionOptions())
+                .run(replay.network());
+
+        Assert.assertTrue(result.toString(), result.success);
+        Assert.assertEquals(-1, replay.diverged());
+        Assert.assertTrue(replay.elapsed().containsKey(Phase.Announcement));
+    }
+
+    @Test
+    public void testSecretsNotRecorded() throws Exception {
+        MockCodec codec = new MockCodec();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record(new MockSessionIdentifier("secret"), new Trace.Recorder(out, codec));
+
+        // We know when his new key was made, but not what it is.
+        Trace trace = Trace.read(new ByteArrayInputStream(out.toByteArray()), codec);
+        Assert.assertTrue(count(trace, Trace.Type.SigningKey) > 0);
+        for (Trace.Event event : trace.events()) {
+            if (event.body != null) {
+                Assert.assertEquals(event.toString(), 0, event.body.length);
+            }
+        }
+
+        // Anything asked for during a replay is made up by the stand-in.
+        Trace.Replay replay = trace.replay();
+        Crypto crypto = replay.crypto(new MockCrypto(9));
+        Assert.assertNotNull(crypto.makeSigningKey());
+    }
+
+    @Test
+    public void testTornTrace() throws Exception {
+        MockCodec codec = new MockCodec();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Trace.Recorder recorder = new Trace.Recorder(out, codec);
+
+        MockNetwork network = new MockNetwork();
+        MockSigningKey sk = new MockSigningKey(2);
+        network.deliver(sk.makeSignedPacket(new Packet(new MockMessage(), new MockSessionIdentifier("torn"),
+                Phase.Announcement, sk.VerificationKey(), new MockVerificationKey(1))));
+
+        Network recording = recorder.network(network);
+        recording.receive(1, TimeUnit.SECONDS);
+        recorder.crypto(new MockCrypto(3)).getRandom(10);
+        recorder.close();
+
+        byte[] bytes = out.toByteArray();
+        Trace whole = Trace.read(new ByteArrayInputStream(bytes), codec);
+        Assert.assertEquals(2, whole.events().size());
+        Assert.assertEquals(Trace.Type.Received, whole.events().get(0).type);
+
+        // Cut off the last byte, as if the process died while writing it.
+        Trace torn = Trace.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)), codec);
+        Assert.assertEquals(1, torn.events().size());
+
+        try {
+            bytes[0] = 0;
+            Trace.read(new ByteArrayInputStream(bytes), codec);
+            Assert.fail();
+        } catch (FormatException e) {
+            // Good.
+        }
+    }
+}